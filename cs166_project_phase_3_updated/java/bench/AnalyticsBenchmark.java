@@ -0,0 +1,166 @@
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Times the sales reports of OrderAnalytics against the GROUP BY queries
+ * Postgres would run for them.  The in-memory part always runs on
+ * synthetic orders spread over the stores, the products of DataGenerator
+ * and a year of order times; it checks the revenue and order count of
+ * every store against totals kept while generating, and reports each
+ * report for every parallelism given.  The SQL part runs when --db is
+ * given: it loads the engine from the real Orders table, e.g. the 10M
+ * orders of "DataGenerator out 1000 10000000", and times the same reports
+ * both ways.
+ *
+ * Usage: java AnalyticsBenchmark [--orders n] [--stores n] [--customers n] [--days n]
+ *              [--chunkRows n] [--parallelism n,n,...] [--offHeap] [--runs n]
+ *              [--db <dbname> <port> <user>]
+ */
+public class AnalyticsBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      int orders = 10000000;
+      int stores = 1000;
+      int customers = 100000;
+      int days = 365;
+      int chunkRows = 65536;
+      String parallelism = "1," + Runtime.getRuntime().availableProcessors();
+      boolean offHeap = false;
+      int runs = 5;
+      String[] db = null;
+      for (int i = 0; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--orders": orders = Integer.parseInt(args[++i]); break;
+            case "--stores": stores = Integer.parseInt(args[++i]); break;
+            case "--customers": customers = Integer.parseInt(args[++i]); break;
+            case "--days": days = Integer.parseInt(args[++i]); break;
+            case "--chunkRows": chunkRows = Integer.parseInt(args[++i]); break;
+            case "--parallelism": parallelism = args[++i]; break;
+            case "--offHeap": offHeap = true; break;
+            case "--runs": runs = Integer.parseInt(args[++i]); break;
+            case "--db": db = new String[] {args[++i], args[++i], args[++i]}; break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      for (String p : parallelism.split(","))
+         inMemory(orders, stores, customers, days, chunkRows, offHeap, Integer.parseInt(p.trim()), runs);
+      if (db != null)
+         sql(db[0], db[1], db[2], runs);
+   }//end main
+
+   static double price(int storeID, int product) {
+      return 1 + (storeID * 31 + product * 7) % 100 / 4.0;
+   }
+
+   static void inMemory(int orders, int stores, int customers, int days, int chunkRows, boolean offHeap,
+                        int parallelism, int runs) throws Exception {
+      String[] products = DataGenerator.PRODUCTS;
+      OrderAnalytics analytics = new OrderAnalytics(null, storeID -> {
+            Map<String, Double> prices = new HashMap<String, Double>();
+            for (int p = 0; p < products.length; ++p)
+               prices.put(products[p], price(storeID, p));
+            return prices;
+         }, chunkRows, offHeap, parallelism);
+
+      // orders arrive in time order, as they are placed
+      Random random = new Random(7);
+      double[] revenue = new double[stores + 1];
+      long[] count = new long[stores + 1];
+      LocalDateTime first = DataGenerator.FIRST_ORDER;
+      long span = days * 24 * 3600L;
+      long t0 = System.nanoTime();
+      for (int i = 0; i < orders; ++i) {
+         int storeID = random.nextInt(stores) + 1;
+         int product = Math.min(products.length - 1, (int) Math.abs(random.nextGaussian() * 3));
+         int units = random.nextInt(5) + 1;
+         LocalDateTime time = first.plusSeconds(span * i / orders);
+         analytics.recordOrder(new Rows.Order(i + 1, random.nextInt(customers) + 1, storeID, products[product],
+                                              units, time));
+         revenue[storeID] += units * price(storeID, product);
+         ++count[storeID];
+      }
+      long t1 = System.nanoTime();
+      System.out.printf("%d orders appended in %.1f s, %.0f ns/order: %s%n", orders, (t1 - t0) / 1e9,
+                        (t1 - t0) / (double) orders, analytics);
+
+      double[] got = new double[stores + 1];
+      long[] gotCount = new long[stores + 1];
+      for (OrderAnalytics.Total<OrderAnalytics.StoreDay> t : analytics.revenueByStoreDay(OrderAnalytics.Filter.NONE)) {
+         got[t.key().storeID()] += t.revenue();
+         gotCount[t.key().storeID()] += t.orders();
+      }
+      for (int s = 1; s <= stores; ++s)
+         if (gotCount[s] != count[s] || Math.abs(got[s] - revenue[s]) > 1e-6 * Math.max(1, revenue[s]))
+            throw new IllegalStateException("wrong totals for store " + s);
+
+      OrderAnalytics.Filter lastMonth = new OrderAnalytics.Filter(null, first.plusDays(days - 30), null);
+      OrderAnalytics.Filter oneStore = new OrderAnalytics.Filter(Set.of(1), null, null);
+      time("revenue by store and day", parallelism, runs, () -> analytics.revenueByStoreDay(OrderAnalytics.Filter.NONE).size());
+      time("units by product", parallelism, runs, () -> analytics.unitsByProduct(OrderAnalytics.Filter.NONE, 5).size());
+      time("spend by customer", parallelism, runs, () -> analytics.spendByCustomer(OrderAnalytics.Filter.NONE, 5).size());
+      time("basket sizes", parallelism, runs, () -> analytics.basketSizes(OrderAnalytics.Filter.NONE).baskets());
+      time("spend by customer, last 30 days", parallelism, runs, () -> analytics.spendByCustomer(lastMonth, 5).size());
+      time("units by product, store 1", parallelism, runs, () -> analytics.unitsByProduct(oneStore, 5).size());
+   }//end inMemory
+
+   interface Report {
+      long run() throws Exception;
+   }
+
+   // best of runs, after one warm up run
+   static void time(String name, int parallelism, int runs, Report report) throws Exception {
+      long sink = report.run();
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < runs; ++i) {
+         long s = System.nanoTime();
+         sink += report.run();
+         best = Math.min(best, System.nanoTime() - s);
+      }
+      System.out.printf("  parallelism %d  %-34s %9.1f ms (%d)%n", parallelism, name, best / 1e6, sink);
+   }
+
+   static void sql(String dbname, String port, String user, int runs) throws Exception {
+      Amazon esql = new Amazon(dbname, port, user, "");
+      try {
+         OrderAnalytics analytics = esql.analytics();
+         long s = System.nanoTime();
+         analytics.basketSizes(OrderAnalytics.Filter.NONE);
+         System.out.printf("loaded %s in %.1f s%n", analytics, (System.nanoTime() - s) / 1e9);
+
+         String join = " FROM Orders o JOIN Product p ON p.storeID = o.storeID AND p.productName = o.productName";
+         Map<String, Report> reports = new LinkedHashMap<String, Report>();
+         reports.put("SELECT o.storeID, date(o.orderTime), count(*), sum(o.unitsOrdered),"
+                     + " sum(o.unitsOrdered * p.pricePerUnit)" + join + " GROUP BY 1, 2",
+                     () -> analytics.revenueByStoreDay(OrderAnalytics.Filter.NONE).size());
+         reports.put("SELECT o.productName, count(*), sum(o.unitsOrdered), sum(o.unitsOrdered * p.pricePerUnit)"
+                     + join + " GROUP BY 1 ORDER BY 3 DESC LIMIT 5",
+                     () -> analytics.unitsByProduct(OrderAnalytics.Filter.NONE, 5).size());
+         reports.put("SELECT o.customerID, count(*), sum(o.unitsOrdered), sum(o.unitsOrdered * p.pricePerUnit) AS spend"
+                     + join + " GROUP BY 1 ORDER BY spend DESC LIMIT 5",
+                     () -> analytics.spendByCustomer(OrderAnalytics.Filter.NONE, 5).size());
+         reports.put("SELECT count(*), avg(n) FROM (SELECT customerID, date(orderTime), count(*) AS n"
+                     + " FROM Orders GROUP BY 1, 2) b",
+                     () -> analytics.basketSizes(OrderAnalytics.Filter.NONE).baskets());
+         for (Map.Entry<String, Report> e : reports.entrySet()) {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            time("in memory", parallelism, runs, e.getValue());
+            List<List<String>> warm = esql.executeQueryAndReturnResult(e.getKey());
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < runs; ++i) {
+               long t = System.nanoTime();
+               esql.executeQuery(e.getKey());
+               best = Math.min(best, System.nanoTime() - t);
+            }
+            System.out.printf("  SQL %9.1f ms (%d rows) for %s%n", best / 1e6, warm.size(), e.getKey());
+         }
+      } finally {
+         esql.cleanup();
+      }
+   }//end sql
+
+}//end AnalyticsBenchmark
@@ -0,0 +1,98 @@
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Shows what archiving old orders does to the hot Orders table: its size,
+ * the size of its indexes, the latency of viewRecentOrders (the first
+ * OrderHistory page of 5 orders) for a sample of customers and the time
+ * OrderPopularity takes to load, all measured before and after one
+ * OrderArchive run.
+ *
+ * The cutoff is --before, or by default the orderTime that leaves the
+ * newest --hot fraction of the orders in Orders.  The run moves orders, so
+ * use a copy of the database, e.g. one loaded with the 50M orders of
+ * "DataGenerator out 1000 50000000" and created with the archive tables of
+ * create_tables.sql.
+ *
+ * Usage: java ArchiveBenchmark <dbname> <port> <user>
+ *              [--hot fraction | --before yyyy-mm-dd] [--customers n] [--repeat n]
+ */
+public class ArchiveBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java ArchiveBenchmark <dbname> <port> <user> [--hot fraction | --before yyyy-mm-dd] "
+                            + "[--customers n] [--repeat n]");
+         return;
+      }
+      double hot = 0.1;
+      LocalDateTime before = null;
+      int customers = 2000;
+      int repeat = 3;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--hot": hot = Double.parseDouble(args[++i]); break;
+            case "--before": before = LocalDate.parse(args[++i]).atStartOfDay(); break;
+            case "--customers": customers = Integer.parseInt(args[++i]); break;
+            case "--repeat": repeat = Integer.parseInt(args[++i]); break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         if (!esql.archive().present()) {
+            System.err.println("The archive tables do not exist, run create_tables.sql first.");
+            return;
+         }
+         if (before == null) {
+            Timestamp cutoff = esql.queryOne("SELECT percentile_disc(?) WITHIN GROUP (ORDER BY orderTime) FROM Orders",
+                                             rs -> rs.getTimestamp(1), 1 - hot);
+            if (cutoff == null) {
+               System.err.println("There are no orders.");
+               return;
+            }
+            before = cutoff.toLocalDateTime();
+         }
+         List<Integer> sample = esql.queryList("SELECT userID FROM Users ORDER BY random() LIMIT ?", Rows.INT, customers);
+
+         System.out.printf("%-8s %12s %12s %14s %14s %10s %10s %10s %14s%n", "", "orders", "table MB", "indexes MB",
+                           "indexOrders MB", "p50 ms", "p99 ms", "mean ms", "popularity ms");
+         measure("before", esql, sample, repeat);
+         OrderArchive.Report report = esql.archive().archive(before);
+         System.out.printf("archived %d orders before %s into %d partitions in %.1f s%n", report.moved(), report.cutoff(),
+                           report.partitions(), report.elapsedMillis() / 1e3);
+         measure("after", esql, sample, repeat);
+         System.out.println("queries: " + esql.metrics());
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   static void measure(String label, Amazon esql, List<Integer> sample, int repeat) throws Exception {
+      long orders = esql.queryOne("SELECT count(*) FROM Orders", Rows.LONG);
+      long table = esql.queryOne("SELECT pg_relation_size('orders')", Rows.LONG);
+      long indexes = esql.queryOne("SELECT pg_indexes_size('orders')", Rows.LONG);
+      long indexOrders = esql.queryOne("SELECT coalesce(pg_relation_size(to_regclass('indexorders')), 0)", Rows.LONG);
+
+      // the first pass warms the cache, the others are timed
+      LatencyHistogram latencies = new LatencyHistogram();
+      for (int r = 0; r <= repeat; ++r) {
+         for (int customer : sample) {
+            long start = System.nanoTime();
+            esql.history().page(customer, OrderHistory.Filter.NONE, null, Storefront.REPORT_SIZE);
+            if (r > 0)
+               latencies.record(System.nanoTime() - start);
+         }
+      }
+      long start = System.nanoTime();
+      OrderPopularity.load(esql);
+      double popularity = (System.nanoTime() - start) / 1e6;
+      System.out.printf("%-8s %12d %12.1f %14.1f %14.1f %10.3f %10.3f %10.3f %14.0f%n", label, orders, table / 1e6,
+                        indexes / 1e6, indexOrders / 1e6, latencies.percentile(50) / 1e6,
+                        latencies.percentile(99) / 1e6, latencies.mean() / 1e6, popularity);
+   }//end measure
+
+}//end ArchiveBenchmark
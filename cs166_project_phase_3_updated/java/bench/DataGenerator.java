@@ -0,0 +1,128 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes the seven data files (users, stores, products, warehouse, orders,
+ * productSupplyRequests, productUpdates) in the format of data/, scaled up
+ * from the shipped sizes.  The output only depends on the arguments, so two
+ * runs with the same scale produce identical files.
+ *
+ * A scale of 1 matches the shipped data set (100 users, 20 stores, 200
+ * products, 500 orders); the order count can be set separately, e.g.
+ * "DataGenerator out 1000 10000000" gives 100k users, 20k stores and 10M
+ * orders.
+ *
+ * Usage: java DataGenerator <outDir> <scale> [orders] [seed]
+ */
+public class DataGenerator {
+
+   static final String[] PRODUCTS = {
+      "7up", "Brisk", "Donuts", "Egg", "Hot and Sour Soup",
+      "Ice Cream", "Lemonade", "Orange Juice", "Pepsi", "Pudding"
+   };
+   static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+   static final LocalDateTime FIRST_ORDER = LocalDateTime.of(2016, 9, 10, 13, 1);
+
+   final int users, stores, warehouses, orders, supplyRequests, updates;
+   final Random random;
+   // user IDs 2 .. managers+1 are managers, the rest are customers
+   final int managers;
+
+   DataGenerator(int scale, int orders, long seed) {
+      this.users = 100 * scale;
+      this.stores = 20 * scale;
+      this.warehouses = 5 * scale;
+      this.orders = orders;
+      this.supplyRequests = 10 * scale;
+      this.updates = 50 * scale;
+      this.managers = Math.max(1, users * 6 / 100);
+      this.random = new Random(seed);
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.err.println("Usage: java DataGenerator <outDir> <scale> [orders] [seed]");
+         return;
+      }
+      int scale = Integer.parseInt(args[1]);
+      int orders = args.length > 2 ? Integer.parseInt(args[2]) : 500 * scale;
+      long seed = args.length > 3 ? Long.parseLong(args[3]) : 166;
+      File dir = new File(args[0]);
+      dir.mkdirs();
+      new DataGenerator(scale, orders, seed).write(dir);
+   }//end main
+
+   void write(File dir) throws IOException {
+      try (BufferedWriter out = open(dir, "users.csv", "userID,name,password,latitude,longitude,type")) {
+         for (int id = 1; id <= users; ++id) {
+            String type = id == 1 ? "admin" : id <= managers + 1 ? "manager" : "customer";
+            out.write(id + ",user" + id + ",xyz," + coordinate() + "," + coordinate() + "," + type + "\n");
+         }
+      }
+      try (BufferedWriter out = open(dir, "stores.csv", "storeID,latitude,longitude,managerID,dateEstablished")) {
+         for (int id = 1; id <= stores; ++id) {
+            LocalDate established = LocalDate.of(1930, 1, 1).plusDays(random.nextInt(30000));
+            out.write(id + "," + coordinate() + "," + coordinate() + "," + manager() + "," + established + "\n");
+         }
+      }
+      try (BufferedWriter out = open(dir, "products.csv", "storeID,productName,numberOfUnits,pricePerUnit")) {
+         for (int store = 1; store <= stores; ++store)
+            for (String product : PRODUCTS)
+               out.write(store + "," + product + "," + random.nextInt(100) + "," + (1 + random.nextInt(10)) + "\n");
+      }
+      try (BufferedWriter out = open(dir, "warehouse.csv", "wareHouseID,area,latitude,longitude")) {
+         for (int id = 1; id <= warehouses; ++id)
+            out.write(id + "," + (10000 + random.nextInt(70000)) + "," + coordinate() + "," + coordinate() + "\n");
+      }
+      try (BufferedWriter out = open(dir, "orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime")) {
+         // spread the orders over roughly a year, in time order
+         double secondsPerOrder = 365.0 * 24 * 3600 / Math.max(1, orders);
+         for (int id = 1; id <= orders; ++id) {
+            LocalDateTime time = FIRST_ORDER.plusSeconds((long) (id * secondsPerOrder));
+            out.write(id + "," + customer() + "," + (1 + random.nextInt(stores)) + "," + product()
+                      + "," + (1 + random.nextInt(10)) + "," + TIME.format(time) + "\n");
+         }
+      }
+      try (BufferedWriter out = open(dir, "productSupplyRequests.csv",
+                                     "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested")) {
+         for (int id = 1; id <= supplyRequests; ++id)
+            out.write(id + "," + manager() + "," + (1 + random.nextInt(warehouses)) + "," + (1 + random.nextInt(stores))
+                      + "," + product() + "," + (1 + random.nextInt(100)) + "\n");
+      }
+      try (BufferedWriter out = open(dir, "productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn")) {
+         for (int id = 1; id <= updates; ++id)
+            out.write(id + "," + manager() + "," + (1 + random.nextInt(stores)) + "," + product()
+                      + "," + TIME.format(FIRST_ORDER.plusMinutes(id)) + "\n");
+      }
+   }//end write
+
+   String coordinate() {
+      return String.format(Locale.ROOT, "%.5f", random.nextDouble() * 100);
+   }
+
+   int manager() {
+      return 2 + random.nextInt(managers);
+   }
+
+   int customer() {
+      return managers + 2 + random.nextInt(Math.max(1, users - managers - 1));
+   }
+
+   String product() {
+      return PRODUCTS[random.nextInt(PRODUCTS.length)];
+   }
+
+   static BufferedWriter open(File dir, String name, String header) throws IOException {
+      BufferedWriter out = new BufferedWriter(new FileWriter(new File(dir, name)), 1 << 16);
+      out.write(header + "\n");
+      return out;
+   }
+
+}//end DataGenerator
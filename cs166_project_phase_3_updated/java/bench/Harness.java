@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A small fixed-time benchmark runner: every thread calls the operation in
+ * a loop, first for the warmup period and then for the measured period,
+ * recording the latency of each call.  Each thread gets its own seeded
+ * Random so runs are repeatable.
+ *
+ */
+public class Harness {
+
+   @FunctionalInterface
+   public interface Op {
+      void run(Random random) throws Exception;
+   }
+
+   public record Result(String name, long ops, long errors, double opsPerSecond,
+                        double meanMicros, double p50Micros, double p99Micros, double maxMicros) {
+
+      public static String header() {
+         return String.format("%-24s %10s %8s %12s %10s %10s %10s %10s",
+                              "operation", "ops", "errors", "ops/s", "mean us", "p50 us", "p99 us", "max us");
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%-24s %10d %8d %12.1f %10.1f %10.1f %10.1f %10.1f",
+                              name, ops, errors, opsPerSecond, meanMicros, p50Micros, p99Micros, maxMicros);
+      }
+   }
+
+   private final int threads;
+   private final long warmupMillis;
+   private final long measureMillis;
+
+   public Harness(int threads, long warmupMillis, long measureMillis) {
+      this.threads = threads;
+      this.warmupMillis = warmupMillis;
+      this.measureMillis = measureMillis;
+   }
+
+   /**
+    * Runs one operation
+    *
+    * @param name the name printed in the report
+    * @param op the operation to call
+    * @return the measured throughput and latencies
+    * @throws InterruptedException when interrupted while waiting for the threads
+    */
+   public Result run(String name, Op op) throws InterruptedException {
+      long[][] samples = new long[threads][];
+      int[] counts = new int[threads];
+      long[] errors = new long[threads];
+      List<Thread> workers = new ArrayList<Thread>();
+      long start = System.nanoTime();
+      long measureFrom = start + warmupMillis * 1_000_000L;
+      long end = measureFrom + measureMillis * 1_000_000L;
+
+      for (int t = 0; t < threads; ++t) {
+         final int id = t;
+         Thread worker = new Thread(() -> {
+            Random random = new Random(1000 + id);
+            long[] mine = new long[1024];
+            int n = 0;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+               try {
+                  op.run(random);
+               } catch (Exception e) {
+                  if (now >= measureFrom && errors[id]++ == 0)
+                     System.err.println(name + ": " + e);
+               }
+               long done = System.nanoTime();
+               if (now >= measureFrom) {
+                  if (n == mine.length)
+                     mine = Arrays.copyOf(mine, n * 2);
+                  mine[n++] = done - now;
+               }
+            }
+            samples[id] = mine;
+            counts[id] = n;
+         }, name + "-" + t);
+         worker.start();
+         workers.add(worker);
+      }
+      for (Thread worker : workers)
+         worker.join();
+
+      int total = 0;
+      for (int c : counts)
+         total += c;
+      long[] all = new long[total];
+      int at = 0;
+      long sum = 0;
+      long errorCount = 0;
+      for (int t = 0; t < threads; ++t) {
+         System.arraycopy(samples[t], 0, all, at, counts[t]);
+         at += counts[t];
+         errorCount += errors[t];
+      }
+      Arrays.sort(all);
+      for (long v : all)
+         sum += v;
+      if (total == 0)
+         return new Result(name, 0, errorCount, 0, 0, 0, 0, 0);
+      return new Result(name, total, errorCount, total / (measureMillis / 1000.0), sum / 1000.0 / total,
+                        all[(int) (total * 0.50)] / 1000.0, all[Math.min(total - 1, (int) (total * 0.99))] / 1000.0,
+                        all[total - 1] / 1000.0);
+   }//end run
+
+}//end Harness
@@ -0,0 +1,233 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives HttpApi with thousands of concurrent clients.  Every client logs
+ * in, then cycles through GET /stores, GET /stores/{id}/products and
+ * POST /orders, each request timed from send to answer.
+ *
+ * By default the Storefront behind the server is simulated: every
+ * operation parks for --latencyMicros in place of the database round
+ * trip, so the numbers isolate the server and its executor from Postgres
+ * and show how many requests can wait at once.  With --db the real
+ * Storefront answers and every client logs in as --login; placeOrder
+ * writes, so use a throwaway copy of the database.
+ *
+ * Each executor given is measured in turn: "perTask" is the executor of
+ * HttpApi.fromSystemProperties (a virtual thread per request on Java 21
+ * and later, a cached platform thread before), "pool:n" a fixed pool of n
+ * platform threads.  Reported are requests/s, latency percentiles, the
+ * peak number of requests inside the Storefront at once and the peak
+ * number of live platform threads; with virtual threads the requests run
+ * on jdk.virtualThreadScheduler.parallelism carrier threads.
+ *
+ * Usage: java HttpApiBenchmark [--clients n] [--requests n] [--latencyMicros n]
+ *              [--executors perTask,pool:n,...] [--db <dbname> <port> <user> --login name:password]
+ */
+public class HttpApiBenchmark {
+
+   // stands in for the database: every operation waits one round trip
+   static class SimulatedStorefront extends Storefront {
+      final long latencyNanos;
+      final AtomicInteger inFlight = new AtomicInteger();
+      final AtomicInteger peak = new AtomicInteger();
+      final AtomicInteger orders = new AtomicInteger();
+      final List<StoreIndex.Hit> stores = new ArrayList<StoreIndex.Hit>();
+      final List<Rows.Product> products = new ArrayList<Rows.Product>();
+
+      SimulatedStorefront(long latencyNanos) {
+         super(null);
+         this.latencyNanos = latencyNanos;
+         for (int s = 1; s <= 10; ++s)
+            stores.add(new StoreIndex.Hit(new StoreIndex.Entry(s, s, s, s), s * 2.5));
+         for (String name : DataGenerator.PRODUCTS)
+            products.add(new Rows.Product(1, name, 100, 9.99));
+      }
+
+      void roundTrip() {
+         int n = inFlight.incrementAndGet();
+         int p;
+         while (n > (p = peak.get()) && !peak.compareAndSet(p, n)) {
+         }
+         LockSupport.parkNanos(latencyNanos);
+         inFlight.decrementAndGet();
+      }
+
+      @Override
+      public Session logIn(String name, String password) {
+         roundTrip();
+         return new Session(Math.abs(name.hashCode()), name);
+      }
+
+      @Override
+      public void logOut(Session session) {
+      }
+
+      @Override
+      public List<StoreIndex.Hit> viewStores(Session session) {
+         roundTrip();
+         return stores;
+      }
+
+      @Override
+      public List<Rows.Product> viewProducts(int storeID) {
+         roundTrip();
+         return products;
+      }
+
+      @Override
+      public OrderEngine.Result placeOrder(Session session, int storeID, String productName, int units) {
+         roundTrip();
+         return new OrderEngine.Result(OrderEngine.Status.PLACED, orders.incrementAndGet());
+      }
+   }//end SimulatedStorefront
+
+   public static void main(String[] args) throws Exception {
+      int clients = 2000;
+      int requests = 30;
+      long latencyMicros = 5000;
+      String executors = "perTask,pool:64";
+      String[] db = null;
+      String login = null;
+      for (int i = 0; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--clients": clients = Integer.parseInt(args[++i]); break;
+            case "--requests": requests = Integer.parseInt(args[++i]); break;
+            case "--latencyMicros": latencyMicros = Long.parseLong(args[++i]); break;
+            case "--executors": executors = args[++i]; break;
+            case "--db": db = new String[] {args[++i], args[++i], args[++i]}; break;
+            case "--login": login = args[++i]; break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      if (db != null && login == null) {
+         System.err.println("--db needs --login name:password");
+         return;
+      }
+      Amazon esql = null;
+      if (db != null) {
+         Class.forName("org.postgresql.Driver");
+         esql = new Amazon(db[0], db[1], db[2], "");
+      }
+      try {
+         System.out.printf("%d clients x %d requests, %s, virtual threads %s%n", clients, requests,
+                           db == null ? latencyMicros + " us per simulated operation" : "database " + db[0],
+                           VirtualThreads.available() ? "on" : "not available");
+         System.out.printf("%-10s %10s %12s %9s %9s %9s %10s %10s %8s%n", "executor", "seconds", "requests/s",
+                           "p50 ms", "p99 ms", "max ms", "in flight", "threads", "errors");
+         for (String executor : executors.split(",")) {
+            SimulatedStorefront simulated = db == null ? new SimulatedStorefront(latencyMicros * 1000) : null;
+            Storefront storefront = db == null ? simulated : esql.storefront();
+            run(executor.trim(), storefront, simulated, clients, requests, login == null ? "shopper:secret" : login);
+         }
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+   static ExecutorService executor(String name) {
+      if (name.equals("perTask"))
+         return VirtualThreads.newPerTaskExecutor("http");
+      if (name.startsWith("pool:")) {
+         AtomicInteger count = new AtomicInteger();
+         return Executors.newFixedThreadPool(Integer.parseInt(name.substring(5)), r -> {
+            Thread t = new Thread(r, "http-pool-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         });
+      }
+      throw new IllegalArgumentException("Unknown executor " + name);
+   }
+
+   static void run(String executor, Storefront storefront, SimulatedStorefront simulated, int clients, int requests,
+                   String login) throws Exception {
+      HttpApi api = new HttpApi(storefront, 0, clients, TimeUnit.MINUTES.toMillis(30), executor(executor));
+      api.start();
+      String base = "http://localhost:" + api.port();
+      ExecutorService clientThreads = VirtualThreads.newPerTaskExecutor("client");
+      HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).build();
+      LatencyHistogram latencies = new LatencyHistogram();
+      AtomicLong errors = new AtomicLong();
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      String[] credentials = login.split(":", 2);
+      String loginBody = Json.write(Map.of("name", credentials[0], "password", credentials[1]));
+      try {
+         CountDownLatch start = new CountDownLatch(1);
+         List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int c = 0; c < clients; ++c) {
+            final int client = c;
+            futures.add(clientThreads.submit(() -> {
+               start.await();
+               HttpResponse<String> answer = send(http, latencies, HttpRequest.newBuilder(URI.create(base + "/login"))
+                                                  .POST(HttpRequest.BodyPublishers.ofString(loginBody)));
+               if (answer.statusCode() != 200) {
+                  errors.incrementAndGet();
+                  return null;
+               }
+               String token = "Bearer " + ((Map<?, ?>) Json.parse(answer.body())).get("token");
+               for (int r = 0; r < requests; ++r) {
+                  HttpRequest.Builder request;
+                  switch ((client + r) % 3) {
+                     case 0:
+                        request = HttpRequest.newBuilder(URI.create(base + "/stores")).GET();
+                        break;
+                     case 1:
+                        request = HttpRequest.newBuilder(URI.create(base + "/stores/1/products")).GET();
+                        break;
+                     default:
+                        String order = Json.write(Map.of("storeID", 1, "productName", DataGenerator.PRODUCTS[0],
+                                                         "units", 1));
+                        request = HttpRequest.newBuilder(URI.create(base + "/orders"))
+                           .POST(HttpRequest.BodyPublishers.ofString(order));
+                  }
+                  int status = send(http, latencies, request.header("Authorization", token)).statusCode();
+                  if (status >= 400 && status != 409)
+                     errors.incrementAndGet();
+               }
+               return null;
+            }));
+         }
+         threads.resetPeakThreadCount();
+         long t0 = System.nanoTime();
+         start.countDown();
+         for (Future<?> f : futures)
+            f.get();
+         double seconds = (System.nanoTime() - t0) / 1e9;
+         System.out.printf("%-10s %10.2f %12.0f %9.2f %9.2f %9.2f %10s %10d %8d%n", executor, seconds,
+                           latencies.count() / seconds, latencies.percentile(50) / 1e6,
+                           latencies.percentile(99) / 1e6, latencies.max() / 1e6,
+                           simulated == null ? "-" : String.valueOf(simulated.peak.get()),
+                           threads.getPeakThreadCount(), errors.get());
+      } finally {
+         clientThreads.shutdown();
+         api.close();
+      }
+   }//end run
+
+   static HttpResponse<String> send(HttpClient http, LatencyHistogram latencies, HttpRequest.Builder request)
+      throws Exception {
+      long start = System.nanoTime();
+      HttpResponse<String> answer = http.send(request.timeout(Duration.ofSeconds(60)).build(),
+                                              HttpResponse.BodyHandlers.ofString());
+      latencies.record(System.nanoTime() - start);
+      return answer;
+   }
+
+}//end HttpApiBenchmark
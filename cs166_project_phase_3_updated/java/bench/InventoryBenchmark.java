@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress test of Inventory on a single hot product: many concurrent buyers
+ * each try to buy a few units of a product with less stock than they want
+ * together.  The database is simulated by a counter behind a round trip
+ * delay, so the numbers isolate the concurrency control from Postgres.
+ * Three ways of buying are compared:
+ *
+ *    naive      read numberOfUnits, then write it back decremented
+ *    database   one conditional UPDATE per attempt, as OrderEngine does
+ *    inventory  reserve in memory, then confirm with the conditional UPDATE;
+ *               some buyers cancel and some walk away and let the hold expire
+ *
+ * Every round checks that no more units were sold than were in stock and
+ * that the stock left matches the sales; the fastest round of each mode
+ * is reported, the first ones warming up the JIT.
+ *
+ * Usage: java InventoryBenchmark [--buyers n] [--attempts n] [--stock n]
+ *              [--latencyMicros n] [--abandon fraction] [--holdMillis n] [--rounds n]
+ */
+public class InventoryBenchmark {
+
+   static final int STORE = 1;
+   static final String PRODUCT = "Hot Item";
+
+   // the Product row, with the round trip of every statement
+   static class SimulatedProduct {
+      private int units;
+      private final long latencyNanos;
+
+      SimulatedProduct(int units, long latencyNanos) {
+         this.units = units;
+         this.latencyNanos = latencyNanos;
+      }
+
+      int read() {
+         roundTrip();
+         synchronized (this) {
+            return units;
+         }
+      }
+
+      void write(int value) {
+         roundTrip();
+         synchronized (this) {
+            units = value;
+         }
+      }
+
+      // UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE ... AND numberOfUnits >= ?
+      boolean take(int n) {
+         roundTrip();
+         synchronized (this) {
+            if (units < n)
+               return false;
+            units -= n;
+            return true;
+         }
+      }
+
+      void roundTrip() {
+         if (latencyNanos > 0)
+            LockSupport.parkNanos(latencyNanos);
+      }
+   }//end SimulatedProduct
+
+   interface Buyer {
+      // one purchase attempt of one unit, true when an order was placed
+      boolean buy(Random random) throws Exception;
+   }
+
+   public static void main(String[] args) throws Exception {
+      int buyers = 1000;
+      int attempts = 5;
+      int stock = 2000;
+      long latencyMicros = 200;
+      double abandon = 0.1;
+      long holdMillis = 50;
+      int rounds = 5;
+      for (int i = 0; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--buyers": buyers = Integer.parseInt(args[++i]); break;
+            case "--attempts": attempts = Integer.parseInt(args[++i]); break;
+            case "--stock": stock = Integer.parseInt(args[++i]); break;
+            case "--latencyMicros": latencyMicros = Long.parseLong(args[++i]); break;
+            case "--abandon": abandon = Double.parseDouble(args[++i]); break;
+            case "--holdMillis": holdMillis = Long.parseLong(args[++i]); break;
+            case "--rounds": rounds = Integer.parseInt(args[++i]); break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      long latency = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+      System.out.printf("%d buyers x %d attempts on %d units, %d us per statement, best of %d rounds%n",
+                        buyers, attempts, stock, latencyMicros, rounds);
+      System.out.printf("%-10s %8s %8s %8s %10s %12s %12s%n",
+                        "mode", "sold", "left", "oversold", "seconds", "orders/s", "attempts/s");
+
+      Result best = null;
+      for (int round = 0; round < rounds; ++round) {
+         SimulatedProduct naive = new SimulatedProduct(stock, latency);
+         Result result = run("naive", naive, buyers, attempts, random -> {
+            int units = naive.read();
+            if (units <= 0)
+               return false;
+            naive.write(units - 1);
+            return true;
+         });
+         best = best == null || result.nanos() < best.nanos() ? result : best;
+      }
+      report(best, stock, buyers * attempts);
+
+      best = null;
+      for (int round = 0; round < rounds; ++round) {
+         SimulatedProduct database = new SimulatedProduct(stock, latency);
+         Result result = run("database", database, buyers, attempts, random -> database.take(1));
+         check(result, stock);
+         best = best == null || result.nanos() < best.nanos() ? result : best;
+      }
+      report(best, stock, buyers * attempts);
+
+      best = null;
+      String summary = null;
+      for (int round = 0; round < rounds; ++round) {
+         SimulatedProduct db = new SimulatedProduct(stock, latency);
+         Inventory inventory = new Inventory((storeID, productName) -> db.read(), holdMillis);
+         AtomicInteger customers = new AtomicInteger();
+         final double walkAway = abandon;
+         Result result = run("inventory", db, buyers, attempts, random -> {
+            Inventory.Reservation r = inventory.reserve(customers.incrementAndGet(), STORE, PRODUCT, 1);
+            if (r == null)
+               return false;
+            double dice = random.nextDouble();
+            if (dice < walkAway / 2) {
+               inventory.release(r);
+               return false;
+            }
+            if (dice < walkAway)
+               return false;
+            return inventory.confirm(r, (storeID, productName, units) -> db.take(units)
+                                     ? new OrderEngine.Result(OrderEngine.Status.PLACED, 0)
+                                     : new OrderEngine.Result(OrderEngine.Status.OUT_OF_STOCK, -1)).placed();
+         });
+         check(result, stock);
+         // the walked away holds expire and their units can be reserved again
+         Thread.sleep(holdMillis + 10);
+         inventory.sweep();
+         int available = inventory.available(STORE, PRODUCT);
+         if (available != result.left())
+            System.out.println("MISMATCH: the inventory has " + available + " units, the database " + result.left());
+         summary = inventory + " available after expiry=" + available;
+         inventory.close();
+         best = best == null || result.nanos() < best.nanos() ? result : best;
+      }
+      report(best, stock, buyers * attempts);
+      // units held by buyers who walked away are not sold within the round
+      System.out.println("inventory: " + summary);
+   }//end main
+
+   record Result(String mode, int sold, int left, long nanos) {
+   }
+
+   static Result run(String mode, SimulatedProduct product, int buyers, int attempts, Buyer buyer) throws Exception {
+      AtomicInteger sold = new AtomicInteger();
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      ExecutorService executor = VirtualThreads.newPerTaskExecutor("buyer");
+      try {
+         for (int b = 0; b < buyers; ++b) {
+            final long seed = b;
+            futures.add(executor.submit(() -> {
+               Random random = new Random(seed);
+               start.await();
+               for (int a = 0; a < attempts; ++a)
+                  if (buyer.buy(random))
+                     sold.incrementAndGet();
+               return null;
+            }));
+         }
+         long t0 = System.nanoTime();
+         start.countDown();
+         for (Future<?> f : futures)
+            f.get();
+         long nanos = System.nanoTime() - t0;
+         return new Result(mode, sold.get(), product.read(), nanos);
+      } finally {
+         executor.shutdown();
+      }
+   }//end run
+
+   static void check(Result result, int stock) {
+      if (result.sold() > stock || result.left() != stock - result.sold())
+         System.out.println("OVERSOLD: " + result.mode() + " sold " + result.sold() + " of " + stock + " with "
+                            + result.left() + " left");
+   }
+
+   static void report(Result result, int stock, int attempts) {
+      double seconds = result.nanos() / 1e9;
+      System.out.printf("%-10s %8d %8d %8d %10.3f %12.0f %12.0f%n", result.mode(), result.sold(), result.left(),
+                        Math.max(0, result.sold() - stock), seconds, result.sold() / seconds, attempts / seconds);
+   }
+
+}//end InventoryBenchmark
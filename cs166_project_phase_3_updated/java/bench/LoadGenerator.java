@@ -0,0 +1,389 @@
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator: simulated users call the Storefront operations
+ * behind the console menu, either one randomly chosen operation per visit
+ * or a scripted session replayed step by step.
+ *
+ * Visits arrive open loop at a fixed rate (or with exponential gaps with
+ * --poisson), whether or not earlier visits have finished, and each one
+ * runs on its own (virtual when available) thread.  The first step of a
+ * visit is timed from the moment it was scheduled to start, so when the
+ * system falls behind the queueing delay shows up in the latencies instead
+ * of silently lowering the offered load (coordinated omission).  Later
+ * steps of a scripted visit are timed from when the user would issue them,
+ * after the previous step and its think time.
+ *
+ * A script has one step per line: an operation name optionally followed by
+ * its arguments, or "think <millis>".  Missing arguments are chosen at
+ * random, e.g.
+ *
+ *    login
+ *    viewStores
+ *    viewProducts
+ *    think 2000
+ *    placeOrder
+ *
+ * Operations: createUser, login, viewStores, viewProducts [storeID], searchProducts [text],
+ * placeOrder [storeID productName units], viewRecentOrders, orderHistory [pages],
+ * updateProduct [storeID productName price units], viewRecentUpdates,
+ * viewPopularProducts, viewPopularCustomers,
+ * supplyRequest [storeID productName units], admin.
+ * Manager and admin operations run as a random manager or admin account,
+ * everything else as a random customer.  createUser, placeOrder,
+ * updateProduct, supplyRequest and admin write, so use a throwaway copy
+ * of the database.
+ *
+ * Usage: java LoadGenerator <dbname> <port> <user> [--rate visits/s]
+ *             [--seconds s] [--warmup s] [--users n] [--script file]
+ *             [--mix op=weight,...] [--poisson] [--seed n]
+ */
+public class LoadGenerator {
+
+   static final String DEFAULT_MIX = "viewProducts=25,searchProducts=5,viewStores=20,viewRecentOrders=12,orderHistory=3,placeOrder=10,login=5,"
+      + "viewPopularProducts=5,viewRecentUpdates=4,viewPopularCustomers=3,updateProduct=3,supplyRequest=3,createUser=2";
+
+   @FunctionalInterface
+   interface Op {
+      void run(Account account, Random random, String[] args) throws Exception;
+   }
+
+   record Account(String name, String password, String type, Session session) {
+   }
+
+   record Step(String op, String[] args, long thinkMillis) {
+   }
+
+   // latencies of one operation
+   static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LatencyHistogram service = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }
+
+   private final Amazon esql;
+   private final Storefront store;
+   private final Map<String, Op> ops = new LinkedHashMap<String, Op>();
+   private final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+   private final List<Account> customers = new ArrayList<Account>();
+   private final List<Account> managers = new ArrayList<Account>();
+   private final List<Account> admins = new ArrayList<Account>();
+   private final List<StoreIndex.Entry> stores;
+   private final AtomicInteger created = new AtomicInteger();
+   private final AtomicLong inFlight = new AtomicLong();
+   private final AtomicLong completed = new AtomicLong();
+
+   LoadGenerator(Amazon esql, int users) throws Exception {
+      this.esql = esql;
+      this.store = esql.storefront();
+      this.stores = new ArrayList<StoreIndex.Entry>(esql.storeIndex().all());
+      login(customers, "customer", users);
+      login(managers, "manager", users);
+      login(admins, "admin", users);
+      defineOps();
+      for (String op : ops.keySet())
+         stats.put(op, new Stats());
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java LoadGenerator <dbname> <port> <user> [--rate visits/s] [--seconds s] [--warmup s] "
+                            + "[--users n] [--script file] [--mix op=weight,...] [--poisson] [--seed n]");
+         return;
+      }
+      double rate = 100;
+      int seconds = 30;
+      int warmup = 5;
+      int users = 1000;
+      String script = null;
+      String mix = DEFAULT_MIX;
+      boolean poisson = false;
+      long seed = 42;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--rate": rate = Double.parseDouble(args[++i]); break;
+            case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+            case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+            case "--users": users = Integer.parseInt(args[++i]); break;
+            case "--script": script = args[++i]; break;
+            case "--mix": mix = args[++i]; break;
+            case "--poisson": poisson = true; break;
+            case "--seed": seed = Long.parseLong(args[++i]); break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      if (System.getProperty("amazon.pool.max") == null)
+         System.setProperty("amazon.pool.max", "32");
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         LoadGenerator generator = new LoadGenerator(esql, users);
+         List<Step> steps = script == null ? null : generator.parseScript(script);
+         Map<String, Integer> weights = script == null ? generator.parseMix(mix) : null;
+         System.out.printf("%d customers, %d managers, %d admins logged in, %s threads, %.0f visits/s%n",
+                           generator.customers.size(), generator.managers.size(), generator.admins.size(),
+                           VirtualThreads.available() ? "virtual" : "platform", rate);
+         generator.run(rate, poisson, warmup, seconds, seed, steps, weights);
+         generator.report(seconds);
+         System.out.println("pool: " + esql.pool());
+         System.out.println("catalog: " + esql.catalog());
+         System.out.println("audit: " + esql.audit());
+         System.out.println("queries: " + esql.metrics());
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   /*
+    * Schedules visits at the intended rate until the end of the run and
+    * waits for the ones still running.
+    **/
+   void run(double rate, boolean poisson, int warmup, int seconds, long seed,
+            List<Step> script, Map<String, Integer> weights) throws InterruptedException {
+      Random schedule = new Random(seed);
+      long start = System.nanoTime();
+      long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+      long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+      double gap = 1e9 / rate;
+      double intended = start;
+      long nextReport = measureFrom;
+      ExecutorService executor = VirtualThreads.newPerTaskExecutor("load");
+      try {
+         for (long visit = 0; intended < end; ++visit) {
+            long at = (long) intended;
+            long wait;
+            while ((wait = at - System.nanoTime()) > 0)
+               LockSupport.parkNanos(wait);
+            List<Step> steps = script != null ? script
+               : List.of(new Step(pick(schedule, weights), new String[0], 0));
+            boolean measured = at >= measureFrom;
+            long visitSeed = seed * 1_000_003L + visit;
+            inFlight.incrementAndGet();
+            executor.execute(() -> visit(steps, at, measured, new Random(visitSeed)));
+
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+               System.out.printf("%5.0f s  completed %d  in flight %d%n",
+                                 (now - start) / 1e9, completed.get(), inFlight.get());
+               nextReport += TimeUnit.SECONDS.toNanos(5);
+            }
+            intended += poisson ? -Math.log(1 - schedule.nextDouble()) * gap : gap;
+         }
+      } finally {
+         executor.shutdown();
+         executor.awaitTermination(5, TimeUnit.MINUTES);
+      }
+   }//end run
+
+   // one simulated user running its steps
+   private void visit(List<Step> steps, long intended, boolean measured, Random random) {
+      try {
+         Account customer = pick(random, customers);
+         long due = intended;
+         for (Step step : steps) {
+            if (step.op() == null) {
+               due += TimeUnit.MILLISECONDS.toNanos(step.thinkMillis());
+               long wait;
+               while ((wait = due - System.nanoTime()) > 0)
+                  LockSupport.parkNanos(wait);
+               continue;
+            }
+            Account account = step.op().equals("updateProduct") || step.op().equals("supplyRequest")
+               ? pick(random, managers) : step.op().equals("admin") ? pick(random, admins) : customer;
+            Stats s = stats.get(step.op());
+            long started = System.nanoTime();
+            try {
+               if (account == null)
+                  throw new IllegalStateException("no " + step.op() + " account");
+               ops.get(step.op()).run(account, random, step.args());
+            } catch (Exception e) {
+               if (measured && s.errors.getAndIncrement() == 0)
+                  System.err.println(step.op() + ": " + e);
+            }
+            long done = System.nanoTime();
+            if (measured) {
+               s.latency.record(done - due);
+               s.service.record(done - started);
+            }
+            due = done;
+         }
+      } finally {
+         inFlight.decrementAndGet();
+         completed.incrementAndGet();
+      }
+   }//end visit
+
+   void report(int seconds) {
+      System.out.println("latency is measured from the intended start, service time from the actual start (ms)");
+      System.out.printf("%-22s %9s %7s %9s %9s %9s %9s %9s %11s%n",
+                        "operation", "ops", "errors", "ops/s", "p50", "p99", "p999", "max", "service p99");
+      for (Map.Entry<String, Stats> e : stats.entrySet()) {
+         Stats s = e.getValue();
+         if (s.latency.count() == 0 && s.errors.get() == 0)
+            continue;
+         System.out.printf("%-22s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %11.2f%n", e.getKey(), s.latency.count(),
+                           s.errors.get(), s.latency.count() / (double) seconds, s.latency.percentile(50) / 1e6,
+                           s.latency.percentile(99) / 1e6, s.latency.percentile(99.9) / 1e6, s.latency.max() / 1e6,
+                           s.service.percentile(99) / 1e6);
+      }
+   }//end report
+
+   private void defineOps() {
+      ops.put("createUser", (a, r, args) -> {
+         String name = arg(args, 0, "load" + System.nanoTime() % 1_000_000 + "_" + created.incrementAndGet());
+         store.createUser(name, arg(args, 1, "pw"), Double.parseDouble(arg(args, 2, coordinate(r))),
+                          Double.parseDouble(arg(args, 3, coordinate(r))));
+      });
+      ops.put("login", (a, r, args) -> store.logIn(arg(args, 0, a.name()), arg(args, 1, a.password())));
+      ops.put("viewStores", (a, r, args) -> store.viewStores(a.session()));
+      ops.put("viewProducts", (a, r, args) -> {
+         store.viewProducts(Integer.parseInt(arg(args, 0, Integer.toString(nearbyStore(a, r)))));
+      });
+      ops.put("placeOrder", (a, r, args) -> {
+         int storeID = Integer.parseInt(arg(args, 0, Integer.toString(nearbyStore(a, r))));
+         store.placeOrder(a.session(), storeID, arg(args, 1, product(storeID, r)), Integer.parseInt(arg(args, 2, "1")));
+      });
+      ops.put("searchProducts", (a, r, args) -> {
+         // part of a real name with the occasional typo
+         String name = product(pick(r, stores).storeID, r).toLowerCase();
+         int from = r.nextInt(Math.max(1, name.length() - 2));
+         String text = name.substring(from, Math.min(name.length(), from + 3 + r.nextInt(4)));
+         if (text.length() > 3 && r.nextBoolean())
+            text = text.substring(0, 1) + text.substring(2);
+         store.searchProducts(a.session(), arg(args, 0, text), 20);
+      });
+      ops.put("viewRecentOrders", (a, r, args) -> store.viewRecentOrders(a.session()));
+      ops.put("orderHistory", (a, r, args) -> {
+         // reads up to the given number of pages of 10
+         String cursor = null;
+         int pages = Integer.parseInt(arg(args, 0, Integer.toString(1 + r.nextInt(3))));
+         for (int i = 0; i < pages; ++i) {
+            cursor = store.viewOrderHistory(a.session(), OrderHistory.Filter.NONE, cursor, 10).next();
+            if (cursor == null)
+               break;
+         }
+      });
+      ops.put("updateProduct", (a, r, args) -> {
+         int storeID = Integer.parseInt(arg(args, 0, Integer.toString(managedStore(a, r))));
+         store.updateProduct(a.session(), storeID, arg(args, 1, product(storeID, r)),
+                             Double.parseDouble(arg(args, 2, Integer.toString(1 + r.nextInt(100)))),
+                             Integer.parseInt(arg(args, 3, Integer.toString(r.nextInt(1000)))));
+      });
+      ops.put("viewRecentUpdates", (a, r, args) -> store.viewRecentUpdates());
+      ops.put("viewPopularProducts", (a, r, args) -> store.viewPopularProducts());
+      ops.put("viewPopularCustomers", (a, r, args) -> store.viewPopularCustomers());
+      ops.put("supplyRequest", (a, r, args) -> {
+         int storeID = Integer.parseInt(arg(args, 0, Integer.toString(managedStore(a, r))));
+         store.placeSupplyRequests(a.session(), List.of(new SupplyRouter.Line(
+            storeID, arg(args, 1, product(storeID, r)), Integer.parseInt(arg(args, 2, "1")))));
+      });
+      ops.put("admin", (a, r, args) -> {
+         // rewrites a user's and a product's own values, so the data does not drift
+         Account target = pick(r, customers);
+         Rows.User user = esql.profiles().get(target.session().userID());
+         int storeID = pick(r, stores).storeID;
+         List<Rows.Product> products = store.viewProducts(storeID);
+         if (products.isEmpty())
+            return;
+         Rows.Product product = pick(r, products);
+         store.adminUpdate(a.session(), user.userID(), "latitude", Double.toString(user.latitude()), storeID,
+                           product.productName(), "numberOfUnits", Integer.toString(product.numberOfUnits()));
+      });
+   }//end defineOps
+
+   private void login(List<Account> accounts, String type, int limit) throws Exception {
+      List<String[]> rows = esql.queryList("SELECT name, password FROM Users WHERE type = ? ORDER BY userID LIMIT ?",
+                                           rs -> new String[]{Rows.trim(rs.getString(1)), Rows.trim(rs.getString(2))},
+                                           type, limit);
+      for (String[] row : rows) {
+         Session session = store.logIn(row[0], row[1]);
+         if (session != null)
+            accounts.add(new Account(row[0], row[1], type, session));
+      }
+   }//end login
+
+   List<Step> parseScript(String file) throws Exception {
+      List<Step> steps = new ArrayList<Step>();
+      for (String line : Files.readAllLines(Paths.get(file))) {
+         line = line.strip();
+         if (line.isEmpty() || line.startsWith("#"))
+            continue;
+         String[] words = line.split("\\s+");
+         String[] args = Arrays.copyOfRange(words, 1, words.length);
+         if (words[0].equals("think"))
+            steps.add(new Step(null, args, Long.parseLong(words[1])));
+         else if (ops.containsKey(words[0]))
+            steps.add(new Step(words[0], args, 0));
+         else
+            throw new IllegalArgumentException("Unknown operation " + words[0] + " in " + file);
+      }
+      return steps;
+   }//end parseScript
+
+   Map<String, Integer> parseMix(String mix) {
+      Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+      for (String entry : mix.split(",")) {
+         String[] kv = entry.split("=");
+         if (!ops.containsKey(kv[0].trim()))
+            throw new IllegalArgumentException("Unknown operation " + kv[0]);
+         weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+      }
+      return weights;
+   }
+
+   private int nearbyStore(Account account, Random random) throws Exception {
+      Rows.User profile = esql.profiles().get(account.session().userID());
+      List<StoreIndex.Hit> near = esql.storeIndex().within(profile.latitude(), profile.longitude(), OrderEngine.MAX_DISTANCE);
+      return near.isEmpty() ? pick(random, stores).storeID : pick(random, near).store.storeID;
+   }
+
+   private int managedStore(Account account, Random random) {
+      for (StoreIndex.Entry entry : stores)
+         if (entry.managerID == account.session().userID())
+            return entry.storeID;
+      return pick(random, stores).storeID;
+   }
+
+   private String product(int storeID, Random random) throws Exception {
+      List<Rows.Product> products = store.viewProducts(storeID);
+      return products.isEmpty() ? "none" : pick(random, products).productName();
+   }
+
+   private static String coordinate(Random random) {
+      return Double.toString(Math.round(random.nextDouble() * 10000) / 100.0);
+   }
+
+   private static String arg(String[] args, int i, String fallback) {
+      return i < args.length ? args[i] : fallback;
+   }
+
+   static String pick(Random random, Map<String, Integer> weights) {
+      int total = 0;
+      for (int w : weights.values())
+         total += w;
+      int x = random.nextInt(total);
+      for (Map.Entry<String, Integer> e : weights.entrySet()) {
+         x -= e.getValue();
+         if (x < 0)
+            return e.getKey();
+      }
+      throw new IllegalStateException();
+   }
+
+   static <T> T pick(Random random, List<T> list) {
+      return list.isEmpty() ? null : list.get(random.nextInt(list.size()));
+   }
+
+}//end LoadGenerator
@@ -0,0 +1,160 @@
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks every storefront operation against a live database.  Each
+ * operation is measured twice where the application no longer goes to the
+ * database for it: once through the SQL that used to serve it (which is
+ * what the indexes in create_indexes.sql can speed up) and once through
+ * the path Amazon uses now.
+ *
+ * Load a data set first (the shipped data/ or the output of DataGenerator
+ * through load_bench_data.sh), then run once with "--indexes off" and once
+ * with "--indexes <path to create_indexes.sql>" to compare.  placeOrder and
+ * supplyRequest write to the database, so use a throwaway copy.
+ *
+ * Usage: java OperationsBenchmark <dbname> <port> <user>
+ *              [--indexes off|keep|<create_indexes.sql>] [--threads n]
+ *              [--seconds s] [--only op1,op2]
+ */
+public class OperationsBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OperationsBenchmark <dbname> <port> <user> [--indexes off|keep|<file>] "
+                            + "[--threads n] [--seconds s] [--only op1,op2]");
+         return;
+      }
+      String indexes = "keep";
+      int threads = 4;
+      int seconds = 10;
+      List<String> only = null;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--indexes": indexes = args[++i]; break;
+            case "--threads": threads = Integer.parseInt(args[++i]); break;
+            case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+            case "--only": only = Arrays.asList(args[++i].split(",")); break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      System.setProperty("amazon.pool.max", Integer.toString(threads + 2));
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         setIndexes(esql, indexes);
+         Map<String, Harness.Op> ops = operations(esql);
+         Harness harness = new Harness(threads, Math.max(1000, seconds * 200L), seconds * 1000L);
+         System.out.println("indexes: " + indexes + ", threads: " + threads);
+         System.out.println(Harness.Result.header());
+         for (Map.Entry<String, Harness.Op> op : ops.entrySet()) {
+            if (only == null || only.contains(op.getKey()) || only.contains(op.getKey().split("\\.")[0]))
+               System.out.println(harness.run(op.getKey(), op.getValue()));
+         }
+         System.out.println("pool: " + esql.pool());
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   static Map<String, Harness.Op> operations(Amazon esql) throws Exception {
+      // sample real keys so the benchmark works on any data set
+      List<String[]> logins = esql.queryList("SELECT name, password FROM Users ORDER BY userID LIMIT 1000",
+                                             rs -> new String[]{rs.getString(1), rs.getString(2)});
+      List<Rows.User> customers = esql.queryList(UserProfiles.COLUMNS + "WHERE type = 'customer' ORDER BY userID LIMIT 1000",
+                                                 Rows.User.MAPPER);
+      List<Integer> managers = esql.queryList("SELECT userID FROM Users WHERE type = 'manager' LIMIT 100", Rows.INT);
+      List<Rows.Product> products = esql.queryList("SELECT * FROM Product ORDER BY storeID LIMIT 10000",
+                                                   Rows.Product.MAPPER);
+      List<StoreIndex.Entry> stores = new ArrayList<StoreIndex.Entry>(esql.storeIndex().all());
+
+      Map<String, Harness.Op> ops = new LinkedHashMap<String, Harness.Op>();
+      ops.put("login", r -> {
+         String[] login = pick(r, logins);
+         esql.queryOne(UserProfiles.COLUMNS + "WHERE name = ? AND password = ?", Rows.User.MAPPER, login[0], login[1]);
+      });
+      ops.put("viewStores.sql", r -> {
+         Rows.User c = pick(r, customers);
+         // bounding box first, which is what indexStore (latitude, longitude) can serve
+         esql.queryList("SELECT storeID, latitude, longitude FROM Store WHERE latitude BETWEEN ? AND ? "
+                        + "AND longitude BETWEEN ? AND ? AND sqrt(power(latitude - ?, 2) + power(longitude - ?, 2)) <= 30",
+                        Rows.INT, c.latitude() - 30, c.latitude() + 30, c.longitude() - 30, c.longitude() + 30,
+                        c.latitude(), c.longitude());
+      });
+      ops.put("viewStores.index", r -> {
+         Rows.User c = pick(r, customers);
+         esql.storeIndex().within(c.latitude(), c.longitude(), 30);
+      });
+      ops.put("viewProducts.sql", r -> {
+         esql.queryList("SELECT * FROM Product WHERE storeID = ?", Rows.Product.MAPPER, pick(r, stores).storeID);
+      });
+      ops.put("viewProducts.cache", r -> esql.catalog().products(pick(r, stores).storeID));
+      ops.put("placeOrder", r -> {
+         Rows.Product p = pick(r, products);
+         StoreIndex.Entry store = esql.storeIndex().get(p.storeID());
+         Rows.User c = pick(r, customers);
+         // place the buyer at the store so the distance check passes
+         Rows.User buyer = new Rows.User(c.userID(), c.name(), store.latitude, store.longitude, c.type());
+         esql.orders().place(buyer, p.storeID(), p.productName(), 1);
+      });
+      ops.put("viewRecentOrders", r -> {
+         esql.history().page(pick(r, customers).userID(), OrderHistory.Filter.NONE, null, 5);
+      });
+      ops.put("viewRecentUpdates", r -> {
+         esql.queryList("SELECT * FROM ProductUpdates ORDER BY updatedOn DESC LIMIT 5", Rows.ProductUpdate.MAPPER);
+      });
+      ops.put("popularProducts.sql", r -> {
+         esql.queryList("SELECT productName, COUNT(*) as orders FROM Orders GROUP BY productName ORDER BY orders DESC LIMIT 5",
+                        Rows.STRING);
+      });
+      ops.put("popularProducts.memory", r -> esql.popularity().topProducts(5, null, OrderPopularity.Window.ALL));
+      ops.put("popularCustomers.sql", r -> {
+         esql.queryList("SELECT customerID, COUNT(*) as orders FROM Orders GROUP BY customerID ORDER BY orders DESC LIMIT 5",
+                        Rows.INT);
+      });
+      ops.put("popularCustomers.memory", r -> esql.popularity().topCustomers(5, null, OrderPopularity.Window.ALL));
+      ops.put("supplyRequest", r -> {
+         Rows.Product p = pick(r, products);
+         esql.supply().request(pick(r, managers), List.of(new SupplyRouter.Line(p.storeID(), p.productName(), 1)));
+      });
+      return ops;
+   }//end operations
+
+   /*
+    * Drops the indexes of create_indexes.sql ("off"), creates them from the
+    * given file, or leaves the database as it is ("keep").
+    **/
+   static void setIndexes(Amazon esql, String mode) throws Exception {
+      if (mode.equals("keep"))
+         return;
+      String file = mode.equals("off") ? null : mode;
+      List<String> statements = new ArrayList<String>();
+      if (file == null) {
+         for (String index : new String[]{"indexUsers", "indexStore", "indexProduct", "indexOrders", "indexProductUpdates"})
+            statements.add("DROP INDEX IF EXISTS " + index);
+      } else {
+         StringBuilder sql = new StringBuilder();
+         for (String line : Files.readAllLines(Paths.get(file))) {
+            int comment = line.indexOf("--");
+            sql.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+         }
+         for (String statement : sql.toString().split(";"))
+            if (!statement.isBlank())
+               statements.add(statement.trim());
+      }
+      for (String statement : statements)
+         esql.executeUpdate(statement);
+      esql.executeUpdate("ANALYZE");
+   }//end setIndexes
+
+   static <T> T pick(Random random, List<T> list) {
+      return list.get(random.nextInt(list.size()));
+   }
+
+}//end OperationsBenchmark
@@ -0,0 +1,81 @@
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures order throughput when every buyer orders the same product of
+ * the same store.  A throwaway customer and product are created for the
+ * run; afterwards the remaining stock and the number of placed orders are
+ * checked against each other and everything is deleted again.
+ *
+ * Usage: java -Damazon.pool.max=<threads> OrderEngineBenchmark
+ *              <dbname> <port> <user> [threads] [orders]
+ */
+public class OrderEngineBenchmark {
+
+   static final String PRODUCT = "bench hot product";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: OrderEngineBenchmark <dbname> <port> <user> [threads] [orders]");
+         return;
+      }
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+      int orders = args.length > 4 ? Integer.parseInt(args[4]) : 20000;
+      // a quarter of the buyers should find the product sold out
+      int stock = orders * 3 / 4;
+
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      StoreIndex.Entry store = esql.storeIndex().all().iterator().next();
+      List<List<String>> user = esql.executeQueryAndReturnResult(
+         "INSERT INTO Users (name, password, latitude, longitude, type) VALUES ('bench', 'bench', ?, ?, 'customer') RETURNING userID",
+         store.latitude, store.longitude);
+      Session session = new Session(Integer.parseInt(user.get(0).get(0).trim()), "bench");
+      Rows.User buyer = esql.profiles().get(session.userID());
+      esql.executeUpdate("INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit) VALUES (?, ?, ?, 1)",
+                         store.storeID, PRODUCT, stock);
+      try {
+         AtomicInteger remaining = new AtomicInteger(orders);
+         AtomicInteger placed = new AtomicInteger();
+         AtomicInteger rejected = new AtomicInteger();
+         CountDownLatch done = new CountDownLatch(threads);
+         long start = System.nanoTime();
+         for (int t = 0; t < threads; ++t) {
+            new Thread(() -> {
+               try {
+                  while (remaining.getAndDecrement() > 0) {
+                     if (esql.orders().place(buyer, store.storeID, PRODUCT, 1).placed())
+                        placed.incrementAndGet();
+                     else
+                        rejected.incrementAndGet();
+                  }
+               } catch (Exception e) {
+                  e.printStackTrace();
+               } finally {
+                  done.countDown();
+               }
+            }).start();
+         }
+         done.await();
+         double seconds = (System.nanoTime() - start) / 1e9;
+
+         int left = Integer.parseInt(esql.executeQueryAndReturnResult(
+            "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?",
+            store.storeID, PRODUCT).get(0).get(0).trim());
+         int inserted = Integer.parseInt(esql.executeQueryAndReturnResult(
+            "SELECT count(*) FROM Orders WHERE customerID = ?", session.userID()).get(0).get(0).trim());
+         // rejected attempts are cheaper than placed orders, so they are not counted as orders
+         System.out.printf("threads=%d attempts=%d placed=%d rejected=%d %.0f placed orders/s %.0f attempts/s%n",
+                           threads, orders, placed.get(), rejected.get(), placed.get() / seconds, orders / seconds);
+         System.out.printf("stock %d -> %d, orders inserted %d: %s%n", stock, left, inserted,
+                           left == stock - inserted && inserted == placed.get() && left >= 0 ? "consistent" : "OVERSOLD");
+         System.out.println("pool: " + esql.pool());
+      } finally {
+         esql.executeUpdate("DELETE FROM Orders WHERE customerID = ?", session.userID());
+         esql.executeUpdate("DELETE FROM Product WHERE storeID = ? AND productName = ?", store.storeID, PRODUCT);
+         esql.executeUpdate("DELETE FROM Users WHERE userID = ?", session.userID());
+         esql.cleanup();
+      }
+   }//end main
+
+}//end OrderEngineBenchmark
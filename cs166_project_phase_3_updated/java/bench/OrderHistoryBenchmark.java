@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shows how page latency grows with depth for keyset pagination compared
+ * to OFFSET pagination.  Walks the whole order history of one customer
+ * (by default the one with the most orders) through OrderHistory and, at
+ * every sampled depth, times the keyset query for that page against the
+ * equivalent OFFSET query.  Each timing is the median of several runs.
+ *
+ * Generate a customer with a long history first, e.g. DataGenerator with a
+ * large order count, or OrderIngest on a file of one customer's orders.
+ *
+ * Usage: java OrderHistoryBenchmark <dbname> <port> <user>
+ *              [--customer id] [--size n] [--samples n] [--repeat n]
+ */
+public class OrderHistoryBenchmark {
+
+   static final String OFFSET_PAGE =
+      "SELECT * FROM Orders WHERE customerID = ? ORDER BY orderTime DESC, orderNumber DESC LIMIT ? OFFSET ?";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderHistoryBenchmark <dbname> <port> <user> [--customer id] [--size n] "
+                            + "[--samples n] [--repeat n]");
+         return;
+      }
+      Integer customer = null;
+      int size = 20;
+      int samples = 10;
+      int repeat = 7;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--customer": customer = Integer.valueOf(args[++i]); break;
+            case "--size": size = Integer.parseInt(args[++i]); break;
+            case "--samples": samples = Integer.parseInt(args[++i]); break;
+            case "--repeat": repeat = Integer.parseInt(args[++i]); break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         if (customer == null)
+            customer = esql.queryOne("SELECT customerID FROM Orders GROUP BY customerID ORDER BY count(*) DESC LIMIT 1",
+                                     Rows.INT);
+         if (customer == null) {
+            System.err.println("There are no orders.");
+            return;
+         }
+         OrderHistory history = esql.history();
+
+         // walk every page once to collect the cursors
+         List<String> cursors = new ArrayList<String>();
+         String cursor = null;
+         do {
+            cursors.add(cursor);
+            cursor = history.page(customer, OrderHistory.Filter.NONE, cursor, size).next();
+         } while (cursor != null);
+         System.out.printf("customer %d: %d pages of %d orders%n", customer, cursors.size(), size);
+         System.out.printf("%8s %10s %12s %12s%n", "page", "offset", "keyset ms", "OFFSET ms");
+
+         int step = Math.max(1, cursors.size() / samples);
+         for (int page = 0; page < cursors.size(); page += step) {
+            final int p = page;
+            final int c = customer, n = size;
+            double keyset = median(repeat, r -> history.page(c, OrderHistory.Filter.NONE, cursors.get(p), n));
+            double offset = median(repeat, r -> esql.queryList(OFFSET_PAGE, Rows.Order.MAPPER, c, n, p * n));
+            System.out.printf("%8d %10d %12.3f %12.3f%n", page + 1, page * size, keyset, offset);
+         }
+         System.out.println("queries: " + esql.metrics());
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   // median wall time of the runs in milliseconds
+   static double median(int repeat, Harness.Op op) throws Exception {
+      long[] times = new long[repeat];
+      for (int i = 0; i < repeat; ++i) {
+         long start = System.nanoTime();
+         op.run(null);
+         times[i] = System.nanoTime() - start;
+      }
+      Arrays.sort(times);
+      return times[repeat / 2] / 1e6;
+   }
+
+}//end OrderHistoryBenchmark
@@ -0,0 +1,80 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the in-memory popularity counters with the GROUP BY queries the
+ * reports used to run.  The in-memory part always runs on synthetic
+ * orders; the SQL part runs when database arguments are given and times
+ * the old queries against the real Orders table.
+ *
+ * Usage: java PopularityBenchmark [orders] [<dbname> <port> <user>]
+ */
+public class PopularityBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      int orders = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      inMemory(orders);
+      if (args.length >= 4)
+         sql(args[1], args[2], args[3]);
+   }//end main
+
+   static void inMemory(int orders) {
+      Random random = new Random(7);
+      OrderPopularity popularity = new OrderPopularity();
+      Map<String, Long> expected = new HashMap<String, Long>();
+      long now = System.currentTimeMillis();
+
+      long t0 = System.nanoTime();
+      for (int i = 0; i < orders; ++i) {
+         // skewed product choice so the ranking has a clear head
+         String product = "product" + (int) Math.abs(random.nextGaussian() * 50);
+         popularity.recordOrder(i + 1, random.nextInt(20) + 1, product, random.nextInt(1000) + 1,
+                                now - (long) (random.nextDouble() * 7 * 24 * 3600_000L));
+         expected.merge(product, 1L, Long::sum);
+      }
+      long t1 = System.nanoTime();
+      System.out.printf("recordOrder: %d orders, %.0f ns/order%n", orders, (t1 - t0) / (double) orders);
+
+      List<OrderPopularity.Ranked<String>> top = popularity.topProducts(5, null, OrderPopularity.Window.ALL);
+      for (OrderPopularity.Ranked<String> r : top) {
+         if (expected.get(r.key()) != r.orders())
+            throw new IllegalStateException("wrong count for " + r.key());
+      }
+
+      for (OrderPopularity.Window window : OrderPopularity.Window.values()) {
+         int queries = window == OrderPopularity.Window.ALL ? 1000000 : 200;
+         long sink = 0;
+         long s = System.nanoTime();
+         for (int q = 0; q < queries; ++q) {
+            sink += popularity.topProducts(5, null, window).size();
+            sink += popularity.topCustomers(5, q % 20 + 1, window).size();
+         }
+         long e = System.nanoTime();
+         System.out.printf("top-5 %-4s: %.2f us/report (%d)%n", window, (e - s) / 1000.0 / queries / 2, sink);
+      }
+   }//end inMemory
+
+   static void sql(String dbname, String port, String user) throws Exception {
+      Amazon esql = new Amazon(dbname, port, user, "");
+      try {
+         String[] queries = {
+            "SELECT productName, COUNT(*) as orders FROM Orders GROUP BY productName ORDER BY orders DESC LIMIT 5",
+            "SELECT customerID, COUNT(*) as orders FROM Orders GROUP BY customerID ORDER BY orders DESC LIMIT 5"
+         };
+         for (String query : queries) {
+            for (int warm = 0; warm < 5; ++warm)
+               esql.executeQuery(query);
+            int runs = 50;
+            long s = System.nanoTime();
+            for (int i = 0; i < runs; ++i)
+               esql.executeQuery(query);
+            System.out.printf("SQL: %.2f us/report for %s%n", (System.nanoTime() - s) / 1000.0 / runs, query);
+         }
+      } finally {
+         esql.cleanup();
+      }
+   }//end sql
+
+}//end PopularityBenchmark
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures ProductSearch on synthetic catalogs: each store lists a random
+ * subset of a vocabulary of generated product names.  Queries are parts of
+ * real names, a third of them with one typo.  The scan column is the
+ * substring scan of every listing that an ILIKE '%text%' query does,
+ * without the database round trip and without typo tolerance.
+ *
+ * Usage: java ProductSearchBenchmark [stores] [products per store] [distinct names]
+ */
+public class ProductSearchBenchmark {
+
+   static final int QUERIES = 2000;
+
+   public static void main(String[] args) throws Exception {
+      int stores = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+      int perStore = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+      int vocabulary = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+      Random random = new Random(42);
+
+      String[] names = new String[vocabulary];
+      for (int i = 0; i < vocabulary; ++i)
+         names[i] = word(random) + (random.nextBoolean() ? " " + word(random) : "");
+
+      StoreIndex index = new StoreIndex();
+      ProductSearch search = new ProductSearch(index, storeID -> new ArrayList<Rows.Product>());
+      List<Rows.Product> listings = new ArrayList<Rows.Product>();
+      for (int s = 1; s <= stores; ++s) {
+         index.put(new StoreIndex.Entry(s, random.nextDouble() * 100, random.nextDouble() * 100, 1));
+         for (int p = 0; p < perStore; ++p) {
+            Rows.Product product = new Rows.Product(s, names[random.nextInt(vocabulary)], random.nextInt(50),
+                                                    1 + random.nextInt(100));
+            search.add(product);
+            listings.add(product);
+         }
+      }
+
+      String[] queries = new String[QUERIES];
+      for (int q = 0; q < QUERIES; ++q) {
+         String name = names[random.nextInt(vocabulary)];
+         int from = random.nextInt(Math.max(1, name.length() - 3));
+         String text = name.substring(from, Math.min(name.length(), from + 4 + random.nextInt(4)));
+         if (q % 3 == 0 && text.length() > 4)
+            text = text.substring(0, 2) + 'x' + text.substring(3);
+         queries[q] = text;
+      }
+
+      long sink = 0;
+      for (int warm = 0; warm < 3; ++warm) {
+         sink += scan(listings, queries);
+         sink += probe(search, queries);
+      }
+      long t0 = System.nanoTime();
+      long scanHits = scan(listings, queries);
+      long t1 = System.nanoTime();
+      long indexHits = probe(search, queries);
+      long t2 = System.nanoTime();
+
+      System.out.println("stores\tlistings\tnames\tscan us/query\tindex us/query\tscan hits\tindex hits");
+      System.out.printf("%d\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f%n", stores, listings.size(), search.names(),
+                        (t1 - t0) / 1000.0 / QUERIES, (t2 - t1) / 1000.0 / QUERIES,
+                        (double) scanHits / QUERIES, (double) indexHits / QUERIES);
+      if (sink == 42)
+         System.out.println();
+   }//end main
+
+   static long scan(List<Rows.Product> listings, String[] queries) {
+      long hits = 0;
+      for (String query : queries) {
+         String q = query.toLowerCase(Locale.ROOT);
+         for (Rows.Product p : listings)
+            if (p.productName().toLowerCase(Locale.ROOT).contains(q))
+               ++hits;
+      }
+      return hits;
+   }
+
+   static long probe(ProductSearch search, String[] queries) throws Exception {
+      long hits = 0;
+      for (String query : queries)
+         hits += search.search(query, 50, 50, 20).size();
+      return hits;
+   }
+
+   static String word(Random random) {
+      String consonants = "bcdfghklmnprstvz", vowels = "aeiou";
+      StringBuilder word = new StringBuilder();
+      int syllables = 2 + random.nextInt(2);
+      for (int i = 0; i < syllables; ++i)
+         word.append(consonants.charAt(random.nextInt(consonants.length())))
+             .append(vowels.charAt(random.nextInt(vowels.length())));
+      return word.toString();
+   }
+
+}//end ProductSearchBenchmark
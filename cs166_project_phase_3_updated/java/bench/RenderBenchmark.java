@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.time.LocalDateTime;
+
+/**
+ * Times writing a large result with ResultRenderer in every format against
+ * the output executeQueryAndPrintResult used to produce: a StringBuilder per
+ * row, the metadata read again for every row and one println, and so one
+ * write, per row on an autoflushing stream.
+ *
+ * The rows come from a synthetic ResultSet shaped like Orders, with the
+ * product name padded to char(30) as Postgres returns it, so the numbers
+ * isolate the formatting and the output from the database.  Everything is
+ * written to --file.  Reported are rows/s, MB/s and the peak heap in use
+ * while writing, which stays flat however many rows there are.  With --db
+ * the real Orders table is also read in keyset pages through
+ * Amazon.renderPages() in every format.
+ *
+ * Usage: java RenderBenchmark [--rows n] [--file path] [--runs n] [--db <dbname> <port> <user>]
+ */
+public class RenderBenchmark {
+
+   static final String[] LABELS = {"ordernumber", "customerid", "storeid", "productname", "unitsordered", "ordertime"};
+   static final int[] TYPES = {Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.CHAR, Types.INTEGER, Types.TIMESTAMP};
+
+   public static void main(String[] args) throws Exception {
+      int rows = 1000000;
+      String file = System.getProperty("java.io.tmpdir") + "/render-benchmark.out";
+      int runs = 3;
+      String[] db = null;
+      for (int i = 0; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--rows": rows = Integer.parseInt(args[++i]); break;
+            case "--file": file = args[++i]; break;
+            case "--runs": runs = Integer.parseInt(args[++i]); break;
+            case "--db": db = new String[] {args[++i], args[++i], args[++i]}; break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      File out = new File(file);
+      System.out.printf("%d synthetic Orders rows to %s%n", rows, out);
+      System.out.printf("%-12s %10s %12s %10s %12s%n", "output", "seconds", "rows/s", "MB/s", "peak heap MB");
+      for (int r = 0; r < runs; ++r) {
+         final int n = rows;
+         measure("println", out, () -> {
+            try (PrintStream print = new PrintStream(new FileOutputStream(out), true)) {
+               ResultSet rs = orders(n);
+               boolean header = true;
+               while (rs.next()) {
+                  ResultSetMetaData rsmd = rs.getMetaData();
+                  int numCol = rsmd.getColumnCount();
+                  StringBuilder line = new StringBuilder();
+                  if (header) {
+                     for (int i = 1; i <= numCol; i++)
+                        line.append(rsmd.getColumnName(i)).append('\t');
+                     line.append('\n');
+                     header = false;
+                  }
+                  for (int i = 1; i <= numCol; ++i)
+                     line.append(rs.getString(i)).append('\t');
+                  print.println(line);
+               }
+            }
+            return n;
+         });
+         for (ResultRenderer.Format format : ResultRenderer.Format.values()) {
+            measure(format.name().toLowerCase(), out, () -> {
+               try (ResultRenderer renderer = ResultRenderer.toFile(format, out.toPath())) {
+                  ResultSet rs = orders(n);
+                  while (rs.next())
+                     renderer.row(rs);
+                  return renderer.rows();
+               }
+            });
+         }
+      }
+      if (db != null)
+         database(db, out);
+      out.delete();
+   }//end main
+
+   interface Output {
+      int write() throws Exception;
+   }
+
+   static void measure(String name, File out, Output output) throws Exception {
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+         pool.resetPeakUsage();
+      long t0 = System.nanoTime();
+      int rows = output.write();
+      double seconds = (System.nanoTime() - t0) / 1e9;
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+         if (pool.getType() == MemoryType.HEAP)
+            peak += pool.getPeakUsage().getUsed();
+      System.out.printf("%-12s %10.2f %12.0f %10.1f %12.1f%n", name, seconds, rows / seconds,
+                        out.length() / 1e6 / seconds, peak / 1e6);
+   }//end measure
+
+   // a forward-only result set of n orders, each value made when it is read
+   static ResultSet orders(int n) {
+      ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+         RenderBenchmark.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+               case "getColumnCount": return LABELS.length;
+               case "getColumnLabel": case "getColumnName": return LABELS[(Integer) args[0] - 1];
+               case "getColumnType": return TYPES[(Integer) args[0] - 1];
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         });
+      LocalDateTime first = DataGenerator.FIRST_ORDER;
+      int[] row = {0};
+      return (ResultSet) Proxy.newProxyInstance(
+         RenderBenchmark.class.getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+            int i = row[0];
+            switch (method.getName()) {
+               case "next": return ++row[0] <= n;
+               case "getMetaData": return meta;
+               case "close": return null;
+               case "getString":
+                  switch ((Integer) args[0]) {
+                     case 1: return String.valueOf(i);
+                     case 2: return String.valueOf(i % 100000 + 1);
+                     case 3: return String.valueOf(i % 1000 + 1);
+                     case 4: return String.format("%-30s", DataGenerator.PRODUCTS[i % DataGenerator.PRODUCTS.length]);
+                     case 5: return String.valueOf(i % 5 + 1);
+                     default: return DataGenerator.TIME.format(first.plusSeconds(i * 31L));
+                  }
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         });
+   }//end orders
+
+   static void database(String[] db, File out) throws Exception {
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(db[0], db[1], db[2], "");
+      try {
+         System.out.printf("SELECT * FROM Orders of %s to %s%n", db[0], out);
+         for (ResultRenderer.Format format : ResultRenderer.Format.values()) {
+            measure(format.name().toLowerCase(), out, () -> {
+               try (ResultRenderer renderer = ResultRenderer.toFile(format, out.toPath())) {
+                  return esql.renderPages("SELECT * FROM Orders ORDER BY orderNumber LIMIT ?",
+                                          "SELECT * FROM Orders WHERE orderNumber > ? ORDER BY orderNumber LIMIT ?",
+                                          new String[] {"ordernumber"}, renderer);
+               }
+            });
+         }
+      } finally {
+         esql.cleanup();
+      }
+   }//end database
+
+}//end RenderBenchmark
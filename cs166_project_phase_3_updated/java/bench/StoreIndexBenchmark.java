@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the StoreIndex radius query against the full scan that
+ * viewStores used to do (every Store row as a list of strings, parsed and
+ * measured on each call).  The database fetch itself is left out, so the
+ * numbers are a lower bound on what the old path costs.
+ *
+ * Usage: java StoreIndexBenchmark [storeCounts...]
+ */
+public class StoreIndexBenchmark {
+
+   static final double RADIUS = 30;
+   static final int QUERIES = 2000;
+
+   public static void main(String[] args) {
+      int[] sizes = {20, 10000, 1000000};
+      if (args.length > 0) {
+         sizes = new int[args.length];
+         for (int i = 0; i < args.length; ++i)
+            sizes[i] = Integer.parseInt(args[i]);
+      }
+      System.out.println("stores\tscan us/query\tindex us/query\tspeedup\tavg hits");
+      for (int n : sizes)
+         run(n);
+   }//end main
+
+   static void run(int n) {
+      Random random = new Random(42);
+      List<List<String>> rows = new ArrayList<List<String>>(n);
+      StoreIndex index = new StoreIndex();
+      for (int i = 0; i < n; ++i) {
+         // store coordinates in the data set fall in [0, 100]
+         double lat = random.nextDouble() * 100;
+         double lon = random.nextDouble() * 100;
+         List<String> row = new ArrayList<String>();
+         row.add(Integer.toString(i));
+         row.add(Double.toString(lat));
+         row.add(Double.toString(lon));
+         row.add("1");
+         rows.add(row);
+         index.put(new StoreIndex.Entry(i, lat, lon, 1));
+      }
+      double[][] points = new double[QUERIES][2];
+      for (double[] p : points) {
+         p[0] = random.nextDouble() * 100;
+         p[1] = random.nextDouble() * 100;
+      }
+      // fewer repetitions for the large table so the scan finishes
+      int queries = n >= 1000000 ? 20 : QUERIES;
+
+      long sink = 0;
+      for (int warm = 0; warm < 2; ++warm) {
+         sink += scan(rows, points, queries);
+         sink += probe(index, points, queries);
+      }
+      long t0 = System.nanoTime();
+      long scanHits = scan(rows, points, queries);
+      long t1 = System.nanoTime();
+      long indexHits = probe(index, points, queries);
+      long t2 = System.nanoTime();
+      if (scanHits != indexHits)
+         throw new IllegalStateException("scan found " + scanHits + " stores, index found " + indexHits);
+
+      double scanUs = (t1 - t0) / 1000.0 / queries;
+      double indexUs = (t2 - t1) / 1000.0 / queries;
+      System.out.printf("%d\t%.2f\t%.2f\t%.1fx\t%.1f%n", n, scanUs, indexUs,
+                        scanUs / indexUs, (double) indexHits / queries);
+      if (sink == 42)
+         System.out.println();
+   }//end run
+
+   // the old viewStores loop: parse every row and keep the close ones
+   static long scan(List<List<String>> rows, double[][] points, int queries) {
+      long hits = 0;
+      for (int q = 0; q < queries; ++q) {
+         List<double[]> found = new ArrayList<double[]>();
+         for (List<String> store : rows) {
+            double lat = Double.parseDouble(store.get(1));
+            double lon = Double.parseDouble(store.get(2));
+            double dx = points[q][0] - lat, dy = points[q][1] - lon;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance <= RADIUS)
+               found.add(new double[]{lat, lon, distance});
+         }
+         found.sort((a, b) -> Double.compare(a[2], b[2]));
+         hits += found.size();
+      }
+      return hits;
+   }
+
+   static long probe(StoreIndex index, double[][] points, int queries) {
+      long hits = 0;
+      for (int q = 0; q < queries; ++q)
+         hits += index.within(points[q][0], points[q][1], RADIUS).size();
+      return hits;
+   }
+
+}//end StoreIndexBenchmark
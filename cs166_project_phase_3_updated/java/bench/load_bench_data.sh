@@ -0,0 +1,14 @@
+#!/bin/bash
+# Recreates the tables and loads a data directory produced by DataGenerator
+# (or the shipped data/), e.g.
+#   java DataGenerator /tmp/amazon-10m 1000 10000000
+#   ./load_bench_data.sh /tmp/amazon-10m --threads 8
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+DATA=${1:?usage: load_bench_data.sh <data dir> [BulkLoader options]}
+shift
+DB=${DB:-$USER"_project_phase_3_DB"}
+PSQL="${PSQL:-psql} -p $PGPORT $DB"
+
+$PSQL < $DIR/../../sql/src/create_tables.sql
+# BulkLoader sets the sequences and analyzes every table
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $DB $PGPORT $USER $DATA "$@"
@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# apply a file of admin changes, one per line, e.g.
+#   user,12,latitude,40.5
+#   product,3,Pen,pricePerUnit,2.5
+# ./admin_batch.sh <adminID> changes.csv --all-or-nothing
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AdminBatch $USER"_project_phase_3_DB" $PGPORT $USER "$@"
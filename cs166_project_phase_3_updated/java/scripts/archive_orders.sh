@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# move the orders older than 90 days (or --afterDays n, or --before yyyy-mm-dd)
+# to the monthly partitions of OrdersArchive, e.g. nightly from cron
+# ./archive_orders.sh --afterDays 30
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderArchive $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the program together with the benchmarks into a scratch directory
+OUT=$(mktemp -d)
+javac -d $OUT $DIR/../src/*.java $DIR/../bench/*.java || exit 1
+
+#run one benchmark, e.g. ./bench.sh StoreIndexBenchmark 20 10000 1000000
+java -cp $OUT:$DIR/../lib/pg73jdbc3.jar "$@"
+rm -rf $OUT
@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# serve the storefront as JSON over HTTP, e.g.
+# ./http_api.sh -Damazon.http.port=8080
+# curl -X POST -d '{"name":"...","password":"..."}' localhost:8080/login
+java "$@" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar HttpApi $USER"_project_phase_3_DB" $PGPORT $USER
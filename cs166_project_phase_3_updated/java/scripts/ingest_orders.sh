@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# bulk load an order file in the format of data/orders.csv, e.g.
+# ./ingest_orders.sh ../../data/orders.csv --threads 8 --commit 100000
+# a running store counts the orders in its reports after Admin, reload (or POST /orders/reload)
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderIngest $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# load the csv files of a directory into freshly created tables, e.g.
+# ./load_data.sh ../../data --threads 4 --chunkMB 16
+# the bundled pg73jdbc3.jar has no COPY API, so every chunk is written with
+# batched INSERTs; put a newer driver on the classpath to load with COPY
+DATA=${1:-$DIR/../../data}
+shift
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER $DATA "$@"
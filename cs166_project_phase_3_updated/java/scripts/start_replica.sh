@@ -0,0 +1,17 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# start a streaming replica of the local Postgres on another port and send the store's queries to it, e.g.
+# ./start_replica.sh 5433
+# java -Damazon.replicas=localhost:5433 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon ...
+# the primary needs wal_level=replica (the default) and a replication entry in pg_hba.conf
+PORT=${1:?usage: start_replica.sh <replica port> [data dir]}
+DATA=${2:-/tmp/$USER/replica_$PORT}
+if [ -e "$DATA" ]; then
+   echo "$DATA already exists"
+   exit 1
+fi
+mkdir -p $DATA
+chmod 700 $DATA
+pg_basebackup -h localhost -p $PGPORT -D $DATA -R -X stream
+pg_ctl -D $DATA -o "-p $PORT" -l $DATA/server.log start
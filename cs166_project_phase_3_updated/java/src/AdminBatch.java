@@ -0,0 +1,355 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bulk changes to Users and Product rows for admins.  A batch is a list of
+ * mutations, each setting one column of one user (by userID) or one
+ * product (by storeID and productName).  Column names are checked against
+ * the schema read from the database metadata, and values are parsed by the
+ * column type, before anything is written.  The valid mutations are then
+ * grouped by table and column, sent as one JDBC batch per group and
+ * committed in a single transaction.
+ *
+ * Every mutation gets its own result.  A row the database refuses, say
+ * for a check constraint, is FAILED with the server's message; each group
+ * runs under a savepoint, so the rest of its group is written again
+ * without it.  With allOrNothing set, a single invalid, missing or failed
+ * row rolls the whole batch back.  Changed products are recorded in
+ * ProductUpdates under the admin's userID.
+ *
+ * File format, one mutation per line (# starts a comment):
+ *
+ *    user,<userID>,<column>,<value>
+ *    product,<storeID>,<productName>,<column>,<value>
+ *
+ * Usage: java AdminBatch <dbname> <port> <user> <adminID> <file> [--all-or-nothing]
+ */
+public class AdminBatch {
+
+   public enum Target { USER, PRODUCT }
+
+   public enum Status { UPDATED, NOT_FOUND, INVALID, FAILED, ROLLED_BACK }
+
+   /**
+    * One column of one row to set.
+    */
+   public record Mutation(Target target, int userID, int storeID, String productName, String column, String value) {
+
+      public static Mutation user(int userID, String column, String value) {
+         return new Mutation(Target.USER, userID, 0, null, column, value);
+      }
+
+      public static Mutation product(int storeID, String productName, String column, String value) {
+         return new Mutation(Target.PRODUCT, 0, storeID, productName, column, value);
+      }
+   }
+
+   /**
+    * The result of one mutation, in the order the mutations were given.
+    */
+   public record Outcome(Mutation mutation, Status status, String message) {
+   }
+
+   /**
+    * The results of a whole batch.
+    */
+   public record Report(List<Outcome> outcomes, int updated, boolean committed, long elapsedMillis) {
+
+      public int failed() {
+         return outcomes.size() - updated;
+      }
+   }
+
+   // the row keys, which a mutation may not change
+   private static final Map<Target, List<String>> KEYS = Map.of(
+      Target.USER, List.of("userid"),
+      Target.PRODUCT, List.of("storeid", "productname"));
+
+   private final Amazon esql;
+   // lower case column name to java.sql.Types, per table, read once
+   private volatile Map<Target, Map<String, Integer>> schema = null;
+
+   public AdminBatch(Amazon esql) {
+      this.esql = esql;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 5) {
+         System.err.println("Usage: java AdminBatch <dbname> <port> <user> <adminID> <file> [--all-or-nothing]");
+         return;
+      }
+      boolean allOrNothing = args.length > 5 && args[5].equals("--all-or-nothing");
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         Report report = esql.admin().apply(Integer.parseInt(args[3]), read(args[4]), allOrNothing);
+         for (Outcome outcome : report.outcomes())
+            if (outcome.status() != Status.UPDATED)
+               System.out.println(outcome.status() + " " + outcome.mutation() + " " + outcome.message());
+         System.out.printf("%d updated, %d failed, %s in %d ms%n", report.updated(), report.failed(),
+                           report.committed() ? "committed" : "rolled back", report.elapsedMillis());
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Reads mutations from a file in the format described above
+    *
+    * @param file the path of the file
+    * @return the mutations in file order
+    * @throws Exception when the file cannot be read or a line is malformed
+    */
+   public static List<Mutation> read(String file) throws Exception {
+      List<Mutation> mutations = new ArrayList<Mutation>();
+      try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+         String line;
+         int number = 0;
+         while ((line = reader.readLine()) != null) {
+            ++number;
+            if (line.isBlank() || line.startsWith("#"))
+               continue;
+            List<String> fields = OrderIngest.split(line);
+            String kind = fields.get(0).trim().toLowerCase(Locale.ROOT);
+            try {
+               if (kind.equals("user") && fields.size() == 4)
+                  mutations.add(Mutation.user(Integer.parseInt(fields.get(1).trim()), fields.get(2).trim(), fields.get(3)));
+               else if (kind.equals("product") && fields.size() == 5)
+                  mutations.add(Mutation.product(Integer.parseInt(fields.get(1).trim()), fields.get(2).trim(),
+                                                 fields.get(3).trim(), fields.get(4)));
+               else
+                  throw new IllegalArgumentException("expected user,id,column,value or product,store,name,column,value");
+            } catch (IllegalArgumentException e) {
+               throw new IllegalArgumentException(file + " line " + number + ": " + e.getMessage());
+            }
+         }
+      }
+      return mutations;
+   }//end read
+
+   /**
+    * Validates and applies a batch of mutations in one transaction
+    *
+    * @param adminID the user making the changes
+    * @param mutations the changes to make
+    * @param allOrNothing roll everything back when any mutation fails
+    * @return the outcome of every mutation and the elapsed time
+    * @throws java.sql.SQLException when the connection fails, in which
+    *         case nothing is written
+    */
+   public Report apply(int adminID, List<Mutation> mutations, boolean allOrNothing) throws SQLException {
+      long start = System.nanoTime();
+      Map<Target, Map<String, Integer>> columns = schema();
+      Outcome[] outcomes = new Outcome[mutations.size()];
+      Object[] values = new Object[mutations.size()];
+
+      // group the valid mutations by statement, keeping their positions
+      Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+      for (int i = 0; i < mutations.size(); ++i) {
+         Mutation m = mutations.get(i);
+         String column = m.column().trim().toLowerCase(Locale.ROOT);
+         Integer type = columns.get(m.target()).get(column);
+         if (type == null || KEYS.get(m.target()).contains(column)) {
+            outcomes[i] = new Outcome(m, Status.INVALID, "Column " + m.column() + " cannot be changed.");
+            continue;
+         }
+         try {
+            values[i] = parse(type, m.value());
+         } catch (IllegalArgumentException e) {
+            outcomes[i] = new Outcome(m, Status.INVALID, "Invalid value " + m.value() + " for " + m.column() + ".");
+            continue;
+         }
+         String sql = m.target() == Target.USER
+            ? "UPDATE Users SET " + column + " = ? WHERE userID = ?"
+            : "UPDATE Product SET " + column + " = ? WHERE storeID = ? AND productName = ?";
+         groups.computeIfAbsent(sql, s -> new ArrayList<Integer>()).add(i);
+      }
+
+      boolean invalid = false;
+      for (Outcome o : outcomes)
+         invalid |= o != null;
+      boolean committed = false;
+      if (!groups.isEmpty() && !(allOrNothing && invalid))
+         committed = write(mutations, values, groups, outcomes, allOrNothing);
+      int updated = 0;
+      for (int i = 0; i < outcomes.length; ++i) {
+         if (outcomes[i] == null)
+            outcomes[i] = new Outcome(mutations.get(i), Status.ROLLED_BACK, "Another mutation of the batch failed.");
+         else if (outcomes[i].status() == Status.UPDATED && !committed)
+            outcomes[i] = new Outcome(mutations.get(i), Status.ROLLED_BACK, "Another mutation of the batch failed.");
+         else if (outcomes[i].status() == Status.UPDATED)
+            ++updated;
+      }
+
+      if (committed) {
+         // the cached copies of the changed rows are stale now
+         for (Outcome o : outcomes) {
+            if (o.status() != Status.UPDATED)
+               continue;
+            if (o.mutation().target() == Target.USER)
+               esql.profiles().invalidate(o.mutation().userID());
+            else {
+               if (o.mutation().column().trim().equalsIgnoreCase("numberOfUnits"))
+                  esql.stockChanged(o.mutation().storeID(), o.mutation().productName());
+               else
+                  esql.productChanged(o.mutation().storeID(), o.mutation().productName());
+               esql.audit().record(adminID, o.mutation().storeID(), o.mutation().productName());
+            }
+         }
+      }
+      return new Report(List.of(outcomes), updated, committed, (System.nanoTime() - start) / 1_000_000);
+   }//end apply
+
+   // runs the grouped statements in one transaction
+   private boolean write(List<Mutation> mutations, Object[] values, Map<String, List<Integer>> groups,
+                         Outcome[] outcomes, boolean allOrNothing) throws SQLException {
+      try (ConnectionPool.PooledConnection conn = esql.pool().acquire()) {
+         Connection c = conn.connection();
+         c.setAutoCommit(false);
+         try {
+            boolean missing = false;
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+               long start = System.nanoTime();
+               boolean failed = true;
+               List<Integer> rows = group.getValue();
+               // a fixed row order keeps concurrent batches from deadlocking
+               rows.sort((a, b) -> key(mutations.get(a)).compareTo(key(mutations.get(b))));
+               try {
+                  PreparedStatement stmt = conn.statements().prepare(group.getKey());
+                  int[] counts = new int[0];
+                  boolean refusedAny = false;
+                  while (!rows.isEmpty()) {
+                     // pg73jdbc3 has no setSavepoint(), the server has SAVEPOINT
+                     conn.statements().prepare("SAVEPOINT admin_batch").execute();
+                     try {
+                        counts = batch(stmt, mutations, values, rows);
+                        conn.statements().prepare("RELEASE SAVEPOINT admin_batch").execute();
+                        break;
+                     } catch (BatchUpdateException e) {
+                        // the rows before the refused one went through, the refused one is dropped
+                        int refused = Math.min(e.getUpdateCounts() == null ? 0 : e.getUpdateCounts().length,
+                                               rows.size() - 1);
+                        int i = rows.remove(refused);
+                        refusedAny = true;
+                        SQLException cause = e.getNextException() == null ? e : e.getNextException();
+                        outcomes[i] = new Outcome(mutations.get(i), Status.FAILED, cause.getMessage());
+                        conn.statements().prepare("ROLLBACK TO SAVEPOINT admin_batch").execute();
+                        if (allOrNothing) {
+                           c.rollback();
+                           return false;
+                        }
+                     }
+                  }
+                  for (int k = 0; k < rows.size(); ++k) {
+                     int i = rows.get(k);
+                     boolean found = counts[k] != 0;
+                     missing |= !found;
+                     outcomes[i] = new Outcome(mutations.get(i), found ? Status.UPDATED : Status.NOT_FOUND,
+                                               found ? "" : "No such " + (mutations.get(i).target() == Target.USER
+                                                                          ? "user." : "product in store."));
+                  }
+                  failed = refusedAny;
+               } finally {
+                  esql.metrics().record("adminBatch", group.getKey(), start, rows.size(), failed);
+               }
+            }
+            if (allOrNothing && missing) {
+               c.rollback();
+               return false;
+            }
+            c.commit();
+            return true;
+         } catch (SQLException | RuntimeException e) {
+            c.rollback();
+            throw e;
+         } finally {
+            c.setAutoCommit(true);
+            esql.router().wrote();
+         }
+      }
+   }//end write
+
+   // sends one group as a JDBC batch
+   private static int[] batch(PreparedStatement stmt, List<Mutation> mutations, Object[] values, List<Integer> rows)
+      throws SQLException {
+      stmt.clearBatch();
+      for (int i : rows) {
+         Mutation m = mutations.get(i);
+         stmt.setObject(1, values[i]);
+         if (m.target() == Target.USER) {
+            stmt.setInt(2, m.userID());
+         } else {
+            stmt.setInt(2, m.storeID());
+            stmt.setString(3, m.productName());
+         }
+         stmt.addBatch();
+      }
+      return stmt.executeBatch();
+   }//end batch
+
+   private static String key(Mutation m) {
+      return m.target() == Target.USER ? String.format("%011d", m.userID())
+         : String.format("%011d|%s", m.storeID(), m.productName());
+   }
+
+   // the columns of Users and Product with their types, from the database metadata
+   private Map<Target, Map<String, Integer>> schema() throws SQLException {
+      Map<Target, Map<String, Integer>> result = schema;
+      if (result != null)
+         return result;
+      result = new HashMap<Target, Map<String, Integer>>();
+      try (ConnectionPool.PooledConnection conn = esql.pool().acquire()) {
+         DatabaseMetaData meta = conn.connection().getMetaData();
+         result.put(Target.USER, columns(meta, "users"));
+         result.put(Target.PRODUCT, columns(meta, "product"));
+      }
+      schema = result;
+      return result;
+   }//end schema
+
+   private static Map<String, Integer> columns(DatabaseMetaData meta, String table) throws SQLException {
+      Map<String, Integer> columns = new HashMap<String, Integer>();
+      try (ResultSet rs = meta.getColumns(null, null, table, null)) {
+         while (rs.next())
+            columns.put(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT), rs.getInt("DATA_TYPE"));
+      }
+      return columns;
+   }
+
+   /*
+    * Converts a value to the Java type of its column
+    * @throws IllegalArgumentException when the value does not parse
+    **/
+   static Object parse(int type, String value) {
+      switch (type) {
+         case Types.INTEGER: case Types.SMALLINT:
+            return Integer.valueOf(value.trim());
+         case Types.BIGINT:
+            return Long.valueOf(value.trim());
+         case Types.DECIMAL: case Types.NUMERIC:
+            return new BigDecimal(value.trim());
+         case Types.FLOAT: case Types.DOUBLE: case Types.REAL:
+            return Double.valueOf(value.trim());
+         case Types.DATE:
+            return Date.valueOf(value.trim());
+         default:
+            return value;
+      }
+   }//end parse
+
+}//end AdminBatch
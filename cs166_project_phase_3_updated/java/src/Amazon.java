@@ -11,18 +11,19 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.lang.Math;
 import javax.swing.*;
 
@@ -32,10 +33,70 @@ import javax.swing.*;
  *
  */
 public class Amazon {
-	
-   public static String currUser;
-   // reference to physical database connection.
-   private Connection _connection = null;
+
+   // pool of physical database connections, each with its statement cache.
+   private ConnectionPool _pool = null;
+
+   // queries spread over the read replicas, writes on the primary pool
+   private ReplicaRouter _router = null;
+
+   // grid index over Store locations, built once at startup
+   private StoreIndex _storeIndex = null;
+
+   // product name search across all stores
+   private ProductSearch _search = null;
+
+   // latency, rows and errors of every statement, with the slow query log
+   private final QueryMetrics _metrics = QueryMetrics.fromSystemProperties();
+
+   // rows per statement of a query read in keyset pages
+   private final int _pageRows = Integer.getInteger("amazon.pageRows", 10000);
+
+   // Users rows of the logged in users
+   private final UserProfiles _profiles = new UserProfiles(this);
+
+   // incrementally maintained order counts per product and customer
+   private OrderPopularity _popularity = null;
+
+   // columnar copy of Orders behind the sales reports, read by the first report
+   private final OrderAnalytics _analytics = OrderAnalytics.fromSystemProperties(this);
+
+   // products per store behind viewProducts
+   private final CatalogCache _catalog = new CatalogCache(this,
+      Integer.getInteger("amazon.catalogCache.stores", 256),
+      CatalogCache.Policy.valueOf(System.getProperty("amazon.catalogCache.policy", "LRU")));
+
+   // single statement order placement
+   private final OrderEngine _orders = new OrderEngine(this);
+
+   // keyset paginated order history
+   private final OrderHistory _history = new OrderHistory(this);
+
+   // old orders moved to the monthly partitions of OrdersArchive, with their rollups
+   private final OrderArchive _archive = OrderArchive.fromSystemProperties(this);
+
+   // supply requests routed to the nearest warehouse
+   private final SupplyRouter _supply = new SupplyRouter(this);
+
+   // ProductUpdates rows written in the background
+   private final ProductAudit _audit = ProductAudit.fromSystemProperties(this);
+
+   // units held for customers until they confirm their order
+   private final Inventory _inventory = Inventory.fromSystemProperties((storeID, productName) -> {
+      // the stock of a replica may be behind the orders already placed
+      Integer units = router().onPrimary(() -> queryOne(
+         "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?", Rows.INT, storeID, productName));
+      return units == null ? -1 : units;
+   });
+
+   // the catalog kept in a file for fast restarts, refreshed in the background
+   private final CatalogSnapshot _snapshot = CatalogSnapshot.fromSystemProperties(this);
+
+   // bulk Users and Product changes for admins
+   private final AdminBatch _admin = new AdminBatch(this);
+
+   // the menu operations, callable without the console
+   private final Storefront _storefront = new Storefront(this);
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -60,9 +121,15 @@ public class Amazon {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pool
+         ConnectionPool.Config config = ConnectionPool.Config.fromSystemProperties();
+         this._pool = new ConnectionPool(url, user, passwd, config);
+         this._router = ReplicaRouter.fromSystemProperties(this._pool, dbname, user, passwd, config);
+         this._metrics.export(this._pool);
+         exportRouter();
          System.out.println("Done");
+
+         loadCaches();
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -70,6 +137,281 @@ public class Amazon {
       }//end catch
    }//end Amazon
 
+   /**
+    * Creates a new instance of Amazon store on top of an existing pool, so
+    * several front ends can share the same connections.
+    *
+    * @param pool the connection pool to run queries on
+    * @throws java.sql.SQLException when the caches cannot be loaded
+    */
+   public Amazon(ConnectionPool pool) throws SQLException {
+      this(pool, new ReplicaRouter(pool, List.of(), 0, 0, 0));
+   }//end Amazon
+
+   /**
+    * Creates a new instance of Amazon store on top of an existing pool
+    * whose queries are spread over read replicas.
+    *
+    * @param pool the connection pool of the primary
+    * @param router routes the statements between the primary and its replicas
+    * @throws java.sql.SQLException when the caches cannot be loaded
+    */
+   public Amazon(ConnectionPool pool, ReplicaRouter router) throws SQLException {
+      this._pool = pool;
+      this._router = router;
+      this._metrics.export(pool);
+      exportRouter();
+      loadCaches();
+   }//end Amazon
+
+   private void exportRouter() {
+      if (this._router.replicas() == 0)
+         return;
+      this._metrics.gauge("amazon_replicas_healthy", "Read replicas taking queries", this._router::healthyReplicas);
+      this._metrics.gauge("amazon_replicas_max_lag_seconds", "Largest lag of a healthy read replica",
+                          () -> this._router.maxLagMillis() / 1e3);
+      this._metrics.gauge("amazon_replica_reads", "Queries run on a read replica", this._router::replicaReads);
+      this._metrics.gauge("amazon_primary_reads", "Queries run on the primary", this._router::primaryReads);
+      this._metrics.gauge("amazon_replica_fallbacks", "Queries moved to the primary after a replica failed",
+                          this._router::fallbacks);
+   }
+
+   // loads the in-memory structures that are built once at startup
+   private void loadCaches() throws SQLException {
+      // Store, Product, Warehouse and profiles from the snapshot file, or from the tables
+      CatalogSnapshot.Data catalog = this._snapshot.open();
+
+      // load every store location once instead of scanning Store per request
+      StoreIndex index = new StoreIndex();
+      for (Rows.Store store : catalog.stores())
+         index.put(new StoreIndex.Entry(store.storeID(), store.latitude(), store.longitude(), store.managerID()));
+      this._storeIndex = index;
+
+      // every product name, refreshed per store through the catalog cache after writes
+      ProductSearch search = new ProductSearch(index, this._catalog::products);
+      for (Rows.Product product : catalog.products())
+         search.add(product);
+      this._search = search;
+      for (Map.Entry<Integer, List<Rows.Product>> store : catalog.productsByStore().entrySet())
+         this._catalog.preload(store.getKey(), store.getValue());
+
+      // warehouse locations for routing supply requests
+      this._supply.setWarehouses(catalog.warehouses());
+      this._profiles.preload(catalog.users());
+
+      // order counts behind the popular products and customers reports, over the archive rollups
+      this._archive.open();
+      this._popularity = OrderPopularity.load(this);
+      this._archive.start();
+
+      // differences between the snapshot and the tables reach the caches through productChanged
+      this._snapshot.start();
+   }
+
+   /**
+    * Returns the connection pool of the primary, which also reports wait
+    * time, utilization and statement cache counters.  Writes made on it for
+    * a session should be followed by router().wrote().
+    *
+    * @return the connection pool
+    */
+   public ConnectionPool pool(){
+      return this._pool;
+   }
+
+   /**
+    * Returns the router between the primary and the read replicas.
+    *
+    * @return the replica router
+    */
+   public ReplicaRouter router(){
+      return this._router;
+   }
+
+   /**
+    * Returns the latency, row and error counts of the statements run so far.
+    *
+    * @return the query metrics
+    */
+   public QueryMetrics metrics(){
+      return this._metrics;
+   }
+
+   /**
+    * Returns the cache of logged in user profiles.
+    *
+    * @return the profile cache
+    */
+   public UserProfiles profiles(){
+      return this._profiles;
+   }
+
+   /**
+    * Returns the order counters behind the popularity reports.
+    *
+    * @return the order counters
+    */
+   public OrderPopularity popularity(){
+      return this._popularity;
+   }
+
+   /**
+    * Returns the read-through cache of the products of each store.
+    *
+    * @return the catalog cache
+    */
+   public CatalogCache catalog(){
+      return this._catalog;
+   }
+
+   /**
+    * Must be called after every statement that changes a Product row, so
+    * the in-memory copies of that row are refreshed.
+    *
+    * @param storeID the store of the changed product
+    * @param productName the name of the changed product
+    */
+   public void productChanged(int storeID, String productName){
+      stockChanged(storeID, productName);
+      this._analytics.priceChanged(storeID, productName);
+   }
+
+   /**
+    * Like productChanged, for a statement that only changed numberOfUnits,
+    * so the prices held by OrderAnalytics are kept.
+    *
+    * @param storeID the store of the changed product
+    * @param productName the name of the changed product
+    */
+   public void stockChanged(int storeID, String productName){
+      this._catalog.invalidate(storeID);
+      if (this._search != null)
+         this._search.invalidate(storeID);
+      this._inventory.invalidate(storeID, productName);
+   }
+
+   /**
+    * Must be called after another process, such as OrderIngest, wrote
+    * orders, so the popularity counts and the sales reports read them.  The
+    * stock held by the inventory stays valid: ingested orders do not change
+    * numberOfUnits.
+    *
+    * @throws java.sql.SQLException when the orders cannot be read again
+    */
+   public void ordersChanged() throws SQLException {
+      this._popularity.reload(this);
+      this._analytics.reload();
+   }
+
+   /**
+    * Returns the product name search index.
+    *
+    * @return the product search
+    */
+   public ProductSearch search(){
+      return this._search;
+   }
+
+   /**
+    * Returns the engine that places orders atomically.
+    *
+    * @return the order engine
+    */
+   public OrderEngine orders(){
+      return this._orders;
+   }
+
+   /**
+    * Returns the columnar order store behind the sales reports.
+    *
+    * @return the order analytics
+    */
+   public OrderAnalytics analytics(){
+      return this._analytics;
+   }
+
+   /**
+    * Returns the paginated order history of the customers.
+    *
+    * @return the order history
+    */
+   public OrderHistory history(){
+      return this._history;
+   }
+
+   /**
+    * Returns the archive of old orders.
+    *
+    * @return the order archive
+    */
+   public OrderArchive archive(){
+      return this._archive;
+   }
+
+   /**
+    * Returns the router of product supply requests.
+    *
+    * @return the supply router
+    */
+   public SupplyRouter supply(){
+      return this._supply;
+   }
+
+   /**
+    * Returns the write-behind log of product updates.
+    *
+    * @return the product audit
+    */
+   public ProductAudit audit(){
+      return this._audit;
+   }
+
+   /**
+    * Returns the reservations of product units.
+    *
+    * @return the inventory
+    */
+   public Inventory inventory(){
+      return this._inventory;
+   }
+
+   /**
+    * Returns the catalog snapshot the caches started from.
+    *
+    * @return the catalog snapshot
+    */
+   public CatalogSnapshot snapshot(){
+      return this._snapshot;
+   }
+
+   /**
+    * Returns the bulk admin changes.
+    *
+    * @return the admin batch
+    */
+   public AdminBatch admin(){
+      return this._admin;
+   }
+
+   /**
+    * Returns the storefront operations behind the menu.
+    *
+    * @return the storefront
+    */
+   public Storefront storefront(){
+      return this._storefront;
+   }
+
+   /**
+    * Returns the in-memory index of store locations.  Code that inserts,
+    * moves or deletes a Store row should put/remove the entry here as well.
+    *
+    * @return the store index
+    */
+   public StoreIndex storeIndex(){
+      return this._storeIndex;
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -80,97 +422,260 @@ public class Amazon {
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      boolean failed = true;
+      // borrows a pooled connection for the duration of the statement
+      try (ConnectionPool.PooledConnection conn = this._pool.acquire ()) {
+         // fetches the cached statement object with the parameters bound
+         PreparedStatement stmt = conn.statements ().prepare (sql, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         try {
+            rowCount = stmt.executeUpdate ();
+         } catch (SQLException e) {
+            // the next use prepares the statement again
+            conn.statements ().evict (sql);
+            throw e;
+         }
+         failed = false;
+         return rowCount;
+      } finally {
+         this._router.wrote ();
+         this._metrics.record ("executeUpdate", sql, start, rowCount, failed);
+      }
    }//end executeUpdate
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row, converted by the mapper, to the handler as it arrives, so no
+    * list of the rows is built.  The bundled pg73jdbc3 has no server-side
+    * cursors: the driver holds the whole result before the first row is
+    * handed over, so a result too large for memory has to be read in
+    * pages.
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param mapper converts the current row into an object
+    * @param handler receives the mapped rows in order
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public <T> int stream (String query, RowMapper<T> mapper, RowHandler<? super T> handler, Object... params) throws SQLException {
+      return run ("stream", query, mapper, handler, params);
+   }//end stream
+
+   /**
+    * Method to stream a result too large for the driver to hold, one page
+    * of rows at a time.  Every page is a statement of its own that starts
+    * after the last row of the page before (keyset paging), so the driver
+    * holds at most amazon.pageRows rows (10000).  Both queries must order
+    * by the key columns, which must be unique, and end in LIMIT ?.
+    *
+    * @param first the query of the first page, with the params and then the LIMIT
+    * @param next the query of the following pages, with the params, then
+    *        the keys of the last row read, in the order of keys, then the LIMIT
+    * @param keys the labels of the key columns
+    * @param mapper converts the current row into an object
+    * @param handler receives the mapped rows in order
+    * @param params the values bound to the leading placeholders of both queries
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute a page
+    */
+   public <T> int streamPages (String first, String next, String[] keys, RowMapper<T> mapper, RowHandler<? super T> handler, Object... params) throws SQLException {
+      return pages ("streamPages", first, next, keys, mapper, handler, params);
+   }//end streamPages
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return its rows as typed objects.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper converts the current row into an object
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> queryList (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      List<T> result = new ArrayList<T>();
+      run ("queryList", query, mapper, result::add, params);
+      return result;
+   }//end queryList
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   /**
+    * Method to execute a query that returns at most one interesting row,
+    * such as a lookup by key or an INSERT ... RETURNING.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper converts the row into an object
+    * @param params the values bound to the placeholders, in order
+    * @return the first mapped row or null when there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryOne (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      List<T> result = new ArrayList<T>(1);
+      run ("queryOne", query, mapper, result::add, params);
+      return result.isEmpty () ? null : result.get (0);
+   }//end queryOne
+
+   // runs a query on a pooled connection of the primary or of a replica and feeds the
+   // mapped rows to the handler, recording it in the metrics under the name of the public entry point
+   private <T> int run (String operation, String query, RowMapper<T> mapper, RowHandler<? super T> handler, Object... params) throws SQLException {
+      long start = System.nanoTime ();
       int rowCount = 0;
+      boolean failed = true;
+      ConnectionPool pool = this._router.route (query);
+      try {
+         while (true) {
+            // borrows a pooled connection for the duration of the query
+            try (ConnectionPool.PooledConnection conn = pool.acquire ()) {
+               // fetches the cached statement object with the parameters bound
+               PreparedStatement stmt = conn.statements ().prepare (query, params);
+               // issues the query instruction
+               try (ResultSet rs = stmt.executeQuery ()) {
+                  while (rs.next ()){
+                     handler.handle (mapper.map (rs));
+                     ++rowCount;
+                  }//end while
+                  failed = false;
+                  return rowCount;
+               } catch (RowHandler.Stop e) {
+                  // the reader took this row and wants no more
+                  ++rowCount;
+                  failed = false;
+                  return rowCount;
+               } catch (SQLException e) {
+                  conn.statements ().evict (query);
+                  throw e;
+               }
+            } catch (SQLException e) {
+               // a replica lost before the first row: the query runs again on the primary
+               if (pool == this._pool || rowCount > 0 || !ReplicaRouter.retryable (e))
+                  throw e;
+               this._router.failed (pool, e);
+               pool = this._pool;
+            }
+         }
+      } finally {
+         this._router.finished (query);
+         this._metrics.record (operation, query, start, rowCount, failed);
+      }
+   }//end run
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
+   // runs the pages of a keyset paged query until one comes back short or the reader stops
+   private <T> int pages (String operation, String first, String next, String[] keys, RowMapper<T> mapper, RowHandler<? super T> handler, Object... params) throws SQLException {
+      Object[] args = Arrays.copyOf (params, params.length + keys.length + 1);
+      boolean[] stopped = {false};
+      RowMapper<T> keyed = rs -> {
+         for (int i = 0; i < keys.length; ++i)
+            args[params.length + i] = rs.getObject (keys[i]);
+         try {
+            return mapper.map (rs);
+         } catch (RowHandler.Stop e) {
+            stopped[0] = true;
+            throw e;
+         }
+      };
+      RowHandler<T> handled = row -> {
+         try {
+            handler.handle (row);
+         } catch (RowHandler.Stop e) {
+            stopped[0] = true;
+            throw e;
+         }
+      };
+      Object[] firstArgs = Arrays.copyOf (params, params.length + 1);
+      firstArgs[params.length] = this._pageRows;
+      args[args.length - 1] = this._pageRows;
+      int rowCount = run (operation, first, keyed, handled, firstArgs);
+      int page = rowCount;
+      while (page == this._pageRows && !stopped[0]) {
+         // the keys of the last row are bound before the mapper overwrites them
+         page = run (operation, next, keyed, handled, args);
+         rowCount += page;
+      }
       return rowCount;
-   }//end executeQuery
+   }//end pages
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * method issues the query to the DBMS and outputs the results to
+    * standard out as a table, a page at a time on a console.
     *
-    * @param query the input query string
-    * @return the query result as a list of records
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      try (ResultRenderer renderer = ResultRenderer.toConsole (ResultRenderer.Format.TABLE)) {
+         return render (query, renderer, params);
+      }
+   }//end executeQueryAndPrintResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * write every row to a renderer.  The rows are not collected, but
+    * pg73jdbc3 holds the whole result in the driver (see stream()).
+    *
+    * @param query the input query string with '?' placeholders
+    * @param renderer where the rows go, closed by the caller
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int render (String query, ResultRenderer renderer, Object... params) throws SQLException {
+      return run ("render", query, rs -> {
+         renderer.row (rs);
+         return null;
+      }, row -> {}, params);
+   }//end render
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   /**
+    * Method to write a result of any size to a renderer, read in keyset
+    * pages as streamPages() reads it, so neither the driver nor the
+    * renderer holds more than a page.
+    *
+    * @param first the query of the first page, see streamPages()
+    * @param next the query of the following pages, see streamPages()
+    * @param keys the labels of the key columns
+    * @param renderer where the rows go, closed by the caller
+    * @param params the values bound to the leading placeholders of both queries
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute a page
+    */
+   public int renderPages (String first, String next, String[] keys, ResultRenderer renderer, Object... params) throws SQLException {
+      return pages ("render", first, next, keys, rs -> {
+         renderer.row (rs);
+         return null;
+      }, row -> {}, params);
+   }//end renderPages
 
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      run ("executeQueryAndReturnResult", query, rs -> {
+         int numCol = rs.getMetaData ().getColumnCount ();
+         List<String> record = new ArrayList<String>(numCol);
+         for (int i=1; i<=numCol; ++i)
+            record.add(rs.getString (i));
+         return record;
+      }, result::add, params);
       return result;
    }//end executeQueryAndReturnResult
 
@@ -178,56 +683,63 @@ public class Amazon {
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   public int executeQuery (String query, Object... params) throws SQLException {
+       // counts the rows without materializing them
+       return run ("executeQuery", query, rs -> null, row -> {}, params);
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is local to a
+    * database session, so the connection must be the one that advanced the
+    * sequence.
     *
+    * @param conn the pooled connection the sequence was used on
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public int getCurrSeqVal(ConnectionPool.PooledConnection conn, String sequence) throws SQLException {
+	String query = "Select currval(?::regclass)";
+	long start = System.nanoTime ();
+	boolean failed = true;
+	try {
+		PreparedStatement stmt = conn.statements ().prepare (query, sequence);
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+		ResultSet rs = stmt.executeQuery ();
+		int value = -1;
+		if (rs.next())
+			value = rs.getInt(1);
+		rs.close ();
+		failed = false;
+		return value;
+	} finally {
+		this._metrics.record ("getCurrSeqVal", query, start, 1, failed);
+	}
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the pooled connections if they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      // the queued audit rows need the pool
+      this._audit.close ();
+      this._inventory.close ();
+      this._snapshot.close ();
+      this._archive.close ();
+      this._metrics.close ();
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -267,14 +779,14 @@ public class Amazon {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            Session session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            if (session != null) {
               boolean usermenu = true;
               while(usermenu) {
                 System.out.println("MAIN MENU");
@@ -291,22 +803,32 @@ public class Amazon {
                 System.out.println("8. View 5 Popular Customers");
                 System.out.println("9. Place Product Supply Request to Warehouse");
 		System.out.println("10. Access Admin Operations");
+                System.out.println("11. Reorder Low Stock Products");
+                System.out.println("12. View Order History");
+                System.out.println("13. Search Products");
+                System.out.println("14. View Sales Report");
+                System.out.println("15. Export Products or Orders");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
                 switch (readChoice()){
-                   case 1: viewStores(esql); break;
-                   case 2: viewProducts(esql); break;
-                   case 3: placeOrder(esql); break;
-                   case 4: viewRecentOrders(esql); break;
-                   case 5: updateProduct(esql); break;
-                   case 6: viewRecentUpdates(esql); break;
-                   case 7: viewPopularProducts(esql); break;
-                   case 8: viewPopularCustomers(esql); break;
-                   case 9: placeProductSupplyRequests(esql); break;
-		   case 10: Admin(esql); break;
+                   case 1: viewStores(esql, session); break;
+                   case 2: viewProducts(esql, session); break;
+                   case 3: placeOrder(esql, session); break;
+                   case 4: viewRecentOrders(esql, session); break;
+                   case 5: updateProduct(esql, session); break;
+                   case 6: viewRecentUpdates(esql, session); break;
+                   case 7: viewPopularProducts(esql, session); break;
+                   case 8: viewPopularCustomers(esql, session); break;
+                   case 9: placeProductSupplyRequests(esql, session); break;
+		   case 10: Admin(esql, session); break;
+                   case 11: reorderLowStock(esql, session); break;
+                   case 12: viewOrderHistory(esql, session); break;
+                   case 13: searchProducts(esql, session); break;
+                   case 14: viewSalesReport(esql, session); break;
+                   case 15: exportRows(esql, session); break;
 	
-                   case 20: usermenu = false; break;
+                   case 20: usermenu = false; esql.storefront().logOut(session); break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -368,12 +890,8 @@ public class Amazon {
          String latitude = in.readLine();       //enter lat value between [0.0, 100.0]
          System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
          String longitude = in.readLine();
-         
-         String type="Customer";
-
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
 
-         esql.executeUpdate(query);
+         esql.storefront().createUser(name, password, Double.parseDouble(latitude), Double.parseDouble(longitude));
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -383,23 +901,16 @@ public class Amazon {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the session of the user or null is the user does not exist
     **/
-   public static String LogIn(Amazon esql){
+   public static Session LogIn(Amazon esql){
       try{
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine();
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-	 List<List<String>> userList = esql.executeQueryAndReturnResult(query);
-         int userNum = esql.executeQuery(query);
-	 currUser = userList.get(0).get(0);
-	 if (userNum > 0){
-		return name;
-	 } 
-         return null;
-	 //currUser = userList.get(0).get(0);
+         // loads the whole profile once, later operations read it from the cache
+         return esql.storefront().logIn(name, password);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
@@ -407,291 +918,378 @@ public class Amazon {
    }//end
 
 // Rest of the functions definition go in here
+// The console methods read the input and print the result, the work itself
+// is done by the Storefront methods of the same name
 
 // Admin functionality
-   public static String Admin(Amazon esql){
-	   try{  
-		//Check if user is admin
-	   	String query = String.format("SELECT name FROM Users WHERE userID = '%s' AND type = 'admin'", currUser);
-		List<List<String>> userAdmin = esql.executeQueryAndReturnResult(query);
-		if (userAdmin.size() > 0){
-			//View all Products
-			//Get user ID and product name from currUser
-			System.out.print("\tEnter user ID: ");
-			String userID = in.readLine();
-			System.out.print("\tEnter column name you want to update: ");
-			String nameColumn = in.readLine();
-			//check if nameColumn exists in Users
-                        /*String check = String.format("SELECT * FROM Users WHERE " + nameColumn + "!= ' '");
-                        List<List<String>> nameCheck = esql.executeQueryAndReturnResult(check);
-			if(nameCheck.size() == 0){
-                                System.out.println("Column name does not exist.");
-                                return null;
-                        }*/
-			System.out.print("\tEnter new criteria: ");
-			String newName = in.readLine();
-			System.out.print("\tEnter store ID: ");
-			String storeID = in.readLine();
-			System.out.print("\tEnter product name: ");
-        		String productName = in.readLine();
-			System.out.print("\tEnter column name you want to update: ");
-			String productColumn = in.readLine();
-			//check if productColumn exists in Product
-                        /*String check1 = String.format("SELECT '%s' FROM Product", productColumn);
-                        List<List<String>> productCheck = esql.executeQueryAndReturnResult(check1);
-			if(productCheck.size() == 0){
-                                System.out.println("Column name does not exist.");
-                                return null;
-                        }*/
-			System.out.print("\tEnter new criteria: ");
-			String newProduct = in.readLine();
-			String user = String.format("SELECT * FROM Users WHERE userID = '%s'", userID);
-			List<List<String>> userInfo = esql.executeQueryAndReturnResult(user);
-			String product = String.format("SELECT * FROM Product WHERE productName = '%s' AND storeID = '%s'", productName, storeID);
-			List<List<String>> productInfo = esql.executeQueryAndReturnResult(product);
-			if (userInfo.size() > 0){ //userId exists in Users
-			    if (productInfo.size() > 0){ //productName exists in storeID
-
-				//set nameColumn to newName
-				String queryUser = String.format("UPDATE Users SET %s = '%s' WHERE userID = '%s'", nameColumn, newName, userID); 
-				esql.executeUpdate(queryUser);
-				//set productColumn to newProduct
-				String queryProduct = String.format("UPDATE Product SET %s = '%s' WHERE productName = '%s'", productColumn, newProduct, productName);
-				esql.executeUpdate(queryProduct);
-				esql.executeQueryAndPrintResult(user);
-				esql.executeQueryAndPrintResult(product);
-			    }else{
-				System.out.println("\nProduct does not exist in store.\n");
-				return null;
-			    }
-			}else{
-			    System.out.println("\nUserID is not valid.\n");
-			    return null;
-			}
-		
-		return "Admin operations comleted successfully.";
-		}else{
-			System.out.println("\nOnly admins can access admin operations.\n");
-		}
-           }catch(Exception e){
-	    System.err.println (e.getMessage ());
-	   }
-	return null;
-   }
-   
-   public static void viewStores(Amazon esql) {
-	try {
-        // Fetch latitude and longitude of the current user
-        String query = String.format("SELECT latitude, longitude FROM Users WHERE userID = '%s'", currUser);
-        List<List<String>> userLocation = esql.executeQueryAndReturnResult(query);
-        if (userLocation.size() == 0) {
-            System.out.println("\nUser location not found.\n");
-            return;
-        }
-        
-        double userLat = Double.parseDouble(userLocation.get(0).get(0));
-        double userLong = Double.parseDouble(userLocation.get(0).get(1));
-       
-        //Execute query to get stores within 30 miles
-        query = ("SELECT * FROM Store");
-        List<List<String>> storesList = esql.executeQueryAndReturnResult(query);
-        
-        System.out.println("Stores within 30 miles:");
-        for (int i = 0; i < storesList.size(); i++) {
-	    List<String> store = storesList.get(i);
-            double storeLat = Double.parseDouble(store.get(2));
-            double storeLong = Double.parseDouble(store.get(3));
-            double distance = esql.calculateDistance(userLat, userLong, storeLat, storeLong);
-            if (distance <= 30) {
-                System.out.println(store.get(1) + " (Distance: " + distance + " miles)");
+   public static String Admin(Amazon esql, Session session){
+      try{
+         System.out.print("\tEnter a file of changes, reload after an OrderIngest run (or press enter for a single change): ");
+         String file = in.readLine().trim();
+         if (file.equals("reload")) {
+            if (!esql.storefront().reloadOrders(session)) {
+               System.out.println("\nOnly admins can access admin operations.\n");
+               return null;
             }
-        }
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
-   }
-   public static void viewProducts(Amazon esql) {
-   	try {
-        //Get store ID from the user
-        System.out.print("\tEnter store ID: ");
-        String storeID = in.readLine();
-      
-	String query = String.format("SELECT * FROM Product WHERE storeID = '%s'", storeID);
-        esql.executeQueryAndPrintResult(query);
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
-   }
-   public static void placeOrder(Amazon esql) {
-   	try {
-        //Get order details from the user
-        System.out.print("\tEnter store ID: ");
-	String storeID = in.readLine();
-        System.out.print("\tEnter product name: ");
-        String productName = in.readLine();
-        System.out.print("\tEnter number of units: ");
-        int numberOfUnits = Integer.parseInt(in.readLine());
-
-        // Execute query to fetch store location
-        String query = String.format("SELECT latitude, longitude FROM Store WHERE storeID = '%s'", storeID);
-        List<List<String>> storeLocation = esql.executeQueryAndReturnResult(query);
-        
-        if (storeLocation.size() == 0) {
-            System.out.println("\nStore not found.\n");
+            return "Orders reloaded.";
+         }
+         if (!file.isEmpty()) {
+            AdminBatch.Report report = esql.storefront().adminBatch(session, AdminBatch.read(file), false);
+            if (report == null) {
+               System.out.println("\nOnly admins can access admin operations.\n");
+               return null;
+            }
+            for (AdminBatch.Outcome outcome : report.outcomes())
+               if (outcome.status() != AdminBatch.Status.UPDATED)
+                  System.out.println(outcome.status() + " " + outcome.mutation() + " " + outcome.message());
+            System.out.printf("%d changes made, %d failed, in %d ms%n", report.updated(), report.failed(),
+                              report.elapsedMillis());
+            return "Admin operations comleted successfully.";
+         }
+         //Get user ID and product name from the admin
+         System.out.print("\tEnter user ID: ");
+         String userID = in.readLine();
+         System.out.print("\tEnter column name you want to update: ");
+         String nameColumn = in.readLine();
+         System.out.print("\tEnter new criteria: ");
+         String newName = in.readLine();
+         System.out.print("\tEnter store ID: ");
+         String storeID = in.readLine();
+         System.out.print("\tEnter product name: ");
+         String productName = in.readLine();
+         System.out.print("\tEnter column name you want to update: ");
+         String productColumn = in.readLine();
+         System.out.print("\tEnter new criteria: ");
+         String newProduct = in.readLine();
+         int userKey = Integer.parseInt(userID.trim());
+         int storeKey = Integer.parseInt(storeID.trim());
+
+         switch (esql.storefront().adminUpdate(session, userKey, nameColumn, newName,
+                                               storeKey, productName, productColumn, newProduct)) {
+            case OK:
+               esql.executeQueryAndPrintResult("SELECT * FROM Users WHERE userID = ?", userKey);
+               esql.executeQueryAndPrintResult("SELECT * FROM Product WHERE productName = ? AND storeID = ?", productName, storeKey);
+               return "Admin operations comleted successfully.";
+            case NOT_ALLOWED:
+               System.out.println("\nOnly admins can access admin operations.\n");
+               break;
+            case INVALID_COLUMN:
+               System.out.println("Column name does not exist or the new value does not fit it.");
+               break;
+            case USER_NOT_FOUND:
+               System.out.println("\nUserID is not valid.\n");
+               break;
+            default:
+               System.out.println("\nProduct does not exist in store.\n");
+               break;
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+      return null;
+   }
+
+   public static void viewStores(Amazon esql, Session session) {
+      try {
+         //Look up stores within 30 miles in the store index, nearest first
+         List<StoreIndex.Hit> nearby = esql.storefront().viewStores(session);
+
+         System.out.println("Stores within 30 miles:");
+         for (StoreIndex.Hit hit : nearby) {
+            System.out.println("Store " + hit.store.storeID + " (Distance: " + hit.distance + " miles)");
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void viewProducts(Amazon esql, Session session) {
+      try {
+         //Get store ID from the user
+         System.out.print("\tEnter store ID: ");
+         String storeID = in.readLine();
+
+         //Read the store's products through the catalog cache
+         List<Rows.Product> products = esql.storefront().viewProducts(Integer.parseInt(storeID.trim()));
+         if (products.size() > 0)
+            System.out.println("storeid\tproductname\tnumberofunits\tpriceperunit\t");
+         for (Rows.Product product : products)
+            System.out.println(product.storeID() + "\t" + product.productName() + "\t"
+                               + product.numberOfUnits() + "\t" + product.pricePerUnit() + "\t");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void searchProducts(Amazon esql, Session session) {
+      try {
+         //Get part of a product name, typos are tolerated
+         System.out.print("\tEnter product name: ");
+         String text = in.readLine();
+
+         List<ProductSearch.Hit> hits = esql.storefront().searchProducts(session, text, 20);
+         if (hits.isEmpty())
+            System.out.println("\nNo matching products.\n");
+         else
+            System.out.println("storeid\tproductname\tnumberofunits\tpriceperunit\tdistance\t");
+         for (ProductSearch.Hit hit : hits)
+            System.out.println(hit.storeID() + "\t" + hit.productName() + "\t" + hit.numberOfUnits() + "\t"
+                               + hit.pricePerUnit() + "\t" + String.format("%.2f", hit.distance()) + "\t");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void placeOrder(Amazon esql, Session session) {
+      try {
+         //Get order details from the user
+         System.out.print("\tEnter store ID: ");
+         int storeID = Integer.parseInt(in.readLine().trim());
+         System.out.print("\tEnter product name: ");
+         String productName = in.readLine();
+         System.out.print("\tEnter number of units: ");
+         int numberOfUnits = Integer.parseInt(in.readLine());
+
+         // Check distance and stock, take the units and insert the order in one statement
+         OrderEngine.Result result = esql.storefront().placeOrder(session, storeID, productName, numberOfUnits);
+         switch (result.status) {
+            case PLACED:
+               System.out.println("\nOrder " + result.orderNumber + " placed successfully!\n");
+               break;
+            case STORE_NOT_FOUND:
+               System.out.println("\nStore not found.\n");
+               break;
+            case TOO_FAR:
+               System.out.println("\nYou can only place orders from stores within 30 miles.\n");
+               break;
+            case PRODUCT_NOT_FOUND:
+               System.out.println("\nProduct not found in store.\n");
+               break;
+            case OUT_OF_STOCK:
+               System.out.println("\nNot enough units in stock.\n");
+               break;
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void viewRecentOrders(Amazon esql, Session session) {
+      try {
+         //Get five most recent orders for the current user
+         printOrders(esql.storefront().viewRecentOrders(session));
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void viewOrderHistory(Amazon esql, Session session) {
+      try {
+         //Get the optional filters, then show the orders one page at a time
+         System.out.print("\tEnter store ID (blank for all stores): ");
+         String storeID = in.readLine().trim();
+         System.out.print("\tEnter first day, yyyy-mm-dd (blank for no limit): ");
+         String from = in.readLine().trim();
+         System.out.print("\tEnter last day, yyyy-mm-dd (blank for no limit): ");
+         String to = in.readLine().trim();
+         OrderHistory.Filter filter = new OrderHistory.Filter(
+            storeID.isEmpty() ? null : Integer.valueOf(storeID),
+            from.isEmpty() ? null : LocalDate.parse(from).atStartOfDay(),
+            to.isEmpty() ? null : LocalDate.parse(to).plusDays(1).atStartOfDay());
+
+         String cursor = null;
+         do {
+            OrderHistory.Page page = esql.storefront().viewOrderHistory(session, filter, cursor, 10);
+            printOrders(page.orders());
+            cursor = page.next();
+            if (cursor != null)
+               System.out.print("\tEnter n for the next page: ");
+         } while (cursor != null && "n".equalsIgnoreCase(in.readLine().trim()));
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   private static void printOrders(List<Rows.Order> orders) {
+      System.out.println("ordernumber\tcustomerid\tstoreid\tproductname\tunitsordered\tordertime\t");
+      for (Rows.Order order : orders)
+         System.out.println(order.orderNumber() + "\t" + order.customerID() + "\t" + order.storeID() + "\t"
+                            + order.productName() + "\t" + order.unitsOrdered() + "\t" + order.orderTime() + "\t");
+   }
+   public static void updateProduct(Amazon esql, Session session) {
+      try {
+         //Get storeID, product name, and new price from the current user
+         System.out.print("\tEnter store ID: ");
+         String storeID = in.readLine();
+         System.out.print("\tEnter product name: ");
+         String productID = in.readLine();
+         System.out.print("\tEnter new price: ");
+         String price = in.readLine();
+         System.out.print("\tEnter number of units: ");
+         String unitsNum = in.readLine();
+
+         double priceVar;
+         try {
+            priceVar = Double.parseDouble(price);
+         } catch (NumberFormatException e) {
+            System.out.println("\nInvalid new price.\n");
+            return;
+         }
+         switch (esql.storefront().updateProduct(session, Integer.parseInt(storeID.trim()), productID,
+                                                 priceVar, Integer.parseInt(unitsNum.trim()))) {
+            case OK:
+               System.out.println("\nProduct price updated successfully!\n");
+               break;
+            case NOT_ALLOWED:
+               System.out.println("\nOnly managers can update products.\n");
+               break;
+            case PRODUCT_NOT_FOUND:
+               System.out.println("\nProduct does not exist in store.\n");
+               break;
+            default:
+               System.out.println("\nStore not found.\n");
+               break;
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void viewRecentUpdates(Amazon esql, Session session) {
+      try {
+         //Get the five most recent product updates
+         System.out.println("updatenumber\tmanagerid\tstoreid\tproductname\tupdatedon\t");
+         for (Rows.ProductUpdate update : esql.storefront().viewRecentUpdates())
+            System.out.println(update.updateNumber() + "\t" + update.managerID() + "\t" + update.storeID() + "\t"
+                               + update.productName() + "\t" + update.updatedOn() + "\t");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void viewPopularProducts(Amazon esql, Session session) {
+      try {
+         // Read the 5 most ordered products from the in-memory counters
+         System.out.println("productname\torders\t");
+         for (OrderPopularity.Ranked<String> product : esql.storefront().viewPopularProducts())
+            System.out.println(product.key() + "\t" + product.orders() + "\t");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void viewPopularCustomers(Amazon esql, Session session) {
+      try {
+         // Read the 5 customers with the most orders from the in-memory counters
+         System.out.println("customerid\torders\t");
+         for (OrderPopularity.Ranked<Integer> customer : esql.storefront().viewPopularCustomers())
+            System.out.println(customer.key() + "\t" + customer.orders() + "\t");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void viewSalesReport(Amazon esql, Session session) {
+      try {
+         //Get the optional days, then show the four reports of the in-memory columnar orders
+         System.out.print("\tEnter first day, yyyy-mm-dd (blank for no limit): ");
+         String from = in.readLine().trim();
+         System.out.print("\tEnter last day, yyyy-mm-dd (blank for no limit): ");
+         String to = in.readLine().trim();
+         OrderAnalytics.Report report = esql.storefront().viewSalesReport(session,
+            from.isEmpty() ? null : LocalDate.parse(from).atStartOfDay(),
+            to.isEmpty() ? null : LocalDate.parse(to).plusDays(1).atStartOfDay());
+         if (report == null) {
+            System.out.println("Only managers and admins can view sales reports.");
             return;
-        }
-        
-        double storeLat = Double.parseDouble(storeLocation.get(0).get(0));
-        double storeLong = Double.parseDouble(storeLocation.get(0).get(1));
-        
-        //Get user location
-        query = String.format("SELECT latitude, longitude FROM Users WHERE userID = '%s'", currUser);
-        List<List<String>> userLocation = esql.executeQueryAndReturnResult(query);
-        
-        if (userLocation.size() == 0) {
-            System.out.println("\nUser location not found.\n");
+         }
+         System.out.println("storeid\tday\torders\tunits\trevenue\t");
+         for (OrderAnalytics.Total<OrderAnalytics.StoreDay> t : report.revenue())
+            System.out.printf("%d\t%s\t%d\t%d\t%.2f\t%n", t.key().storeID(), t.key().day(), t.orders(), t.units(), t.revenue());
+         System.out.println("productname\torders\tunits\trevenue\t");
+         for (OrderAnalytics.Total<String> t : report.products())
+            System.out.printf("%s\t%d\t%d\t%.2f\t%n", t.key(), t.orders(), t.units(), t.revenue());
+         System.out.println("customerid\torders\tunits\tspend\t");
+         for (OrderAnalytics.Total<Integer> t : report.customers())
+            System.out.printf("%d\t%d\t%d\t%.2f\t%n", t.key(), t.orders(), t.units(), t.revenue());
+         OrderAnalytics.Baskets baskets = report.baskets();
+         System.out.printf("%d baskets, %.2f orders, %.2f units and %.2f spent per basket%n",
+                           baskets.baskets(), baskets.orders(), baskets.units(), baskets.spend());
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void exportRows(Amazon esql, Session session) {
+      try {
+         //Get what to export, its format and the file, the rows are streamed to the
+         //file or shown a page at a time
+         System.out.print("\tExport products of a store (p) or your orders (o): ");
+         String what = in.readLine().trim();
+         boolean products = what.equalsIgnoreCase("p");
+         int storeID = 0;
+         if (products) {
+            System.out.print("\tEnter store ID: ");
+            storeID = Integer.parseInt(in.readLine().trim());
+         } else if (!what.equalsIgnoreCase("o")) {
+            System.out.println("Unrecognized choice!");
             return;
-        }
-        
-        double userLat = Double.parseDouble(userLocation.get(0).get(0));
-        double userLong = Double.parseDouble(userLocation.get(0).get(1));
-        
-        // Calculate distance between user and store
-        double distance = esql.calculateDistance(userLat, userLong, storeLat, storeLong);
-        
-        // Place order if within 30 miles
-        if (distance <= 30) {
-
-	    String orderNumb = String.format("SELECT MAX(orderNumber) FROM Orders");
-	    List<List<String>> mostRecentOrder = esql.executeQueryAndReturnResult(orderNumb);
-
-	    int order = Integer.parseInt(mostRecentOrder.get(0).get(0)) + 1;
-	    
-            query = String.format("INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES ('%s', '%s', '%s', '%s', '%s', CURRENT_DATE)", order, currUser, storeID, productName, numberOfUnits);
-            esql.executeUpdate(query);
-            System.out.println("\nOrder placed successfully!\n");
-        } else {
-            System.out.println("\nYou can only place orders from stores within 30 miles.\n");
-        }
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }	
-    }
-      
-   public static void viewRecentOrders(Amazon esql) {
-   	try {
-        //Get five most recent orders for the current user
-        String query = String.format("SELECT * FROM Orders WHERE customerID = '%s' ORDER BY orderTime DESC LIMIT 5", currUser);
-        esql.executeQueryAndPrintResult(query);
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }	   
-   }
-   public static void updateProduct(Amazon esql) {
-   	try {
-	//Check if user is manager
-	String query1 = String.format("SELECT name FROM Users WHERE userID = '%s' AND type = 'manager'", currUser);
-        List<List<String>> userInfo = esql.executeQueryAndReturnResult(query1);
-        if (userInfo.size() > 0) {
-            //String userType = userInfo.get(0).get(0);
-
-	    //Get storeID, product name, and new price from the current user
-	    System.out.print("\tEnter store ID: ");
-	    String storeID = in.readLine();
+         }
+         System.out.print("\tEnter format, table, csv or jsonl (blank for table): ");
+         String format = in.readLine().trim();
+         System.out.print("\tEnter file name (blank for the screen): ");
+         String file = in.readLine().trim();
+         ResultRenderer.Format f = format.isEmpty() ? ResultRenderer.Format.TABLE : ResultRenderer.Format.parse(format);
+         int rows;
+         try (ResultRenderer renderer = file.isEmpty() ? ResultRenderer.toConsole(f)
+                                                       : ResultRenderer.toFile(f, Paths.get(file))) {
+            rows = products ? esql.storefront().exportProducts(storeID, renderer)
+                               : esql.storefront().exportOrders(session, renderer);
+         }
+         if (!file.isEmpty())
+            System.out.println(rows + " rows written to " + file);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   public static void placeProductSupplyRequests(Amazon esql, Session session) {
+      try {
+         //Get store ID, productName and number of units needed for each request, the
+         //warehouse is the one nearest to the store
+         List<SupplyRouter.Line> lines = new ArrayList<SupplyRouter.Line>();
+         while (true) {
+            System.out.print("\tEnter store ID (blank to finish): ");
+            String storeID = in.readLine();
+            if (storeID == null || storeID.isBlank())
+               break;
             System.out.print("\tEnter product name: ");
-            String productID = in.readLine();
-            System.out.print("\tEnter new price: ");
-            String price = in.readLine();
-	    System.out.print("\tEnter number of units: ");
-	    String unitsNum = in.readLine();
-	    
-	    double priceVar;
-            try {
-                priceVar = Double.parseDouble(price);
-            } catch (NumberFormatException e) {
-                System.out.println("\nInvalid new price.\n");
-                return;
-            }
-	    //Check if manager manages the store
-	    String query = String.format("SELECT managerID FROM Store WHERE storeID = '%s'", storeID);
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
-            if (result.size() > 0) {
-                String managerID = result.get(0).get(0);
-
-	        //Update new product price in Products table
-                String newProduct = String.format("UPDATE Product SET numberOfUnits = %s, pricePerUnit = %s WHERE productName = '%s'", unitsNum, price, productID);
-                esql.executeUpdate(newProduct);
-                System.out.println("\nProduct price updated successfully!\n");
-		}
-	    else {
-                System.out.println("\nStore not found.\n");
-            }
-        } else {
+            String productName = in.readLine();
+            System.out.print("\tEnter quantity: ");
+            String quantity = in.readLine();
+            lines.add(new SupplyRouter.Line(Integer.parseInt(storeID.trim()), productName, Integer.parseInt(quantity.trim())));
+         }
+
+         List<SupplyRouter.Routed> routed = esql.storefront().placeSupplyRequests(session, lines);
+         if (routed == null)
             System.out.println("\nOnly managers can update products.\n");
-        }
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    } 
-   }
-   public static void viewRecentUpdates(Amazon esql) {
-   	 try {
-        //Run query to get recent product updates
-        String query = "SELECT * FROM ProductUpdates ORDER BY updatedOn DESC LIMIT 5";
-        esql.executeQueryAndPrintResult(query);
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
-   
-   }
-   public static void viewPopularProducts(Amazon esql) {
-   	try {
-        // Execute query to retrieve popular products
-        String query = "SELECT productName, COUNT(*) as orders FROM Orders GROUP BY productName ORDER BY orders DESC LIMIT 5";
-        esql.executeQueryAndPrintResult(query);
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
-   }
-   public static void viewPopularCustomers(Amazon esql) {
-   	try {
-        // Execute query to retrieve popular customers 
-        String query = "SELECT customerID, COUNT(*) as orders FROM Orders GROUP BY customerID ORDER BY orders DESC LIMIT 5";
-        esql.executeQueryAndPrintResult(query);
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }	
-   }
-   public static void placeProductSupplyRequests(Amazon esql) {
-   	try {    
-	//Check if user is a manager
-	String query1 = String.format("SELECT name FROM Users WHERE userID = '%s' AND type = 'manager'", currUser);
-	List<List<String>> userInfo = esql.executeQueryAndReturnResult(query1);
-	if (userInfo.size() > 0) {
-		String userType = userInfo.get(0).get(0);
-	//Get store ID, productName, number of units needed, and warehouseID from user
-        System.out.print("\tEnter store ID: ");
-        String storeID = in.readLine();
-        System.out.print("\tEnter product name: ");
-        String productName = in.readLine();
-	System.out.print("\tEnter quantity: ");
-	String quantity = in.readLine();
-	System.out.print("\tEnter warehouse ID: ");
-	String warehouseID = in.readLine();
-
-        //Insert supply request into ProductSupplyRequests table
-        String query = String.format("INSERT INTO ProductSupplyRequests(managerID, warehouseID, storeID, productName, unitsRequested) VALUES ('%s', '%s', '%s', '%s', '%s')", currUser, warehouseID, storeID, productName, quantity);
-        esql.executeUpdate(query);
-	String query2 = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - '%s' WHERE storeID = '%s' AND productName = '%s'", quantity, storeID, productName);
-        esql.executeUpdate(query2);
-	
-        System.out.println("\nSupply request placed successfully!\n");	
-	}else{
-		System.out.println("\nOnly managers can update products.\n");
-	}
-   	} catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
+         else
+            printSupplyRequests(routed);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
    }
+   public static void reorderLowStock(Amazon esql, Session session) {
+      try {
+         System.out.print("\tReorder products with fewer units than: ");
+         int threshold = Integer.parseInt(in.readLine().trim());
+         System.out.print("\tRestock them to: ");
+         int target = Integer.parseInt(in.readLine().trim());
 
-}//end Amazon
+         List<SupplyRouter.Routed> routed = esql.storefront().reorderLowStock(session, threshold, target);
+         if (routed == null)
+            System.out.println("\nOnly managers can update products.\n");
+         else
+            printSupplyRequests(routed);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+   private static void printSupplyRequests(List<SupplyRouter.Routed> routed) {
+      System.out.println("storeid\tproductname\tunitsrequested\twarehouseid\tdistance\t");
+      for (SupplyRouter.Routed r : routed)
+         System.out.println(r.storeID() + "\t" + r.productName() + "\t" + r.units() + "\t"
+                            + r.warehouseID() + "\t" + String.format("%.2f", r.distance()) + "\t");
+      System.out.println("\n" + routed.size() + " supply request(s) placed successfully!\n");
+   }
 
+}//end Amazon
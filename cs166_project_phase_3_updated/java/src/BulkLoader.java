@@ -0,0 +1,584 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the seven data files of data/ (or of DataGenerator) into their
+ * tables, in place of load_data.sql.  Each file is cut into chunks of about
+ * chunkMB at line boundaries.  A worker memory-maps a chunk, checks it in
+ * place (every line has the fields of the header, no quoted field spans a
+ * line) and streams the mapped bytes unchanged to COPY ... FROM STDIN on its
+ * own connection, so the chunks of a file are written by several
+ * connections at once and no row is turned into objects.
+ *
+ * A table starts loading as soon as the tables its foreign keys reference
+ * are loaded; the references are read from the database metadata, so
+ * independent tables load side by side.  The secondary indexes of a table
+ * are dropped before its load and built again afterwards, the sequences of
+ * its serial columns are set past the loaded maximum and the table is
+ * analyzed.  Rows and rows per second are reported per table.
+ *
+ * Every chunk commits on its own.  A failed load leaves the tables it
+ * reached partly loaded, with their indexes built again: recreate them,
+ * or pass --truncate, and run it again.  Without the COPY API chunks are
+ * written with batched INSERTs instead, and the bundled pg73jdbc3 has
+ * none, so with it every load takes the INSERT path.
+ *
+ * Usage: java BulkLoader <dbname> <port> <user> <dataDir> [--threads n] [--chunkMB n] [--truncate]
+ */
+public class BulkLoader {
+
+   // the tables and the files they are loaded from
+   static final Map<String, String> FILES = new LinkedHashMap<String, String>();
+   static {
+      FILES.put("Users", "users.csv");
+      FILES.put("Store", "stores.csv");
+      FILES.put("Product", "products.csv");
+      FILES.put("Warehouse", "warehouse.csv");
+      FILES.put("Orders", "orders.csv");
+      FILES.put("ProductSupplyRequests", "productSupplyRequests.csv");
+      FILES.put("ProductUpdates", "productUpdates.csv");
+   }
+
+   static final String SECONDARY_INDEXES =
+      "SELECT indexname, indexdef FROM pg_indexes i WHERE schemaname = current_schema() AND tablename = ?" +
+      "   AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conname = i.indexname)";
+
+   // rows per INSERT batch when there is no COPY
+   static final int INSERT_BATCH = 5000;
+
+   /**
+    * What was loaded into one table.
+    */
+   public record Result(String table, long rows, long bytes, long loadMillis, long indexMillis) {
+
+      public double rowsPerSecond() {
+         return rows * 1000.0 / Math.max(1, loadMillis);
+      }
+   }
+
+   // a line aligned byte range of a file
+   record Chunk(long start, long end) {
+   }
+
+   // one table being loaded
+   private static final class Job {
+      final String table;
+      final Path file;
+      List<String> columns;
+      List<Chunk> chunks;
+      final List<String> indexes = new ArrayList<String>();
+      final AtomicLong rows = new AtomicLong();
+      long bytes;
+      long start;
+      long loadMillis;
+
+      Job(String table, Path file) {
+         this.table = table;
+         this.file = file;
+      }
+
+      String copySql() {
+         return "COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN WITH (FORMAT csv)";
+      }
+   }//end Job
+
+   private final ConnectionPool pool;
+   private final int threads;
+   private final long chunkBytes;
+   // whether the driver has the COPY API, found out once per load
+   private volatile boolean copy;
+
+   public BulkLoader(ConnectionPool pool, int threads, long chunkBytes) {
+      this.pool = pool;
+      this.threads = threads;
+      this.chunkBytes = chunkBytes;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java BulkLoader <dbname> <port> <user> <dataDir> [--threads n] [--chunkMB n] [--truncate]");
+         return;
+      }
+      int threads = 4;
+      long chunkMB = 16;
+      boolean truncate = false;
+      for (int i = 4; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--threads": threads = Integer.parseInt(args[++i]); break;
+            case "--chunkMB": chunkMB = Long.parseLong(args[++i]); break;
+            case "--truncate": truncate = true; break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      ConnectionPool.Config config = ConnectionPool.Config.fromSystemProperties();
+      config.max = Math.max(config.max, threads + 1);
+      config.leakThresholdMillis = 0; // a chunk legitimately holds its connection for long
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", config);
+      try {
+         long start = System.nanoTime();
+         List<Result> results = new BulkLoader(pool, threads, chunkMB << 20).load(Paths.get(args[3]), truncate);
+         System.out.printf("%-22s %10s %9s %9s %12s %9s%n", "table", "rows", "MB", "seconds", "rows/s", "indexes");
+         long rows = 0;
+         for (Result r : results) {
+            System.out.printf("%-22s %10d %9.1f %9.2f %12.0f %9.2f%n", r.table(), r.rows(), r.bytes() / 1048576.0,
+                              r.loadMillis() / 1000.0, r.rowsPerSecond(), r.indexMillis() / 1000.0);
+            rows += r.rows();
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.printf("%-22s %10d %9s %9.2f %12.0f%n", "total", rows, "", seconds, rows / seconds);
+      } finally {
+         pool.close();
+      }
+   }//end main
+
+   /**
+    * Loads every data file found in a directory
+    *
+    * @param dir the directory with users.csv, stores.csv, ...
+    * @param truncate empty the tables first
+    * @return what was loaded into each table, in dependency order
+    * @throws Exception when a file is malformed or the database refuses it
+    */
+   public List<Result> load(Path dir, boolean truncate) throws Exception {
+      Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+      for (Map.Entry<String, String> e : FILES.entrySet()) {
+         Path file = dir.resolve(e.getValue());
+         if (Files.exists(file))
+            jobs.put(e.getKey(), new Job(e.getKey(), file));
+         else
+            System.err.println("No " + file + ", " + e.getKey() + " is not loaded");
+      }
+      Map<String, Set<String>> parents = references(jobs.keySet());
+      List<String> order = order(jobs.keySet(), parents);
+      if (truncate)
+         execute("TRUNCATE " + String.join(", ", order) + " CASCADE");
+      copy = OrderIngest.copySupported(pool);
+
+      AtomicInteger ids = new AtomicInteger();
+      ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+         Thread t = new Thread(r, "bulk-load-" + ids.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+      try {
+         Map<String, CompletableFuture<Job>> loaded = new HashMap<String, CompletableFuture<Job>>();
+         List<CompletableFuture<Result>> results = new ArrayList<CompletableFuture<Result>>();
+         for (String table : order) {
+            Job job = jobs.get(table);
+            List<CompletableFuture<Job>> before = new ArrayList<CompletableFuture<Job>>();
+            for (String parent : parents.get(table))
+               before.add(loaded.get(parent));
+            // dependents only wait for the rows, the indexes are built alongside them
+            CompletableFuture<Job> rows = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]))
+               .thenComposeAsync(v -> start(job, workers), workers);
+            loaded.put(table, rows);
+            results.add(rows.thenApplyAsync(j -> finish(j), workers));
+         }
+         // a failed table still waits for the others to put their indexes back
+         CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).handle((v, e) -> null).join();
+         List<Result> done = new ArrayList<Result>();
+         for (CompletableFuture<Result> result : results)
+            done.add(result.join());
+         return done;
+      } catch (CompletionException e) {
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      } finally {
+         workers.shutdownNow();
+      }
+   }//end load
+
+   // drops the secondary indexes, cuts the file and copies its chunks in parallel
+   private CompletableFuture<Job> start(Job job, ExecutorService workers) {
+      try {
+         job.start = System.nanoTime();
+         try (ConnectionPool.PooledConnection pc = pool.acquire();
+              PreparedStatement stmt = pc.connection().prepareStatement(SECONDARY_INDEXES)) {
+            stmt.setString(1, job.table.toLowerCase(Locale.ROOT));
+            try (ResultSet rs = stmt.executeQuery()) {
+               while (rs.next()) {
+                  execute(pc.connection(), "DROP INDEX " + rs.getString(1));
+                  job.indexes.add(rs.getString(2));
+               }
+            }
+         }
+         plan(job);
+      } catch (IOException | SQLException | RuntimeException e) {
+         restore(job, e);
+         throw new CompletionException(e);
+      }
+      List<CompletableFuture<Void>> copies = new ArrayList<CompletableFuture<Void>>();
+      for (Chunk chunk : job.chunks)
+         copies.add(CompletableFuture.runAsync(() -> copy(job, chunk), workers));
+      // finish() does not run after a failed chunk, so the indexes are built here
+      return CompletableFuture.allOf(copies.toArray(new CompletableFuture<?>[0])).handle((v, e) -> {
+         if (e != null) {
+            restore(job, e);
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+         }
+         job.loadMillis = (System.nanoTime() - job.start) / 1_000_000;
+         return job;
+      });
+   }//end start
+
+   // builds the indexes dropped by start() again after a failed load
+   private void restore(Job job, Throwable failure) {
+      if (job.indexes.isEmpty())
+         return;
+      try (ConnectionPool.PooledConnection pc = pool.acquire()) {
+         for (String index : job.indexes) {
+            try {
+               execute(pc.connection(), index);
+            } catch (SQLException e) {
+               failure.addSuppressed(new SQLException("Could not rebuild " + index + ": " + e.getMessage(), e));
+            }
+         }
+      } catch (SQLException | RuntimeException e) {
+         failure.addSuppressed(new SQLException("Could not rebuild the indexes of " + job.table + ": "
+                                                + String.join("; ", job.indexes), e));
+      }
+   }//end restore
+
+   // rebuilds the indexes, moves the sequences past the loaded keys and updates the statistics
+   private Result finish(Job job) {
+      long start = System.nanoTime();
+      try (ConnectionPool.PooledConnection pc = pool.acquire()) {
+         Connection c = pc.connection();
+         for (String index : job.indexes)
+            execute(c, index);
+         for (String column : serialColumns(c.getMetaData(), job.table))
+            execute(c, "SELECT setval(pg_get_serial_sequence('" + job.table.toLowerCase(Locale.ROOT) + "', '" + column
+                    + "'), coalesce(max(" + column + "), 0) + 1, false) FROM " + job.table);
+         execute(c, "ANALYZE " + job.table);
+      } catch (SQLException e) {
+         throw new CompletionException(e);
+      }
+      return new Result(job.table, job.rows.get(), job.bytes, job.loadMillis, (System.nanoTime() - start) / 1_000_000);
+   }//end finish
+
+   // reads the header and cuts the rest of the file into line aligned chunks
+   private void plan(Job job) throws IOException {
+      try (FileChannel channel = FileChannel.open(job.file, StandardOpenOption.READ)) {
+         long size = channel.size();
+         // trailing blank lines would be empty rows to COPY
+         while (size > 0 && isBlank(byteAt(channel, size - 1)))
+            --size;
+         long body = lineEnd(channel, 0, size);
+         String header = new String(read(channel, 0, (int) body), StandardCharsets.UTF_8).strip();
+         if (header.startsWith("\uFEFF"))
+            header = header.substring(1);
+         job.columns = new ArrayList<String>();
+         for (String column : OrderIngest.split(header))
+            job.columns.add(column.trim());
+         job.chunks = new ArrayList<Chunk>();
+         for (long pos = body; pos < size; ) {
+            long end = pos + chunkBytes >= size ? size : lineEnd(channel, pos + chunkBytes, size);
+            job.chunks.add(new Chunk(pos, end));
+            pos = end;
+         }
+         job.bytes = size - body;
+      }
+   }//end plan
+
+   // maps one chunk, checks it and sends it
+   private void copy(Job job, Chunk chunk) {
+      try (FileChannel channel = FileChannel.open(job.file, StandardOpenOption.READ)) {
+         MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start(), chunk.end() - chunk.start());
+         long rows = check(bytes, job.columns.size(), job.file + " at byte " + chunk.start());
+         try (ConnectionPool.PooledConnection pc = pool.acquire()) {
+            Object copyApi = copy ? OrderIngest.copyApi(pc.connection()) : null;
+            if (copyApi != null) {
+               Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, InputStream.class);
+               copyIn.invoke(copyApi, job.copySql(), new BufferStream(bytes));
+            } else {
+               insert(pc.connection(), job, bytes);
+            }
+         }
+         job.rows.addAndGet(rows);
+      } catch (InvocationTargetException e) {
+         throw new CompletionException(job.table + ": " + e.getCause().getMessage(), e.getCause());
+      } catch (Exception e) {
+         throw new CompletionException(job.table + ": " + e.getMessage(), e);
+      }
+   }//end copy
+
+   /**
+    * Counts the lines of a chunk and checks that every line has the given
+    * number of fields, without copying it
+    *
+    * @param bytes the chunk, from a line start to a line end
+    * @param fields the fields per line
+    * @param where the file and offset of the chunk, for the error message
+    * @return the number of lines
+    * @throws IllegalArgumentException when a line is blank, has another
+    *         number of fields or a quoted field runs past its end
+    */
+   static long check(ByteBuffer bytes, int fields, String where) {
+      long rows = 0;
+      int count = 1;
+      int length = 0;
+      boolean quoted = false;
+      int limit = bytes.limit();
+      for (int i = 0; i < limit; ++i) {
+         byte b = bytes.get(i);
+         if (b != '\n') {
+            // a doubled quote inside a quoted field toggles twice
+            if (b == '"')
+               quoted = !quoted;
+            else if (b == ',' && !quoted)
+               ++count;
+            if (b != '\r')
+               ++length;
+         }
+         if (b == '\n' || i == limit - 1) {
+            if (quoted)
+               throw new IllegalArgumentException(where + ", line " + (rows + 1) + ": quoted field spans lines");
+            if (length == 0)
+               throw new IllegalArgumentException(where + ", line " + (rows + 1) + ": blank line");
+            if (count != fields)
+               throw new IllegalArgumentException(where + ", line " + (rows + 1) + ": " + count + " fields, expected "
+                                                  + fields);
+            ++rows;
+            count = 1;
+            length = 0;
+         }
+      }
+      return rows;
+   }//end check
+
+   // the fallback without COPY: the fields are cast to the column types by the server
+   private void insert(Connection c, Job job, ByteBuffer bytes) throws SQLException {
+      Map<String, Integer> types = new HashMap<String, Integer>();
+      try (ResultSet rs = c.getMetaData().getColumns(null, null, job.table.toLowerCase(Locale.ROOT), null)) {
+         while (rs.next())
+            types.put(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT), rs.getInt("DATA_TYPE"));
+      }
+      List<String> values = new ArrayList<String>();
+      for (String column : job.columns)
+         values.add("CAST(? AS " + sqlType(types.getOrDefault(column.toLowerCase(Locale.ROOT), Types.VARCHAR)) + ")");
+      String sql = "INSERT INTO " + job.table + " (" + String.join(", ", job.columns) + ") VALUES ("
+         + String.join(", ", values) + ")";
+
+      boolean autoCommit = c.getAutoCommit();
+      c.setAutoCommit(false);
+      try (PreparedStatement stmt = c.prepareStatement(sql)) {
+         byte[] line = new byte[256];
+         int length = 0, batch = 0;
+         for (int i = 0; i <= bytes.limit(); ++i) {
+            byte b = i < bytes.limit() ? bytes.get(i) : (byte) '\n';
+            if (b != '\n') {
+               if (length == line.length)
+                  line = Arrays.copyOf(line, length * 2);
+               line[length++] = b;
+               continue;
+            }
+            String text = new String(line, 0, length, StandardCharsets.UTF_8).strip();
+            length = 0;
+            if (text.isEmpty())
+               continue;
+            List<String> fields = OrderIngest.split(text);
+            for (int f = 0; f < fields.size(); ++f)
+               stmt.setString(f + 1, fields.get(f).isEmpty() ? null : fields.get(f));
+            stmt.addBatch();
+            if (++batch == INSERT_BATCH) {
+               stmt.executeBatch();
+               batch = 0;
+            }
+         }
+         if (batch > 0)
+            stmt.executeBatch();
+         c.commit();
+      } catch (SQLException | RuntimeException e) {
+         c.rollback();
+         throw e;
+      } finally {
+         c.setAutoCommit(autoCommit);
+      }
+   }//end insert
+
+   static String sqlType(int type) {
+      switch (type) {
+         case Types.INTEGER: case Types.SMALLINT:
+            return "integer";
+         case Types.BIGINT:
+            return "bigint";
+         case Types.DECIMAL: case Types.NUMERIC:
+            return "numeric";
+         case Types.FLOAT: case Types.DOUBLE: case Types.REAL:
+            return "double precision";
+         case Types.DATE:
+            return "date";
+         case Types.TIMESTAMP:
+            return "timestamp";
+         default:
+            return "text";
+      }
+   }//end sqlType
+
+   // the tables each table references through its foreign keys, among the tables loaded
+   private Map<String, Set<String>> references(Set<String> tables) throws SQLException {
+      Map<String, String> names = new HashMap<String, String>();
+      for (String table : tables)
+         names.put(table.toLowerCase(Locale.ROOT), table);
+      Map<String, Set<String>> parents = new LinkedHashMap<String, Set<String>>();
+      try (ConnectionPool.PooledConnection pc = pool.acquire()) {
+         DatabaseMetaData meta = pc.connection().getMetaData();
+         for (String table : tables) {
+            Set<String> referenced = new HashSet<String>();
+            try (ResultSet rs = meta.getImportedKeys(null, null, table.toLowerCase(Locale.ROOT))) {
+               while (rs.next()) {
+                  String parent = names.get(rs.getString("PKTABLE_NAME").toLowerCase(Locale.ROOT));
+                  if (parent != null && !parent.equals(table))
+                     referenced.add(parent);
+               }
+            }
+            parents.put(table, referenced);
+         }
+      }
+      return parents;
+   }//end references
+
+   /*
+    * Orders the tables so every table comes after the tables it references
+    * @throws IllegalStateException when the references form a cycle
+    **/
+   static List<String> order(Set<String> tables, Map<String, Set<String>> parents) {
+      List<String> order = new ArrayList<String>();
+      Set<String> visiting = new HashSet<String>();
+      for (String table : tables)
+         visit(table, parents, visiting, order);
+      return order;
+   }
+
+   private static void visit(String table, Map<String, Set<String>> parents, Set<String> visiting, List<String> order) {
+      if (order.contains(table))
+         return;
+      if (!visiting.add(table))
+         throw new IllegalStateException("Foreign keys form a cycle through " + table);
+      for (String parent : parents.get(table))
+         visit(parent, parents, visiting, order);
+      visiting.remove(table);
+      order.add(table);
+   }
+
+   // the columns filled from a sequence
+   private static List<String> serialColumns(DatabaseMetaData meta, String table) throws SQLException {
+      List<String> columns = new ArrayList<String>();
+      try (ResultSet rs = meta.getColumns(null, null, table.toLowerCase(Locale.ROOT), null)) {
+         while (rs.next()) {
+            String def = rs.getString("COLUMN_DEF");
+            if (def != null && def.startsWith("nextval("))
+               columns.add(rs.getString("COLUMN_NAME"));
+         }
+      }
+      return columns;
+   }
+
+   private void execute(String sql) throws SQLException {
+      try (ConnectionPool.PooledConnection pc = pool.acquire()) {
+         execute(pc.connection(), sql);
+      }
+   }
+
+   private static void execute(Connection c, String sql) throws SQLException {
+      try (Statement stmt = c.createStatement()) {
+         stmt.execute(sql);
+      }
+   }
+
+   // the offset just past the line that contains pos, or limit
+   private static long lineEnd(FileChannel channel, long pos, long limit) throws IOException {
+      ByteBuffer block = ByteBuffer.allocate(8192);
+      while (pos < limit) {
+         block.clear();
+         int n = channel.read(block, pos);
+         if (n <= 0)
+            break;
+         for (int i = 0; i < n && pos + i < limit; ++i)
+            if (block.get(i) == '\n')
+               return pos + i + 1;
+         pos += n;
+      }
+      return limit;
+   }
+
+   private static byte byteAt(FileChannel channel, long pos) throws IOException {
+      return read(channel, pos, 1)[0];
+   }
+
+   private static byte[] read(FileChannel channel, long pos, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining() && channel.read(buffer, pos + buffer.position()) > 0) {
+      }
+      return buffer.array();
+   }
+
+   private static boolean isBlank(byte b) {
+      return b == '\n' || b == '\r' || b == ' ' || b == '\t';
+   }
+
+   /**
+    * Reads a buffer from its start to its limit without copying it first.
+    */
+   static final class BufferStream extends InputStream {
+      private final ByteBuffer buffer;
+
+      BufferStream(ByteBuffer buffer) {
+         this.buffer = buffer.duplicate();
+         this.buffer.rewind();
+      }
+
+      @Override
+      public int read() {
+         return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (!buffer.hasRemaining())
+            return -1;
+         int n = Math.min(len, buffer.remaining());
+         buffer.get(b, off, n);
+         return n;
+      }
+
+      @Override
+      public int available() {
+         return buffer.remaining();
+      }
+   }//end BufferStream
+
+}//end BulkLoader
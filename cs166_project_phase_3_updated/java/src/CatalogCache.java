@@ -0,0 +1,196 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-through cache of the Product rows of each store, the data behind
+ * viewProducts.  The cache holds a bounded number of stores and evicts the
+ * least recently (LRU) or least frequently (LFU) used one.  Every write to
+ * Product must be reported through invalidate(), which also stops a load
+ * that raced with the write from caching the old rows.
+ *
+ * Setting -Damazon.catalogCache.bypass=true (or setBypass) sends every read
+ * to the database, for consistency tests.
+ *
+ */
+public class CatalogCache {
+
+   public enum Policy { LRU, LFU }
+
+   static final String LOAD = "SELECT * FROM Product WHERE storeID = ? ORDER BY productName";
+
+   private static class Entry {
+      final List<Rows.Product> products;
+      final long loadedAt;
+      long uses = 0;
+
+      Entry(List<Rows.Product> products) {
+         this.products = products;
+         this.loadedAt = System.currentTimeMillis();
+      }
+   }
+
+   private final Amazon esql;
+   private final int capacity;
+   private final Policy policy;
+   private volatile boolean bypass = Boolean.getBoolean("amazon.catalogCache.bypass");
+
+   // access ordered, so iteration starts at the least recently used store
+   private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+   // bumped by every invalidation, a load only caches if it did not move
+   private final Map<Integer, Long> generations = new HashMap<Integer, Long>();
+
+   private long hits = 0;
+   private long misses = 0;
+   private long evictions = 0;
+   private long invalidations = 0;
+   private long servedAgeMillis = 0;
+   private long maxServedAgeMillis = 0;
+
+   /**
+    * Creates an empty cache
+    *
+    * @param esql the database to load from
+    * @param capacity the maximum number of cached stores
+    * @param policy which store to evict when the cache is full
+    */
+   public CatalogCache(Amazon esql, int capacity, Policy policy) {
+      if (capacity < 1)
+         throw new IllegalArgumentException("capacity must be positive");
+      this.esql = esql;
+      this.capacity = capacity;
+      this.policy = policy;
+   }
+
+   /**
+    * Returns the products of a store, loading them on a miss
+    *
+    * @param storeID the store to list
+    * @return the store's products ordered by name, not to be modified
+    * @throws java.sql.SQLException when the load fails
+    */
+   public List<Rows.Product> products(int storeID) throws SQLException {
+      if (bypass)
+         return esql.router().onPrimary(() -> esql.queryList(LOAD, Rows.Product.MAPPER, storeID));
+
+      long generation;
+      synchronized (this) {
+         Entry entry = entries.get(storeID);
+         if (entry != null) {
+            ++hits;
+            ++entry.uses;
+            long age = System.currentTimeMillis() - entry.loadedAt;
+            servedAgeMillis += age;
+            maxServedAgeMillis = Math.max(maxServedAgeMillis, age);
+            return entry.products;
+         }
+         ++misses;
+         generation = generations.getOrDefault(storeID, 0L);
+      }
+
+      // on the primary, so a lagging replica cannot cache the rows from before the write
+      List<Rows.Product> products = Collections.unmodifiableList(
+         esql.router().onPrimary(() -> esql.queryList(LOAD, Rows.Product.MAPPER, storeID)));
+
+      synchronized (this) {
+         // a write during the load may not be reflected in the rows just read
+         if (generations.getOrDefault(storeID, 0L) == generation) {
+            entries.put(storeID, new Entry(products));
+            evictOverflow(storeID);
+         }
+      }
+      return products;
+   }//end products
+
+   /**
+    * Drops the cached products of a store after its Product rows changed
+    *
+    * @param storeID the store whose products changed
+    */
+   public synchronized void invalidate(int storeID) {
+      generations.merge(storeID, 1L, Long::sum);
+      if (entries.remove(storeID) != null)
+         ++invalidations;
+   }
+
+   /**
+    * Caches the products of a store read elsewhere, e.g. from the catalog
+    * snapshot at startup, as long as the store is not cached yet and the
+    * cache has room
+    *
+    * @param storeID the store
+    * @param products its products ordered by name
+    */
+   public synchronized void preload(int storeID, List<Rows.Product> products) {
+      if (entries.size() < capacity && !entries.containsKey(storeID))
+         entries.put(storeID, new Entry(Collections.unmodifiableList(new ArrayList<Rows.Product>(products))));
+   }
+
+   /**
+    * Drops every cached store.
+    */
+   public synchronized void invalidateAll() {
+      for (Integer storeID : new ArrayList<Integer>(entries.keySet()))
+         invalidate(storeID);
+   }
+
+   public void setBypass(boolean bypass) {
+      this.bypass = bypass;
+   }
+
+   public boolean bypass() {
+      return bypass;
+   }
+
+   public synchronized double hitRate() {
+      long total = hits + misses;
+      return total == 0 ? 0 : (double) hits / total;
+   }
+
+   public synchronized long evictions() {
+      return evictions;
+   }
+
+   /**
+    * @return the average age in milliseconds of the entries served from the cache
+    */
+   public synchronized double averageServedAgeMillis() {
+      return hits == 0 ? 0 : (double) servedAgeMillis / hits;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return String.format("stores=%d/%d policy=%s hits=%d misses=%d hitRate=%.3f evictions=%d "
+                           + "invalidations=%d avgAgeMs=%.0f maxAgeMs=%d bypass=%b",
+                           entries.size(), capacity, policy, hits, misses, hitRate(), evictions,
+                           invalidations, averageServedAgeMillis(), maxServedAgeMillis, bypass);
+   }
+
+   private void evictOverflow(Integer added) {
+      while (entries.size() > capacity) {
+         Integer victim = null;
+         if (policy == Policy.LRU) {
+            victim = entries.keySet().iterator().next();
+         } else {
+            long fewest = Long.MAX_VALUE;
+            Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+               Map.Entry<Integer, Entry> e = it.next();
+               // the store just loaded has not had a chance to be used yet
+               if (!e.getKey().equals(added) && e.getValue().uses < fewest) {
+                  fewest = e.getValue().uses;
+                  victim = e.getKey();
+               }
+            }
+         }
+         entries.remove(victim);
+         ++evictions;
+      }
+   }//end evictOverflow
+
+}//end CatalogCache
@@ -0,0 +1,462 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A binary copy of the catalog (Store, Product, Warehouse and the user
+ * profiles, without passwords) kept in a file, so a restarted Amazon
+ * builds its in-memory structures from a memory mapped file in a few
+ * milliseconds instead of querying every table first.  Once started from
+ * the file it reads the tables again in the background and reports every
+ * row that differs through the usual invalidation hooks; the refresh is
+ * repeated periodically and rewrites the file each time.
+ *
+ * The file starts with a magic number, the format version, the time it
+ * was written and a CRC32 of the rest.  A file of another format, a
+ * checksum that does not match, a file written for another database or
+ * one older than maxAgeHours is ignored and the tables are read instead.
+ * Configured with these system properties:
+ *
+ *    amazon.snapshot.file             the snapshot file, empty to disable (catalog.snapshot)
+ *    amazon.snapshot.maxAgeHours      older files are ignored (24)
+ *    amazon.snapshot.refreshSeconds   how often the tables are read again (300)
+ *
+ */
+public class CatalogSnapshot implements AutoCloseable {
+
+   static final int MAGIC = 0x414d5a53; // "AMZS"
+   static final int FORMAT = 1;
+   // magic, format, written at, crc, payload length
+   static final int HEADER = 4 + 4 + 8 + 8 + 4;
+   static final long NO_DATE = Long.MIN_VALUE;
+
+   /**
+    * The catalog rows, each list in key order.
+    *
+    * @param source the database the rows were read from
+    */
+   public record Data(String source, List<Rows.Store> stores, List<Rows.Product> products,
+                      List<Rows.Warehouse> warehouses, List<Rows.User> users) {
+
+      /**
+       * @return the products grouped by store, each ordered by name
+       */
+      public Map<Integer, List<Rows.Product>> productsByStore() {
+         Map<Integer, List<Rows.Product>> result = new LinkedHashMap<Integer, List<Rows.Product>>();
+         for (Rows.Product p : products)
+            result.computeIfAbsent(p.storeID(), s -> new ArrayList<Rows.Product>()).add(p);
+         return result;
+      }
+   }
+
+   private final Amazon esql;
+   private final Path file;
+   private final long maxAgeMillis;
+   private final long refreshSeconds;
+
+   private volatile Data current = null;
+   private volatile boolean fromFile = false;
+   private volatile long openMillis = 0;
+   private long refreshes = 0;
+   private long changes = 0;
+   private ScheduledExecutorService refresher = null;
+
+   /**
+    * Creates the snapshot of an Amazon instance
+    *
+    * @param esql the instance whose caches are filled and refreshed
+    * @param file the snapshot file, or null to always read the tables
+    * @param maxAgeMillis snapshot files older than this are ignored
+    * @param refreshSeconds how often the tables are read again
+    */
+   public CatalogSnapshot(Amazon esql, Path file, long maxAgeMillis, long refreshSeconds) {
+      this.esql = esql;
+      this.file = file;
+      this.maxAgeMillis = maxAgeMillis;
+      this.refreshSeconds = refreshSeconds;
+   }
+
+   public static CatalogSnapshot fromSystemProperties(Amazon esql) {
+      String file = System.getProperty("amazon.snapshot.file", "catalog.snapshot");
+      return new CatalogSnapshot(esql, file.isEmpty() ? null : Paths.get(file),
+                                 TimeUnit.HOURS.toMillis(Long.getLong("amazon.snapshot.maxAgeHours", 24)),
+                                 Long.getLong("amazon.snapshot.refreshSeconds", 300));
+   }
+
+   /**
+    * Returns the catalog to start with: the snapshot file when it is valid,
+    * else the tables, which are then written to the file
+    *
+    * @return the catalog rows
+    * @throws java.sql.SQLException when the tables cannot be read
+    */
+   public Data open() throws SQLException {
+      long start = System.nanoTime();
+      String source = source();
+      Data data = null;
+      if (file != null) {
+         try {
+            data = read(file, source, maxAgeMillis);
+         } catch (IOException e) {
+            System.err.println("Ignoring catalog snapshot " + file + ": " + e.getMessage());
+         }
+      }
+      fromFile = data != null;
+      if (data == null) {
+         data = query(esql, source);
+         save(data);
+      }
+      current = data;
+      openMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      return data;
+   }//end open
+
+   /**
+    * Starts reading the tables again in the background: right away when
+    * the catalog came from the file, then every refreshSeconds.
+    */
+   public synchronized void start() {
+      if (file == null || refresher != null)
+         return;
+      refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "catalog-snapshot");
+         thread.setDaemon(true);
+         return thread;
+      });
+      refresher.scheduleWithFixedDelay(() -> {
+         try {
+            refresh();
+         } catch (SQLException | RuntimeException e) {
+            System.err.println("Catalog refresh failed: " + e.getMessage());
+         }
+      }, fromFile ? 0 : refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Reads the tables, reports every row that differs from the catalog in
+    * use and rewrites the snapshot file
+    *
+    * @return the number of rows that changed
+    * @throws java.sql.SQLException when the tables cannot be read
+    */
+   public int refresh() throws SQLException {
+      Data fresh = query(esql, source());
+      int changed;
+      synchronized (this) {
+         changed = current == null ? 0 : apply(current, fresh);
+         current = fresh;
+         ++refreshes;
+         changes += changed;
+      }
+      save(fresh);
+      return changed;
+   }//end refresh
+
+   @Override
+   public synchronized void close() {
+      if (refresher != null) {
+         refresher.shutdownNow();
+         refresher = null;
+      }
+   }
+
+   public Data current() {
+      return current;
+   }
+
+   @Override
+   public synchronized String toString() {
+      Data data = current;
+      return String.format("source=%s openMillis=%d stores=%d products=%d users=%d refreshes=%d changes=%d",
+                           fromFile ? "file" : "database", openMillis, data == null ? 0 : data.stores().size(),
+                           data == null ? 0 : data.products().size(), data == null ? 0 : data.users().size(),
+                           refreshes, changes);
+   }
+
+   // hands the rows that differ to the caches holding them
+   private int apply(Data old, Data fresh) {
+      if (old.equals(fresh))
+         return 0;
+      int changed = 0;
+      Map<Integer, Rows.Store> oldStores = new HashMap<Integer, Rows.Store>();
+      for (Rows.Store s : old.stores())
+         oldStores.put(s.storeID(), s);
+      for (Rows.Store s : fresh.stores()) {
+         if (!s.equals(oldStores.remove(s.storeID()))) {
+            esql.storeIndex().put(new StoreIndex.Entry(s.storeID(), s.latitude(), s.longitude(), s.managerID()));
+            ++changed;
+         }
+      }
+      for (Integer storeID : oldStores.keySet()) {
+         esql.storeIndex().remove(storeID);
+         ++changed;
+      }
+
+      Map<String, Rows.Product> oldProducts = new HashMap<String, Rows.Product>();
+      for (Rows.Product p : old.products())
+         oldProducts.put(p.storeID() + "|" + p.productName(), p);
+      for (Rows.Product p : fresh.products()) {
+         Rows.Product o = oldProducts.remove(p.storeID() + "|" + p.productName());
+         if (!p.equals(o)) {
+            if (o != null && o.pricePerUnit() == p.pricePerUnit())
+               esql.stockChanged(p.storeID(), p.productName());
+            else
+               esql.productChanged(p.storeID(), p.productName());
+            ++changed;
+         }
+      }
+      for (Rows.Product p : oldProducts.values()) {
+         esql.productChanged(p.storeID(), p.productName());
+         ++changed;
+      }
+
+      if (!old.warehouses().equals(fresh.warehouses())) {
+         esql.supply().setWarehouses(fresh.warehouses());
+         ++changed;
+      }
+
+      Map<Integer, Rows.User> oldUsers = new HashMap<Integer, Rows.User>();
+      for (Rows.User u : old.users())
+         oldUsers.put(u.userID(), u);
+      for (Rows.User u : fresh.users()) {
+         if (!u.equals(oldUsers.remove(u.userID()))) {
+            esql.profiles().invalidate(u.userID());
+            ++changed;
+         }
+      }
+      for (Integer userID : oldUsers.keySet()) {
+         esql.profiles().invalidate(userID);
+         ++changed;
+      }
+      return changed;
+   }//end apply
+
+   private String source() {
+      return esql.pool().url();
+   }
+
+   private void save(Data data) {
+      if (file == null)
+         return;
+      try {
+         write(data, file);
+      } catch (IOException e) {
+         System.err.println("Cannot write catalog snapshot " + file + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Reads the catalog from the tables
+    *
+    * @param esql the database to read
+    * @param source the name of the database, kept in the snapshot
+    * @return the rows, each table in key order
+    * @throws java.sql.SQLException when the queries fail
+    */
+   static Data query(Amazon esql, String source) throws SQLException {
+      return new Data(source,
+         esql.queryList("SELECT * FROM Store ORDER BY storeID", Rows.Store.MAPPER),
+         esql.queryList("SELECT * FROM Product ORDER BY storeID, productName", Rows.Product.MAPPER),
+         esql.queryList("SELECT * FROM Warehouse ORDER BY warehouseID", Rows.Warehouse.MAPPER),
+         esql.queryList(UserProfiles.COLUMNS + "ORDER BY userID", Rows.User.MAPPER));
+   }//end query
+
+   /**
+    * Writes a snapshot file, replacing the old one in one step
+    *
+    * @param data the catalog to write
+    * @param file the snapshot file
+    * @throws java.io.IOException when the file cannot be written
+    */
+   static void write(Data data, Path file) throws IOException {
+      byte[] payload = encode(data);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      header.putInt(MAGIC).putInt(FORMAT).putLong(System.currentTimeMillis()).putLong(crc.getValue())
+            .putInt(payload.length).flip();
+      Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                  StandardOpenOption.TRUNCATE_EXISTING)) {
+         ByteBuffer body = ByteBuffer.wrap(payload);
+         while (header.hasRemaining() || body.hasRemaining())
+            channel.write(new ByteBuffer[]{header, body});
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end write
+
+   /**
+    * Reads a snapshot file through a memory mapping
+    *
+    * @param file the snapshot file
+    * @param source the database the snapshot must have been written for
+    * @param maxAgeMillis the age beyond which the snapshot is stale
+    * @return the catalog, or null when there is no file
+    * @throws java.io.IOException when the file is corrupt, stale or unreadable
+    */
+   static Data read(Path file, String source, long maxAgeMillis) throws IOException {
+      MappedByteBuffer buffer;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+         if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE)
+            throw new IOException("not a catalog snapshot");
+         buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } catch (NoSuchFileException e) {
+         return null;
+      }
+      if (buffer.getInt() != MAGIC)
+         throw new IOException("not a catalog snapshot");
+      if (buffer.getInt() != FORMAT)
+         throw new IOException("written in another format");
+      long writtenAt = buffer.getLong();
+      long checksum = buffer.getLong();
+      int length = buffer.getInt();
+      if (length != buffer.remaining())
+         throw new IOException("truncated");
+      CRC32 crc = new CRC32();
+      crc.update(buffer.slice());
+      if (crc.getValue() != checksum)
+         throw new IOException("checksum mismatch");
+      if (System.currentTimeMillis() - writtenAt > maxAgeMillis)
+         throw new IOException("older than " + TimeUnit.MILLISECONDS.toHours(maxAgeMillis) + " hours");
+      Data data;
+      try {
+         data = decode(buffer);
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+         throw new IOException("corrupt");
+      }
+      if (!Objects.equals(data.source(), source))
+         throw new IOException("written for " + data.source());
+      return data;
+   }//end read
+
+   static byte[] encode(Data data) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 48 * data.products().size());
+      DataOutputStream out = new DataOutputStream(bytes);
+      putString(out, data.source());
+      out.writeInt(data.stores().size());
+      for (Rows.Store s : data.stores()) {
+         out.writeInt(s.storeID());
+         out.writeDouble(s.latitude());
+         out.writeDouble(s.longitude());
+         out.writeInt(s.managerID());
+         out.writeLong(s.dateEstablished() == null ? NO_DATE : s.dateEstablished().toEpochDay());
+      }
+      out.writeInt(data.products().size());
+      for (Rows.Product p : data.products()) {
+         out.writeInt(p.storeID());
+         putString(out, p.productName());
+         out.writeInt(p.numberOfUnits());
+         out.writeDouble(p.pricePerUnit());
+      }
+      out.writeInt(data.warehouses().size());
+      for (Rows.Warehouse w : data.warehouses()) {
+         out.writeInt(w.warehouseID());
+         out.writeInt(w.area());
+         out.writeDouble(w.latitude());
+         out.writeDouble(w.longitude());
+      }
+      out.writeInt(data.users().size());
+      for (Rows.User u : data.users()) {
+         out.writeInt(u.userID());
+         putString(out, u.name());
+         out.writeDouble(u.latitude());
+         out.writeDouble(u.longitude());
+         putString(out, u.type());
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }//end encode
+
+   static Data decode(ByteBuffer in) {
+      String source = getString(in);
+      int n = count(in);
+      List<Rows.Store> stores = new ArrayList<Rows.Store>(n);
+      for (int i = 0; i < n; ++i) {
+         int storeID = in.getInt();
+         double latitude = in.getDouble(), longitude = in.getDouble();
+         int managerID = in.getInt();
+         long day = in.getLong();
+         stores.add(new Rows.Store(storeID, latitude, longitude, managerID,
+                                   day == NO_DATE ? null : LocalDate.ofEpochDay(day)));
+      }
+      n = count(in);
+      List<Rows.Product> products = new ArrayList<Rows.Product>(n);
+      for (int i = 0; i < n; ++i) {
+         int storeID = in.getInt();
+         String productName = getString(in);
+         int units = in.getInt();
+         products.add(new Rows.Product(storeID, productName, units, in.getDouble()));
+      }
+      n = count(in);
+      List<Rows.Warehouse> warehouses = new ArrayList<Rows.Warehouse>(n);
+      for (int i = 0; i < n; ++i) {
+         int warehouseID = in.getInt(), area = in.getInt();
+         double latitude = in.getDouble();
+         warehouses.add(new Rows.Warehouse(warehouseID, area, latitude, in.getDouble()));
+      }
+      n = count(in);
+      List<Rows.User> users = new ArrayList<Rows.User>(n);
+      for (int i = 0; i < n; ++i) {
+         int userID = in.getInt();
+         String name = getString(in);
+         double latitude = in.getDouble(), longitude = in.getDouble();
+         users.add(new Rows.User(userID, name, latitude, longitude, getString(in)));
+      }
+      if (in.hasRemaining())
+         throw new IllegalArgumentException("trailing bytes");
+      return new Data(source, List.copyOf(stores), List.copyOf(products), List.copyOf(warehouses), List.copyOf(users));
+   }//end decode
+
+   // a row count, checked against the bytes left so a corrupt count cannot allocate gigabytes
+   private static int count(ByteBuffer in) {
+      int n = in.getInt();
+      if (n < 0 || n > in.remaining())
+         throw new IllegalArgumentException("bad count");
+      return n;
+   }
+
+   private static void putString(DataOutputStream out, String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String getString(ByteBuffer in) {
+      int length = in.getInt();
+      if (length < 0)
+         return null;
+      if (length > in.remaining())
+         throw new IllegalArgumentException("bad length");
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+}//end CatalogSnapshot
@@ -0,0 +1,369 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of physical PostgreSQL connections.  Each pooled
+ * connection carries its own StatementCache, idle connections are validated
+ * before they are handed out again, and connections that are held longer
+ * than the leak threshold are reported together with the stack that
+ * borrowed them.
+ *
+ */
+public class ConnectionPool {
+
+   /**
+    * Pool settings.  Every value can be overridden with a system property of
+    * the same name prefixed with "amazon.pool." (e.g. -Damazon.pool.max=32).
+    */
+   public static class Config {
+      public int min = 1;
+      public int max = 8;
+      public long acquireTimeoutMillis = 5000;
+      // idle connections older than this are checked with a SELECT 1
+      public long validateAfterMillis = 30000;
+      public int validationTimeoutSeconds = 2;
+      // 0 disables leak detection
+      public long leakThresholdMillis = 60000;
+      // report a leak with the stack that borrowed the connection, at the
+      // cost of capturing a stack on every acquire
+      public boolean leakStackTraces = false;
+
+      public static Config fromSystemProperties() {
+         Config c = new Config();
+         c.min = Integer.getInteger("amazon.pool.min", c.min);
+         c.max = Integer.getInteger("amazon.pool.max", c.max);
+         c.acquireTimeoutMillis = Long.getLong("amazon.pool.acquireTimeoutMillis", c.acquireTimeoutMillis);
+         c.validateAfterMillis = Long.getLong("amazon.pool.validateAfterMillis", c.validateAfterMillis);
+         c.validationTimeoutSeconds = Integer.getInteger("amazon.pool.validationTimeoutSeconds", c.validationTimeoutSeconds);
+         c.leakThresholdMillis = Long.getLong("amazon.pool.leakThresholdMillis", c.leakThresholdMillis);
+         c.leakStackTraces = Boolean.parseBoolean(System.getProperty("amazon.pool.leakStackTraces",
+                                                                     String.valueOf(c.leakStackTraces)));
+         return c;
+      }
+   }//end Config
+
+   /**
+    * A borrowed connection.  Closing it returns the connection to the pool.
+    */
+   public class PooledConnection implements AutoCloseable {
+      private final Connection connection;
+      private final StatementCache statements;
+      private long lastUsed;
+      private volatile long borrowedAt;
+      private volatile boolean leakReported;
+      private Throwable borrowedBy;
+      private boolean broken = false;
+
+      PooledConnection(Connection connection) {
+         this.connection = connection;
+         this.statements = new StatementCache(connection);
+         this.lastUsed = System.currentTimeMillis();
+      }
+
+      public Connection connection() {
+         return connection;
+      }
+
+      public StatementCache statements() {
+         return statements;
+      }
+
+      /**
+       * Marks the connection as unusable so it is closed instead of being
+       * returned to the idle list.
+       */
+      public void markBroken() {
+         broken = true;
+      }
+
+      @Override
+      public void close() {
+         release(this);
+      }
+   }//end PooledConnection
+
+   private final String url;
+   private final String user;
+   private final String password;
+   private final Config config;
+
+   private final Semaphore permits;
+   private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+   private final Map<PooledConnection, Boolean> borrowed = new ConcurrentHashMap<PooledConnection, Boolean>();
+   private final List<PooledConnection> all = new ArrayList<PooledConnection>();
+   private volatile boolean closed = false;
+   private Thread leakDetector = null;
+
+   // metrics
+   private final AtomicLong acquires = new AtomicLong();
+   private final AtomicLong waitNanos = new AtomicLong();
+   private final AtomicLong maxWaitNanos = new AtomicLong();
+   private final AtomicLong timeouts = new AtomicLong();
+   private final AtomicLong created = new AtomicLong();
+   private final AtomicLong invalidated = new AtomicLong();
+   private final AtomicLong leaks = new AtomicLong();
+
+   /**
+    * Creates the pool and opens the minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param password the user login password
+    * @param config the pool settings
+    * @throws java.sql.SQLException when the initial connections fail
+    */
+   public ConnectionPool(String url, String user, String password, Config config) throws SQLException {
+      if (config.min < 0 || config.max < 1 || config.min > config.max)
+         throw new IllegalArgumentException("invalid pool size " + config.min + ".." + config.max);
+      this.url = url;
+      this.user = user;
+      this.password = password;
+      this.config = config;
+      this.permits = new Semaphore(config.max, true);
+      for (int i = 0; i < config.min; ++i)
+         idle.add(open());
+      if (config.leakThresholdMillis > 0) {
+         leakDetector = new Thread(this::detectLeaks, "connection-leak-detector");
+         leakDetector.setDaemon(true);
+         leakDetector.start();
+      }
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to the acquire timeout for one to be
+    * released when the pool is exhausted.
+    *
+    * @return the borrowed connection, to be closed by the caller
+    * @throws java.sql.SQLException on timeout or when no connection can be opened
+    */
+   public PooledConnection acquire() throws SQLException {
+      if (closed)
+         throw new SQLException("connection pool is closed");
+      long start = System.nanoTime();
+      try {
+         if (!permits.tryAcquire(config.acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            timeouts.incrementAndGet();
+            throw new SQLException("timed out after " + config.acquireTimeoutMillis
+                                   + " ms waiting for a database connection");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted waiting for a database connection");
+      }
+
+      PooledConnection pc = null;
+      try {
+         pc = takeValidIdle();
+         if (pc == null)
+            pc = open();
+      } finally {
+         // whatever went wrong, the permit goes back
+         if (pc == null)
+            permits.release();
+      }
+      long waited = System.nanoTime() - start;
+      acquires.incrementAndGet();
+      waitNanos.addAndGet(waited);
+      maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+      pc.broken = false;
+      pc.borrowedAt = System.currentTimeMillis();
+      pc.leakReported = false;
+      pc.borrowedBy = config.leakThresholdMillis > 0 && config.leakStackTraces
+         ? new Throwable("connection borrowed here") : null;
+      borrowed.put(pc, Boolean.TRUE);
+      return pc;
+   }//end acquire
+
+   /**
+    * Closes every idle connection.  Borrowed connections are closed when
+    * they are released.
+    */
+   public void close() {
+      closed = true;
+      if (leakDetector != null)
+         leakDetector.interrupt();
+      PooledConnection pc;
+      while ((pc = idle.poll()) != null)
+         discard(pc);
+   }//end close
+
+   private void release(PooledConnection pc) {
+      if (borrowed.remove(pc) == null)
+         return; // released twice
+      pc.lastUsed = System.currentTimeMillis();
+      pc.borrowedBy = null;
+      pc.leakReported = true;
+      if (closed || pc.broken)
+         discard(pc);
+      else
+         idle.addFirst(pc); // most recently used first keeps the cache warm
+      permits.release();
+   }//end release
+
+   private PooledConnection takeValidIdle() {
+      PooledConnection pc;
+      while ((pc = idle.pollFirst()) != null) {
+         if (System.currentTimeMillis() - pc.lastUsed < config.validateAfterMillis || valid(pc))
+            return pc;
+         invalidated.incrementAndGet();
+         discard(pc);
+      }
+      return null;
+   }//end takeValidIdle
+
+   // Connection.isValid() is JDBC 4, which the bundled pg73jdbc3 does not implement
+   private boolean valid(PooledConnection pc) {
+      try {
+         PreparedStatement stmt = pc.statements.prepare("SELECT 1");
+         stmt.setQueryTimeout(config.validationTimeoutSeconds);
+         try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next();
+         }
+      } catch (Exception | LinkageError e) {
+         return false;
+      }
+   }//end valid
+
+   private PooledConnection open() throws SQLException {
+      PooledConnection pc = new PooledConnection(DriverManager.getConnection(url, user, password));
+      created.incrementAndGet();
+      synchronized (all) {
+         all.add(pc);
+      }
+      return pc;
+   }
+
+   private void discard(PooledConnection pc) {
+      synchronized (all) {
+         all.remove(pc);
+      }
+      pc.statements.close();
+      try {
+         pc.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   private void detectLeaks() {
+      long interval = Math.max(1000, config.leakThresholdMillis / 2);
+      while (!closed) {
+         try {
+            Thread.sleep(interval);
+         } catch (InterruptedException e) {
+            return;
+         }
+         long now = System.currentTimeMillis();
+         for (PooledConnection pc : borrowed.keySet()) {
+            if (!pc.leakReported && now - pc.borrowedAt > config.leakThresholdMillis) {
+               leaks.incrementAndGet();
+               pc.leakReported = true; // report each borrow once
+               System.err.println("Possible connection leak: held for " + (now - pc.borrowedAt) + " ms");
+               Throwable where = pc.borrowedBy;
+               if (where != null)
+                  where.printStackTrace();
+               else
+                  System.err.println("  run with -Damazon.pool.leakStackTraces=true to see where it was borrowed");
+            }
+         }
+      }
+   }//end detectLeaks
+
+   // Metrics
+
+   public int size() {
+      synchronized (all) {
+         return all.size();
+      }
+   }
+
+   public int active() {
+      return borrowed.size();
+   }
+
+   public int idle() {
+      return idle.size();
+   }
+
+   public int maxSize() {
+      return config.max;
+   }
+
+   /**
+    * @return the fraction of the maximum pool size currently borrowed
+    */
+   public double utilization() {
+      return (double) active() / config.max;
+   }
+
+   /**
+    * @return the JDBC URL of the database the connections go to
+    */
+   public String url() {
+      return url;
+   }
+
+   public long acquireCount() {
+      return acquires.get();
+   }
+
+   public double averageWaitMillis() {
+      long n = acquires.get();
+      return n == 0 ? 0 : waitNanos.get() / 1e6 / n;
+   }
+
+   public double maxWaitMillis() {
+      return maxWaitNanos.get() / 1e6;
+   }
+
+   public long timeoutCount() {
+      return timeouts.get();
+   }
+
+   public long leakCount() {
+      return leaks.get();
+   }
+
+   /**
+    * @return the statement cache hits summed over every open connection
+    */
+   public long statementHits() {
+      long total = 0;
+      synchronized (all) {
+         for (PooledConnection pc : all)
+            total += pc.statements.hits();
+      }
+      return total;
+   }
+
+   public long statementMisses() {
+      long total = 0;
+      synchronized (all) {
+         for (PooledConnection pc : all)
+            total += pc.statements.misses();
+      }
+      return total;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("size=%d active=%d idle=%d max=%d utilization=%.2f acquires=%d "
+                           + "avgWaitMs=%.3f maxWaitMs=%.3f timeouts=%d created=%d invalidated=%d leaks=%d",
+                           size(), active(), idle(), config.max, utilization(), acquires.get(),
+                           averageWaitMillis(), maxWaitMillis(), timeouts.get(), created.get(),
+                           invalidated.get(), leaks.get());
+   }
+
+}//end ConnectionPool
@@ -0,0 +1,491 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JSON over HTTP in front of Storefront, on the HTTP server of the JDK
+ * (com.sun.net.httpserver), so the store can sit behind a load balancer
+ * and serve clients other than the console.  Every request runs on its
+ * own thread from VirtualThreads, a virtual thread where the JVM has them,
+ * so thousands of requests waiting on the database share a few carrier
+ * threads.  The endpoints call the same Storefront methods as the console
+ * menu:
+ *
+ *    POST /login                              {"name", "password"}, answers {"token", "userID"}
+ *    POST /logout
+ *    GET  /stores                             the stores within 30 miles of the user
+ *    GET  /stores/{storeID}/products          the products of a store
+ *    PUT  /stores/{storeID}/products/{name}   {"price", "units"}, managers only
+ *    POST /orders                             {"storeID", "productName", "units"}
+ *    GET  /orders?storeID=&from=&to=&cursor=&size=   a page of the user's orders
+ *    POST /orders/reload                      reads orders loaded by OrderIngest, admins only
+ *    POST /supply-requests                    {"lines": [{"storeID", "productName", "units"}]}, managers only
+ *    GET  /health                             needs no login
+ *
+ * Login hands out a random token, which the client sends back as
+ * "Authorization: Bearer <token>" on every other request.  The token maps
+ * to its Session in memory and expires when unused for sessionMinutes.
+ * Errors answer {"error": message} with 400 for bad input, 401 for a
+ * missing or expired token, 403 for an operation the user may not run,
+ * 404 for an unknown store or product, 409 for an order that cannot be
+ * placed and 500 when the database fails.
+ *
+ *    amazon.http.port             the port to listen on (8080)
+ *    amazon.http.backlog          connections waiting to be accepted (1024)
+ *    amazon.http.sessionMinutes   idle time after which a token expires (30)
+ *
+ * Usage: java HttpApi <dbname> <port> <user>
+ */
+public class HttpApi implements AutoCloseable {
+
+   public static final int DEFAULT_PAGE_SIZE = 20;
+
+   // larger request bodies are refused
+   static final int MAX_BODY = 1 << 20;
+
+   static {
+      // the server writes headers and body separately, which Nagle's algorithm holds back for the client's ACK
+      if (System.getProperty("sun.net.httpserver.nodelay") == null)
+         System.setProperty("sun.net.httpserver.nodelay", "true");
+      // keep the connections of many concurrent clients alive instead of closing all but 200
+      if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null)
+         System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+   }
+
+   /**
+    * An error answered with its status code.
+    */
+   static final class Failure extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      Failure(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }
+
+   // the status code and body of an answer
+   record Reply(int status, Object body) {
+   }
+
+   // a logged in client
+   private static final class Token {
+      final Session session;
+      volatile long lastUsed;
+
+      Token(Session session, long lastUsed) {
+         this.session = session;
+         this.lastUsed = lastUsed;
+      }
+   }
+
+   private final Storefront storefront;
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final long sessionNanos;
+   private final SecureRandom random = new SecureRandom();
+   private final Map<String, Token> tokens = new ConcurrentHashMap<String, Token>();
+   private final ScheduledExecutorService sweeper;
+
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+
+   /**
+    * Binds the server, which answers once start() is called
+    *
+    * @param storefront the operations behind the endpoints
+    * @param port the port to listen on, 0 for any free port
+    * @param backlog connections waiting to be accepted
+    * @param sessionMillis idle time after which a token expires
+    * @param executor runs the requests, shut down by close()
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public HttpApi(Storefront storefront, int port, int backlog, long sessionMillis, ExecutorService executor) throws IOException {
+      this.storefront = storefront;
+      this.executor = executor;
+      this.sessionNanos = TimeUnit.MILLISECONDS.toNanos(sessionMillis);
+      this.server = HttpServer.create(new InetSocketAddress(port), backlog);
+      this.server.createContext("/", this::handle);
+      this.server.setExecutor(executor);
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "http-sessions");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000, sessionMillis / 2);
+      this.sweeper.scheduleAtFixedRate(this::expire, period, period, TimeUnit.MILLISECONDS);
+   }
+
+   public static HttpApi fromSystemProperties(Storefront storefront) throws IOException {
+      return new HttpApi(storefront, Integer.getInteger("amazon.http.port", 8080),
+                         Integer.getInteger("amazon.http.backlog", 1024),
+                         TimeUnit.MINUTES.toMillis(Long.getLong("amazon.http.sessionMinutes", 30)),
+                         VirtualThreads.newPerTaskExecutor("http"));
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java HttpApi <dbname> <port> <user>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      HttpApi api = HttpApi.fromSystemProperties(esql.storefront());
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         api.close();
+         esql.cleanup();
+      }));
+      api.start();
+      System.out.println("Listening on port " + api.port()
+                         + (VirtualThreads.available() ? ", one virtual thread per request" : ""));
+   }//end main
+
+   public void start() {
+      server.start();
+   }
+
+   /**
+    * @return the port the server listens on
+    */
+   public int port() {
+      return server.getAddress().getPort();
+   }
+
+   /**
+    * Stops answering and ends every session
+    */
+   @Override
+   public void close() {
+      server.stop(0);
+      sweeper.shutdownNow();
+      executor.shutdown();
+      for (Token token : tokens.values())
+         storefront.logOut(token.session);
+      tokens.clear();
+   }
+
+   public int sessions() {
+      return tokens.size();
+   }
+
+   public long requests() {
+      return requests.get();
+   }
+
+   public long failures() {
+      return failures.get();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("sessions=%d requests=%d failures=%d", sessions(), requests(), failures());
+   }
+
+   private void handle(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      Reply reply;
+      try {
+         reply = route(exchange);
+      } catch (Failure e) {
+         reply = error(e.status, e.getMessage());
+      } catch (IllegalArgumentException | IllegalStateException | DateTimeException e) {
+         // malformed numbers, JSON, dates and cursors
+         reply = error(400, e.getMessage());
+      } catch (SQLException e) {
+         reply = error(500, e.getMessage());
+      } catch (IOException | RuntimeException | Error e) {
+         // whatever failed, the client gets an answer instead of waiting for one
+         reply = error(500, e.toString());
+      }
+      if (reply.status() >= 400)
+         failures.incrementAndGet();
+      byte[] body;
+      try {
+         body = Json.write(reply.body()).getBytes(StandardCharsets.UTF_8);
+      } catch (RuntimeException | Error e) {
+         failures.incrementAndGet();
+         reply = error(500, e.toString());
+         body = Json.write(reply.body()).getBytes(StandardCharsets.UTF_8);
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(reply.status(), body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+         out.write(body);
+      }
+   }//end handle
+
+   private Reply route(HttpExchange exchange) throws IOException, SQLException {
+      String method = exchange.getRequestMethod();
+      String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+      switch (path[0]) {
+         case "health":
+            expect(method, "GET");
+            return ok(Map.of("status", "OK", "sessions", tokens.size(), "virtualThreads", VirtualThreads.available()));
+         case "login":
+            expect(method, "POST");
+            return login(body(exchange));
+         case "logout":
+            expect(method, "POST");
+            return logout(exchange);
+         case "stores": {
+            Session session = session(exchange);
+            if (path.length == 1) {
+               expect(method, "GET");
+               return ok(stores(storefront.viewStores(session)));
+            }
+            int storeID = toInt("storeID", path[1]);
+            if (path.length == 3 && path[2].equals("products")) {
+               expect(method, "GET");
+               return ok(storefront.viewProducts(storeID));
+            }
+            if (path.length == 4 && path[2].equals("products")) {
+               expect(method, "PUT");
+               return updateProduct(session, storeID, path[3], body(exchange));
+            }
+            break;
+         }
+         case "orders":
+            if (path.length == 2 && path[1].equals("reload")) {
+               expect(method, "POST");
+               if (!storefront.reloadOrders(session(exchange)))
+                  return error(403, "Only admins can reload orders.");
+               return ok(Map.of("status", "OK"));
+            }
+            if (path.length != 1)
+               break;
+            if (method.equals("POST"))
+               return placeOrder(session(exchange), body(exchange));
+            expect(method, "GET");
+            return orderHistory(session(exchange), query(exchange));
+         case "supply-requests":
+            if (path.length != 1)
+               break;
+            expect(method, "POST");
+            return supplyRequests(session(exchange), body(exchange));
+         default:
+      }
+      throw new Failure(404, "No resource " + exchange.getRequestURI().getPath());
+   }//end route
+
+   private Reply login(Map<String, Object> body) throws SQLException {
+      Session session = storefront.logIn(string(body, "name"), string(body, "password"));
+      if (session == null)
+         return error(401, "Wrong name or password.");
+      byte[] bytes = new byte[24];
+      random.nextBytes(bytes);
+      String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+      tokens.put(token, new Token(session, System.nanoTime()));
+      return ok(Map.of("token", token, "userID", session.userID()));
+   }//end login
+
+   private Reply logout(HttpExchange exchange) {
+      Token token = tokens.remove(token(exchange));
+      if (token == null)
+         throw new Failure(401, "Not logged in.");
+      storefront.logOut(token.session);
+      return ok(Map.of("status", "OK"));
+   }
+
+   private Reply placeOrder(Session session, Map<String, Object> body) throws SQLException {
+      OrderEngine.Result result = storefront.placeOrder(session, integer(body, "storeID"), string(body, "productName"),
+                                                        integer(body, "units"));
+      Map<String, Object> answer = new LinkedHashMap<String, Object>();
+      answer.put("status", result.status);
+      answer.put("orderNumber", result.orderNumber);
+      switch (result.status) {
+         case PLACED: return new Reply(201, answer);
+         case STORE_NOT_FOUND: case PRODUCT_NOT_FOUND: return new Reply(404, answer);
+         default: return new Reply(409, answer);
+      }
+   }//end placeOrder
+
+   private Reply orderHistory(Session session, Map<String, String> query) throws SQLException {
+      String storeID = query.get("storeID");
+      OrderHistory.Filter filter = new OrderHistory.Filter(storeID == null ? null : toInt("storeID", storeID),
+                                                           time(query.get("from")), time(query.get("to")));
+      String size = query.get("size");
+      return ok(storefront.viewOrderHistory(session, filter, query.get("cursor"),
+                                            size == null ? DEFAULT_PAGE_SIZE : toInt("size", size)));
+   }
+
+   private Reply updateProduct(Session session, int storeID, String productName, Map<String, Object> body) throws SQLException {
+      Storefront.Status status = storefront.updateProduct(session, storeID, productName, decimal(body, "price"),
+                                                          integer(body, "units"));
+      switch (status) {
+         case OK: return ok(Map.of("status", status));
+         case NOT_ALLOWED: return error(403, "Only managers can update products.");
+         case STORE_NOT_FOUND: return error(404, "Store not found.");
+         case PRODUCT_NOT_FOUND: return error(404, "Product not found.");
+         default: return error(400, status.toString());
+      }
+   }//end updateProduct
+
+   private Reply supplyRequests(Session session, Map<String, Object> body) throws SQLException {
+      List<SupplyRouter.Line> lines = new ArrayList<SupplyRouter.Line>();
+      if (!(body.get("lines") instanceof List<?> items) || items.isEmpty())
+         throw new IllegalArgumentException("lines must be a non-empty array");
+      for (Object item : items) {
+         if (!(item instanceof Map<?, ?>))
+            throw new IllegalArgumentException("every line must be an object");
+         @SuppressWarnings("unchecked")
+         Map<String, Object> line = (Map<String, Object>) item;
+         lines.add(new SupplyRouter.Line(integer(line, "storeID"), string(line, "productName"), integer(line, "units")));
+      }
+      List<SupplyRouter.Routed> routed = storefront.placeSupplyRequests(session, lines);
+      if (routed == null)
+         return error(403, "Only managers can request supplies.");
+      return new Reply(201, routed);
+   }//end supplyRequests
+
+   // StoreIndex.Hit is not a record, so it is spelled out
+   private static List<Map<String, Object>> stores(List<StoreIndex.Hit> hits) {
+      List<Map<String, Object>> stores = new ArrayList<Map<String, Object>>();
+      for (StoreIndex.Hit hit : hits) {
+         Map<String, Object> store = new LinkedHashMap<String, Object>();
+         store.put("storeID", hit.store.storeID);
+         store.put("latitude", hit.store.latitude);
+         store.put("longitude", hit.store.longitude);
+         store.put("managerID", hit.store.managerID);
+         store.put("distance", hit.distance);
+         stores.add(store);
+      }
+      return stores;
+   }//end stores
+
+   private Session session(HttpExchange exchange) {
+      String key = token(exchange);
+      Token token = key == null ? null : tokens.get(key);
+      long now = System.nanoTime();
+      if (token == null || now - token.lastUsed > sessionNanos) {
+         if (token != null && tokens.remove(key, token))
+            storefront.logOut(token.session);
+         throw new Failure(401, "Not logged in.");
+      }
+      token.lastUsed = now;
+      return token.session;
+   }//end session
+
+   private static String token(HttpExchange exchange) {
+      String header = exchange.getRequestHeaders().getFirst("Authorization");
+      return header != null && header.startsWith("Bearer ") ? header.substring(7).trim() : null;
+   }
+
+   // ends the sessions whose tokens were not used for sessionMinutes
+   private void expire() {
+      long now = System.nanoTime();
+      for (Iterator<Map.Entry<String, Token>> it = tokens.entrySet().iterator(); it.hasNext(); ) {
+         Token token = it.next().getValue();
+         if (now - token.lastUsed > sessionNanos) {
+            it.remove();
+            storefront.logOut(token.session);
+         }
+      }
+   }//end expire
+
+   private static void expect(String method, String expected) {
+      if (!method.equals(expected))
+         throw new Failure(405, method + " is not allowed here, use " + expected + ".");
+   }
+
+   @SuppressWarnings("unchecked")
+   private static Map<String, Object> body(HttpExchange exchange) throws IOException {
+      try (InputStream in = exchange.getRequestBody()) {
+         byte[] bytes = in.readNBytes(MAX_BODY + 1);
+         if (bytes.length > MAX_BODY)
+            throw new Failure(413, "Request body too large.");
+         Object body = Json.parse(new String(bytes, StandardCharsets.UTF_8));
+         if (!(body instanceof Map<?, ?>))
+            throw new IllegalArgumentException("The body must be a JSON object.");
+         return (Map<String, Object>) body;
+      }
+   }//end body
+
+   private static Map<String, String> query(HttpExchange exchange) {
+      Map<String, String> query = new HashMap<String, String>();
+      String raw = exchange.getRequestURI().getRawQuery();
+      if (raw == null)
+         return query;
+      for (String pair : raw.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq > 0)
+            query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                      URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+      }
+      return query;
+   }//end query
+
+   private static String string(Map<String, Object> body, String name) {
+      Object value = body.get(name);
+      if (!(value instanceof String s))
+         throw new IllegalArgumentException(name + " must be a string");
+      return s;
+   }
+
+   private static int integer(Map<String, Object> body, String name) {
+      Object value = body.get(name);
+      if (value instanceof String s)
+         return toInt(name, s);
+      if (!(value instanceof Double d) || d != Math.rint(d) || Math.abs(d) > Integer.MAX_VALUE)
+         throw new IllegalArgumentException(name + " must be an integer");
+      return d.intValue();
+   }
+
+   private static double decimal(Map<String, Object> body, String name) {
+      Object value = body.get(name);
+      if (value instanceof String s)
+         return Double.parseDouble(s.trim());
+      if (!(value instanceof Double d))
+         throw new IllegalArgumentException(name + " must be a number");
+      return d;
+   }
+
+   private static int toInt(String name, String value) {
+      try {
+         return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException(name + " must be an integer");
+      }
+   }
+
+   // an ISO date (midnight) or date and time, or null
+   private static LocalDateTime time(String value) {
+      if (value == null || value.isEmpty())
+         return null;
+      return value.length() == 10 ? LocalDate.parse(value).atStartOfDay() : LocalDateTime.parse(value);
+   }
+
+   private static Reply ok(Object body) {
+      return new Reply(200, body);
+   }
+
+   private static Reply error(int status, String message) {
+      return new Reply(status, Map.of("error", message == null ? "" : message));
+   }
+
+}//end HttpApi
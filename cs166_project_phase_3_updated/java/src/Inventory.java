@@ -0,0 +1,345 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds units of a product for a customer between putting it in the cart
+ * and paying for it.  Every (storeID, productName) has an in-memory count
+ * of the units on hand and of the units held by live reservations; a
+ * reservation is granted only when the units not yet held cover it, so
+ * two customers can never be promised the same unit.  Reservations that
+ * are neither confirmed nor released expire after holdSeconds and give
+ * their units back.
+ *
+ * The counts are guarded by a fixed set of striped locks, a product always
+ * hashing to the same lock, so products on different stripes never wait
+ * for each other and no lock is kept per product.
+ *
+ * The database stays the authority on stock.  The count on hand is read
+ * from the ledger the first time a product is reserved and again after
+ * any other write to its row (invalidate(), called from
+ * Amazon.productChanged).  A confirmed reservation places its order with
+ * OrderEngine, whose UPDATE only takes the units when numberOfUnits still
+ * covers them; if the database refuses, the count is read again.  A
+ * direct order (Storefront.placeOrder) is reserved and confirmed in one
+ * step, so it cannot take units held for someone else.
+ *
+ *    amazon.inventory.holdSeconds   how long a reservation lasts (600)
+ *
+ */
+public class Inventory implements AutoCloseable {
+
+   /**
+    * Reads the stock of a product from the database.
+    */
+   @FunctionalInterface
+   public interface Ledger {
+      /**
+       * @return the units on hand, or -1 when the store does not list the product
+       */
+      int units(int storeID, String productName) throws SQLException;
+   }
+
+   /**
+    * Writes the order of a confirmed reservation.
+    */
+   @FunctionalInterface
+   public interface Sale {
+      OrderEngine.Result place(int storeID, String productName, int units) throws SQLException;
+   }
+
+   /**
+    * Units of a product held for one customer until expiresAt
+    * (System.nanoTime()).
+    */
+   public record Reservation(long id, int customerID, int storeID, String productName, int units, long expiresAt) {
+   }
+
+   // a power of two, so the stripe is a mask of the hash
+   static final int STRIPES = 64;
+
+   record Key(int storeID, String productName) {
+   }
+
+   // the counts of one product, guarded by the lock of its stripe
+   private static class Stock {
+      int onHand;
+      int held;
+      boolean stale = true;
+      // bumped by every write, so a count read before it is not used
+      long generation;
+      final Map<Long, Reservation> holds = new LinkedHashMap<Long, Reservation>();
+   }
+
+   // the product whose order this thread is placing in confirm()
+   private static final ThreadLocal<Key> SELLING = new ThreadLocal<Key>();
+
+   private final Ledger ledger;
+   private final long holdNanos;
+   private final Object[] stripes = new Object[STRIPES];
+   private final Map<Key, Stock> stocks = new ConcurrentHashMap<Key, Stock>();
+   private final AtomicLong ids = new AtomicLong();
+
+   private final AtomicLong reserved = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+   private final AtomicLong confirmed = new AtomicLong();
+   private final AtomicLong expired = new AtomicLong();
+   private final AtomicLong conflicts = new AtomicLong();
+
+   private volatile ScheduledExecutorService sweeper = null;
+   private boolean closed = false;
+
+   /**
+    * Creates an empty inventory
+    *
+    * @param ledger reads the stock of a product from the database
+    * @param holdMillis how long a reservation lasts
+    */
+   public Inventory(Ledger ledger, long holdMillis) {
+      this.ledger = ledger;
+      this.holdNanos = TimeUnit.MILLISECONDS.toNanos(holdMillis);
+      for (int i = 0; i < STRIPES; ++i)
+         stripes[i] = new Object();
+   }
+
+   public static Inventory fromSystemProperties(Ledger ledger) {
+      return new Inventory(ledger, TimeUnit.SECONDS.toMillis(Long.getLong("amazon.inventory.holdSeconds", 600)));
+   }
+
+   /**
+    * Holds units of a product for a customer
+    *
+    * @param customerID the customer the units are held for
+    * @param storeID the store of the product
+    * @param productName the product
+    * @param units the number of units, must be positive
+    * @return the reservation, or null when the store does not have that
+    *         many units that are not held already
+    * @throws java.sql.SQLException when the stock cannot be read
+    */
+   public Reservation reserve(int customerID, int storeID, String productName, int units) throws SQLException {
+      if (units <= 0)
+         throw new IllegalArgumentException("number of units must be positive");
+      Key key = new Key(storeID, productName.trim());
+      Stock stock = stocks.computeIfAbsent(key, k -> new Stock());
+      Object lock = lock(key);
+      if (sweeper == null)
+         startSweeper();
+      while (true) {
+         long generation;
+         synchronized (lock) {
+            long now = System.nanoTime();
+            purge(stock, now);
+            if (!stock.stale) {
+               if (stock.onHand - stock.held < units) {
+                  rejected.incrementAndGet();
+                  return null;
+               }
+               stock.held += units;
+               Reservation r = new Reservation(ids.incrementAndGet(), customerID, storeID, key.productName(), units,
+                                               now + holdNanos);
+               stock.holds.put(r.id(), r);
+               reserved.incrementAndGet();
+               return r;
+            }
+            generation = stock.generation;
+         }
+         // read without the lock; a write meanwhile bumps the generation and the count is read again
+         int onHand = ledger.units(storeID, key.productName());
+         synchronized (lock) {
+            if (stock.generation == generation) {
+               stock.onHand = onHand;
+               stock.stale = false;
+            }
+         }
+      }
+   }//end reserve
+
+   /**
+    * Places the order of a reservation.  The units stay held until the
+    * database has taken them, so nobody else is promised them meanwhile.
+    *
+    * @param reservation a reservation that is neither confirmed, released nor expired
+    * @param sale writes the order
+    * @return the outcome of the sale, or EXPIRED when the reservation is gone
+    * @throws java.sql.SQLException when the sale fails
+    */
+   public OrderEngine.Result confirm(Reservation reservation, Sale sale) throws SQLException {
+      Key key = new Key(reservation.storeID(), reservation.productName());
+      Stock stock = stocks.get(key);
+      Object lock = lock(key);
+      synchronized (lock) {
+         if (stock == null)
+            return new OrderEngine.Result(OrderEngine.Status.EXPIRED, -1);
+         purge(stock, System.nanoTime());
+         if (stock.holds.remove(reservation.id()) == null)
+            return new OrderEngine.Result(OrderEngine.Status.EXPIRED, -1);
+      }
+
+      OrderEngine.Result result = null;
+      SELLING.set(key);
+      try {
+         result = sale.place(reservation.storeID(), reservation.productName(), reservation.units());
+         return result;
+      } finally {
+         SELLING.remove();
+         synchronized (lock) {
+            stock.held -= reservation.units();
+            // a count read while the order was written may or may not include it
+            ++stock.generation;
+            if (result != null && result.placed()) {
+               stock.onHand -= reservation.units();
+               confirmed.incrementAndGet();
+            } else {
+               // the database disagrees with the count, or the sale failed
+               if (result != null && result.status == OrderEngine.Status.OUT_OF_STOCK)
+                  conflicts.incrementAndGet();
+               stock.stale = true;
+            }
+         }
+      }
+   }//end confirm
+
+   /**
+    * Gives the units of a reservation back
+    *
+    * @param reservation the reservation, released or expired ones are ignored
+    */
+   public void release(Reservation reservation) {
+      Key key = new Key(reservation.storeID(), reservation.productName());
+      Stock stock = stocks.get(key);
+      if (stock == null)
+         return;
+      Object lock = lock(key);
+      synchronized (lock) {
+         if (stock.holds.remove(reservation.id()) != null)
+            stock.held -= reservation.units();
+      }
+   }//end release
+
+   /**
+    * Marks the stock of a product as changed by someone else; it is read
+    * again before the next reservation.  Called for every write to
+    * Product, the order of a confirm() in progress on this thread
+    * excepted, since confirm() counts it itself.
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    */
+   public void invalidate(int storeID, String productName) {
+      Key key = new Key(storeID, productName.trim());
+      if (key.equals(SELLING.get()))
+         return;
+      Stock stock = stocks.get(key);
+      if (stock == null)
+         return;
+      Object lock = lock(key);
+      synchronized (lock) {
+         stock.stale = true;
+         ++stock.generation;
+      }
+   }//end invalidate
+
+   /**
+    * @return the units of a product that can still be reserved, or -1 when
+    *         its count is not known
+    */
+   public int available(int storeID, String productName) {
+      Key key = new Key(storeID, productName.trim());
+      Stock stock = stocks.get(key);
+      if (stock == null)
+         return -1;
+      Object lock = lock(key);
+      synchronized (lock) {
+         purge(stock, System.nanoTime());
+         return stock.stale ? -1 : Math.max(0, stock.onHand - stock.held);
+      }
+   }//end available
+
+   /**
+    * Gives back the units of every expired reservation
+    */
+   public void sweep() {
+      long now = System.nanoTime();
+      for (Map.Entry<Key, Stock> e : stocks.entrySet()) {
+         Object lock = lock(e.getKey());
+         synchronized (lock) {
+            purge(e.getValue(), now);
+         }
+      }
+   }//end sweep
+
+   @Override
+   public synchronized void close() {
+      closed = true;
+      if (sweeper != null) {
+         sweeper.shutdownNow();
+         sweeper = null;
+      }
+   }
+
+   public long reserved() {
+      return reserved.get();
+   }
+
+   public long rejected() {
+      return rejected.get();
+   }
+
+   public long confirmed() {
+      return confirmed.get();
+   }
+
+   public long expired() {
+      return expired.get();
+   }
+
+   public long conflicts() {
+      return conflicts.get();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("products=%d reserved=%d rejected=%d confirmed=%d expired=%d conflicts=%d",
+                           stocks.size(), reserved(), rejected(), confirmed(), expired(), conflicts());
+   }
+
+   private Object lock(Key key) {
+      int h = key.hashCode();
+      return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+   }
+
+   // drops the expired reservations of a product; holds are in expiry order
+   private void purge(Stock stock, long now) {
+      Iterator<Reservation> it = stock.holds.values().iterator();
+      while (it.hasNext()) {
+         Reservation r = it.next();
+         if (r.expiresAt() - now > 0)
+            break;
+         it.remove();
+         stock.held -= r.units();
+         expired.incrementAndGet();
+      }
+   }//end purge
+
+   // reservations nobody comes back for are expired in the background too
+   private synchronized void startSweeper() {
+      if (sweeper != null || closed)
+         return;
+      ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "inventory-sweeper");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(holdNanos) / 2);
+      sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+      this.sweeper = sweeper;
+   }
+
+}//end Inventory
@@ -0,0 +1,324 @@
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the HTTP front end.  write() turns maps,
+ * collections, arrays, records, strings, numbers, booleans, enums and
+ * dates into JSON text; a record becomes an object of its components, so
+ * the records of Rows and of the other classes need no mapping code.
+ * parse() reads a request body into maps, lists, strings, doubles,
+ * booleans and nulls, nested at most MAX_DEPTH deep.
+ *
+ */
+public final class Json {
+
+   // the accessors of each record class, looked up once
+   private static final ClassValue<Method[]> ACCESSORS = new ClassValue<Method[]>() {
+      @Override
+      protected Method[] computeValue(Class<?> type) {
+         RecordComponent[] components = type.getRecordComponents();
+         Method[] accessors = new Method[components.length];
+         for (int i = 0; i < components.length; ++i) {
+            accessors[i] = components[i].getAccessor();
+            accessors[i].setAccessible(true);
+         }
+         return accessors;
+      }
+   };
+
+   // deeper arrays and objects are refused instead of overflowing the parser's stack
+   public static final int MAX_DEPTH = 64;
+
+   private Json() {
+   }
+
+   /**
+    * @param value the value to write
+    * @return the JSON text of the value
+    */
+   public static String write(Object value) {
+      StringBuilder out = new StringBuilder();
+      write(out, value);
+      return out.toString();
+   }
+
+   /**
+    * Appends the JSON text of a value
+    *
+    * @param out the text to append to
+    * @param value a map, collection, array, record, string, number,
+    *        boolean, enum, date or null; anything else is written as its
+    *        toString()
+    */
+   public static void write(StringBuilder out, Object value) {
+      if (value == null) {
+         out.append("null");
+      } else if (value instanceof String s) {
+         string(out, s);
+      } else if (value instanceof Double || value instanceof Float) {
+         double d = ((Number) value).doubleValue();
+         if (Double.isNaN(d) || Double.isInfinite(d))
+            out.append("null");
+         else
+            out.append(d);
+      } else if (value instanceof Number || value instanceof Boolean) {
+         out.append(value);
+      } else if (value instanceof Map<?, ?> map) {
+         out.append('{');
+         boolean first = true;
+         for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (!first)
+               out.append(',');
+            first = false;
+            string(out, String.valueOf(e.getKey()));
+            out.append(':');
+            write(out, e.getValue());
+         }
+         out.append('}');
+      } else if (value instanceof Iterable<?> items) {
+         out.append('[');
+         boolean first = true;
+         for (Object item : items) {
+            if (!first)
+               out.append(',');
+            first = false;
+            write(out, item);
+         }
+         out.append(']');
+      } else if (value instanceof long[] longs) {
+         out.append('[');
+         for (int i = 0; i < longs.length; ++i)
+            out.append(i == 0 ? "" : ",").append(longs[i]);
+         out.append(']');
+      } else if (value instanceof Object[] objects) {
+         write(out, Arrays.asList(objects));
+      } else if (value instanceof Record) {
+         out.append('{');
+         Method[] accessors = ACCESSORS.get(value.getClass());
+         for (int i = 0; i < accessors.length; ++i) {
+            if (i > 0)
+               out.append(',');
+            string(out, accessors[i].getName());
+            out.append(':');
+            try {
+               write(out, accessors[i].invoke(value));
+            } catch (ReflectiveOperationException e) {
+               throw new IllegalStateException(e);
+            }
+         }
+         out.append('}');
+      } else {
+         // enums and dates as their names and ISO text
+         string(out, value.toString());
+      }
+   }//end write
+
+   /**
+    * Appends a string as a JSON string literal
+    *
+    * @param out the text to append to
+    * @param s the string
+    */
+   public static void string(StringBuilder out, String s) {
+      out.append('"');
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  out.append(String.format("\\u%04x", (int) c));
+               else
+                  out.append(c);
+         }
+      }
+      out.append('"');
+   }//end string
+
+   /**
+    * Reads a JSON text
+    *
+    * @param text the text
+    * @return a Map, List, String, Double, Boolean or null
+    * @throws IllegalArgumentException when the text is not valid JSON or
+    *         nests arrays and objects deeper than MAX_DEPTH
+    */
+   public static Object parse(String text) {
+      Parser parser = new Parser(text);
+      Object value = parser.value();
+      parser.skipSpace();
+      if (parser.pos < text.length())
+         throw parser.error("end of text expected");
+      return value;
+   }
+
+   private static final class Parser {
+      final String text;
+      int pos = 0;
+      int depth = 0;
+
+      Parser(String text) {
+         this.text = text;
+      }
+
+      Object value() {
+         skipSpace();
+         if (pos >= text.length())
+            throw error("value expected");
+         char c = text.charAt(pos);
+         switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default:
+               if (c == '-' || (c >= '0' && c <= '9'))
+                  return number();
+               throw error("unexpected '" + c + "'");
+         }
+      }//end value
+
+      Map<String, Object> object() {
+         Map<String, Object> map = new LinkedHashMap<String, Object>();
+         enter();
+         skipSpace();
+         if (peek() == '}') {
+            ++pos;
+            --depth;
+            return map;
+         }
+         while (true) {
+            skipSpace();
+            if (peek() != '"')
+               throw error("name expected");
+            String name = string();
+            skipSpace();
+            expect(':');
+            map.put(name, value());
+            skipSpace();
+            if (peek() == ',') {
+               ++pos;
+            } else {
+               expect('}');
+               --depth;
+               return map;
+            }
+         }
+      }//end object
+
+      List<Object> array() {
+         List<Object> list = new ArrayList<Object>();
+         enter();
+         skipSpace();
+         if (peek() == ']') {
+            ++pos;
+            --depth;
+            return list;
+         }
+         while (true) {
+            list.add(value());
+            skipSpace();
+            if (peek() == ',') {
+               ++pos;
+            } else {
+               expect(']');
+               --depth;
+               return list;
+            }
+         }
+      }//end array
+
+      // steps into an array or object
+      void enter() {
+         if (++depth > MAX_DEPTH)
+            throw error("nested deeper than " + MAX_DEPTH);
+         ++pos;
+      }
+
+      String string() {
+         StringBuilder out = new StringBuilder();
+         ++pos;
+         while (true) {
+            if (pos >= text.length())
+               throw error("unterminated string");
+            char c = text.charAt(pos++);
+            if (c == '"')
+               return out.toString();
+            if (c != '\\') {
+               out.append(c);
+               continue;
+            }
+            if (pos >= text.length())
+               throw error("unterminated string");
+            char e = text.charAt(pos++);
+            switch (e) {
+               case 'n': out.append('\n'); break;
+               case 'r': out.append('\r'); break;
+               case 't': out.append('\t'); break;
+               case 'b': out.append('\b'); break;
+               case 'f': out.append('\f'); break;
+               case 'u':
+                  if (pos + 4 > text.length())
+                     throw error("bad escape");
+                  try {
+                     out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                  } catch (NumberFormatException ex) {
+                     throw error("bad escape");
+                  }
+                  pos += 4;
+                  break;
+               default: out.append(e);
+            }
+         }
+      }//end string
+
+      Double number() {
+         int start = pos;
+         while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+            ++pos;
+         try {
+            return Double.valueOf(text.substring(start, pos));
+         } catch (NumberFormatException e) {
+            throw error("bad number");
+         }
+      }
+
+      Object literal(String word, Object value) {
+         if (!text.startsWith(word, pos))
+            throw error(word + " expected");
+         pos += word.length();
+         return value;
+      }
+
+      void expect(char c) {
+         if (peek() != c)
+            throw error("'" + c + "' expected");
+         ++pos;
+      }
+
+      char peek() {
+         return pos < text.length() ? text.charAt(pos) : 0;
+      }
+
+      void skipSpace() {
+         while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            ++pos;
+      }
+
+      IllegalArgumentException error(String message) {
+         return new IllegalArgumentException("Malformed JSON at " + pos + ": " + message);
+      }
+   }//end Parser
+
+}//end Json
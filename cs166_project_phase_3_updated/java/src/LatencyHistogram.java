@@ -0,0 +1,162 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size, lock free histogram of latencies in nanoseconds.  Values are
+ * counted in log-linear buckets: every power of two is split into 128
+ * equal sub-buckets, so any recorded value is reported within 1% whether it
+ * is a microsecond or an hour, and the whole histogram is a single array of
+ * about 7,300 counters no matter how many values are recorded.
+ *
+ * Recording is safe from any number of threads; percentiles read while
+ * values are being recorded see a consistent enough view for reporting.
+ * They walk the counters in place, so reading one allocates nothing the
+ * size of the histogram; percentiles() answers several in the same walk.
+ *
+ */
+public class LatencyHistogram {
+
+   // 2^PRECISION linear sub-buckets per power of two
+   private static final int PRECISION = 7;
+   private static final int SUB = 1 << PRECISION;
+   private static final int BUCKETS = (64 - PRECISION) * SUB;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final LongAdder count = new LongAdder();
+   private final LongAdder sum = new LongAdder();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records one value
+    *
+    * @param nanos the latency in nanoseconds, negative values count as 0
+    */
+   public void record(long nanos) {
+      long value = Math.max(0, nanos);
+      counts.incrementAndGet(index(value));
+      count.increment();
+      sum.add(value);
+      long m;
+      while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+      }
+   }//end record
+
+   /**
+    * Adds every value of another histogram to this one.
+    *
+    * @param other the histogram to add
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long c = other.counts.get(i);
+         if (c != 0)
+            counts.addAndGet(i, c);
+      }
+      count.add(other.count.sum());
+      sum.add(other.sum.sum());
+      long m, value = other.max.get();
+      while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+      }
+   }//end add
+
+   public long count() {
+      return count.sum();
+   }
+
+   /**
+    * @return the sum of all recorded values in nanoseconds
+    */
+   public long sum() {
+      return sum.sum();
+   }
+
+   public double mean() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) sum.sum() / n;
+   }
+
+   public long max() {
+      return max.get();
+   }
+
+   /**
+    * Returns a percentile of the recorded values
+    *
+    * @param percentile the percentile, for example 99.9
+    * @return the value in nanoseconds at or below which the given share
+    *         of the values lie, or 0 when nothing was recorded
+    */
+   public long percentile(double percentile) {
+      return percentiles(percentile)[0];
+   }
+
+   /**
+    * Returns several percentiles of the recorded values from one walk over
+    * the buckets
+    *
+    * @param percentiles the percentiles, for example 50, 99 and 99.9
+    * @return the value of each percentile in nanoseconds, as percentile()
+    *         returns it, in the order given
+    */
+   public long[] percentiles(double... percentiles) {
+      long[] values = new long[percentiles.length];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; ++i)
+         total += counts.get(i);
+      if (total == 0)
+         return values;
+      long[] ranks = new long[percentiles.length];
+      for (int p = 0; p < percentiles.length; ++p) {
+         ranks[p] = Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * total));
+         values[p] = -1;
+      }
+      int left = percentiles.length;
+      long seen = 0;
+      for (int i = 0; i < BUCKETS && left > 0; ++i) {
+         long c = counts.get(i);
+         if (c == 0)
+            continue;
+         seen += c;
+         for (int p = 0; p < percentiles.length; ++p) {
+            if (values[p] < 0 && seen >= ranks[p]) {
+               values[p] = Math.min(highest(i), max.get());
+               --left;
+            }
+         }
+      }
+      // ranks past the counts read, which grew meanwhile
+      for (int p = 0; p < percentiles.length; ++p)
+         if (values[p] < 0)
+            values[p] = max.get();
+      return values;
+   }//end percentiles
+
+   /**
+    * Clears every count.  Values recorded concurrently may be lost.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; ++i)
+         counts.set(i, 0);
+      count.reset();
+      sum.reset();
+      max.set(0);
+   }
+
+   static int index(long value) {
+      if (value < SUB)
+         return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION;
+      return (shift + 1) * SUB + (int) (value >>> shift) - SUB;
+   }
+
+   // the largest value counted in a bucket
+   static long highest(int index) {
+      if (index < SUB)
+         return index;
+      int shift = index / SUB - 1;
+      long lowest = (long) (index % SUB + SUB) << shift;
+      return lowest + (1L << shift) - 1;
+   }
+
+}//end LatencyHistogram
@@ -0,0 +1,841 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Sales reports over Orders without grouping the table in Postgres: revenue
+ * by store and day, units by product, spend by customer and basket sizes.
+ * The orders are kept in memory column by column, store IDs, customer IDs,
+ * units and order times each in a primitive column, and the product of an
+ * order as the id of its (storeID, productName) in a dictionary.  The
+ * dictionary holds the pricePerUnit of every product, so revenue joins
+ * Product with an array lookup.
+ *
+ * The columns are cut into chunks of chunkRows orders.  A chunk knows the
+ * time range of its orders, so reports over a time range skip the chunks
+ * outside it.  A report groups every chunk into its own hash table on a
+ * fork/join pool and merges the tables pairwise.
+ *
+ * Orders are read from the table, and from OrdersArchive once OrderArchive
+ * has moved old orders there, by the first report, in keyset pages by
+ * orderNumber (Amazon.streamPages), so the driver never holds more than a
+ * page of them.  Orders placed afterwards are appended by OrderEngine;
+ * orders another process writes, such as OrderIngest, are only read after
+ * reload().  An
+ * append fills the last chunk and is published by bumping the row count,
+ * so a report sees whole orders only.  Revenue uses the current pricePerUnit, as a join with Product
+ * does, and prices are read again after Amazon.productChanged.  The prices
+ * are read outside the lock appends take and published as a new array, so
+ * a running report keeps the prices it started with.  Configured with
+ * these system properties:
+ *
+ *    amazon.analytics.chunkRows     orders per chunk (65536)
+ *    amazon.analytics.offHeap       keep the columns in direct buffers (false)
+ *    amazon.analytics.parallelism   threads grouping the chunks (processors)
+ *
+ */
+public class OrderAnalytics {
+
+   /**
+    * Reads the pricePerUnit of the products of a store.
+    */
+   @FunctionalInterface
+   public interface Prices {
+      Map<String, Double> of(int storeID) throws SQLException;
+   }
+
+   /**
+    * Optional restrictions on the orders counted.
+    *
+    * @param storeIDs only orders of these stores, or null for every store
+    * @param from only orders at or after this time, or null
+    * @param to only orders before this time, or null
+    */
+   public record Filter(Set<Integer> storeIDs, LocalDateTime from, LocalDateTime to) {
+      public static final Filter NONE = new Filter(null, null, null);
+   }
+
+   public record StoreDay(int storeID, LocalDate day) {
+   }
+
+   /**
+    * The orders, units and revenue of one group.
+    */
+   public record Total<K>(K key, long orders, long units, double revenue) {
+   }
+
+   /**
+    * The orders of a customer on one day form a basket.
+    *
+    * @param baskets the number of baskets
+    * @param orders the average orders per basket
+    * @param units the average units per basket
+    * @param spend the average revenue per basket
+    * @param sizes the baskets with 1, 2, ... orders, the last entry counting
+    *        MAX_BASKET orders or more
+    */
+   public record Baskets(long baskets, double orders, double units, double spend, long[] sizes) {
+   }
+
+   /**
+    * The four reports over the same orders.
+    */
+   public record Report(List<Total<StoreDay>> revenue, List<Total<String>> products,
+                        List<Total<Integer>> customers, Baskets baskets) {
+   }
+
+   public static final int MAX_BASKET = 10;
+
+   static final long DAY = 24 * 3600_000L;
+
+   private enum GroupBy { STORE_DAY, PRODUCT, CUSTOMER, BASKET }
+
+   // one slice of the columns
+   private static final class Chunk {
+      final IntBuffer stores;
+      final IntBuffer items;
+      final IntBuffer customers;
+      final IntBuffer units;
+      final LongBuffer times;
+      long minTime = Long.MAX_VALUE;
+      long maxTime = Long.MIN_VALUE;
+
+      Chunk(int rows, boolean offHeap) {
+         stores = ints(rows, offHeap);
+         items = ints(rows, offHeap);
+         customers = ints(rows, offHeap);
+         units = ints(rows, offHeap);
+         times = offHeap ? direct(rows * 8L).asLongBuffer() : LongBuffer.allocate(rows);
+      }
+
+      static IntBuffer ints(int rows, boolean offHeap) {
+         return offHeap ? direct(rows * 4L).asIntBuffer() : IntBuffer.allocate(rows);
+      }
+
+      static ByteBuffer direct(long bytes) {
+         return ByteBuffer.allocateDirect(Math.toIntExact(bytes)).order(ByteOrder.nativeOrder());
+      }
+   }//end Chunk
+
+   // what a report reads, taken once so appends during the report are not seen
+   private record View(int rows, Chunk[] chunks, int[] itemNames, double[] prices, String[] names) {
+   }
+
+   private final Amazon esql;
+   private final Prices source;
+   private final int chunkRows;
+   private final boolean offHeap;
+   private final ForkJoinPool pool;
+
+   // written by one thread at a time (the load or appends under the lock), published through rows
+   private volatile Chunk[] chunks = new Chunk[0];
+   private volatile int rows = 0;
+   private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+   private volatile String[] names = new String[16];
+   // per product name id, the item id of each store selling it
+   private final List<Map<Integer, Integer>> itemIds = new ArrayList<Map<Integer, Integer>>();
+   private volatile int[] itemStores = new int[16];
+   private volatile int[] itemNames = new int[16];
+   // NaN until the price of the item has been read; replaced, never written, once a view may hold it
+   private volatile double[] prices = unpriced(16);
+   private int items = 0;
+   // the items whose price is to be read by the next report
+   private final BitSet stale = new BitSet();
+   // counts the resets of the dictionary, so prices read across one are dropped
+   private int generation = 0;
+
+   // groups per partition in the last report of each kind, to size the tables of the next one
+   private final int[] lastSizes = new int[GroupBy.values().length];
+
+   private final Object loadLock = new Object();
+   // one report reads the prices at a time, without holding the engine lock
+   private final Object priceLock = new Object();
+   private volatile boolean loaded;
+   private boolean loading = false;
+   // orders appended while the table is read
+   private final List<Rows.Order> pending = new ArrayList<Rows.Order>();
+
+   /**
+    * Creates an empty engine
+    *
+    * @param esql the database the orders are read from by the first report,
+    *        or null to start empty and only count appended orders
+    * @param source reads the prices of a store
+    * @param chunkRows the orders per chunk
+    * @param offHeap keep the columns outside the Java heap
+    * @param parallelism the threads grouping the chunks
+    */
+   public OrderAnalytics(Amazon esql, Prices source, int chunkRows, boolean offHeap, int parallelism) {
+      this.esql = esql;
+      this.source = source;
+      this.chunkRows = chunkRows;
+      this.offHeap = offHeap;
+      this.pool = new ForkJoinPool(parallelism);
+      this.loaded = esql == null;
+   }
+
+   public static OrderAnalytics fromSystemProperties(Amazon esql) {
+      return new OrderAnalytics(esql, storeID -> {
+            Map<String, Double> prices = new HashMap<String, Double>();
+            for (Rows.Product product : esql.catalog().products(storeID))
+               prices.put(product.productName(), product.pricePerUnit());
+            return prices;
+         }, Integer.getInteger("amazon.analytics.chunkRows", 65536),
+         Boolean.getBoolean("amazon.analytics.offHeap"),
+         Integer.getInteger("amazon.analytics.parallelism", Runtime.getRuntime().availableProcessors()));
+   }
+
+   /**
+    * Appends a newly placed order.  Orders placed before the table is read
+    * are skipped, the first report reads them from Orders.
+    *
+    * @param order the order
+    */
+   public synchronized void recordOrder(Rows.Order order) {
+      if (loading)
+         pending.add(order);
+      else if (loaded)
+         add(order.storeID(), Rows.trim(order.productName()), order.customerID(), order.unitsOrdered(),
+             millis(order.orderTime()));
+   }//end recordOrder
+
+   /**
+    * Marks the price of a product as changed; it is read again by the next
+    * report.
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    */
+   public synchronized void priceChanged(int storeID, String productName) {
+      // before and during the load every product is priced by the first report anyway
+      if (!loaded || loading)
+         return;
+      Integer name = nameIds.get(Rows.trim(productName));
+      Integer item = name == null ? null : itemIds.get(name).get(storeID);
+      if (item != null)
+         stale.set(item);
+   }//end priceChanged
+
+   /**
+    * Drops the orders read so far, for orders another process wrote to the
+    * tables: the next report reads them all again.  Reports already running
+    * finish on the old orders.
+    */
+   public void reload() {
+      if (esql == null)
+         return;
+      synchronized (loadLock) {
+         synchronized (this) {
+            if (loaded) {
+               loaded = false;
+               clear();
+            }
+         }
+      }
+   }//end reload
+
+   /**
+    * Revenue, orders and units per store and day
+    *
+    * @param filter the orders to count
+    * @return one total per store and day with orders, by store and day
+    * @throws java.sql.SQLException when the orders or prices cannot be read
+    */
+   public List<Total<StoreDay>> revenueByStoreDay(Filter filter) throws SQLException {
+      View view = prepare();
+      Groups[] parts = group("revenueByStoreDay", view, filter, GroupBy.STORE_DAY);
+      // the key is storeID and day in its high and low half, so key order is store and day order
+      int size = 0;
+      for (Groups groups : parts)
+         size += groups.size;
+      long[] keys = new long[size];
+      int n = 0;
+      for (Groups groups : parts)
+         for (int i = 0; i < groups.capacity; ++i)
+            if (groups.key(i) != Groups.EMPTY)
+               keys[n++] = groups.key(i);
+      Arrays.sort(keys);
+      List<Total<StoreDay>> result = new ArrayList<Total<StoreDay>>(size);
+      for (long key : keys) {
+         Groups groups = parts[partition(key, parts.length)];
+         int i = groups.find(key);
+         result.add(new Total<StoreDay>(new StoreDay((int) (key >>> 32), LocalDate.ofEpochDay((int) key)),
+                                        groups.orders(i), groups.units(i), groups.revenue(i)));
+      }
+      return result;
+   }//end revenueByStoreDay
+
+   /**
+    * The products with the most units ordered, over all stores
+    *
+    * @param filter the orders to count
+    * @param k the number of products, or 0 for all of them
+    * @return the totals per product name, most units first
+    * @throws java.sql.SQLException when the orders or prices cannot be read
+    */
+   public List<Total<String>> unitsByProduct(Filter filter, int k) throws SQLException {
+      View view = prepare();
+      List<Total<String>> result = new ArrayList<Total<String>>();
+      for (Groups groups : group("unitsByProduct", view, filter, GroupBy.PRODUCT))
+         for (int i = 0; i < groups.capacity; ++i)
+            if (groups.key(i) != Groups.EMPTY)
+               result.add(new Total<String>(view.names()[(int) groups.key(i)], groups.orders(i), groups.units(i),
+                                            groups.revenue(i)));
+      result.sort((a, b) -> Long.compare(b.units(), a.units()));
+      return k > 0 && k < result.size() ? new ArrayList<Total<String>>(result.subList(0, k)) : result;
+   }//end unitsByProduct
+
+   /**
+    * The customers who spent the most
+    *
+    * @param filter the orders to count
+    * @param k the number of customers, or 0 for all of them
+    * @return the totals per customer ID, highest revenue first
+    * @throws java.sql.SQLException when the orders or prices cannot be read
+    */
+   public List<Total<Integer>> spendByCustomer(Filter filter, int k) throws SQLException {
+      View view = prepare();
+      List<Total<Integer>> result = new ArrayList<Total<Integer>>();
+      for (Groups groups : group("spendByCustomer", view, filter, GroupBy.CUSTOMER))
+         for (int i = 0; i < groups.capacity; ++i)
+            if (groups.key(i) != Groups.EMPTY)
+               result.add(new Total<Integer>((int) groups.key(i), groups.orders(i), groups.units(i),
+                                             groups.revenue(i)));
+      result.sort((a, b) -> Double.compare(b.revenue(), a.revenue()));
+      return k > 0 && k < result.size() ? new ArrayList<Total<Integer>>(result.subList(0, k)) : result;
+   }//end spendByCustomer
+
+   /**
+    * The sizes of the baskets, the orders of one customer on one day
+    *
+    * @param filter the orders to count
+    * @return the number of baskets, their averages and the size histogram
+    * @throws java.sql.SQLException when the orders or prices cannot be read
+    */
+   public Baskets basketSizes(Filter filter) throws SQLException {
+      View view = prepare();
+      long baskets = 0, orders = 0, units = 0;
+      double spend = 0;
+      long[] sizes = new long[MAX_BASKET];
+      for (Groups groups : group("basketSizes", view, filter, GroupBy.BASKET)) {
+         baskets += groups.size;
+         orders += groups.orders;
+         units += groups.units;
+         spend += groups.revenue;
+         for (int i = 0; i < groups.capacity; ++i)
+            if (groups.key(i) != Groups.EMPTY)
+               ++sizes[(int) Math.min(groups.orders(i), MAX_BASKET) - 1];
+      }
+      return baskets == 0 ? new Baskets(0, 0, 0, 0, sizes)
+         : new Baskets(baskets, orders / (double) baskets, units / (double) baskets, spend / baskets, sizes);
+   }//end basketSizes
+
+   /**
+    * Runs all four reports
+    *
+    * @param filter the orders to count
+    * @param k the number of products and customers listed
+    * @return the reports
+    * @throws java.sql.SQLException when the orders or prices cannot be read
+    */
+   public Report report(Filter filter, int k) throws SQLException {
+      return new Report(revenueByStoreDay(filter), unitsByProduct(filter, k), spendByCustomer(filter, k),
+                        basketSizes(filter));
+   }
+
+   /**
+    * @return the number of orders held
+    */
+   public int size() {
+      return rows;
+   }
+
+   /**
+    * @return whether the orders have been read from the table
+    */
+   public boolean loaded() {
+      return loaded;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return String.format("orders=%d chunks=%d products=%d items=%d offHeap=%b parallelism=%d",
+                           rows, (rows + chunkRows - 1) / chunkRows, nameIds.size(), items, offHeap,
+                           pool.getParallelism());
+   }
+
+   /**
+    * Local date time as milliseconds since 1970-01-01T00:00, the form kept
+    * in the time column
+    */
+   static long millis(LocalDateTime time) {
+      return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+   }
+
+   // the orders loaded and priced, as of now
+   private View prepare() throws SQLException {
+      synchronized (priceLock) {
+         boolean priced = false;
+         while (true) {
+            load();
+            BitSet wanted;
+            int[] itemStores, itemNames;
+            String[] names;
+            int generation;
+            synchronized (this) {
+               // reloaded since load() returned
+               if (!loaded)
+                  continue;
+               // a price changed during the last read is read by the next report, an unknown one now
+               if (stale.isEmpty() || priced && known(stale)) {
+                  // rows first: everything it publishes was written before it
+                  int rows = this.rows;
+                  return new View(rows, chunks, this.itemNames, prices, this.names);
+               }
+               wanted = (BitSet) stale.clone();
+               stale.clear();
+               itemStores = this.itemStores;
+               itemNames = this.itemNames;
+               names = this.names;
+               generation = this.generation;
+            }
+            double[] read;
+            try {
+               read = price(wanted, itemStores, itemNames, names);
+            } catch (SQLException | RuntimeException e) {
+               synchronized (this) {
+                  stale.or(wanted);
+               }
+               throw e;
+            }
+            synchronized (this) {
+               if (generation != this.generation)
+                  continue;
+               double[] prices = Arrays.copyOf(this.prices, this.prices.length);
+               for (int item = wanted.nextSetBit(0); item >= 0; item = wanted.nextSetBit(item + 1))
+                  prices[item] = read[item];
+               this.prices = prices;
+            }
+            priced = true;
+         }
+      }
+   }//end prepare
+
+   // whether every item in the set has a price, if maybe an old one
+   private boolean known(BitSet items) {
+      for (int item = items.nextSetBit(0); item >= 0; item = items.nextSetBit(item + 1))
+         if (Double.isNaN(prices[item]))
+            return false;
+      return true;
+   }
+
+   // reads every order from the table, once
+   private void load() throws SQLException {
+      if (loaded)
+         return;
+      synchronized (loadLock) {
+         if (loaded)
+            return;
+         synchronized (this) {
+            loading = true;
+         }
+         int[] last = {0};
+         boolean ok = false;
+         long start = System.nanoTime();
+         try {
+            // appends wait in pending meanwhile, so this thread is the only writer
+            String columns = "SELECT orderNumber, storeID, productName, customerID, unitsOrdered, orderTime";
+            // pages by orderNumber over both tables: an archive run between two pages moves orders within
+            // the union, so each order is still read exactly once
+            String from = esql.archive().present()
+               ? "SELECT * FROM (" + columns + " FROM Orders UNION ALL " + columns + " FROM OrdersArchive) o"
+               : columns + " FROM Orders";
+            String order = " ORDER BY orderNumber LIMIT ?";
+            esql.streamPages(from + order, from + " WHERE orderNumber > ?" + order, new String[] {"ordernumber"},
+               rs -> {
+                  last[0] = Math.max(last[0], rs.getInt(1));
+                  add(rs.getInt(2), Rows.trim(rs.getString(3)), rs.getInt(4), rs.getInt(5),
+                      millis(rs.getTimestamp(6).toLocalDateTime()));
+                  return null;
+               }, row -> {});
+            ok = true;
+         } finally {
+            synchronized (this) {
+               if (ok) {
+                  // orders placed during the load that it did not read
+                  for (Rows.Order order : pending)
+                     if (order.orderNumber() > last[0])
+                        add(order.storeID(), Rows.trim(order.productName()), order.customerID(),
+                            order.unitsOrdered(), millis(order.orderTime()));
+                  loaded = true;
+               } else {
+                  clear();
+               }
+               pending.clear();
+               loading = false;
+            }
+            esql.metrics().record("analyticsLoad", "OrderAnalytics.load", start, rows, !ok);
+         }
+      }
+   }//end load
+
+   private void add(int storeID, String productName, int customerID, int units, long time) {
+      int item = item(storeID, productName);
+      int row = rows;
+      int c = row / chunkRows, i = row % chunkRows;
+      if (i == 0) {
+         Chunk[] chunks = this.chunks;
+         if (c == chunks.length)
+            chunks = Arrays.copyOf(chunks, Math.max(4, chunks.length * 2));
+         chunks[c] = new Chunk(chunkRows, offHeap);
+         this.chunks = chunks;
+      }
+      Chunk chunk = chunks[c];
+      chunk.stores.put(i, storeID);
+      chunk.items.put(i, item);
+      chunk.customers.put(i, customerID);
+      chunk.units.put(i, units);
+      chunk.times.put(i, time);
+      chunk.minTime = Math.min(chunk.minTime, time);
+      chunk.maxTime = Math.max(chunk.maxTime, time);
+      rows = row + 1;
+   }//end add
+
+   // the dictionary id of a product of a store, added unpriced when new
+   private int item(int storeID, String productName) {
+      Integer name = nameIds.get(productName);
+      if (name == null) {
+         name = nameIds.size();
+         if (name == names.length)
+            names = Arrays.copyOf(names, name * 2);
+         names[name] = productName;
+         nameIds.put(productName, name);
+         itemIds.add(new HashMap<Integer, Integer>());
+      }
+      Integer item = itemIds.get(name).get(storeID);
+      if (item != null)
+         return item;
+      item = items;
+      if (item == prices.length) {
+         itemStores = Arrays.copyOf(itemStores, item * 2);
+         itemNames = Arrays.copyOf(itemNames, item * 2);
+         double[] prices = unpriced(item * 2);
+         System.arraycopy(this.prices, 0, prices, 0, item);
+         this.prices = prices;
+      }
+      itemStores[item] = storeID;
+      itemNames[item] = name;
+      stale.set(item);
+      itemIds.get(name).put(storeID, item);
+      ++items;
+      return item;
+   }//end item
+
+   // reads the prices of the wanted items, one catalog lookup per store
+   private double[] price(BitSet wanted, int[] itemStores, int[] itemNames, String[] names) throws SQLException {
+      Map<Integer, Map<String, Double>> stores = new HashMap<Integer, Map<String, Double>>();
+      double[] prices = new double[wanted.length()];
+      for (int item = wanted.nextSetBit(0); item >= 0; item = wanted.nextSetBit(item + 1)) {
+         Map<String, Double> store = stores.get(itemStores[item]);
+         if (store == null) {
+            store = source.of(itemStores[item]);
+            stores.put(itemStores[item], store);
+         }
+         // a product no longer listed earns nothing, as with an inner join
+         Double price = store.get(names[itemNames[item]]);
+         prices[item] = price == null ? 0 : price;
+      }
+      return prices;
+   }//end price
+
+   private static double[] unpriced(int items) {
+      double[] prices = new double[items];
+      Arrays.fill(prices, Double.NaN);
+      return prices;
+   }
+
+   // new arrays rather than cleared ones, a running report may still read the old
+   private void clear() {
+      chunks = new Chunk[0];
+      rows = 0;
+      nameIds.clear();
+      names = new String[16];
+      itemIds.clear();
+      itemStores = new int[16];
+      itemNames = new int[16];
+      items = 0;
+      prices = unpriced(16);
+      stale.clear();
+      ++generation;
+   }
+
+   /*
+    * Groups the orders of a view.  Products are few, so every chunk is
+    * grouped on its own and the tables merged.  The other keys can number
+    * as many as the orders; merging tables that size costs more than the
+    * grouping, so instead every thread scans all chunks and only keeps the
+    * keys of its own hash partition, and the partitions never overlap.
+    **/
+   private Groups[] group(String report, View view, Filter filter, GroupBy by) {
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+         Where where = new Where(filter);
+         int chunks = (view.rows() + chunkRows - 1) / chunkRows;
+         Groups[] result;
+         if (by == GroupBy.PRODUCT) {
+            result = new Groups[] {pool.invoke(new Scan(view, where, by, 0, chunks, 0, 1))};
+         } else {
+            int parts = pool.getParallelism();
+            Scan[] scans = new Scan[parts];
+            for (int p = 0; p < parts; ++p)
+               pool.execute(scans[p] = new Scan(view, where, by, 0, chunks, p, parts));
+            result = new Groups[parts];
+            for (int p = 0; p < parts; ++p)
+               result[p] = scans[p].join();
+            lastSizes[by.ordinal()] = result[0].size;
+         }
+         failed = false;
+         return result;
+      } finally {
+         if (esql != null)
+            esql.metrics().record("analytics", "OrderAnalytics." + report, start, view.rows(), failed);
+      }
+   }//end group
+
+   // the hash partition of a group key
+   private static int partition(long key, int parts) {
+      return parts == 1 ? 0 : (int) ((Groups.hash(key) >>> 33) % parts);
+   }
+
+   // a filter in the form of the columns
+   private record Where(BitSet stores, long from, long to) {
+      Where(Filter filter) {
+         this(stores(filter.storeIDs()), filter.from() == null ? Long.MIN_VALUE : millis(filter.from()),
+              filter.to() == null ? Long.MAX_VALUE : millis(filter.to()));
+      }
+
+      static BitSet stores(Set<Integer> storeIDs) {
+         if (storeIDs == null)
+            return null;
+         BitSet stores = new BitSet();
+         for (int storeID : storeIDs)
+            if (storeID >= 0)
+               stores.set(storeID);
+         return stores;
+      }
+   }//end Where
+
+   // groups a range of chunks, or the keys of one partition in them
+   private final class Scan extends RecursiveTask<Groups> {
+      private static final long serialVersionUID = 1L;
+
+      private final View view;
+      private final Where where;
+      private final GroupBy by;
+      private final int from;
+      private final int to;
+      private final int part;
+      private final int parts;
+
+      Scan(View view, Where where, GroupBy by, int from, int to, int part, int parts) {
+         this.view = view;
+         this.where = where;
+         this.by = by;
+         this.from = from;
+         this.to = to;
+         this.part = part;
+         this.parts = parts;
+      }
+
+      @Override
+      protected Groups compute() {
+         Groups groups = new Groups(by == GroupBy.PRODUCT ? 64 : Math.max(4096, lastSizes[by.ordinal()] * 4 / 3),
+                                    by != GroupBy.BASKET);
+         if (by != GroupBy.PRODUCT || to - from <= 1) {
+            for (int c = from; c < to; ++c)
+               chunk(c, groups);
+            return groups;
+         }
+         // split in halves down to single chunks
+         int mid = (from + to) >>> 1;
+         Scan left = new Scan(view, where, by, from, mid, part, parts);
+         left.fork();
+         Groups right = new Scan(view, where, by, mid, to, part, parts).compute();
+         return Groups.merge(left.join(), right);
+      }
+
+      private void chunk(int c, Groups groups) {
+         Chunk chunk = view.chunks()[c];
+         int n = Math.min(chunkRows, view.rows() - c * chunkRows);
+         // chunks outside the time range are skipped, chunks inside it need no time check
+         if (chunk.maxTime < where.from() || chunk.minTime >= where.to())
+            return;
+         boolean anyTime = chunk.minTime >= where.from() && chunk.maxTime < where.to();
+         long from = where.from(), to = where.to();
+         BitSet stores = where.stores();
+         int[] itemNames = view.itemNames();
+         double[] prices = view.prices();
+         GroupBy by = this.by;
+         int part = this.part, parts = this.parts;
+         for (int i = 0; i < n; ++i) {
+            int store = chunk.stores.get(i);
+            if (stores != null && !stores.get(store))
+               continue;
+            long time = chunk.times.get(i);
+            if (!anyTime && (time < from || time >= to))
+               continue;
+            int item = chunk.items.get(i);
+            long key;
+            if (by == GroupBy.PRODUCT)
+               key = itemNames[item];
+            else if (by == GroupBy.CUSTOMER)
+               key = chunk.customers.get(i);
+            else if (by == GroupBy.STORE_DAY)
+               key = (long) store << 32 | (Math.floorDiv(time, DAY) & 0xffffffffL);
+            else
+               key = (long) chunk.customers.get(i) << 32 | (Math.floorDiv(time, DAY) & 0xffffffffL);
+            if (parts > 1 && partition(key, parts) != part)
+               continue;
+            int units = chunk.units.get(i);
+            groups.add(key, 1, units, units * prices[item]);
+         }
+      }//end chunk
+   }//end Scan
+
+   /**
+    * Open addressing hash table from a group key to its orders, units and
+    * revenue, with the totals over all keys.  The fields of a slot sit next
+    * to each other in one array, so an update touches one cache line; a
+    * table without sums keeps the orders only.  Keys are never negative,
+    * so a negative key marks a free slot.
+    */
+   static final class Groups {
+      static final long EMPTY = Long.MIN_VALUE;
+
+      // key, orders, then units and the bits of the revenue when there are sums
+      final int width;
+      long[] slots;
+      int capacity;
+      int size = 0;
+      long orders = 0;
+      long units = 0;
+      double revenue = 0;
+
+      Groups(int capacity, boolean sums) {
+         this.width = sums ? 4 : 2;
+         allocate(Integer.highestOneBit(Math.max(16, capacity - 1) * 2));
+      }
+
+      long key(int i) {
+         return slots[i * width];
+      }
+
+      long orders(int i) {
+         return slots[i * width + 1];
+      }
+
+      long units(int i) {
+         return width == 4 ? slots[i * width + 2] : 0;
+      }
+
+      double revenue(int i) {
+         return width == 4 ? Double.longBitsToDouble(slots[i * width + 3]) : 0;
+      }
+
+      void add(long key, long n, long u, double r) {
+         orders += n;
+         units += u;
+         revenue += r;
+         put(key, n, u, r);
+      }
+
+      // the slot of a key that is in the table
+      int find(long key) {
+         int mask = capacity - 1;
+         int i = (int) hash(key) & mask;
+         while (key(i) != key)
+            i = (i + 1) & mask;
+         return i;
+      }
+
+      // the finalizer of MurmurHash3; store and customer IDs sit in the high half of keys
+      static long hash(long key) {
+         long h = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+         h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+         return h ^ (h >>> 33);
+      }
+
+      // adds the smaller table into the larger one
+      static Groups merge(Groups a, Groups b) {
+         if (a.size < b.size)
+            return merge(b, a);
+         for (int i = 0; i < b.capacity; ++i)
+            if (b.key(i) != EMPTY)
+               a.put(b.key(i), b.orders(i), b.units(i), b.revenue(i));
+         a.orders += b.orders;
+         a.units += b.units;
+         a.revenue += b.revenue;
+         return a;
+      }
+
+      private void put(long key, long n, long u, double r) {
+         int mask = capacity - 1;
+         int i = (int) hash(key) & mask;
+         while (true) {
+            int at = i * width;
+            long k = slots[at];
+            if (k == EMPTY) {
+               if (4 * (size + 1) > 3 * capacity) {
+                  grow();
+                  put(key, n, u, r);
+                  return;
+               }
+               slots[at] = key;
+               ++size;
+            } else if (k != key) {
+               i = (i + 1) & mask;
+               continue;
+            }
+            slots[at + 1] += n;
+            if (width == 4) {
+               slots[at + 2] += u;
+               slots[at + 3] = Double.doubleToRawLongBits(Double.longBitsToDouble(slots[at + 3]) + r);
+            }
+            return;
+         }
+      }//end put
+
+      private void allocate(int capacity) {
+         this.capacity = capacity;
+         slots = new long[capacity * width];
+         for (int i = 0; i < slots.length; i += width)
+            slots[i] = EMPTY;
+      }
+
+      private void grow() {
+         long[] old = slots;
+         allocate(capacity * 2);
+         size = 0;
+         for (int at = 0; at < old.length; at += width)
+            if (old[at] != EMPTY)
+               put(old[at], old[at + 1], width == 4 ? old[at + 2] : 0,
+                   width == 4 ? Double.longBitsToDouble(old[at + 3]) : 0);
+      }
+   }//end Groups
+
+}//end OrderAnalytics
@@ -0,0 +1,299 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves orders older than a cutoff out of Orders into OrdersArchive, a
+ * table partitioned by month of orderTime, so Orders and indexOrders only
+ * hold the recent orders that viewRecentOrders and the first pages of the
+ * order history read.  The archived orders stay queryable: OrderHistory
+ * continues into the archive past the last recent order, and the exports
+ * and OrderAnalytics read both tables.
+ *
+ * The same transaction that moves a batch of orders adds their counts to
+ * ProductOrderRollups (storeID, productName) and CustomerOrderRollups
+ * (storeID, customerID), and OrderPopularity starts from these rollups
+ * plus a GROUP BY of Orders only, instead of grouping the whole history.
+ *
+ * Every run is first recorded in OrderArchiveRuns with its cutoff, before
+ * any order moves, so every archived order is older than the latest cutoff
+ * a reader can see.  A batch moves batchRows orders in one statement, in
+ * orderNumber order, so a run over a large table commits as it goes and
+ * can be repeated after a failure.  Afterwards Orders is vacuumed and its
+ * indexes are rebuilt, which gives the space of the moved rows back.
+ * The tables come from create_tables.sql; on a database without them the
+ * archive stays off and Orders is read as before.  Configured with these
+ * system properties:
+ *
+ *    amazon.archive.afterDays    orders older than this many days are archived (90)
+ *    amazon.archive.batchRows    orders moved per transaction (50000)
+ *    amazon.archive.reindex      rebuild the Orders indexes after a run (true)
+ *    amazon.archive.everyHours   archive in the background this often, 0 for never (0)
+ *
+ */
+public class OrderArchive implements AutoCloseable {
+
+   /**
+    * The outcome of a run.
+    *
+    * @param cutoff orders before this time were archived
+    * @param moved the number of orders moved
+    * @param partitions the monthly partitions the orders went to
+    * @param indexBytesBefore the size of the Orders indexes before the run
+    * @param indexBytesAfter the size of the Orders indexes after the run
+    * @param elapsedMillis the duration of the run
+    */
+   public record Report(LocalDateTime cutoff, long moved, int partitions, long indexBytesBefore,
+                        long indexBytesAfter, long elapsedMillis) {
+   }
+
+   static final String TABLES =
+      "SELECT count(*) FROM pg_class WHERE relname IN"
+      + " ('ordersarchive', 'productorderrollups', 'customerorderrollups', 'orderarchiveruns')";
+   static final String MONTHS =
+      "SELECT DISTINCT date_trunc('month', orderTime) FROM Orders WHERE orderTime < ?";
+   static final String START_RUN =
+      "INSERT INTO OrderArchiveRuns(cutoff, startedOn) VALUES (?, now()) RETURNING runNumber";
+   static final String END_RUN =
+      "UPDATE OrderArchiveRuns SET ordersMoved = ? WHERE runNumber = ?";
+   // the latest cutoff, every archived order is older
+   static final String ARCHIVED_BEFORE = "SELECT max(cutoff) FROM OrderArchiveRuns";
+   static final String INDEX_BYTES = "SELECT pg_indexes_size('orders')";
+   static final String MOVE =
+      "WITH moved AS (DELETE FROM Orders WHERE orderNumber IN"
+      + " (SELECT orderNumber FROM Orders WHERE orderNumber > ? AND orderTime < ? ORDER BY orderNumber LIMIT ?)"
+      + " RETURNING orderNumber, customerID, storeID, productName, unitsOrdered, orderTime),"
+      + " archived AS (INSERT INTO OrdersArchive(orderNumber, customerID, storeID, productName, unitsOrdered, orderTime)"
+      + " SELECT * FROM moved RETURNING orderNumber, customerID, storeID, productName, unitsOrdered),"
+      + " products AS (INSERT INTO ProductOrderRollups(storeID, productName, orders, units)"
+      + " SELECT storeID, productName, count(*), sum(unitsOrdered) FROM archived GROUP BY storeID, productName"
+      + " ON CONFLICT (storeID, productName) DO UPDATE SET orders = ProductOrderRollups.orders + EXCLUDED.orders,"
+      + " units = ProductOrderRollups.units + EXCLUDED.units),"
+      + " customers AS (INSERT INTO CustomerOrderRollups(storeID, customerID, orders, units)"
+      + " SELECT storeID, customerID, count(*), sum(unitsOrdered) FROM archived GROUP BY storeID, customerID"
+      + " ON CONFLICT (storeID, customerID) DO UPDATE SET orders = CustomerOrderRollups.orders + EXCLUDED.orders,"
+      + " units = CustomerOrderRollups.units + EXCLUDED.units)"
+      + " SELECT count(*), coalesce(max(orderNumber), 0) FROM archived";
+
+   static final DateTimeFormatter MONTH = DateTimeFormatter.ofPattern("yyyyMM");
+
+   private final Amazon esql;
+   private final int afterDays;
+   private final int batchRows;
+   private final boolean reindex;
+   private final long everyHours;
+
+   private volatile boolean present = false;
+   private ScheduledExecutorService archiver = null;
+
+   /**
+    * Creates the archive of an Amazon instance
+    *
+    * @param esql the database whose orders are archived
+    * @param afterDays archive() moves the orders older than this many days
+    * @param batchRows orders moved per transaction
+    * @param reindex rebuild the Orders indexes after each run
+    * @param everyHours how often start() archives in the background, 0 for never
+    */
+   public OrderArchive(Amazon esql, int afterDays, int batchRows, boolean reindex, long everyHours) {
+      if (afterDays < 0 || batchRows <= 0)
+         throw new IllegalArgumentException("invalid archive settings " + afterDays + " days, " + batchRows + " rows");
+      this.esql = esql;
+      this.afterDays = afterDays;
+      this.batchRows = batchRows;
+      this.reindex = reindex;
+      this.everyHours = everyHours;
+   }
+
+   public static OrderArchive fromSystemProperties(Amazon esql) {
+      return new OrderArchive(esql, Integer.getInteger("amazon.archive.afterDays", 90),
+                              Integer.getInteger("amazon.archive.batchRows", 50000),
+                              Boolean.parseBoolean(System.getProperty("amazon.archive.reindex", "true")),
+                              Long.getLong("amazon.archive.everyHours", 0));
+   }
+
+   /**
+    * Archives the orders older than a cutoff.
+    *
+    * Usage: java OrderArchive <dbname> <port> <user> [--afterDays n | --before yyyy-mm-dd]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderArchive <dbname> <port> <user> [--afterDays n | --before yyyy-mm-dd]");
+         return;
+      }
+      LocalDateTime cutoff = null;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--afterDays": cutoff = LocalDate.now().minusDays(Integer.parseInt(args[++i])).atStartOfDay(); break;
+            case "--before": cutoff = LocalDate.parse(args[++i]).atStartOfDay(); break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try {
+         Report report = cutoff == null ? esql.archive().archive() : esql.archive().archive(cutoff);
+         System.out.printf("%d orders before %s moved to %d partitions in %d ms, Orders indexes %.1f MB -> %.1f MB%n",
+                           report.moved(), report.cutoff(), report.partitions(), report.elapsedMillis(),
+                           report.indexBytesBefore() / 1e6, report.indexBytesAfter() / 1e6);
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Checks whether the archive tables exist
+    *
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   public void open() throws SQLException {
+      Integer tables = esql.queryOne(TABLES, Rows.INT);
+      present = tables != null && tables == 4;
+   }
+
+   /**
+    * @return whether the archive tables exist, so archived orders have to
+    *         be read from OrdersArchive as well
+    */
+   public boolean present() {
+      return present;
+   }
+
+   /**
+    * Starts archiving in the background every everyHours, when configured
+    */
+   public synchronized void start() {
+      if (!present || everyHours <= 0 || archiver != null)
+         return;
+      archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "order-archive");
+         thread.setDaemon(true);
+         return thread;
+      });
+      archiver.scheduleWithFixedDelay(() -> {
+         try {
+            archive();
+         } catch (SQLException | RuntimeException e) {
+            System.err.println("Order archiving failed: " + e.getMessage());
+         }
+      }, everyHours, everyHours, TimeUnit.HOURS);
+   }//end start
+
+   @Override
+   public synchronized void close() {
+      if (archiver != null) {
+         archiver.shutdownNow();
+         archiver = null;
+      }
+   }
+
+   /**
+    * Archives the orders older than afterDays
+    *
+    * @return what was moved
+    * @throws java.sql.SQLException when a statement fails; the batches
+    *         committed so far stay archived
+    */
+   public Report archive() throws SQLException {
+      return archive(LocalDate.now().minusDays(afterDays).atStartOfDay());
+   }
+
+   /**
+    * Moves every order placed before the cutoff to OrdersArchive and adds
+    * it to the rollups
+    *
+    * @param cutoff orders before this time are archived
+    * @return what was moved
+    * @throws java.sql.SQLException when a statement fails; the batches
+    *         committed so far stay archived
+    */
+   public synchronized Report archive(LocalDateTime cutoff) throws SQLException {
+      if (!present)
+         throw new IllegalStateException("The archive tables do not exist, run create_tables.sql first.");
+      long start = System.nanoTime();
+      Timestamp before = Timestamp.valueOf(cutoff);
+      long indexBytesBefore = esql.queryOne(INDEX_BYTES, Rows.LONG);
+      long moved = 0;
+      List<LocalDate> months = new ArrayList<LocalDate>();
+      try {
+         try (ConnectionPool.PooledConnection conn = esql.pool().acquire()) {
+            // a partition for every month that has orders to move
+            try (ResultSet rs = conn.statements().prepare(MONTHS, before).executeQuery()) {
+               while (rs.next())
+                  months.add(rs.getTimestamp(1).toLocalDateTime().toLocalDate());
+            }
+            try (Statement ddl = conn.connection().createStatement()) {
+               for (LocalDate month : months)
+                  ddl.execute("CREATE TABLE IF NOT EXISTS OrdersArchive_" + MONTH.format(month)
+                              + " PARTITION OF OrdersArchive FOR VALUES FROM ('" + month + "') TO ('"
+                              + month.plusMonths(1) + "')");
+            }
+         }
+         if (months.isEmpty())
+            return new Report(cutoff, 0, 0, indexBytesBefore, indexBytesBefore, elapsedMillis(start));
+
+         // the cutoff is visible before the first order leaves Orders
+         int run = esql.queryOne(START_RUN, Rows.INT, before);
+         int last = 0;
+         while (true) {
+            long batchStart = System.nanoTime();
+            long rows = 0;
+            boolean failed = true;
+            try (ConnectionPool.PooledConnection conn = esql.pool().acquire()) {
+               PreparedStatement move = conn.statements().prepare(MOVE, last, before, batchRows);
+               try (ResultSet rs = move.executeQuery()) {
+                  rs.next();
+                  rows = rs.getLong(1);
+                  last = Math.max(last, rs.getInt(2));
+               }
+               failed = false;
+            } finally {
+               esql.metrics().record("archiveBatch", MOVE, batchStart, rows, failed);
+            }
+            if (rows == 0)
+               break;
+            moved += rows;
+         }
+         esql.executeUpdate(END_RUN, moved, run);
+         if (moved > 0)
+            compact();
+      } finally {
+         esql.router().wrote();
+      }
+      return new Report(cutoff, moved, months.size(), indexBytesBefore, esql.queryOne(INDEX_BYTES, Rows.LONG),
+                        elapsedMillis(start));
+   }//end archive
+
+   // gives the space of the moved rows back and refreshes the planner statistics
+   private void compact() throws SQLException {
+      long start = System.nanoTime();
+      boolean failed = true;
+      try (ConnectionPool.PooledConnection conn = esql.pool().acquire();
+           Statement s = conn.connection().createStatement()) {
+         // neither runs inside a transaction
+         s.execute("VACUUM ANALYZE Orders");
+         if (reindex)
+            s.execute("REINDEX TABLE CONCURRENTLY Orders");
+         s.execute("ANALYZE OrdersArchive");
+         failed = false;
+      } finally {
+         esql.metrics().record("archiveCompact", "VACUUM ANALYZE Orders", start, 0, failed);
+      }
+   }//end compact
+
+   private static long elapsedMillis(long start) {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+   }
+
+}//end OrderArchive
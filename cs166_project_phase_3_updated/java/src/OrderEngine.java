@@ -0,0 +1,122 @@
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+
+/**
+ * Places orders atomically.  The distance check, the stock check, the
+ * inventory decrement and the insert into Orders all happen in a single
+ * statement, so the order number comes from the Orders sequence and two
+ * buyers can never both take the last units of a product.  A second
+ * read-only query is only issued when the order is rejected, to tell the
+ * caller why.
+ *
+ */
+public class OrderEngine {
+
+   // customers may only order from stores within this distance
+   public static final double MAX_DISTANCE = 30;
+
+   public enum Status {
+      PLACED, STORE_NOT_FOUND, TOO_FAR, PRODUCT_NOT_FOUND, OUT_OF_STOCK, EXPIRED
+   }
+
+   /**
+    * The outcome of an order attempt.
+    */
+   public static class Result {
+      public final Status status;
+      // the new Orders.orderNumber, or -1 when the order was rejected
+      public final int orderNumber;
+
+      Result(Status status, int orderNumber) {
+         this.status = status;
+         this.orderNumber = orderNumber;
+      }
+
+      public boolean placed() {
+         return status == Status.PLACED;
+      }
+   }//end Result
+
+   static final String PLACE_ORDER =
+      "WITH store AS (" +
+      "   SELECT storeID FROM Store" +
+      "    WHERE storeID = ?" +
+      "      AND sqrt(power(latitude - ?, 2) + power(longitude - ?, 2)) <= ?" +
+      "), stock AS (" +
+      "   UPDATE Product p SET numberOfUnits = p.numberOfUnits - ?" +
+      "    WHERE p.storeID = (SELECT storeID FROM store) AND p.productName = ?" +
+      "      AND p.numberOfUnits >= ?" +
+      "   RETURNING p.storeID, p.productName" +
+      ") " +
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+      "SELECT ?, storeID, productName, ?, now() FROM stock " +
+      "RETURNING orderNumber";
+
+   static final String DIAGNOSE =
+      "SELECT sqrt(power(s.latitude - ?, 2) + power(s.longitude - ?, 2)), p.numberOfUnits" +
+      "  FROM Store s LEFT JOIN Product p ON p.storeID = s.storeID AND p.productName = ?" +
+      " WHERE s.storeID = ?";
+
+   private final Amazon esql;
+
+   public OrderEngine(Amazon esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Places an order for a customer.  The customer's location comes from
+    * the cached profile, so no Users lookup is needed.
+    *
+    * @param customer the profile of the customer placing the order
+    * @param storeID the store to order from
+    * @param productName the product to order
+    * @param units the number of units, must be positive
+    * @return the outcome, with the new order number when placed
+    * @throws java.sql.SQLException when the statements fail
+    */
+   public Result place(Rows.User customer, int storeID, String productName, int units) throws SQLException {
+      if (units <= 0)
+         throw new IllegalArgumentException("number of units must be positive");
+      double lat = customer.latitude(), lon = customer.longitude();
+
+      Integer orderNumber = esql.queryOne(PLACE_ORDER, Rows.INT,
+         storeID, lat, lon, MAX_DISTANCE, units, productName, units, customer.userID(), units);
+      if (orderNumber != null) {
+         esql.stockChanged(storeID, productName);
+         esql.popularity().recordOrder(orderNumber, storeID, productName, customer.userID(), System.currentTimeMillis());
+         esql.analytics().recordOrder(new Rows.Order(orderNumber, customer.userID(), storeID, productName, units,
+                                                     LocalDateTime.now()));
+         return new Result(Status.PLACED, orderNumber);
+      }
+
+      return new Result(diagnose(lat, lon, storeID, productName), -1);
+   }//end place
+
+   /**
+    * Works out why an order the inventory did not reserve units for cannot
+    * be placed, without trying to place it
+    *
+    * @param customer the profile of the customer
+    * @param storeID the store to order from
+    * @param productName the product to order
+    * @return the outcome, OUT_OF_STOCK when the product is listed nearby
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Result refused(Rows.User customer, int storeID, String productName) throws SQLException {
+      return new Result(diagnose(customer.latitude(), customer.longitude(), storeID, productName), -1);
+   }
+
+   // works out why PLACE_ORDER inserted nothing
+   private Status diagnose(double lat, double lon, int storeID, String productName) throws SQLException {
+      Status status = esql.queryOne(DIAGNOSE, rs -> {
+         if (rs.getDouble(1) > MAX_DISTANCE)
+            return Status.TOO_FAR;
+         if (rs.getObject(2) == null)
+            return Status.PRODUCT_NOT_FOUND;
+         // either short on stock or another buyer took the units meanwhile
+         return Status.OUT_OF_STOCK;
+      }, lat, lon, productName, storeID);
+      return status == null ? Status.STORE_NOT_FOUND : status;
+   }//end diagnose
+
+}//end OrderEngine
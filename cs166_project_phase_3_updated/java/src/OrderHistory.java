@@ -0,0 +1,168 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Pages through the order history of a customer, newest first.  Pages are
+ * read with keyset pagination: instead of an OFFSET, which makes the
+ * database read and discard every earlier row, each page starts right
+ * after the (orderTime, orderNumber) of the last order of the previous
+ * page.  Every page is then a range scan of indexOrders (customerID,
+ * orderTime), so page 1,000 costs the same as page 1.
+ *
+ * Once OrderArchive has moved old orders to OrdersArchive, a page is read
+ * from Orders first.  The archive is only read as well when that page is
+ * short or reaches back past the archive cutoff, which comes with the
+ * rows; the two are merged, so a page of recent orders never touches the
+ * archive and the pages continue seamlessly into it.
+ *
+ * The position is handed out as an opaque cursor string that also
+ * fingerprints the filter it was created with, so it cannot be replayed
+ * against a different query.
+ *
+ */
+public class OrderHistory {
+
+   /**
+    * Optional restrictions on the orders listed.
+    *
+    * @param storeID only orders of this store, or null for every store
+    * @param from only orders at or after this time, or null
+    * @param to only orders before this time, or null
+    */
+   public record Filter(Integer storeID, LocalDateTime from, LocalDateTime to) {
+      public static final Filter NONE = new Filter(null, null, null);
+   }
+
+   /**
+    * One page of orders.
+    *
+    * @param orders the orders, newest first
+    * @param next the cursor of the following page, or null on the last page
+    */
+   public record Page(List<Rows.Order> orders, String next) {
+   }
+
+   public static final int MAX_PAGE_SIZE = 500;
+
+   private final Amazon esql;
+
+   public OrderHistory(Amazon esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Reads one page of a customer's orders
+    *
+    * @param customerID the customer whose orders are listed
+    * @param filter restrictions on the orders, Filter.NONE for all
+    * @param cursor the next cursor of the previous page, or null for the first page
+    * @param size the number of orders per page
+    * @return the page and the cursor of the next one
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Page page(int customerID, Filter filter, String cursor, int size) throws SQLException {
+      if (size <= 0 || size > MAX_PAGE_SIZE)
+         throw new IllegalArgumentException("page size must be between 1 and " + MAX_PAGE_SIZE);
+      StringBuilder where = new StringBuilder(" WHERE customerID = ?");
+      List<Object> params = new ArrayList<Object>();
+      params.add(customerID);
+      if (cursor != null) {
+         Key after = decode(cursor, filter);
+         // the orderTime bound alone lets the index range scan start at the cursor
+         where.append(" AND orderTime <= ? AND (orderTime < ? OR orderNumber < ?)");
+         Timestamp time = Timestamp.valueOf(after.orderTime());
+         params.add(time);
+         params.add(time);
+         params.add(after.orderNumber());
+      }
+      if (filter.storeID() != null) {
+         where.append(" AND storeID = ?");
+         params.add(filter.storeID());
+      }
+      if (filter.from() != null) {
+         where.append(" AND orderTime >= ?");
+         params.add(Timestamp.valueOf(filter.from()));
+      }
+      if (filter.to() != null) {
+         where.append(" AND orderTime < ?");
+         params.add(Timestamp.valueOf(filter.to()));
+      }
+      // one row more than the page tells whether there is a next page
+      String order = " ORDER BY orderTime DESC, orderNumber DESC LIMIT ?";
+      params.add(size + 1);
+
+      List<Rows.Order> orders;
+      if (!esql.archive().present()) {
+         orders = esql.queryList("SELECT * FROM Orders" + where + order, Rows.Order.MAPPER, params.toArray());
+      } else {
+         // the latest archive cutoff is read with the rows, from the same snapshot
+         Timestamp[] archivedBefore = {null};
+         orders = esql.queryList("SELECT *, (" + OrderArchive.ARCHIVED_BEFORE + ") AS archivedBefore FROM Orders"
+                                 + where + order, rs -> {
+               archivedBefore[0] = rs.getTimestamp("archivedBefore");
+               return Rows.Order.MAPPER.map(rs);
+            }, params.toArray());
+         // every archived order is older than the cutoff, so only a short page or one reaching past it continues there
+         if (orders.isEmpty() || archivedBefore[0] != null && (orders.size() <= size
+               || orders.get(size).orderTime().isBefore(archivedBefore[0].toLocalDateTime())))
+            orders = merge(orders, esql.queryList("SELECT * FROM OrdersArchive" + where + order, Rows.Order.MAPPER,
+                                                  params.toArray()), size + 1);
+      }
+      String next = null;
+      if (orders.size() > size) {
+         orders = orders.subList(0, size);
+         Rows.Order last = orders.get(size - 1);
+         next = encode(new Key(last.orderTime(), last.orderNumber()), filter);
+      }
+      return new Page(orders, next);
+   }//end page
+
+   record Key(LocalDateTime orderTime, int orderNumber) {
+   }
+
+   static final Comparator<Rows.Order> NEWEST_FIRST =
+      Comparator.comparing(Rows.Order::orderTime).thenComparingInt(Rows.Order::orderNumber).reversed();
+
+   // the first n of two newest first lists; an order archived between the two reads is in both and kept once
+   static List<Rows.Order> merge(List<Rows.Order> recent, List<Rows.Order> archived, int n) {
+      List<Rows.Order> merged = new ArrayList<Rows.Order>(n);
+      int i = 0, j = 0;
+      while (merged.size() < n && (i < recent.size() || j < archived.size())) {
+         Rows.Order next;
+         if (j == archived.size() || i < recent.size() && NEWEST_FIRST.compare(recent.get(i), archived.get(j)) <= 0)
+            next = recent.get(i++);
+         else
+            next = archived.get(j++);
+         if (merged.isEmpty() || merged.get(merged.size() - 1).orderNumber() != next.orderNumber())
+            merged.add(next);
+      }
+      return merged;
+   }//end merge
+
+   static String encode(Key key, Filter filter) {
+      String raw = key.orderTime() + "|" + key.orderNumber() + "|" + fingerprint(filter);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+   }
+
+   static Key decode(String cursor, Filter filter) {
+      try {
+         String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+         if (parts.length == 3 && parts[2].equals(fingerprint(filter)))
+            return new Key(LocalDateTime.parse(parts[0]), Integer.parseInt(parts[1]));
+      } catch (RuntimeException e) {
+         // reported below
+      }
+      throw new IllegalArgumentException("Invalid cursor.");
+   }//end decode
+
+   private static String fingerprint(Filter filter) {
+      return Integer.toHexString((filter.storeID() + "," + filter.from() + "," + filter.to()).hashCode());
+   }
+
+}//end OrderHistory
@@ -0,0 +1,333 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Non-interactive bulk loader for order files in the format of
+ * data/orders.csv.  The file is parsed by one reader thread and handed in
+ * batches of the commit size to worker threads, each writing on its own
+ * pooled connection and committing once per batch.  Workers use the
+ * driver's COPY API when it is available and fall back to batched INSERTs.
+ *
+ * Foreign keys are checked in bulk: every userID and (storeID, productName)
+ * pair is loaded once before the file is read, and rows referencing a
+ * missing user or product are written to <file>.rejected instead of failing
+ * a whole batch.  Order numbers in the file are ignored and taken from the
+ * Orders sequence.
+ *
+ * A running Amazon or HttpApi does not see the loaded orders in its
+ * popularity and sales reports until it is restarted or reloads them:
+ * Admin, "reload" on the console, or POST /orders/reload.
+ *
+ * Usage: java OrderIngest <dbname> <port> <user> <file>
+ *             [--threads n] [--commit rows] [--no-copy]
+ */
+public class OrderIngest {
+
+   static final String COPY_SQL =
+      "COPY Orders (customerID, storeID, productName, unitsOrdered, orderTime) FROM STDIN WITH (FORMAT csv)";
+   static final String INSERT_SQL =
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, ?)";
+
+   record Order(int customerID, int storeID, String productName, int unitsOrdered, Timestamp orderTime) {
+   }
+
+   // marks the end of the input for the workers
+   private static final List<Order> END = new ArrayList<Order>();
+
+   private final ConnectionPool pool;
+   private final int threads;
+   private final int commitSize;
+   private final boolean useCopy;
+
+   private final AtomicLong loaded = new AtomicLong();
+   private long rejected = 0;
+
+   public OrderIngest(ConnectionPool pool, int threads, int commitSize, boolean useCopy) {
+      this.pool = pool;
+      this.threads = threads;
+      this.commitSize = commitSize;
+      this.useCopy = useCopy;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java OrderIngest <dbname> <port> <user> <file> [--threads n] [--commit rows] [--no-copy]");
+         return;
+      }
+      int threads = 4;
+      int commitSize = 50000;
+      boolean useCopy = true;
+      for (int i = 4; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--threads": threads = Integer.parseInt(args[++i]); break;
+            case "--commit": commitSize = Integer.parseInt(args[++i]); break;
+            case "--no-copy": useCopy = false; break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      ConnectionPool.Config config = ConnectionPool.Config.fromSystemProperties();
+      config.max = Math.max(config.max, threads + 1);
+      config.leakThresholdMillis = 0; // batches legitimately hold connections for long
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", config);
+      try {
+         new OrderIngest(pool, threads, commitSize, useCopy).ingest(args[3]);
+      } finally {
+         pool.close();
+      }
+   }//end main
+
+   /**
+    * Loads every valid order of a file
+    *
+    * @param file the path of the order file, with a header line
+    * @throws Exception when reading or writing fails
+    */
+   public void ingest(String file) throws Exception {
+      long start = System.nanoTime();
+      Set<Integer> users = loadUserIDs();
+      Set<String> products = loadProductKeys();
+      System.out.printf("Loaded %d users and %d products for validation%n", users.size(), products.size());
+      boolean copy = useCopy && copySupported(pool);
+
+      BlockingQueue<List<Order>> batches = new ArrayBlockingQueue<List<Order>>(threads * 2);
+      AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int i = 0; i < threads; ++i) {
+         Thread worker = new Thread(() -> {
+            try {
+               write(batches, copy);
+            } catch (Exception e) {
+               failure.compareAndSet(null, e);
+               // keep draining so the reader never blocks on a full queue
+               try {
+                  while (batches.take() != END) {
+                  }
+               } catch (InterruptedException ie) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+         }, "order-ingest-" + i);
+         worker.start();
+         workers.add(worker);
+      }
+
+      try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+           PrintWriter rejects = new PrintWriter(new BufferedWriter(new FileWriter(file + ".rejected")))) {
+         String header = reader.readLine();
+         rejects.println(header);
+         List<Order> batch = new ArrayList<Order>(commitSize);
+         String line;
+         while ((line = reader.readLine()) != null && failure.get() == null) {
+            if (line.isEmpty())
+               continue;
+            Order order = parse(line);
+            if (order == null || !users.contains(order.customerID())
+                || !products.contains(order.storeID() + "|" + order.productName())) {
+               rejects.println(line);
+               ++rejected;
+               continue;
+            }
+            batch.add(order);
+            if (batch.size() == commitSize) {
+               batches.put(batch);
+               batch = new ArrayList<Order>(commitSize);
+            }
+         }
+         if (!batch.isEmpty())
+            batches.put(batch);
+      } finally {
+         for (int i = 0; i < threads; ++i)
+            batches.put(END);
+         for (Thread worker : workers)
+            worker.join();
+      }
+      if (failure.get() != null)
+         throw failure.get();
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("Loaded %d orders, rejected %d, in %.1f s (%.0f rows/s)%n",
+                        loaded.get(), rejected, seconds, loaded.get() / seconds);
+   }//end ingest
+
+   // worker loop: one connection, one transaction per batch
+   private void write(BlockingQueue<List<Order>> batches, boolean copy) throws Exception {
+      try (ConnectionPool.PooledConnection pc = pool.acquire()) {
+         Connection conn = pc.connection();
+         conn.setAutoCommit(false);
+         Object copyApi = copy ? copyApi(conn) : null;
+         try {
+            List<Order> batch;
+            while ((batch = batches.take()) != END) {
+               if (copyApi != null)
+                  copy(copyApi, batch);
+               else
+                  insert(conn, batch);
+               conn.commit();
+               loaded.addAndGet(batch.size());
+            }
+         } catch (Exception e) {
+            conn.rollback();
+            throw e;
+         } finally {
+            conn.setAutoCommit(true);
+         }
+      }
+   }//end write
+
+   private void insert(Connection conn, List<Order> batch) throws SQLException {
+      try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+         for (Order order : batch) {
+            stmt.setInt(1, order.customerID());
+            stmt.setInt(2, order.storeID());
+            stmt.setString(3, order.productName());
+            stmt.setInt(4, order.unitsOrdered());
+            stmt.setTimestamp(5, order.orderTime());
+            stmt.addBatch();
+         }
+         stmt.executeBatch();
+      }
+   }
+
+   private void copy(Object copyApi, List<Order> batch) throws Exception {
+      StringBuilder csv = new StringBuilder(batch.size() * 48);
+      for (Order order : batch) {
+         csv.append(order.customerID()).append(',').append(order.storeID()).append(',');
+         quote(csv, order.productName());
+         csv.append(',').append(order.unitsOrdered()).append(',').append(order.orderTime()).append('\n');
+      }
+      Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+      copyIn.invoke(copyApi, COPY_SQL, new StringReader(csv.toString()));
+   }
+
+   /*
+    * Looks up the CopyManager of a PostgreSQL connection.  It is reached by
+    * reflection because older drivers (such as the bundled pg73jdbc3) do
+    * not have it.
+    * @return the CopyManager or null when the driver has no COPY support
+    **/
+   static Object copyApi(Connection conn) {
+      try {
+         Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+         Object pg = conn.unwrap(pgConnection);
+         return pgConnection.getMethod("getCopyAPI").invoke(pg);
+      } catch (Exception | LinkageError e) {
+         return null;
+      }
+   }
+
+   /*
+    * Checks once, on one pooled connection, whether the driver has the COPY
+    * API, and says so when it has not
+    **/
+   static boolean copySupported(ConnectionPool pool) throws SQLException {
+      try (ConnectionPool.PooledConnection pc = pool.acquire()) {
+         if (copyApi(pc.connection()) != null)
+            return true;
+      }
+      System.err.println("COPY is not available, using batched INSERTs");
+      return false;
+   }
+
+   private Set<Integer> loadUserIDs() throws SQLException {
+      Set<Integer> ids = new HashSet<Integer>();
+      try (ConnectionPool.PooledConnection pc = pool.acquire();
+           PreparedStatement stmt = pc.connection().prepareStatement("SELECT userID FROM Users");
+           ResultSet rs = stmt.executeQuery()) {
+         while (rs.next())
+            ids.add(rs.getInt(1));
+      }
+      return ids;
+   }
+
+   private Set<String> loadProductKeys() throws SQLException {
+      Set<String> keys = new HashSet<String>();
+      try (ConnectionPool.PooledConnection pc = pool.acquire();
+           PreparedStatement stmt = pc.connection().prepareStatement("SELECT storeID, productName FROM Product");
+           ResultSet rs = stmt.executeQuery()) {
+         while (rs.next())
+            keys.add(rs.getInt(1) + "|" + Rows.trim(rs.getString(2)));
+      }
+      return keys;
+   }
+
+   /*
+    * Parses orderNumber,customerID,storeID,productName,unitsOrdered,orderTime
+    * @return the order or null when the line is malformed
+    **/
+   static Order parse(String line) {
+      List<String> fields = split(line);
+      if (fields.size() != 6)
+         return null;
+      try {
+         int units = Integer.parseInt(fields.get(4).trim());
+         if (units <= 0)
+            return null;
+         return new Order(Integer.parseInt(fields.get(1).trim()), Integer.parseInt(fields.get(2).trim()),
+                          fields.get(3).trim(), units, Timestamp.valueOf(fields.get(5).trim()));
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+   }//end parse
+
+   // splits a CSV line, honouring double quoted fields
+   static List<String> split(String line) {
+      List<String> fields = new ArrayList<String>(6);
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               ++i;
+            } else if (c == '"') {
+               quoted = false;
+            } else {
+               field.append(c);
+            }
+         } else if (c == '"') {
+            quoted = true;
+         } else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+         } else {
+            field.append(c);
+         }
+      }
+      fields.add(field.toString());
+      return fields;
+   }//end split
+
+   static void quote(StringBuilder csv, String value) {
+      csv.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         if (c == '"')
+            csv.append('"');
+         csv.append(c);
+      }
+      csv.append('"');
+   }
+
+}//end OrderIngest
@@ -0,0 +1,328 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Order counts per product and per customer, kept in memory so the popular
+ * products and popular customers reports no longer group the whole Orders
+ * table.  The counts are loaded once from Orders, and from the rollups of
+ * the archived orders, and every order placed afterwards is added
+ * incrementally.
+ *
+ * All-time rankings (overall or per store) are maintained as the counts
+ * change and are answered without any work.  Rankings over the last hour,
+ * day or week are merged on demand from minute and hour buckets that only
+ * cover the last week of orders.
+ *
+ * Orders written by another process, such as OrderIngest, are only
+ * counted after reload().
+ */
+public class OrderPopularity {
+
+   public enum Window { ALL, HOUR, DAY, WEEK }
+
+   /**
+    * A key with its number of orders.
+    */
+   public record Ranked<K>(K key, long orders) {
+   }
+
+   record StoreProduct(int storeID, String productName) {
+   }
+
+   record StoreCustomer(int storeID, int customerID) {
+   }
+
+   // an order recorded during a reload
+   private record Placed(int orderNumber, int storeID, String productName, int customerID, long orderTime) {
+   }
+
+   // rankings are kept for up to this many entries
+   public static final int MAX_K = 20;
+
+   static final String TOTALS = "SELECT storeID, productName, customerID, count(*), max(orderNumber) FROM Orders"
+      + " GROUP BY storeID, productName, customerID";
+   static final String ARCHIVED_TOTALS = TOTALS
+      + " UNION ALL SELECT storeID, productName, NULL, orders, 0 FROM ProductOrderRollups"
+      + " UNION ALL SELECT storeID, NULL, customerID, orders, 0 FROM CustomerOrderRollups";
+
+   static final long MINUTE = 60_000L;
+   static final long HOUR = 60 * MINUTE;
+
+   // replaced as a whole by reload
+   private TopCounter<String> products = new TopCounter<String>();
+   private TopCounter<Integer> customers = new TopCounter<Integer>();
+   private Map<Integer, TopCounter<String>> storeProducts = new HashMap<Integer, TopCounter<String>>();
+   private Map<Integer, TopCounter<Integer>> storeCustomers = new HashMap<Integer, TopCounter<Integer>>();
+
+   // 60 one-minute buckets for the last hour, 168 one-hour buckets for the last week
+   private Buckets minutes = new Buckets(MINUTE, 60);
+   private Buckets hours = new Buckets(HOUR, 168);
+
+   // the largest orderNumber read by the load
+   private int last = 0;
+   private final Object reloadLock = new Object();
+   private boolean reloading = false;
+   // orders recorded while a reload reads the tables
+   private final List<Placed> pending = new ArrayList<Placed>();
+
+   /**
+    * Loads the counts from the Orders table: totals through a GROUP BY and
+    * the individual orders of the last week for the windowed rankings.
+    * Archived orders are counted from the rollups kept by OrderArchive, read
+    * in the same statement as the GROUP BY, so an archive run in between
+    * neither loses nor repeats an order.  The orders of the last week are
+    * read up to the largest orderNumber the GROUP BY counted.
+    *
+    * @param esql the database to load from
+    * @return the populated counters
+    * @throws java.sql.SQLException when the queries fail
+    */
+   public static OrderPopularity load(Amazon esql) throws SQLException {
+      OrderPopularity popularity = new OrderPopularity();
+      esql.stream(esql.archive().present() ? ARCHIVED_TOTALS : TOTALS,
+         rs -> {
+            int storeID = rs.getInt(1);
+            String productName = Rows.trim(rs.getString(2));
+            int customerID = rs.getInt(3);
+            boolean customer = !rs.wasNull();
+            long orders = rs.getLong(4);
+            popularity.last = Math.max(popularity.last, rs.getInt(5));
+            // a rollup row counts either products or customers, an Orders group both
+            if (productName != null)
+               popularity.addProducts(storeID, productName, orders);
+            if (customer)
+               popularity.addCustomers(storeID, customerID, orders);
+            return null;
+         }, row -> {});
+      long since = System.currentTimeMillis() - 168 * HOUR;
+      esql.stream("SELECT storeID, productName, customerID, orderTime FROM Orders WHERE orderTime >= ? AND orderNumber <= ?",
+         rs -> {
+            popularity.addRecent(rs.getInt(1), Rows.trim(rs.getString(2)), rs.getInt(3), rs.getTimestamp(4).getTime());
+            return null;
+         }, row -> {}, new Timestamp(since), popularity.last);
+      return popularity;
+   }//end load
+
+   /**
+    * Loads the counts again, for orders another process wrote to the
+    * table.  The old counts answer the reports meanwhile; orders recorded
+    * during the reload that it did not read are added to the new ones.
+    *
+    * @param esql the database to load from
+    * @throws java.sql.SQLException when the queries fail, in which case the
+    *         old counts are kept
+    */
+   public void reload(Amazon esql) throws SQLException {
+      synchronized (reloadLock) {
+         synchronized (this) {
+            reloading = true;
+         }
+         OrderPopularity fresh = null;
+         try {
+            fresh = load(esql);
+         } finally {
+            synchronized (this) {
+               if (fresh != null) {
+                  products = fresh.products;
+                  customers = fresh.customers;
+                  storeProducts = fresh.storeProducts;
+                  storeCustomers = fresh.storeCustomers;
+                  minutes = fresh.minutes;
+                  hours = fresh.hours;
+                  last = fresh.last;
+                  for (Placed order : pending) {
+                     if (order.orderNumber() > last) {
+                        addTotals(order.storeID(), order.productName(), order.customerID(), 1);
+                        addRecent(order.storeID(), order.productName(), order.customerID(), order.orderTime());
+                     }
+                  }
+               }
+               pending.clear();
+               reloading = false;
+            }
+         }
+      }
+   }//end reload
+
+   /**
+    * Counts one newly placed order
+    *
+    * @param orderNumber the number of the order
+    * @param storeID the store ordered from
+    * @param productName the product ordered
+    * @param customerID the customer who ordered
+    * @param orderTime the order time in epoch milliseconds
+    */
+   public synchronized void recordOrder(int orderNumber, int storeID, String productName, int customerID, long orderTime) {
+      addTotals(storeID, Rows.trim(productName), customerID, 1);
+      addRecent(storeID, Rows.trim(productName), customerID, orderTime);
+      if (reloading)
+         pending.add(new Placed(orderNumber, storeID, Rows.trim(productName), customerID, orderTime));
+   }
+
+   /**
+    * Returns the most ordered products
+    *
+    * @param k the number of products, at most MAX_K
+    * @param storeID only count orders of this store, or null for all stores
+    * @param window the time range to count
+    * @return the products with their order counts, most ordered first
+    */
+   public synchronized List<Ranked<String>> topProducts(int k, Integer storeID, Window window) {
+      if (window == Window.ALL) {
+         TopCounter<String> counter = storeID == null ? products : storeProducts.get(storeID);
+         return counter == null ? new ArrayList<Ranked<String>>() : counter.top(k);
+      }
+      return buckets(window).top(k, window, b -> b.products,
+                                 key -> storeID == null || key.storeID() == storeID, StoreProduct::productName);
+   }//end topProducts
+
+   /**
+    * Returns the customers with the most orders
+    *
+    * @param k the number of customers, at most MAX_K
+    * @param storeID only count orders of this store, or null for all stores
+    * @param window the time range to count
+    * @return the customer IDs with their order counts, most orders first
+    */
+   public synchronized List<Ranked<Integer>> topCustomers(int k, Integer storeID, Window window) {
+      if (window == Window.ALL) {
+         TopCounter<Integer> counter = storeID == null ? customers : storeCustomers.get(storeID);
+         return counter == null ? new ArrayList<Ranked<Integer>>() : counter.top(k);
+      }
+      return buckets(window).top(k, window, b -> b.customers,
+                                 key -> storeID == null || key.storeID() == storeID, StoreCustomer::customerID);
+   }//end topCustomers
+
+   private void addTotals(int storeID, String productName, int customerID, long orders) {
+      addProducts(storeID, productName, orders);
+      addCustomers(storeID, customerID, orders);
+   }
+
+   private void addProducts(int storeID, String productName, long orders) {
+      products.add(productName, orders);
+      storeProducts.computeIfAbsent(storeID, s -> new TopCounter<String>()).add(productName, orders);
+   }
+
+   private void addCustomers(int storeID, int customerID, long orders) {
+      customers.add(customerID, orders);
+      storeCustomers.computeIfAbsent(storeID, s -> new TopCounter<Integer>()).add(customerID, orders);
+   }
+
+   private void addRecent(int storeID, String productName, int customerID, long orderTime) {
+      minutes.add(orderTime, storeID, productName, customerID);
+      hours.add(orderTime, storeID, productName, customerID);
+   }
+
+   private Buckets buckets(Window window) {
+      return window == Window.HOUR ? minutes : hours;
+   }
+
+   /**
+    * Counts per key together with the K largest counts.  Counts only ever
+    * grow, so a key can only enter the ranking by passing its last entry,
+    * which keeps every update at O(K).
+    */
+   static class TopCounter<K> {
+      private final Map<K, long[]> counts = new HashMap<K, long[]>();
+      private final List<Ranked<K>> top = new ArrayList<Ranked<K>>(MAX_K + 1);
+
+      void add(K key, long n) {
+         long[] count = counts.computeIfAbsent(key, x -> new long[1]);
+         count[0] += n;
+         Ranked<K> entry = new Ranked<K>(key, count[0]);
+
+         int i = 0;
+         while (i < top.size() && !top.get(i).key().equals(key))
+            ++i;
+         if (i < top.size()) {
+            top.set(i, entry);
+         } else if (top.size() < MAX_K) {
+            top.add(entry);
+         } else if (count[0] > top.get(MAX_K - 1).orders()) {
+            i = MAX_K - 1;
+            top.set(i, entry);
+         } else {
+            return;
+         }
+         // move the entry up to its place
+         while (i > 0 && top.get(i - 1).orders() < top.get(i).orders()) {
+            top.set(i, top.get(i - 1));
+            top.set(--i, entry);
+         }
+      }//end add
+
+      List<Ranked<K>> top(int k) {
+         return new ArrayList<Ranked<K>>(top.subList(0, Math.min(k, top.size())));
+      }
+   }//end TopCounter
+
+   /**
+    * A ring of fixed width time buckets.  A slot is cleared when it is
+    * reused for a newer bucket.
+    */
+   static class Buckets {
+      final long width;
+      final long[] stamps;
+      final Bucket[] slots;
+
+      Buckets(long width, int count) {
+         this.width = width;
+         this.stamps = new long[count];
+         this.slots = new Bucket[count];
+         for (int i = 0; i < count; ++i) {
+            stamps[i] = -1;
+            slots[i] = new Bucket();
+         }
+      }
+
+      void add(long time, int storeID, String productName, int customerID) {
+         long stamp = time / width;
+         long newest = System.currentTimeMillis() / width;
+         if (stamp <= newest - slots.length)
+            return; // too old for this ring
+         int slot = (int) (stamp % slots.length);
+         if (stamps[slot] != stamp) {
+            if (stamps[slot] > stamp)
+               return; // slot already holds a newer bucket
+            stamps[slot] = stamp;
+            slots[slot].products.clear();
+            slots[slot].customers.clear();
+         }
+         slots[slot].products.computeIfAbsent(new StoreProduct(storeID, productName), x -> new long[1])[0]++;
+         slots[slot].customers.computeIfAbsent(new StoreCustomer(storeID, customerID), x -> new long[1])[0]++;
+      }//end add
+
+      <S, K> List<Ranked<K>> top(int k, Window window, Function<Bucket, Map<S, long[]>> part,
+                                 Predicate<S> filter, Function<S, K> key) {
+         int span = window == Window.HOUR ? 60 : window == Window.DAY ? 24 : 168;
+         long newest = System.currentTimeMillis() / width;
+         Map<K, long[]> merged = new HashMap<K, long[]>();
+         for (int i = 0; i < slots.length; ++i) {
+            if (stamps[i] <= newest - span)
+               continue;
+            for (Map.Entry<S, long[]> e : part.apply(slots[i]).entrySet()) {
+               if (filter.test(e.getKey()))
+                  merged.computeIfAbsent(key.apply(e.getKey()), x -> new long[1])[0] += e.getValue()[0];
+            }
+         }
+         List<Ranked<K>> ranked = new ArrayList<Ranked<K>>(merged.size());
+         for (Map.Entry<K, long[]> e : merged.entrySet())
+            ranked.add(new Ranked<K>(e.getKey(), e.getValue()[0]));
+         ranked.sort((a, b) -> Long.compare(b.orders(), a.orders()));
+         return new ArrayList<Ranked<K>>(ranked.subList(0, Math.min(k, ranked.size())));
+      }//end top
+   }//end Buckets
+
+   static class Bucket {
+      final Map<StoreProduct, long[]> products = new HashMap<StoreProduct, long[]>();
+      final Map<StoreCustomer, long[]> customers = new HashMap<StoreCustomer, long[]>();
+   }
+
+}//end OrderPopularity
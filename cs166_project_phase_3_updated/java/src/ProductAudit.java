@@ -0,0 +1,255 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the ProductUpdates audit rows behind the updates they record.
+ * updateProduct, Admin and supply requests only queue the row, timestamped
+ * when the change was made; a background writer inserts the queued rows in
+ * batches of up to batchSize, or whatever arrived within flushMillis of
+ * the first row, so a manager update does not pay for a second round trip.
+ *
+ * The queue is bounded: when the writer falls behind, record() waits up
+ * to offerMillis for room and then drops the row with a warning, rather
+ * than holding up the update forever.  close() stops taking rows and
+ * waits for the writer to flush everything queued; a row recorded after
+ * it is dropped and counted like one that finds the queue full.
+ * Configured with these system properties:
+ *
+ *    amazon.audit.capacity      rows the queue holds (10000)
+ *    amazon.audit.batchSize     rows per insert batch (500)
+ *    amazon.audit.flushMillis   longest a row waits for its batch (200)
+ *    amazon.audit.offerMillis   longest record() waits for room (1000)
+ *
+ */
+public class ProductAudit implements AutoCloseable {
+
+   static final String INSERT =
+      "INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, ?)";
+
+   /**
+    * One ProductUpdates row waiting to be written.
+    */
+   public record Entry(int managerID, int storeID, String productName, LocalDateTime updatedOn) {
+   }
+
+   private final Amazon esql;
+   private final BlockingQueue<Entry> queue;
+   private final int batchSize;
+   private final long flushNanos;
+   private final long offerMillis;
+
+   private final AtomicLong written = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong flushes = new AtomicLong();
+
+   private Thread writer = null;
+   private volatile boolean closed = false;
+
+   /**
+    * Creates the audit log of an Amazon instance; the writer starts with
+    * the first row
+    *
+    * @param esql the instance whose pool and metrics are used
+    * @param capacity the rows the queue holds
+    * @param batchSize the most rows per insert batch
+    * @param flushMillis the longest a row waits for its batch to fill
+    * @param offerMillis the longest record() waits for room in the queue
+    */
+   public ProductAudit(Amazon esql, int capacity, int batchSize, long flushMillis, long offerMillis) {
+      this.esql = esql;
+      this.queue = new ArrayBlockingQueue<Entry>(capacity);
+      this.batchSize = batchSize;
+      this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+      this.offerMillis = offerMillis;
+      esql.metrics().gauge("amazon_audit_queue_depth", "ProductUpdates rows waiting to be written", this::depth);
+      esql.metrics().gauge("amazon_audit_dropped", "ProductUpdates rows dropped on a full queue", this::dropped);
+      esql.metrics().gauge("amazon_audit_failed", "ProductUpdates rows the database refused", this::failed);
+   }
+
+   public static ProductAudit fromSystemProperties(Amazon esql) {
+      return new ProductAudit(esql, Integer.getInteger("amazon.audit.capacity", 10000),
+                              Integer.getInteger("amazon.audit.batchSize", 500),
+                              Long.getLong("amazon.audit.flushMillis", 200),
+                              Long.getLong("amazon.audit.offerMillis", 1000));
+   }
+
+   /**
+    * Queues the audit row of a product change made now
+    *
+    * @param managerID the user who made the change
+    * @param storeID the store of the product
+    * @param productName the product changed
+    */
+   public void record(int managerID, int storeID, String productName) {
+      Entry entry = new Entry(managerID, storeID, productName, LocalDateTime.now());
+      if (closed) {
+         dropped.incrementAndGet();
+         return;
+      }
+      start();
+      try {
+         if (queue.offer(entry, offerMillis, TimeUnit.MILLISECONDS)) {
+            // the writer may have seen the queue empty after close and ended; taken back, it counts as dropped
+            if (closed && queue.remove(entry))
+               dropped.incrementAndGet();
+            return;
+         }
+         System.err.println("ProductUpdates audit queue full, dropped " + entry);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      dropped.incrementAndGet();
+   }//end record
+
+   /**
+    * Stops taking rows and waits for the queued ones to be written
+    *
+    * @param waitMillis how long to wait for the writer
+    * @return whether the queue was drained in time
+    */
+   public boolean drain(long waitMillis) {
+      closed = true;
+      Thread w;
+      synchronized (this) {
+         w = writer;
+      }
+      if (w == null)
+         return queue.isEmpty();
+      try {
+         w.join(waitMillis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      return !w.isAlive();
+   }//end drain
+
+   @Override
+   public void close() {
+      if (!drain(30000))
+         System.err.println("ProductUpdates audit: " + queue.size() + " rows not written");
+   }
+
+   public int depth() {
+      return queue.size();
+   }
+
+   public long written() {
+      return written.get();
+   }
+
+   public long dropped() {
+      return dropped.get();
+   }
+
+   public long failed() {
+      return failed.get();
+   }
+
+   public long flushes() {
+      return flushes.get();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("depth=%d written=%d flushes=%d dropped=%d failed=%d",
+                           depth(), written(), flushes(), dropped(), failed());
+   }
+
+   private synchronized void start() {
+      if (writer != null)
+         return;
+      writer = new Thread(this::run, "product-audit");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   private void run() {
+      List<Entry> batch = new ArrayList<Entry>(batchSize);
+      while (!closed || !queue.isEmpty()) {
+         try {
+            Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            // fill the batch until it is full or the first row has waited long enough
+            long deadline = System.nanoTime() + flushNanos;
+            while (batch.size() < batchSize) {
+               queue.drainTo(batch, batchSize - batch.size());
+               long left = deadline - System.nanoTime();
+               if (batch.size() >= batchSize || left <= 0 || closed)
+                  break;
+               Entry next = queue.poll(left, TimeUnit.NANOSECONDS);
+               if (next == null)
+                  break;
+               batch.add(next);
+            }
+         } catch (InterruptedException e) {
+            // keep going until the queue is drained
+         }
+         if (!batch.isEmpty()) {
+            flush(batch);
+            batch.clear();
+         }
+      }
+   }//end run
+
+   // inserts a batch in one transaction, row by row when the batch fails
+   private void flush(List<Entry> batch) {
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+         insert(batch);
+         written.addAndGet(batch.size());
+         ok = true;
+      } catch (SQLException e) {
+         // one bad row (a product deleted since) must not lose the others
+         for (Entry entry : batch) {
+            try {
+               insert(List.of(entry));
+               written.incrementAndGet();
+            } catch (SQLException rowError) {
+               failed.incrementAndGet();
+               System.err.println("ProductUpdates audit: " + entry + ": " + rowError.getMessage());
+            }
+         }
+      } finally {
+         flushes.incrementAndGet();
+         esql.metrics().record("auditFlush", INSERT, start, batch.size(), !ok);
+      }
+   }//end flush
+
+   private void insert(List<Entry> rows) throws SQLException {
+      try (ConnectionPool.PooledConnection conn = esql.pool().acquire()) {
+         Connection c = conn.connection();
+         c.setAutoCommit(false);
+         try {
+            PreparedStatement stmt = conn.statements().prepare(INSERT);
+            for (Entry e : rows) {
+               stmt.setInt(1, e.managerID());
+               stmt.setInt(2, e.storeID());
+               stmt.setString(3, e.productName());
+               stmt.setTimestamp(4, Timestamp.valueOf(e.updatedOn()));
+               stmt.addBatch();
+            }
+            stmt.executeBatch();
+            c.commit();
+         } catch (SQLException | RuntimeException e) {
+            c.rollback();
+            throw e;
+         } finally {
+            c.setAutoCommit(true);
+         }
+      }
+   }//end insert
+
+}//end ProductAudit
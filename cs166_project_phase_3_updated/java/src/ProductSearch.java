@@ -0,0 +1,366 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory search over the product names of every store.  Distinct names
+ * are indexed by their trigrams (every run of three characters), so a
+ * query only looks at the names sharing enough trigrams with it.  A name matches
+ * exactly, by prefix (of the name or one of its words), as a substring, or
+ * within a few typos of some part of it.  Hits are ranked by how well the
+ * name matches, then in-stock before sold out, then by distance from the
+ * user, then by the number of units.
+ *
+ * Writes to Product only mark their store stale through invalidate(); the
+ * next search reloads the stale stores through the loader (the catalog
+ * cache) before answering.
+ *
+ */
+public class ProductSearch {
+
+   /**
+    * Loads the current products of one store.
+    */
+   @FunctionalInterface
+   public interface Loader {
+      List<Rows.Product> products(int storeID) throws SQLException;
+   }
+
+   // how a name matched, lower is better; a fuzzy match adds its number of edits
+   public static final int EXACT = 0;
+   public static final int PREFIX = 1;
+   public static final int SUBSTRING = 2;
+   public static final int FUZZY = 3;
+
+   /**
+    * A product of one store matching a query.
+    */
+   public record Hit(int storeID, String productName, int numberOfUnits, double pricePerUnit,
+                     double distance, int match) {
+   }
+
+   // a distinct product name with its listings, by store
+   private static class Name {
+      final String key;
+      final int id;
+      final Map<Integer, Rows.Product> listings = new HashMap<Integer, Rows.Product>();
+
+      Name(String key, int id) {
+         this.key = key;
+         this.id = id;
+      }
+   }
+
+   static final Comparator<Hit> RANKING = (a, b) -> {
+      if (a.match() != b.match())
+         return Integer.compare(a.match(), b.match());
+      boolean aStock = a.numberOfUnits() > 0, bStock = b.numberOfUnits() > 0;
+      if (aStock != bStock)
+         return aStock ? -1 : 1;
+      if (a.distance() != b.distance())
+         return Double.compare(a.distance(), b.distance());
+      return Integer.compare(b.numberOfUnits(), a.numberOfUnits());
+   };
+
+   private static final Pattern BLANKS = Pattern.compile("\\s+");
+
+   private final StoreIndex stores;
+   private final Loader loader;
+   private final ReadWriteLock lock = new ReentrantReadWriteLock();
+   private final Map<String, Name> names = new HashMap<String, Name>();
+   private final Map<String, Set<Name>> grams = new HashMap<String, Set<Name>>();
+   private final Map<Integer, Set<String>> storeNames = new HashMap<Integer, Set<String>>();
+   private final Set<Integer> stale = ConcurrentHashMap.newKeySet();
+   private int nextId = 0;
+
+   /**
+    * Creates an empty index
+    *
+    * @param stores the store locations the distances are computed from
+    * @param loader reloads the products of a stale store
+    */
+   public ProductSearch(StoreIndex stores, Loader loader) {
+      this.stores = stores;
+      this.loader = loader;
+   }
+
+   /**
+    * Adds or replaces one product listing.
+    *
+    * @param product the Product row
+    */
+   public void add(Rows.Product product) {
+      lock.writeLock().lock();
+      try {
+         put(product);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Replaces every listing of a store.
+    *
+    * @param storeID the store
+    * @param products all of its current products
+    */
+   public void replaceStore(int storeID, List<Rows.Product> products) {
+      lock.writeLock().lock();
+      try {
+         Set<String> keys = storeNames.remove(storeID);
+         if (keys != null) {
+            for (String key : keys) {
+               Name name = names.get(key);
+               name.listings.remove(storeID);
+               if (name.listings.isEmpty())
+                  drop(name);
+            }
+         }
+         for (Rows.Product product : products)
+            put(product);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end replaceStore
+
+   /**
+    * Marks the products of a store as changed; they are reloaded before
+    * the next search.
+    *
+    * @param storeID the store whose products changed
+    */
+   public void invalidate(int storeID) {
+      stale.add(storeID);
+   }
+
+   /**
+    * Finds products whose name matches the text
+    *
+    * @param text the query, case does not matter
+    * @param latitude the latitude of the user
+    * @param longitude the longitude of the user
+    * @param limit the maximum number of hits
+    * @return the best hits first
+    * @throws java.sql.SQLException when a stale store cannot be reloaded
+    */
+   public List<Hit> search(String text, double latitude, double longitude, int limit) throws SQLException {
+      refresh();
+      String query = normalize(text);
+      List<Hit> hits = new ArrayList<Hit>();
+      if (query.isEmpty())
+         return hits;
+      int maxEdits = query.length() <= 3 ? 0 : query.length() <= 6 ? 1 : 2;
+      long[] peq = peq(query);
+
+      // the best hits so far, worst on top, so only the limit is ever sorted
+      PriorityQueue<Hit> best = new PriorityQueue<Hit>(limit + 1, RANKING.reversed());
+      lock.readLock().lock();
+      try {
+         for (Name name : candidates(query, maxEdits)) {
+            int match = match(query, peq, name.key, maxEdits);
+            if (match < 0)
+               continue;
+            for (Rows.Product p : name.listings.values()) {
+               best.add(new Hit(p.storeID(), p.productName(), p.numberOfUnits(), p.pricePerUnit(),
+                                distance(p.storeID(), latitude, longitude), match));
+               if (best.size() > limit)
+                  best.poll();
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      hits.addAll(best);
+      hits.sort(RANKING);
+      return hits;
+   }//end search
+
+   public int names() {
+      lock.readLock().lock();
+      try {
+         return names.size();
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   // reloads the stores written to since the last search
+   private void refresh() throws SQLException {
+      if (stale.isEmpty())
+         return;
+      Iterator<Integer> it = stale.iterator();
+      while (it.hasNext()) {
+         Integer storeID = it.next();
+         // removed before the load, so a write during the load marks it again
+         it.remove();
+         replaceStore(storeID, loader.products(storeID));
+      }
+   }//end refresh
+
+   /*
+    * Names that can match: an edit changes at most three trigrams, so a
+    * name needs all but 3 * maxEdits of the query's trigrams
+    **/
+   private Iterable<Name> candidates(String query, int maxEdits) {
+      if (query.length() < 3)
+         return names.values();
+      Set<String> queryGrams = trigrams(query);
+      int needed = Math.max(1, queryGrams.size() - 3 * maxEdits);
+      // counted by name id, which is much cheaper than a map per query
+      int[] shared = new int[nextId];
+      List<Name> found = new ArrayList<Name>();
+      for (String gram : queryGrams) {
+         Set<Name> posting = grams.get(gram);
+         if (posting == null)
+            continue;
+         for (Name name : posting)
+            if (++shared[name.id] == needed)
+               found.add(name);
+      }
+      return found;
+   }//end candidates
+
+   /*
+    * Grades how the query matches a name
+    * @return EXACT, PREFIX, SUBSTRING, FUZZY plus the edits, or -1
+    **/
+   static int match(String query, long[] peq, String name, int maxEdits) {
+      if (name.equals(query))
+         return EXACT;
+      if (name.startsWith(query) || name.contains(" " + query))
+         return PREFIX;
+      if (name.contains(query))
+         return SUBSTRING;
+      if (maxEdits == 0)
+         return -1;
+      int edits = peq != null ? substringEdits(peq, query.length(), name) : substringEdits(query, name);
+      return edits <= maxEdits ? FUZZY + edits : -1;
+   }//end match
+
+   /*
+    * The match masks of Myers' algorithm: bit i of peq[c] is set when the
+    * query has character c at position i
+    * @return the masks, or null for queries that are too long or not ASCII
+    **/
+   static long[] peq(String query) {
+      if (query.length() > 63)
+         return null;
+      long[] peq = new long[128];
+      for (int i = 0; i < query.length(); ++i) {
+         char c = query.charAt(i);
+         if (c >= 128)
+            return null;
+         peq[c] |= 1L << i;
+      }
+      return peq;
+   }//end peq
+
+   /*
+    * Fewest insertions, deletions and substitutions turning the query into
+    * some substring of the name, with Myers' bit-parallel algorithm: one
+    * column of the edit distance table per character of the name
+    **/
+   static int substringEdits(long[] peq, int length, String name) {
+      long pv = -1, mv = 0;
+      long last = 1L << (length - 1);
+      int score = length, best = length;
+      for (int j = 0; j < name.length(); ++j) {
+         char c = name.charAt(j);
+         long eq = c < 128 ? peq[c] : 0;
+         long xv = eq | mv;
+         long xh = (((eq & pv) + pv) ^ pv) | eq;
+         long ph = mv | ~(xh | pv);
+         long mh = pv & xh;
+         if ((ph & last) != 0)
+            ++score;
+         else if ((mh & last) != 0)
+            --score;
+         // no carry into the first row: a match may start anywhere in the name
+         ph <<= 1;
+         mh <<= 1;
+         pv = mh | ~(xv | ph);
+         mv = ph & xv;
+         best = Math.min(best, score);
+      }
+      return best;
+   }//end substringEdits
+
+   /*
+    * The same as a plain dynamic program (Sellers' algorithm), for queries
+    * the bit-parallel version cannot take
+    **/
+   static int substringEdits(String query, String name) {
+      int[] prev = new int[name.length() + 1];
+      int[] cur = new int[name.length() + 1];
+      for (int i = 1; i <= query.length(); ++i) {
+         cur[0] = i;
+         for (int j = 1; j <= name.length(); ++j) {
+            int cost = query.charAt(i - 1) == name.charAt(j - 1) ? 0 : 1;
+            cur[j] = Math.min(prev[j - 1] + cost, Math.min(prev[j], cur[j - 1]) + 1);
+         }
+         int[] swap = prev;
+         prev = cur;
+         cur = swap;
+      }
+      int best = Integer.MAX_VALUE;
+      for (int d : prev)
+         best = Math.min(best, d);
+      return best;
+   }//end substringEdits
+
+   static String normalize(String text) {
+      return text == null ? "" : BLANKS.matcher(text.strip()).replaceAll(" ").toLowerCase(Locale.ROOT);
+   }
+
+   static Set<String> trigrams(String key) {
+      Set<String> result = new HashSet<String>();
+      for (int i = 0; i + 3 <= key.length(); ++i)
+         result.add(key.substring(i, i + 3));
+      return result;
+   }
+
+   private double distance(int storeID, double latitude, double longitude) {
+      StoreIndex.Entry store = stores.get(storeID);
+      if (store == null)
+         return Double.MAX_VALUE;
+      double dLat = store.latitude - latitude, dLon = store.longitude - longitude;
+      return Math.sqrt(dLat * dLat + dLon * dLon);
+   }
+
+   private void put(Rows.Product product) {
+      String key = normalize(product.productName());
+      Name name = names.get(key);
+      if (name == null) {
+         name = new Name(key, nextId++);
+         names.put(key, name);
+         // short names have no trigram and are found by the scan of short queries
+         for (String gram : trigrams(key))
+            grams.computeIfAbsent(gram, g -> new HashSet<Name>()).add(name);
+      }
+      name.listings.put(product.storeID(), product);
+      storeNames.computeIfAbsent(product.storeID(), s -> new HashSet<String>()).add(key);
+   }//end put
+
+   private void drop(Name name) {
+      names.remove(name.key);
+      for (String gram : trigrams(name.key)) {
+         Set<Name> posting = grams.get(gram);
+         posting.remove(name);
+         if (posting.isEmpty())
+            grams.remove(gram);
+      }
+   }
+
+}//end ProductSearch
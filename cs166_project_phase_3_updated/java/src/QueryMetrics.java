@@ -0,0 +1,428 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+
+/**
+ * Latency, row and error counts of every statement Amazon runs, by entry
+ * point (executeUpdate, stream, queryList, ...) and by query shape, the
+ * statement text with its literals replaced by '?'.  Recording costs a map
+ * lookup and a few atomic increments, so the metrics are always on.
+ *
+ * Statements slower than the threshold are appended to the slow query log
+ * with their shape but without their parameters, which may hold
+ * passwords.  The metrics can be read over JMX (Amazon:type=QueryMetrics),
+ * over HTTP in the Prometheus text format, or from a file rewritten
+ * periodically in that format, configured with these system properties:
+ *
+ *    amazon.metrics.slowQueryMillis   slow query threshold (500)
+ *    amazon.metrics.slowQueryLog      slow query log file (slow_queries.log)
+ *    amazon.metrics.jmx               register the MBean (true)
+ *    amazon.metrics.port              serve http://host:port/metrics (off)
+ *    amazon.metrics.file              write the metrics to this file (off)
+ *    amazon.metrics.fileSeconds       how often the file is written (15)
+ *
+ */
+public class QueryMetrics implements QueryMetricsMBean, AutoCloseable {
+
+   // distinct shapes tracked, later ones are counted together as OTHER
+   static final int MAX_SHAPES = 500;
+   static final String OTHER = "<other>";
+   // the quantiles of the summaries, and the same as percentiles
+   static final double[] QUANTILES = {0.5, 0.99, 0.999};
+   static final double[] PERCENTILES = {50, 99, 99.9};
+   // statement texts remembered with their shape, so most calls skip normalize()
+   static final int MAX_STATEMENTS = 4096;
+
+   private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER = Pattern.compile("(?<![\\w.$])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+   private static final Pattern BLANKS = Pattern.compile("\\s+");
+   private static final AtomicInteger instances = new AtomicInteger();
+
+   static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LongAdder rows = new LongAdder();
+      final LongAdder errors = new LongAdder();
+
+      void record(long nanos, long rows, boolean failed) {
+         latency.record(nanos);
+         this.rows.add(rows);
+         if (failed)
+            errors.increment();
+      }
+   }//end Stats
+
+   private final Stats total = new Stats();
+   private final Map<String, Stats> operations = new ConcurrentHashMap<String, Stats>();
+   private final Map<String, Stats> shapes = new ConcurrentHashMap<String, Stats>();
+   private final Map<String, Stats> statements = new ConcurrentHashMap<String, Stats>();
+   private final LongAdder slowQueries = new LongAdder();
+   private volatile long slowNanos;
+
+   private final String slowLogPath;
+   private PrintWriter slowLog = null;
+
+   private ConnectionPool pool = null;
+   // gauges of other components, by name, with their help text
+   private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<String, DoubleSupplier>();
+   private final Map<String, String> gaugeHelp = new ConcurrentHashMap<String, String>();
+   private ObjectName jmxName = null;
+   private HttpServer server = null;
+   private ScheduledExecutorService fileWriter = null;
+
+   /**
+    * Creates empty metrics that are not exported yet
+    *
+    * @param slowQueryMillis statements taking at least this long are logged
+    * @param slowLogPath the file the slow queries are appended to
+    */
+   public QueryMetrics(long slowQueryMillis, String slowLogPath) {
+      this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+      this.slowLogPath = slowLogPath;
+   }
+
+   public static QueryMetrics fromSystemProperties() {
+      return new QueryMetrics(Long.getLong("amazon.metrics.slowQueryMillis", 500),
+                              System.getProperty("amazon.metrics.slowQueryLog", "slow_queries.log"));
+   }
+
+   /**
+    * Records one statement
+    *
+    * @param operation the Amazon method that ran it
+    * @param sql the statement text
+    * @param startNanos System.nanoTime() when the method was entered
+    * @param rows the number of rows returned or changed
+    * @param failed whether the statement threw
+    */
+   public void record(String operation, String sql, long startNanos, long rows, boolean failed) {
+      long nanos = System.nanoTime() - startNanos;
+      total.record(nanos, rows, failed);
+      operations.computeIfAbsent(operation, o -> new Stats()).record(nanos, rows, failed);
+      shape(sql).record(nanos, rows, failed);
+      if (nanos >= slowNanos)
+         logSlow(operation, sql, nanos, rows, failed);
+   }//end record
+
+   /**
+    * Turns a statement into its shape: literals become '?' and runs of
+    * blanks a single space.
+    *
+    * @param sql the statement text
+    * @return the shape
+    */
+   static String normalize(String sql) {
+      String shape = STRING.matcher(sql).replaceAll("?");
+      shape = NUMBER.matcher(shape).replaceAll("?");
+      return BLANKS.matcher(shape).replaceAll(" ").trim();
+   }
+
+   private Stats shape(String sql) {
+      Stats stats = statements.get(sql);
+      if (stats != null)
+         return stats;
+      String text = normalize(sql);
+      if (shapes.size() >= MAX_SHAPES && !shapes.containsKey(text))
+         text = OTHER;
+      stats = shapes.computeIfAbsent(text, t -> new Stats());
+      if (statements.size() < MAX_STATEMENTS)
+         statements.put(sql, stats);
+      return stats;
+   }//end shape
+
+   private synchronized void logSlow(String operation, String sql, long nanos, long rows, boolean failed) {
+      slowQueries.increment();
+      try {
+         if (slowLog == null)
+            slowLog = new PrintWriter(new FileWriter(slowLogPath, true));
+         slowLog.printf("%s %.1f ms rows=%d operation=%s failed=%b %s%n", LocalDateTime.now(), nanos / 1e6,
+                        rows, operation, failed, normalize(sql));
+         slowLog.flush();
+      } catch (IOException e) {
+         System.err.println("Cannot write the slow query log: " + e.getMessage());
+      }
+   }//end logSlow
+
+   /**
+    * Starts the exporters enabled by the system properties.
+    *
+    * @param pool the connection pool whose gauges are exported alongside
+    */
+   public void export(ConnectionPool pool) {
+      this.pool = pool;
+      try {
+         if (Boolean.parseBoolean(System.getProperty("amazon.metrics.jmx", "true"))) {
+            int instance = instances.incrementAndGet();
+            jmxName = new ObjectName("Amazon:type=QueryMetrics" + (instance == 1 ? "" : ",instance=" + instance));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, jmxName);
+         }
+      } catch (Exception e) {
+         jmxName = null;
+         System.err.println("Cannot register the query metrics MBean: " + e.getMessage());
+      }
+      Integer port = Integer.getInteger("amazon.metrics.port");
+      if (port != null) {
+         try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", exchange -> {
+               byte[] body = getPrometheus().getBytes(StandardCharsets.UTF_8);
+               exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+               exchange.sendResponseHeaders(200, body.length);
+               try (OutputStream out = exchange.getResponseBody()) {
+                  out.write(body);
+               }
+            });
+            server.start();
+         } catch (IOException e) {
+            server = null;
+            System.err.println("Cannot serve metrics on port " + port + ": " + e.getMessage());
+         }
+      }
+      String file = System.getProperty("amazon.metrics.file");
+      if (file != null) {
+         long seconds = Long.getLong("amazon.metrics.fileSeconds", 15);
+         fileWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-file");
+            thread.setDaemon(true);
+            return thread;
+         });
+         fileWriter.scheduleAtFixedRate(() -> writeFile(Paths.get(file)), seconds, seconds, TimeUnit.SECONDS);
+      }
+   }//end export
+
+   /**
+    * Exports a value of another component, read whenever the metrics are
+    * exported
+    *
+    * @param name the Prometheus name of the gauge
+    * @param help what the value is
+    * @param value reads the current value
+    */
+   public void gauge(String name, String help, DoubleSupplier value) {
+      gaugeHelp.put(name, help);
+      gauges.put(name, value);
+   }
+
+   // replaces the file in one step so a scraper never reads half of it
+   private void writeFile(Path file) {
+      try {
+         Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+         Files.write(temp, getPrometheus().getBytes(StandardCharsets.UTF_8));
+         Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         System.err.println("Cannot write metrics to " + file + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Stops the exporters, writing the metrics file one last time.
+    */
+   @Override
+   public synchronized void close() {
+      if (jmxName != null) {
+         try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+         } catch (Exception e) {
+            // already gone
+         }
+         jmxName = null;
+      }
+      if (server != null) {
+         server.stop(0);
+         server = null;
+      }
+      if (fileWriter != null) {
+         fileWriter.shutdownNow();
+         writeFile(Paths.get(System.getProperty("amazon.metrics.file")));
+         fileWriter = null;
+      }
+      if (slowLog != null) {
+         slowLog.close();
+         slowLog = null;
+      }
+   }//end close
+
+   @Override
+   public String getPrometheus() {
+      StringBuilder out = new StringBuilder(8192);
+      summary(out, "amazon_query_seconds", "Statement latency by Amazon entry point", "operation",
+              new TreeMap<String, Stats>(operations));
+      summary(out, "amazon_query_shape_seconds", "Statement latency by query shape", "shape",
+              new TreeMap<String, Stats>(shapes));
+      out.append("# HELP amazon_slow_queries_total Statements over the slow query threshold\n");
+      out.append("# TYPE amazon_slow_queries_total counter\n");
+      out.append("amazon_slow_queries_total ").append(slowQueries.sum()).append('\n');
+      ConnectionPool pool = this.pool;
+      if (pool != null) {
+         gauge(out, "amazon_pool_active_connections", "Connections borrowed from the pool", pool.active());
+         gauge(out, "amazon_pool_idle_connections", "Connections idle in the pool", pool.idle());
+         gauge(out, "amazon_pool_wait_seconds_avg", "Average wait for a connection", pool.averageWaitMillis() / 1e3);
+         counter(out, "amazon_pool_timeouts_total", "Acquires that timed out", pool.timeoutCount());
+         gauge(out, "amazon_statement_cache_hits", "Prepared statements reused", pool.statementHits());
+         gauge(out, "amazon_statement_cache_misses", "Prepared statements created", pool.statementMisses());
+      }
+      for (Map.Entry<String, DoubleSupplier> e : new TreeMap<String, DoubleSupplier>(gauges).entrySet())
+         gauge(out, e.getKey(), gaugeHelp.get(e.getKey()), e.getValue().getAsDouble());
+      return out.toString();
+   }//end getPrometheus
+
+   private static void summary(StringBuilder out, String name, String help, String label, Map<String, Stats> stats) {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(" summary\n");
+      for (Map.Entry<String, Stats> e : stats.entrySet()) {
+         String key = label + "=\"" + escape(e.getKey()) + "\"";
+         LatencyHistogram latency = e.getValue().latency;
+         long[] values = latency.percentiles(PERCENTILES);
+         for (int q = 0; q < QUANTILES.length; ++q)
+            out.append(name).append('{').append(key).append(",quantile=\"").append(QUANTILES[q]).append("\"} ")
+               .append(values[q] / 1e9).append('\n');
+         out.append(name).append("_sum{").append(key).append("} ").append(latency.sum() / 1e9).append('\n');
+         out.append(name).append("_count{").append(key).append("} ").append(latency.count()).append('\n');
+      }
+      String base = name.substring(0, name.length() - "_seconds".length());
+      out.append("# TYPE ").append(base).append("_rows_total counter\n");
+      for (Map.Entry<String, Stats> e : stats.entrySet())
+         out.append(base).append("_rows_total{").append(label).append("=\"").append(escape(e.getKey())).append("\"} ")
+            .append(e.getValue().rows.sum()).append('\n');
+      out.append("# TYPE ").append(base).append("_errors_total counter\n");
+      for (Map.Entry<String, Stats> e : stats.entrySet())
+         out.append(base).append("_errors_total{").append(label).append("=\"").append(escape(e.getKey())).append("\"} ")
+            .append(e.getValue().errors.sum()).append('\n');
+   }//end summary
+
+   private static void gauge(StringBuilder out, String name, String help, double value) {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(" gauge\n");
+      out.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void counter(StringBuilder out, String name, String help, long value) {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(" counter\n");
+      out.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static String escape(String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+   }
+
+   @Override
+   public long getQueries() {
+      return total.latency.count();
+   }
+
+   @Override
+   public long getErrors() {
+      return total.errors.sum();
+   }
+
+   @Override
+   public long getRows() {
+      return total.rows.sum();
+   }
+
+   @Override
+   public long getSlowQueries() {
+      return slowQueries.sum();
+   }
+
+   @Override
+   public long getSlowQueryMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(slowNanos);
+   }
+
+   @Override
+   public void setSlowQueryMillis(long millis) {
+      this.slowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+   }
+
+   @Override
+   public double getMeanMillis() {
+      return total.latency.mean() / 1e6;
+   }
+
+   @Override
+   public double getP50Millis() {
+      return total.latency.percentile(50) / 1e6;
+   }
+
+   @Override
+   public double getP99Millis() {
+      return total.latency.percentile(99) / 1e6;
+   }
+
+   @Override
+   public double getP999Millis() {
+      return total.latency.percentile(99.9) / 1e6;
+   }
+
+   @Override
+   public double getMaxMillis() {
+      return total.latency.max() / 1e6;
+   }
+
+   @Override
+   public int getShapes() {
+      return shapes.size();
+   }
+
+   @Override
+   public String[] getTopShapes() {
+      List<Map.Entry<String, Stats>> sorted = new ArrayList<Map.Entry<String, Stats>>(shapes.entrySet());
+      sorted.sort((a, b) -> Long.compare(b.getValue().latency.sum(), a.getValue().latency.sum()));
+      String[] lines = new String[Math.min(20, sorted.size())];
+      for (int i = 0; i < lines.length; ++i) {
+         Stats s = sorted.get(i).getValue();
+         lines[i] = String.format("total=%.1fms count=%d p99=%.2fms rows=%d errors=%d %s", s.latency.sum() / 1e6,
+                                  s.latency.count(), s.latency.percentile(99) / 1e6, s.rows.sum(), s.errors.sum(),
+                                  sorted.get(i).getKey());
+      }
+      return lines;
+   }//end getTopShapes
+
+   @Override
+   public void reset() {
+      for (Stats s : operations.values())
+         reset(s);
+      for (Stats s : shapes.values())
+         reset(s);
+      reset(total);
+      slowQueries.reset();
+   }
+
+   private static void reset(Stats s) {
+      s.latency.reset();
+      s.rows.reset();
+      s.errors.reset();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("queries=%d errors=%d rows=%d slow=%d meanMs=%.3f p99Ms=%.3f maxMs=%.3f shapes=%d",
+                           getQueries(), getErrors(), getRows(), getSlowQueries(), getMeanMillis(), getP99Millis(),
+                           getMaxMillis(), getShapes());
+   }
+
+}//end QueryMetrics
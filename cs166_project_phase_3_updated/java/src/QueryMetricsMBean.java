@@ -0,0 +1,44 @@
+/**
+ * JMX view of the query metrics of an Amazon instance, registered as
+ * Amazon:type=QueryMetrics.  Times are in milliseconds.
+ *
+ */
+public interface QueryMetricsMBean {
+
+   long getQueries();
+
+   long getErrors();
+
+   long getRows();
+
+   long getSlowQueries();
+
+   long getSlowQueryMillis();
+
+   void setSlowQueryMillis(long millis);
+
+   double getMeanMillis();
+
+   double getP50Millis();
+
+   double getP99Millis();
+
+   double getP999Millis();
+
+   double getMaxMillis();
+
+   int getShapes();
+
+   /**
+    * @return one line per query shape, the most total time first
+    */
+   String[] getTopShapes();
+
+   /**
+    * @return every metric in the Prometheus text format
+    */
+   String getPrometheus();
+
+   void reset();
+
+}//end QueryMetricsMBean
@@ -0,0 +1,438 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Sends the statements of Amazon either to the primary database or to one
+ * of its read replicas (streaming standbys).  Statements that change data
+ * go to the primary, as does everything run on pool() directly.  Queries
+ * are spread round robin over the replicas that are healthy and not
+ * lagging, and fall back to the primary when there is none.  A query that
+ * loses its replica before returning a row is run again on the primary.
+ *
+ * Every checkMillis a background check reads the WAL position of the
+ * primary, then on each replica the position replayed so far and the age
+ * of the last transaction replayed.  A replica that fails the check, is
+ * not in recovery or is more than maxLagMillis behind takes no queries
+ * until a later check passes.
+ *
+ * Reads follow the writes of their own session.  While a session is bound
+ * (as()), every write made for it remembers the number of the current check
+ * round.  Until a replica has replayed the primary position read by a later
+ * round, which includes the write, the queries of that session go to the
+ * primary, so a customer sees an order right after placing it.  Caches
+ * that are refilled after a write read on the primary too (onPrimary()), so
+ * a lagging replica cannot put an old row back into them.
+ *
+ *    amazon.replicas                comma separated host:port or JDBC URLs of the replicas (none)
+ *    amazon.replicas.maxLagMillis   replicas further behind take no queries (1000)
+ *    amazon.replicas.checkMillis    time between two health checks (500)
+ *
+ */
+public class ReplicaRouter implements AutoCloseable {
+
+   /**
+    * Work run for a session or on the primary.
+    */
+   @FunctionalInterface
+   public interface Call<T> {
+      T call() throws SQLException;
+   }
+
+   // statements that write, lock or advance a sequence; anything else starting with SELECT or WITH is a query
+   static final Pattern WRITE = Pattern.compile(
+      "\\b(INSERT|UPDATE|DELETE|MERGE|TRUNCATE|CREATE|DROP|ALTER|GRANT|REVOKE|COPY|CALL|LOCK|NEXTVAL|SETVAL|CURRVAL)\\b"
+      + "|\\bFOR\\s+(NO\\s+KEY\\s+)?(UPDATE|SHARE|KEY\\s+SHARE)\\b", Pattern.CASE_INSENSITIVE);
+   static final Pattern QUERY = Pattern.compile("^\\s*\\(*\\s*(SELECT|WITH|VALUES|TABLE)\\b", Pattern.CASE_INSENSITIVE);
+
+   // primary positions of the last rounds, to tell which round a replica has caught up with
+   static final int ROUNDS = 64;
+
+   static final String PRIMARY_CHECK = "SELECT pg_current_wal_lsn()::text";
+   static final String REPLICA_CHECK =
+      "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()::text," +
+      "       (extract(epoch FROM now() - pg_last_xact_replay_timestamp()) * 1000)::bigint";
+
+   // statement classifications, bounded since ad hoc SQL may pass through
+   static final int MAX_CLASSIFIED = 4096;
+
+   // one read replica and what the last check found
+   static final class Replica {
+      final ConnectionPool pool;
+      volatile boolean healthy = false;
+      volatile long lagMillis = Long.MAX_VALUE;
+      // the last round whose primary position this replica had replayed
+      volatile long caughtUp = -1;
+      volatile String problem = "not checked yet";
+      final AtomicLong reads = new AtomicLong();
+
+      Replica(ConnectionPool pool) {
+         this.pool = pool;
+      }
+   }//end Replica
+
+   // the session whose statements this thread runs, and whether it must stay on the primary
+   private static final ThreadLocal<Session> SESSION = new ThreadLocal<Session>();
+   private static final ThreadLocal<Boolean> PINNED = new ThreadLocal<Boolean>();
+
+   private final ConnectionPool primary;
+   private final Replica[] replicas;
+   private final long maxLagMillis;
+   private final int timeoutSeconds;
+   private final Map<String, Boolean> writes = new ConcurrentHashMap<String, Boolean>();
+   private final AtomicInteger next = new AtomicInteger();
+
+   private volatile long round = 0;
+   private final long[] primaryPositions = new long[ROUNDS];
+   private final ScheduledExecutorService checker;
+
+   private final AtomicLong primaryReads = new AtomicLong();
+   private final AtomicLong primaryWrites = new AtomicLong();
+   private final AtomicLong fallbacks = new AtomicLong();
+
+   /**
+    * Creates the router and starts checking the replicas
+    *
+    * @param primary the pool of the primary
+    * @param replicas the pools of the replicas, may be empty
+    * @param maxLagMillis replicas further behind take no queries
+    * @param checkMillis the time between two health checks
+    * @param timeoutSeconds the time a check may take
+    */
+   public ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicas, long maxLagMillis, long checkMillis,
+                        int timeoutSeconds) {
+      this.primary = primary;
+      this.replicas = new Replica[replicas.size()];
+      for (int i = 0; i < this.replicas.length; ++i)
+         this.replicas[i] = new Replica(replicas.get(i));
+      this.maxLagMillis = maxLagMillis;
+      this.timeoutSeconds = timeoutSeconds;
+      Arrays.fill(primaryPositions, Long.MAX_VALUE);
+      if (this.replicas.length == 0) {
+         this.checker = null;
+         return;
+      }
+      this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "replica-check");
+         t.setDaemon(true);
+         return t;
+      });
+      this.checker.scheduleWithFixedDelay(this::check, 0, checkMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Opens the replicas listed in amazon.replicas, on the database, user
+    * and pool settings of the primary
+    *
+    * @param primary the pool of the primary
+    * @param dbname the database name
+    * @param user the database user
+    * @param password the password of the user
+    * @param config the pool settings of the primary
+    * @return the router, without replicas when none are listed
+    * @throws java.sql.SQLException when a replica pool cannot be created
+    */
+   public static ReplicaRouter fromSystemProperties(ConnectionPool primary, String dbname, String user, String password,
+                                                    ConnectionPool.Config config) throws SQLException {
+      List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+      for (String replica : System.getProperty("amazon.replicas", "").split(",")) {
+         replica = replica.trim();
+         if (replica.isEmpty())
+            continue;
+         String url = replica.startsWith("jdbc:") ? replica : "jdbc:postgresql://" + replica + "/" + dbname;
+         ConnectionPool.Config c = ConnectionPool.Config.fromSystemProperties();
+         c.max = config.max;
+         // a replica that is down at startup must not keep the store from starting
+         c.min = 0;
+         pools.add(new ConnectionPool(url, user, password, c));
+      }
+      return new ReplicaRouter(primary, pools, Long.getLong("amazon.replicas.maxLagMillis", 1000),
+                               Long.getLong("amazon.replicas.checkMillis", 500), config.validationTimeoutSeconds);
+   }//end fromSystemProperties
+
+   /**
+    * Picks the pool a statement runs on
+    *
+    * @param sql the statement
+    * @return the primary for writes, pinned work, sessions whose last write
+    *         no replica has replayed yet and when no replica qualifies; a
+    *         replica otherwise
+    */
+   public ConnectionPool route(String sql) {
+      if (isWrite(sql)) {
+         primaryWrites.incrementAndGet();
+         return primary;
+      }
+      if (replicas.length == 0 || PINNED.get() != null) {
+         primaryReads.incrementAndGet();
+         return primary;
+      }
+      Session session = SESSION.get();
+      long after = session == null ? -1 : session.writeRound();
+      int start = next.getAndIncrement() & Integer.MAX_VALUE;
+      for (int i = 0; i < replicas.length; ++i) {
+         Replica replica = replicas[(start + i) % replicas.length];
+         if (replica.healthy && replica.lagMillis <= maxLagMillis && replica.caughtUp > after) {
+            replica.reads.incrementAndGet();
+            return replica.pool;
+         }
+      }
+      primaryReads.incrementAndGet();
+      return primary;
+   }//end route
+
+   /**
+    * Called once a statement has run, so a write made for the bound session
+    * is waited for before it reads from a replica again
+    *
+    * @param sql the statement
+    */
+   public void finished(String sql) {
+      if (isWrite(sql))
+         wrote();
+   }
+
+   /**
+    * Records a write made for the bound session on a connection of pool()
+    */
+   public void wrote() {
+      Session session = SESSION.get();
+      if (session != null)
+         session.wrote(round);
+   }
+
+   /**
+    * Takes a replica out of rotation after a query lost it, until the next
+    * check passes
+    *
+    * @param pool the pool the query ran on
+    * @param e the failure
+    */
+   public void failed(ConnectionPool pool, SQLException e) {
+      for (Replica replica : replicas) {
+         if (replica.pool == pool) {
+            replica.healthy = false;
+            replica.problem = e.getMessage();
+            fallbacks.incrementAndGet();
+         }
+      }
+   }//end failed
+
+   /**
+    * @param e the failure of a query on a replica
+    * @return true when the query may be run again on the primary: the
+    *         connection failed or the replica cancelled it because of
+    *         replication
+    */
+   public static boolean retryable(SQLException e) {
+      String state = e.getSQLState();
+      return e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+         || (state != null && (state.startsWith("08") || state.equals("40001")));
+   }
+
+   /**
+    * Runs work for a session: its writes are remembered and its reads see them
+    *
+    * @param session the session, may be null
+    * @param call the work
+    * @return what the work returns
+    * @throws java.sql.SQLException when the work fails
+    */
+   public <T> T as(Session session, Call<T> call) throws SQLException {
+      Session previous = SESSION.get();
+      SESSION.set(session);
+      try {
+         return call.call();
+      } finally {
+         if (previous == null)
+            SESSION.remove();
+         else
+            SESSION.set(previous);
+      }
+   }//end as
+
+   /**
+    * Runs work whose queries must see every committed write, such as the
+    * reads that refill a cache
+    *
+    * @param call the work
+    * @return what the work returns
+    * @throws java.sql.SQLException when the work fails
+    */
+   public <T> T onPrimary(Call<T> call) throws SQLException {
+      if (PINNED.get() != null)
+         return call.call();
+      PINNED.set(Boolean.TRUE);
+      try {
+         return call.call();
+      } finally {
+         PINNED.remove();
+      }
+   }//end onPrimary
+
+   /**
+    * @param sql a statement
+    * @return true unless the statement is a query that neither writes nor locks rows
+    */
+   public boolean isWrite(String sql) {
+      Boolean write = writes.get(sql);
+      if (write == null) {
+         write = !QUERY.matcher(sql).find() || WRITE.matcher(sql).find();
+         if (writes.size() < MAX_CLASSIFIED)
+            writes.put(sql, write);
+      }
+      return write;
+   }//end isWrite
+
+   public int replicas() {
+      return replicas.length;
+   }
+
+   /**
+    * @return the replicas that currently take queries
+    */
+   public int healthyReplicas() {
+      int n = 0;
+      for (Replica replica : replicas)
+         if (replica.healthy && replica.lagMillis <= maxLagMillis)
+            ++n;
+      return n;
+   }
+
+   /**
+    * @return the largest lag of a healthy replica in milliseconds, 0 without replicas
+    */
+   public long maxLagMillis() {
+      long max = 0;
+      for (Replica replica : replicas)
+         if (replica.healthy)
+            max = Math.max(max, replica.lagMillis);
+      return max;
+   }
+
+   public long replicaReads() {
+      long n = 0;
+      for (Replica replica : replicas)
+         n += replica.reads.get();
+      return n;
+   }
+
+   public long primaryReads() {
+      return primaryReads.get();
+   }
+
+   public long primaryWrites() {
+      return primaryWrites.get();
+   }
+
+   public long fallbacks() {
+      return fallbacks.get();
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder s = new StringBuilder(String.format("primaryWrites=%d primaryReads=%d replicaReads=%d fallbacks=%d",
+                                                        primaryWrites(), primaryReads(), replicaReads(), fallbacks()));
+      for (Replica replica : replicas)
+         s.append(String.format(" [%s %s lag=%dms reads=%d%s]", replica.pool.url(),
+                                replica.healthy ? "up" : "down", replica.healthy ? replica.lagMillis : -1,
+                                replica.reads.get(), replica.healthy ? "" : " " + replica.problem));
+      return s.toString();
+   }
+
+   /**
+    * Stops the checks and closes the replica pools; the primary pool
+    * belongs to the caller
+    */
+   @Override
+   public void close() {
+      if (checker != null)
+         checker.shutdownNow();
+      for (Replica replica : replicas)
+         replica.pool.close();
+   }
+
+   // one round of health checks
+   void check() {
+      long r = round + 1;
+      // writes that finish from now on remember this round or a later one
+      round = r;
+      long position = Long.MAX_VALUE;
+      try {
+         position = lsn(query(primary, PRIMARY_CHECK, rs -> rs.getString(1)));
+      } catch (SQLException | RuntimeException e) {
+         // without the primary position no replica catches up with this round
+      }
+      primaryPositions[(int) (r % ROUNDS)] = position;
+      for (Replica replica : replicas)
+         check(replica, r);
+   }//end check
+
+   private void check(Replica replica, long r) {
+      try {
+         Object[] state = query(replica.pool, REPLICA_CHECK, rs -> new Object[] {
+               rs.getBoolean(1), rs.getString(2), rs.getObject(3) == null ? null : rs.getLong(3)});
+         if (!(Boolean) state[0] || state[1] == null) {
+            replica.healthy = false;
+            replica.problem = "not a standby";
+            return;
+         }
+         long replayed = lsn((String) state[1]);
+         long caughtUp = replica.caughtUp;
+         for (long k = r; k > Math.max(caughtUp, r - ROUNDS); --k) {
+            if (primaryPositions[(int) (k % ROUNDS)] <= replayed) {
+               caughtUp = k;
+               break;
+            }
+         }
+         replica.caughtUp = caughtUp;
+         // the last replayed transaction gets older while the primary is idle, which is no lag
+         replica.lagMillis = caughtUp == r ? 0 : state[2] == null ? Long.MAX_VALUE : Math.max(0, (Long) state[2]);
+         replica.problem = null;
+         replica.healthy = true;
+      } catch (SQLException | RuntimeException e) {
+         replica.healthy = false;
+         replica.problem = e.getMessage();
+      }
+   }//end check
+
+   private <T> T query(ConnectionPool pool, String sql, RowMapper<T> mapper) throws SQLException {
+      try (ConnectionPool.PooledConnection conn = pool.acquire();
+           Statement stmt = conn.connection().createStatement()) {
+         stmt.setQueryTimeout(timeoutSeconds);
+         try (ResultSet rs = stmt.executeQuery(sql)) {
+            if (!rs.next())
+               throw new SQLException("no row from " + sql);
+            return mapper.map(rs);
+         } catch (SQLException e) {
+            conn.markBroken();
+            throw e;
+         }
+      }
+   }//end query
+
+   /**
+    * @param text a WAL position as printed by Postgres, e.g. "16/B374D848"
+    * @return the position as a number
+    */
+   static long lsn(String text) {
+      int slash = text.indexOf('/');
+      if (slash < 0)
+         throw new IllegalArgumentException("not a WAL position: " + text);
+      return (Long.parseLong(text.substring(0, slash), 16) << 32) | Long.parseLong(text.substring(slash + 1), 16);
+   }
+
+}//end ReplicaRouter
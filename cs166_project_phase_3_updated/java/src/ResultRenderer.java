@@ -0,0 +1,353 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the rows of a query as they come off the cursor, in one of three
+ * formats:
+ *
+ *    TABLE   aligned columns under a header, numbers right aligned
+ *    CSV     RFC 4180, a header line first, NULL as an empty field
+ *    JSONL   one JSON object per row, numbers and booleans unquoted
+ *
+ * Everything goes through one BufferedWriter, to the console, a file or a
+ * channel, and the blank padding of char(n) columns is trimmed.  CSV and
+ * JSONL hold no row after writing it; TABLE holds one block of rows to
+ * size its columns (a page on the console, blockRows otherwise), and
+ * later blocks keep those widths, widening a column only where a value
+ * does not fit.  So the renderer's memory does not depend on the size of
+ * the result.  The bundled pg73jdbc3 holds a whole result in the driver,
+ * though, so only results read in keyset pages through
+ * Amazon.renderPages(), as the exports of Storefront are, are written in
+ * bounded memory.
+ *
+ * On the console a page of pageRows rows is shown at a time; answering q
+ * ends the query without reading the remaining rows.
+ *
+ *    amazon.render.pageRows    rows per console page, 0 for no paging (40)
+ *    amazon.render.blockRows   rows sizing the table columns of a file (1000)
+ *
+ */
+public class ResultRenderer implements AutoCloseable {
+
+   public enum Format {
+      TABLE, CSV, JSONL;
+
+      /**
+       * @param name the format name, in any case
+       * @return the format
+       * @throws IllegalArgumentException for an unknown name
+       */
+      public static Format parse(String name) {
+         return valueOf(name.trim().toUpperCase(Locale.ROOT));
+      }
+   }
+
+   /**
+    * Asks whether to show the next page.
+    */
+   @FunctionalInterface
+   public interface Pager {
+      boolean more() throws IOException;
+   }
+
+   static final int BUFFER = 1 << 16;
+
+   private final Format format;
+   private final Writer out;
+   private final boolean closeOut;
+   private final int pageRows;
+   private final Pager pager;
+
+   // the columns, read from the metadata of the first row
+   private String[] labels;
+   private int[] types;
+   private boolean[] numeric;
+   private int[] widths;
+
+   private final List<String[]> block = new ArrayList<String[]>();
+   private boolean sized = false;
+   private int rows = 0;
+   private final StringBuilder line = new StringBuilder(256);
+
+   /**
+    * Creates a renderer
+    *
+    * @param format the output format
+    * @param out where the rows are written, buffered by the caller
+    * @param closeOut close the writer in close(), instead of flushing it
+    * @param pageRows rows per page, 0 for no paging
+    * @param pager asked after every page, may be null when pageRows is 0
+    */
+   public ResultRenderer(Format format, Writer out, boolean closeOut, int pageRows, Pager pager) {
+      this.format = format;
+      this.out = out;
+      this.closeOut = closeOut;
+      this.pageRows = pageRows;
+      this.pager = pager;
+   }
+
+   /**
+    * A renderer on standard output that pages through Amazon.in when
+    * there is a console
+    *
+    * @param format the output format
+    * @return the renderer, to be closed by the caller
+    */
+   public static ResultRenderer toConsole(Format format) {
+      System.out.flush();
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                                                             StandardCharsets.UTF_8), BUFFER);
+      int pageRows = System.console() == null ? 0 : Integer.getInteger("amazon.render.pageRows", 40);
+      return new ResultRenderer(format, out, false, pageRows, () -> {
+         out.write("-- more (Enter for the next page, q to stop) --");
+         out.flush();
+         String answer = Amazon.in.readLine();
+         return answer != null && !answer.trim().equalsIgnoreCase("q");
+      });
+   }//end toConsole
+
+   /**
+    * @param format the output format
+    * @param file the file to create or replace
+    * @return the renderer, to be closed by the caller
+    * @throws java.io.IOException when the file cannot be created
+    */
+   public static ResultRenderer toFile(Format format, Path file) throws IOException {
+      return new ResultRenderer(format, Files.newBufferedWriter(file, StandardCharsets.UTF_8), true, 0, null);
+   }
+
+   /**
+    * @param format the output format
+    * @param channel the channel to write to, closed with the renderer
+    * @return the renderer, to be closed by the caller
+    */
+   public static ResultRenderer toChannel(Format format, WritableByteChannel channel) {
+      return new ResultRenderer(format, new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER),
+                                true, 0, null);
+   }
+
+   /**
+    * Writes the current row
+    *
+    * @param rs the result set, on the row to write
+    * @throws java.sql.SQLException when a column cannot be read
+    * @throws RowHandler.Stop when the reader does not want more rows
+    * @throws java.io.UncheckedIOException when the output fails
+    */
+   public void row(ResultSet rs) throws SQLException {
+      try {
+         if (labels == null)
+            columns(rs.getMetaData());
+         switch (format) {
+            case CSV: csv(rs); break;
+            case JSONL: jsonl(rs); break;
+            default: table(rs); break;
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }//end row
+
+   /**
+    * @return the rows written so far
+    */
+   public int rows() {
+      return rows;
+   }
+
+   /**
+    * Writes the rows still held and the row count of a table, then flushes
+    * the output or closes it when it belongs to the renderer
+    */
+   @Override
+   public void close() {
+      try {
+         if (format == Format.TABLE) {
+            flushBlock();
+            out.write("(" + rows + (rows == 1 ? " row)" : " rows)") + System.lineSeparator());
+         }
+         if (closeOut)
+            out.close();
+         else
+            out.flush();
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }//end close
+
+   private void columns(ResultSetMetaData meta) throws SQLException, IOException {
+      int n = meta.getColumnCount();
+      labels = new String[n];
+      types = new int[n];
+      numeric = new boolean[n];
+      widths = new int[n];
+      for (int i = 0; i < n; ++i) {
+         labels[i] = meta.getColumnLabel(i + 1);
+         types[i] = meta.getColumnType(i + 1);
+         switch (types[i]) {
+            case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+            case Types.DECIMAL: case Types.NUMERIC: case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+               numeric[i] = true;
+               break;
+            default:
+         }
+      }
+      if (format == Format.CSV) {
+         line.setLength(0);
+         for (int i = 0; i < n; ++i)
+            csvField(i == 0 ? null : ",", labels[i]);
+         line.append(System.lineSeparator());
+         write();
+      }
+   }//end columns
+
+   // a column as text, without the padding of char(n)
+   private String text(ResultSet rs, int i) throws SQLException {
+      String value = rs.getString(i + 1);
+      return value != null && (types[i] == Types.CHAR || types[i] == Types.NCHAR) ? value.stripTrailing() : value;
+   }
+
+   private void csv(ResultSet rs) throws SQLException, IOException {
+      line.setLength(0);
+      for (int i = 0; i < labels.length; ++i)
+         csvField(i == 0 ? null : ",", text(rs, i));
+      line.append(System.lineSeparator());
+      write();
+      ++rows;
+   }
+
+   private void csvField(String separator, String value) {
+      if (separator != null)
+         line.append(separator);
+      if (value == null)
+         return;
+      boolean quote = false;
+      for (int k = 0; k < value.length() && !quote; ++k) {
+         char c = value.charAt(k);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote) {
+         line.append(value);
+         return;
+      }
+      line.append('"');
+      for (int k = 0; k < value.length(); ++k) {
+         char c = value.charAt(k);
+         if (c == '"')
+            line.append('"');
+         line.append(c);
+      }
+      line.append('"');
+   }//end csvField
+
+   private void jsonl(ResultSet rs) throws SQLException, IOException {
+      line.setLength(0);
+      line.append('{');
+      for (int i = 0; i < labels.length; ++i) {
+         if (i > 0)
+            line.append(',');
+         Json.string(line, labels[i]);
+         line.append(':');
+         String value = text(rs, i);
+         if (value == null)
+            line.append("null");
+         else if (types[i] == Types.BOOLEAN || types[i] == Types.BIT)
+            line.append(rs.getBoolean(i + 1));
+         else if (numeric[i] && !value.equals("NaN") && !value.contains("Infinity"))
+            line.append(value);
+         else
+            Json.string(line, value);
+      }
+      line.append('}').append(System.lineSeparator());
+      write();
+      ++rows;
+   }//end jsonl
+
+   private void table(ResultSet rs) throws SQLException, IOException {
+      String[] values = new String[labels.length];
+      for (int i = 0; i < labels.length; ++i)
+         values[i] = text(rs, i);
+      block.add(values);
+      ++rows;
+      int limit = pageRows > 0 ? pageRows : Integer.getInteger("amazon.render.blockRows", 1000);
+      if (block.size() < limit)
+         return;
+      flushBlock();
+      if (pageRows > 0) {
+         out.flush();
+         if (!pager.more())
+            throw new RowHandler.Stop();
+      }
+   }//end table
+
+   // writes the rows held, under a header on the first block and every console page
+   private void flushBlock() throws IOException {
+      if (labels == null || sized && block.isEmpty())
+         return;
+      boolean header = !sized || pageRows > 0;
+      for (int i = 0; i < labels.length; ++i) {
+         if (!sized)
+            widths[i] = labels[i].length();
+         for (String[] values : block)
+            widths[i] = Math.max(widths[i], values[i] == null ? 0 : values[i].length());
+      }
+      sized = true;
+      if (header) {
+         line.setLength(0);
+         for (int i = 0; i < labels.length; ++i)
+            cell(i, labels[i], false);
+         line.append(System.lineSeparator());
+         for (int i = 0; i < labels.length; ++i) {
+            line.append(i == 0 ? "" : "-+-");
+            for (int k = 0; k < widths[i]; ++k)
+               line.append('-');
+         }
+         line.append(System.lineSeparator());
+         write();
+      }
+      for (String[] values : block) {
+         line.setLength(0);
+         for (int i = 0; i < labels.length; ++i)
+            cell(i, values[i] == null ? "" : values[i], numeric[i]);
+         line.append(System.lineSeparator());
+         write();
+      }
+      block.clear();
+   }//end flushBlock
+
+   private void cell(int i, String value, boolean right) {
+      if (i > 0)
+         line.append(" | ");
+      int pad = widths[i] - value.length();
+      if (right)
+         for (int k = 0; k < pad; ++k)
+            line.append(' ');
+      line.append(value);
+      // no trailing blanks after the last column
+      if (!right && i < labels.length - 1)
+         for (int k = 0; k < pad; ++k)
+            line.append(' ');
+   }//end cell
+
+   private void write() throws IOException {
+      out.append(line);
+   }
+
+}//end ResultRenderer
@@ -0,0 +1,27 @@
+import java.sql.SQLException;
+
+/**
+ * Receives the mapped rows of a streamed query one at a time, so the rows
+ * are never collected as objects (the driver still holds the raw result,
+ * see Amazon.stream()).
+ *
+ */
+@FunctionalInterface
+public interface RowHandler<T> {
+
+   void handle(T row) throws SQLException;
+
+   /**
+    * Thrown by a mapper or handler that has taken the current row and wants
+    * no more.  The query ends normally and the remaining rows are not
+    * fetched.
+    */
+   class Stop extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public Stop() {
+         super(null, null, false, false);
+      }
+   }
+
+}//end RowHandler
@@ -0,0 +1,14 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a ResultSet into an object.  Mappers must only
+ * read the current row and must not move the cursor.
+ *
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+   T map(ResultSet rs) throws SQLException;
+
+}//end RowMapper
@@ -0,0 +1,87 @@
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Typed records for the rows of the Amazon tables together with the mappers
+ * that build them.  Mappers read columns by name, so they work for
+ * "SELECT *" as well as for queries listing the columns explicitly, and they
+ * trim the padding of the char(n) columns.
+ *
+ */
+public final class Rows {
+
+   private Rows() {
+   }
+
+   public record User(int userID, String name, double latitude, double longitude, String type) {
+      public static final RowMapper<User> MAPPER = rs -> new User(
+         rs.getInt("userID"), trim(rs.getString("name")), rs.getDouble("latitude"),
+         rs.getDouble("longitude"), trim(rs.getString("type")));
+   }
+
+   public record Store(int storeID, double latitude, double longitude, int managerID, LocalDate dateEstablished) {
+      public static final RowMapper<Store> MAPPER = rs -> new Store(
+         rs.getInt("storeID"), rs.getDouble("latitude"), rs.getDouble("longitude"),
+         rs.getInt("managerID"), date(rs.getDate("dateEstablished")));
+   }
+
+   public record Product(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+      public static final RowMapper<Product> MAPPER = rs -> new Product(
+         rs.getInt("storeID"), trim(rs.getString("productName")), rs.getInt("numberOfUnits"),
+         rs.getDouble("pricePerUnit"));
+   }
+
+   public record Warehouse(int warehouseID, int area, double latitude, double longitude) {
+      public static final RowMapper<Warehouse> MAPPER = rs -> new Warehouse(
+         rs.getInt("warehouseID"), rs.getInt("area"), rs.getDouble("latitude"), rs.getDouble("longitude"));
+   }
+
+   public record Order(int orderNumber, int customerID, int storeID, String productName,
+                       int unitsOrdered, LocalDateTime orderTime) {
+      public static final RowMapper<Order> MAPPER = rs -> new Order(
+         rs.getInt("orderNumber"), rs.getInt("customerID"), rs.getInt("storeID"),
+         trim(rs.getString("productName")), rs.getInt("unitsOrdered"), time(rs.getTimestamp("orderTime")));
+   }
+
+   public record SupplyRequest(int requestNumber, int managerID, int warehouseID, int storeID,
+                               String productName, int unitsRequested) {
+      public static final RowMapper<SupplyRequest> MAPPER = rs -> new SupplyRequest(
+         rs.getInt("requestNumber"), rs.getInt("managerID"), rs.getInt("warehouseID"),
+         rs.getInt("storeID"), trim(rs.getString("productName")), rs.getInt("unitsRequested"));
+   }
+
+   public record ProductUpdate(int updateNumber, int managerID, int storeID, String productName,
+                               LocalDateTime updatedOn) {
+      public static final RowMapper<ProductUpdate> MAPPER = rs -> new ProductUpdate(
+         rs.getInt("updateNumber"), rs.getInt("managerID"), rs.getInt("storeID"),
+         trim(rs.getString("productName")), time(rs.getTimestamp("updatedOn")));
+   }
+
+   // Column mappers for single value queries
+
+   public static final RowMapper<Integer> INT = rs -> rs.getInt(1);
+   public static final RowMapper<Long> LONG = rs -> rs.getLong(1);
+   public static final RowMapper<Double> DOUBLE = rs -> rs.getDouble(1);
+   public static final RowMapper<String> STRING = rs -> trim(rs.getString(1));
+
+   /**
+    * Strips the blank padding of a char(n) value
+    *
+    * @param value the column value, may be null
+    * @return the value without trailing blanks
+    */
+   public static String trim(String value) {
+      return value == null ? null : value.stripTrailing();
+   }
+
+   static LocalDate date(Date value) {
+      return value == null ? null : value.toLocalDate();
+   }
+
+   static LocalDateTime time(Timestamp value) {
+      return value == null ? null : value.toLocalDateTime();
+   }
+
+}//end Rows
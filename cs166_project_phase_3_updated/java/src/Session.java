@@ -0,0 +1,42 @@
+/**
+ * State of one logged in user.  Every operation takes the session it runs
+ * for, which replaces the old static currUser field so that one Amazon
+ * instance (and its connection pool) can serve many users at once.
+ *
+ */
+public class Session {
+
+   private final int userID;
+   private final String name;
+   // the ReplicaRouter check round current at the last write made for this session
+   private volatile long writeRound = -1;
+
+   /**
+    * Creates the session of an authenticated user
+    *
+    * @param userID the Users.userID of the logged in user
+    * @param name the login name
+    */
+   public Session(int userID, String name) {
+      this.userID = userID;
+      this.name = name;
+   }
+
+   public int userID() {
+      return userID;
+   }
+
+   public String name() {
+      return name;
+   }
+
+   long writeRound() {
+      return writeRound;
+   }
+
+   void wrote(long round) {
+      if (round > writeRound)
+         writeRound = round;
+   }
+
+}//end Session
@@ -0,0 +1,147 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the PreparedStatements of one connection keyed by their SQL text so
+ * repeated queries are parsed and planned once.  Parameters are bound by
+ * position ('?' placeholders), which also keeps user input out of the SQL
+ * text.  A cache belongs to a single connection and is not thread safe,
+ * except that its counters may be read from any thread.
+ *
+ */
+public class StatementCache {
+
+   public static final int DEFAULT_CAPACITY = 64;
+
+   private final Connection connection;
+   private final int capacity;
+   private final LinkedHashMap<String, PreparedStatement> statements;
+   // written by the thread holding the connection only, read by the metrics and JMX threads
+   private volatile long hits = 0;
+   private volatile long misses = 0;
+   private volatile long evictions = 0;
+
+   public StatementCache(Connection connection) {
+      this(connection, DEFAULT_CAPACITY);
+   }
+
+   /**
+    * Creates a cache for the given connection
+    *
+    * @param connection the physical connection the statements belong to
+    * @param capacity the maximum number of open statements
+    */
+   public StatementCache(Connection connection, int capacity) {
+      this.connection = connection;
+      this.capacity = capacity;
+      // access order, so the eldest entry is the least recently used one
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }
+
+   /**
+    * Returns the cached statement for the SQL text, preparing it on a miss,
+    * with the given parameters bound.  The caller must not close it.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @param params the values for the placeholders, in order
+    * @return the ready to execute statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql, Object... params) throws SQLException {
+      // only the cache closes its statements and it drops them when it does,
+      // so a cached statement is open (Statement.isClosed() is JDBC 4, which
+      // the bundled pg73jdbc3 does not implement)
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt == null) {
+         ++misses;
+         stmt = connection.prepareStatement(sql);
+         statements.put(sql, stmt);
+         evictOverflow();
+      } else {
+         ++hits;
+         stmt.clearParameters();
+      }
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] == null)
+            stmt.setNull(i + 1, Types.NULL);
+         else
+            stmt.setObject(i + 1, params[i]);
+      }
+      return stmt;
+   }//end prepare
+
+   /**
+    * Drops and closes the statement of a SQL text, so the next prepare()
+    * creates it again.  Used when executing it failed in a way that may have
+    * left the statement unusable.
+    *
+    * @param sql the SQL text of the statement
+    */
+   public void evict(String sql) {
+      PreparedStatement stmt = statements.remove(sql);
+      if (stmt == null)
+         return;
+      ++evictions;
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end evict
+
+   public long hits() {
+      return hits;
+   }
+
+   public long misses() {
+      return misses;
+   }
+
+   public long evictions() {
+      return evictions;
+   }
+
+   public int size() {
+      return statements.size();
+   }
+
+   /**
+    * Closes every cached statement.
+    */
+   public void close() {
+      for (PreparedStatement stmt : statements.values()) {
+         try {
+            stmt.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+      statements.clear();
+   }//end close
+
+   private void evictOverflow() {
+      Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+      while (statements.size() > capacity && it.hasNext()) {
+         PreparedStatement eldest = it.next().getValue();
+         it.remove();
+         ++evictions;
+         try {
+            eldest.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      return String.format("statements=%d hits=%d misses=%d evictions=%d",
+                           statements.size(), hits, misses, evictions);
+   }
+
+}//end StatementCache
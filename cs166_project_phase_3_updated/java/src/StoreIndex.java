@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory grid index over the Store latitude/longitude pairs.  Stores are
+ * hashed into square cells so a radius query only visits the cells that
+ * overlap the search circle instead of every row of the Store table.
+ *
+ */
+public class StoreIndex {
+
+   /**
+    * One indexed store location.
+    */
+   public static class Entry {
+      public final int storeID;
+      public final double latitude;
+      public final double longitude;
+      public final int managerID;
+
+      public Entry(int storeID, double latitude, double longitude, int managerID) {
+         this.storeID = storeID;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.managerID = managerID;
+      }
+   }//end Entry
+
+   /**
+    * A store returned by a radius query together with its distance.
+    */
+   public static class Hit {
+      public final Entry store;
+      public final double distance;
+
+      Hit(Entry store, double distance) {
+         this.store = store;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   // default cell width, a third of the 30 mile search radius
+   public static final double DEFAULT_CELL_SIZE = 10.0;
+
+   private final double cellSize;
+   private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+   private final Map<Integer, Entry> byId = new HashMap<Integer, Entry>();
+   private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+   public StoreIndex() {
+      this(DEFAULT_CELL_SIZE);
+   }
+
+   /**
+    * Creates an empty index
+    *
+    * @param cellSize the width of a grid cell in latitude/longitude units
+    */
+   public StoreIndex(double cellSize) {
+      if (cellSize <= 0)
+         throw new IllegalArgumentException("cell size must be positive");
+      this.cellSize = cellSize;
+   }
+
+   /**
+    * Adds a store, replacing any previous entry with the same storeID.
+    *
+    * @param store the store location
+    */
+   public void put(Entry store) {
+      lock.writeLock().lock();
+      try {
+         Entry old = byId.put(store.storeID, store);
+         if (old != null)
+            unlink(old);
+         cells.computeIfAbsent(cellKey(store.latitude, store.longitude),
+                               k -> new ArrayList<Entry>()).add(store);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end put
+
+   /**
+    * Removes a store from the index.
+    *
+    * @param storeID the store to remove
+    * @return true if the store was indexed
+    */
+   public boolean remove(int storeID) {
+      lock.writeLock().lock();
+      try {
+         Entry old = byId.remove(storeID);
+         if (old == null)
+            return false;
+         unlink(old);
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end remove
+
+   /**
+    * Looks up a single store by its ID.
+    *
+    * @param storeID the store to look up
+    * @return the indexed store or null
+    */
+   public Entry get(int storeID) {
+      lock.readLock().lock();
+      try {
+         return byId.get(storeID);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public int size() {
+      lock.readLock().lock();
+      try {
+         return byId.size();
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Finds every store within the given radius, nearest first.
+    *
+    * @param latitude the latitude of the search center
+    * @param longitude the longitude of the search center
+    * @param radius the maximum euclidean distance
+    * @return the matching stores sorted by distance
+    */
+   public List<Hit> within(double latitude, double longitude, double radius) {
+      List<Hit> hits = new ArrayList<Hit>();
+      long minX = cell(latitude - radius), maxX = cell(latitude + radius);
+      long minY = cell(longitude - radius), maxY = cell(longitude + radius);
+      double r2 = radius * radius;
+
+      lock.readLock().lock();
+      try {
+         for (long x = minX; x <= maxX; ++x) {
+            for (long y = minY; y <= maxY; ++y) {
+               List<Entry> bucket = cells.get(key(x, y));
+               if (bucket == null)
+                  continue;
+               for (Entry store : bucket) {
+                  double dx = store.latitude - latitude;
+                  double dy = store.longitude - longitude;
+                  double d2 = dx * dx + dy * dy;
+                  if (d2 <= r2)
+                     hits.add(new Hit(store, Math.sqrt(d2)));
+               }
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      hits.sort(Comparator.comparingDouble(h -> h.distance));
+      return hits;
+   }//end within
+
+   /**
+    * @return a copy of every indexed store
+    */
+   public Collection<Entry> all() {
+      lock.readLock().lock();
+      try {
+         return new ArrayList<Entry>(byId.values());
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   private void unlink(Entry store) {
+      long k = cellKey(store.latitude, store.longitude);
+      List<Entry> bucket = cells.get(k);
+      if (bucket == null)
+         return;
+      bucket.remove(store);
+      if (bucket.isEmpty())
+         cells.remove(k);
+   }
+
+   private long cell(double coordinate) {
+      return (long) Math.floor(coordinate / cellSize);
+   }
+
+   private long cellKey(double latitude, double longitude) {
+      return key(cell(latitude), cell(longitude));
+   }
+
+   private static long key(long x, long y) {
+      return (x << 32) ^ (y & 0xffffffffL);
+   }
+
+}//end StoreIndex
@@ -0,0 +1,418 @@
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The storefront operations without the console: every menu entry of
+ * Amazon is a method here that takes its input as arguments and returns
+ * its result instead of printing it.  The console menu, the load generator
+ * and any other front end call the same methods, so they all exercise the
+ * same queries and caches.
+ *
+ */
+public class Storefront {
+
+   /**
+    * The outcome of an operation that can be refused.
+    */
+   public enum Status {
+      OK, NOT_ALLOWED, USER_NOT_FOUND, STORE_NOT_FOUND, PRODUCT_NOT_FOUND, INVALID_COLUMN
+   }
+
+   // number of rows listed by the "recent" and "popular" reports
+   public static final int REPORT_SIZE = 5;
+
+   private final Amazon esql;
+
+   public Storefront(Amazon esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Creates a new customer
+    *
+    * @param name the login name
+    * @param password the password
+    * @param latitude the location of the customer, between 0 and 100
+    * @param longitude the location of the customer, between 0 and 100
+    * @return the new Users.userID
+    * @throws java.sql.SQLException when the insert fails
+    */
+   public int createUser(String name, String password, double latitude, double longitude) throws SQLException {
+      String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?) RETURNING userID";
+      return esql.queryOne(query, Rows.INT, name, password, latitude, longitude, "Customer");
+   }//end createUser
+
+   /**
+    * Checks log in credentials and caches the profile of the user, so later
+    * operations read it from memory
+    *
+    * @param name the login name
+    * @param password the password
+    * @return the session of the user or null when the credentials do not match
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Session logIn(String name, String password) throws SQLException {
+      Rows.User user = esql.profiles().login(name, password);
+      return user == null ? null : new Session(user.userID(), name);
+   }//end logIn
+
+   /**
+    * Ends a session and drops the cached profile.
+    *
+    * @param session the session to end
+    */
+   public void logOut(Session session) {
+      esql.profiles().invalidate(session.userID());
+   }
+
+   /**
+    * Lists the stores within 30 miles of the user
+    *
+    * @param session the logged in user
+    * @return the stores with their distance, nearest first
+    * @throws java.sql.SQLException when the profile cannot be loaded
+    */
+   public List<StoreIndex.Hit> viewStores(Session session) throws SQLException {
+      Rows.User profile = profile(session);
+      return esql.storeIndex().within(profile.latitude(), profile.longitude(), OrderEngine.MAX_DISTANCE);
+   }//end viewStores
+
+   /**
+    * Lists the products of a store through the catalog cache
+    *
+    * @param storeID the store to list
+    * @return the products ordered by name, not to be modified
+    * @throws java.sql.SQLException when the products cannot be loaded
+    */
+   public List<Rows.Product> viewProducts(int storeID) throws SQLException {
+      return esql.catalog().products(storeID);
+   }
+
+   /**
+    * Finds products of any store by part of their name, tolerating typos
+    *
+    * @param session the logged in user, whose location ranks the stores
+    * @param text the name or part of it
+    * @param limit the maximum number of products
+    * @return the best matches first, nearer and in-stock stores first among equal matches
+    * @throws java.sql.SQLException when the profile or a changed store cannot be loaded
+    */
+   public List<ProductSearch.Hit> searchProducts(Session session, String text, int limit) throws SQLException {
+      Rows.User profile = profile(session);
+      return esql.search().search(text, profile.latitude(), profile.longitude(), limit);
+   }
+
+   /**
+    * Places an order for the user.  The units are reserved and confirmed in
+    * one step, so a direct order never takes units held for a reservation.
+    *
+    * @param session the logged in customer
+    * @param storeID the store to order from
+    * @param productName the product to order
+    * @param units the number of units, must be positive
+    * @return the outcome, with the new order number when placed
+    * @throws java.sql.SQLException when the statements fail
+    */
+   public OrderEngine.Result placeOrder(Session session, int storeID, String productName, int units) throws SQLException {
+      Rows.User customer = profile(session);
+      return esql.router().as(session, () -> {
+         Inventory.Reservation reservation = esql.inventory().reserve(customer.userID(), storeID, productName, units);
+         if (reservation == null)
+            return esql.orders().refused(customer, storeID, productName);
+         return esql.inventory().confirm(reservation, (s, p, u) -> esql.orders().place(customer, s, p, u));
+      });
+   }
+
+   /**
+    * Holds units of a product for the user until they confirm or cancel
+    *
+    * @param session the logged in customer
+    * @param storeID the store of the product
+    * @param productName the product
+    * @param units the number of units, must be positive
+    * @return the reservation, or null when the units are not available
+    * @throws java.sql.SQLException when the stock cannot be read
+    */
+   public Inventory.Reservation reserve(Session session, int storeID, String productName, int units) throws SQLException {
+      return esql.inventory().reserve(session.userID(), storeID, productName, units);
+   }
+
+   /**
+    * Places the order of one of the user's reservations
+    *
+    * @param session the logged in customer
+    * @param reservation the reservation from reserve()
+    * @return the outcome, EXPIRED when the reservation is gone
+    * @throws java.sql.SQLException when the statements fail
+    */
+   public OrderEngine.Result confirmReservation(Session session, Inventory.Reservation reservation) throws SQLException {
+      if (reservation.customerID() != session.userID())
+         throw new IllegalArgumentException("Reservation of another user.");
+      Rows.User customer = profile(session);
+      return esql.router().as(session, () -> esql.inventory().confirm(reservation, (storeID, productName, units) ->
+         esql.orders().place(customer, storeID, productName, units)));
+   }
+
+   /**
+    * Gives the units of one of the user's reservations back
+    *
+    * @param session the logged in customer
+    * @param reservation the reservation from reserve()
+    */
+   public void cancelReservation(Session session, Inventory.Reservation reservation) {
+      if (reservation.customerID() != session.userID())
+         throw new IllegalArgumentException("Reservation of another user.");
+      esql.inventory().release(reservation);
+   }
+
+   /**
+    * Lists the most recent orders of the user
+    *
+    * @param session the logged in customer
+    * @return the orders, newest first
+    * @throws java.sql.SQLException when the query fails
+    */
+   public List<Rows.Order> viewRecentOrders(Session session) throws SQLException {
+      return esql.router().as(session, () ->
+         esql.history().page(session.userID(), OrderHistory.Filter.NONE, null, REPORT_SIZE).orders());
+   }
+
+   /**
+    * Reads one page of the user's orders
+    *
+    * @param session the logged in customer
+    * @param filter restrictions on store and time, OrderHistory.Filter.NONE for all
+    * @param cursor the next cursor of the previous page, or null for the first page
+    * @param size the number of orders per page
+    * @return the orders, newest first, with the cursor of the next page
+    * @throws java.sql.SQLException when the query fails
+    */
+   public OrderHistory.Page viewOrderHistory(Session session, OrderHistory.Filter filter, String cursor, int size) throws SQLException {
+      return esql.router().as(session, () -> esql.history().page(session.userID(), filter, cursor, size));
+   }
+
+   /**
+    * Sets the stock and price of a product, for managers only
+    *
+    * @param session the logged in manager
+    * @param storeID the store of the product
+    * @param productName the product to change
+    * @param price the new price per unit
+    * @param units the new number of units
+    * @return OK, NOT_ALLOWED, STORE_NOT_FOUND or PRODUCT_NOT_FOUND
+    * @throws java.sql.SQLException when the update fails
+    */
+   public Status updateProduct(Session session, int storeID, String productName, double price, int units) throws SQLException {
+      if (!hasType(session, "manager"))
+         return Status.NOT_ALLOWED;
+      if (esql.storeIndex().get(storeID) == null)
+         return Status.STORE_NOT_FOUND;
+      String query = "UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ?";
+      if (esql.router().as(session, () -> esql.executeUpdate(query, units, price, storeID, productName)) == 0)
+         return Status.PRODUCT_NOT_FOUND;
+      esql.productChanged(storeID, productName);
+      // the ProductUpdates row is written in the background
+      esql.audit().record(session.userID(), storeID, productName);
+      return Status.OK;
+   }//end updateProduct
+
+   /**
+    * Lists the most recent product updates
+    *
+    * @return the updates, newest first
+    * @throws java.sql.SQLException when the query fails
+    */
+   public List<Rows.ProductUpdate> viewRecentUpdates() throws SQLException {
+      String query = "SELECT * FROM ProductUpdates ORDER BY updatedOn DESC LIMIT ?";
+      return esql.queryList(query, Rows.ProductUpdate.MAPPER, REPORT_SIZE);
+   }
+
+   /**
+    * @return the most ordered products with their order counts
+    */
+   public List<OrderPopularity.Ranked<String>> viewPopularProducts() {
+      return esql.popularity().topProducts(REPORT_SIZE, null, OrderPopularity.Window.ALL);
+   }
+
+   /**
+    * @return the customers with the most orders with their order counts
+    */
+   public List<OrderPopularity.Ranked<Integer>> viewPopularCustomers() {
+      return esql.popularity().topCustomers(REPORT_SIZE, null, OrderPopularity.Window.ALL);
+   }
+
+   /**
+    * Revenue by store and day, units by product, spend by customer and
+    * basket sizes, for managers over their own stores and for admins over
+    * every store
+    *
+    * @param session the logged in manager or admin
+    * @param from only orders at or after this time, or null
+    * @param to only orders before this time, or null
+    * @return the reports, or null when the user is neither
+    * @throws java.sql.SQLException when the orders cannot be read
+    */
+   public OrderAnalytics.Report viewSalesReport(Session session, LocalDateTime from, LocalDateTime to) throws SQLException {
+      Set<Integer> stores = null;
+      if (hasType(session, "manager")) {
+         stores = new HashSet<Integer>();
+         for (StoreIndex.Entry store : esql.storeIndex().all())
+            if (store.managerID == session.userID())
+               stores.add(store.storeID);
+      } else if (!hasType(session, "admin")) {
+         return null;
+      }
+      return esql.analytics().report(new OrderAnalytics.Filter(stores, from, to), REPORT_SIZE);
+   }//end viewSalesReport
+
+   /**
+    * Reads the orders behind the popularity and sales reports again, after
+    * another process such as OrderIngest loaded orders; admins only
+    *
+    * @param session the logged in admin
+    * @return false when the user is not an admin
+    * @throws java.sql.SQLException when the orders cannot be read
+    */
+   public boolean reloadOrders(Session session) throws SQLException {
+      if (!hasType(session, "admin"))
+         return false;
+      esql.ordersChanged();
+      return true;
+   }//end reloadOrders
+
+   /**
+    * Writes every product of a store, read in keyset pages by name
+    *
+    * @param storeID the store to export
+    * @param renderer where the rows go, in its format
+    * @return the number of products written
+    * @throws java.sql.SQLException when the query fails
+    */
+   public int exportProducts(int storeID, ResultRenderer renderer) throws SQLException {
+      return esql.renderPages("SELECT * FROM Product WHERE storeID = ? ORDER BY productName LIMIT ?",
+                              "SELECT * FROM Product WHERE storeID = ? AND productName > ? ORDER BY productName LIMIT ?",
+                              new String[] {"productname"}, renderer, storeID);
+   }
+
+   /**
+    * Writes every order of the user, newest first, archived ones included,
+    * read in keyset pages by (orderTime, orderNumber)
+    *
+    * @param session the logged in customer
+    * @param renderer where the rows go, in its format
+    * @return the number of orders written
+    * @throws java.sql.SQLException when the query fails
+    */
+   public int exportOrders(Session session, ResultRenderer renderer) throws SQLException {
+      String[] keys = {"ordertime", "ordernumber"};
+      String order = " ORDER BY orderTime DESC, orderNumber DESC LIMIT ?";
+      String after = "(orderTime, orderNumber) < (?, ?)";
+      if (!esql.archive().present()) {
+         String first = "SELECT * FROM Orders WHERE customerID = ?";
+         return esql.router().as(session, () -> esql.renderPages(first + order, first + " AND " + after + order, keys,
+                                                                 renderer, session.userID()));
+      }
+      String first = "SELECT * FROM (SELECT * FROM Orders WHERE customerID = ?"
+                     + " UNION ALL SELECT * FROM OrdersArchive WHERE customerID = ?) o";
+      return esql.router().as(session, () -> esql.renderPages(first + order, first + " WHERE " + after + order, keys,
+                                                              renderer, session.userID(), session.userID()));
+   }
+
+   /**
+    * Requests products for the manager's stores, each from the warehouse
+    * nearest to its store, in one transaction.  The units are added to the
+    * stores' stock.
+    *
+    * @param session the logged in manager
+    * @param lines the store, product and number of units of each request
+    * @return the requests with the warehouse each was sent to, or null when
+    *         the user is not a manager
+    * @throws java.sql.SQLException when a product does not exist or the
+    *         statements fail, in which case nothing is requested
+    */
+   public List<SupplyRouter.Routed> placeSupplyRequests(Session session, List<SupplyRouter.Line> lines) throws SQLException {
+      if (!hasType(session, "manager"))
+         return null;
+      return esql.router().as(session, () -> esql.supply().request(session.userID(), lines));
+   }//end placeSupplyRequests
+
+   /**
+    * Restocks every product of the manager's stores that has fewer units
+    * than the threshold, bringing it up to the target
+    *
+    * @param session the logged in manager
+    * @param threshold products with fewer units are reordered
+    * @param target the number of units to bring them to
+    * @return the requests placed, or null when the user is not a manager
+    * @throws java.sql.SQLException when the statements fail
+    */
+   public List<SupplyRouter.Routed> reorderLowStock(Session session, int threshold, int target) throws SQLException {
+      if (!hasType(session, "manager"))
+         return null;
+      return esql.router().as(session, () ->
+         esql.supply().request(session.userID(), esql.supply().plan(session.userID(), threshold, target)));
+   }//end reorderLowStock
+
+   /**
+    * Changes one column of a user and one column of a product, for admins
+    * only, as one batch of AdminBatch: both changes are made or neither.
+    *
+    * @param session the logged in admin
+    * @param userID the user to change
+    * @param userColumn the Users column to set
+    * @param userValue the new value of the user column
+    * @param storeID the store of the product to change
+    * @param productName the product to change
+    * @param productColumn the Product column to set
+    * @param productValue the new value of the product column
+    * @return OK, NOT_ALLOWED, INVALID_COLUMN, USER_NOT_FOUND or PRODUCT_NOT_FOUND
+    * @throws java.sql.SQLException when the statements fail
+    */
+   public Status adminUpdate(Session session, int userID, String userColumn, String userValue,
+                             int storeID, String productName, String productColumn, String productValue) throws SQLException {
+      AdminBatch.Report report = adminBatch(session, List.of(
+         AdminBatch.Mutation.user(userID, userColumn, userValue),
+         AdminBatch.Mutation.product(storeID, productName, productColumn, productValue)), true);
+      if (report == null)
+         return Status.NOT_ALLOWED;
+      AdminBatch.Outcome user = report.outcomes().get(0), product = report.outcomes().get(1);
+      if (user.status() == AdminBatch.Status.INVALID || product.status() == AdminBatch.Status.INVALID)
+         return Status.INVALID_COLUMN;
+      if (user.status() == AdminBatch.Status.NOT_FOUND)
+         return Status.USER_NOT_FOUND;
+      if (product.status() == AdminBatch.Status.NOT_FOUND)
+         return Status.PRODUCT_NOT_FOUND;
+      return Status.OK;
+   }//end adminUpdate
+
+   /**
+    * Applies a batch of user and product changes, for admins only
+    *
+    * @param session the logged in admin
+    * @param mutations the changes to make
+    * @param allOrNothing make none of the changes when one of them fails
+    * @return the outcome of every change, or null when the user is not an admin
+    * @throws java.sql.SQLException when the statements fail
+    */
+   public AdminBatch.Report adminBatch(Session session, List<AdminBatch.Mutation> mutations, boolean allOrNothing) throws SQLException {
+      if (!hasType(session, "admin"))
+         return null;
+      return esql.router().as(session, () -> esql.admin().apply(session.userID(), mutations, allOrNothing));
+   }
+
+   private Rows.User profile(Session session) throws SQLException {
+      Rows.User profile = esql.profiles().get(session.userID());
+      if (profile == null)
+         throw new IllegalStateException("User location not found.");
+      return profile;
+   }
+
+   private boolean hasType(Session session, String type) throws SQLException {
+      Rows.User profile = esql.profiles().get(session.userID());
+      return profile != null && profile.type().equals(type);
+   }
+
+}//end Storefront
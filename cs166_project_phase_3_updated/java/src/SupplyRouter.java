@@ -0,0 +1,185 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Routes product supply requests to the warehouse nearest to each store
+ * and writes a whole batch of them in one transaction.  Every request adds
+ * the requested units to the store's stock.  The reorder planner turns the
+ * low-stock products of a manager's stores into such a batch.
+ *
+ * Warehouses are few and rarely change, so their locations are loaded
+ * once and searched linearly; reload() picks up new ones.
+ *
+ */
+public class SupplyRouter {
+
+   /**
+    * One requested product: the store, the product and the units wanted.
+    */
+   public record Line(int storeID, String productName, int units) {
+   }
+
+   /**
+    * A line together with the warehouse it was sent to.
+    */
+   public record Routed(int storeID, String productName, int units, int warehouseID, double distance) {
+   }
+
+   static final String INSERT_REQUEST =
+      "INSERT INTO ProductSupplyRequests(managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?)";
+   static final String ADD_STOCK =
+      "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?";
+   static final String LOW_STOCK =
+      "SELECT p.* FROM Product p JOIN Store s ON s.storeID = p.storeID" +
+      " WHERE s.managerID = ? AND p.numberOfUnits < ? ORDER BY p.storeID, p.productName";
+
+   private final Amazon esql;
+   private volatile List<Rows.Warehouse> warehouses = Collections.emptyList();
+
+   public SupplyRouter(Amazon esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Loads the warehouse locations.
+    *
+    * @throws java.sql.SQLException when the query fails
+    */
+   public void reload() throws SQLException {
+      warehouses = Collections.unmodifiableList(esql.queryList("SELECT * FROM Warehouse", Rows.Warehouse.MAPPER));
+   }
+
+   /**
+    * Uses warehouse locations read elsewhere, e.g. from the catalog snapshot
+    *
+    * @param warehouses every Warehouse row
+    */
+   public void setWarehouses(List<Rows.Warehouse> warehouses) {
+      this.warehouses = Collections.unmodifiableList(new ArrayList<Rows.Warehouse>(warehouses));
+   }
+
+   /**
+    * Finds the warehouse closest to a location
+    *
+    * @param latitude the latitude of the location
+    * @param longitude the longitude of the location
+    * @return the nearest warehouse or null when there is none
+    */
+   public Rows.Warehouse nearest(double latitude, double longitude) {
+      Rows.Warehouse best = null;
+      double bestDistance = Double.MAX_VALUE;
+      for (Rows.Warehouse w : warehouses) {
+         double d = esql.calculateDistance(latitude, longitude, w.latitude(), w.longitude());
+         if (d < bestDistance) {
+            bestDistance = d;
+            best = w;
+         }
+      }
+      return best;
+   }//end nearest
+
+   /**
+    * Requests every line from the warehouse nearest to its store and adds
+    * the units to the store's stock.  All lines are written with JDBC
+    * batches in a single transaction, so either all or none of them are
+    * recorded.
+    *
+    * @param managerID the manager making the requests
+    * @param lines the products to request
+    * @return the lines with the warehouse each was sent to, in the order given
+    * @throws java.sql.SQLException when a product does not exist or the
+    *         statements fail, in which case nothing is written
+    */
+   public List<Routed> request(int managerID, List<Line> lines) throws SQLException {
+      List<Routed> routed = new ArrayList<Routed>(lines.size());
+      for (Line line : lines) {
+         if (line.units() <= 0)
+            throw new IllegalArgumentException("number of units must be positive");
+         StoreIndex.Entry store = esql.storeIndex().get(line.storeID());
+         if (store == null)
+            throw new IllegalArgumentException("Store " + line.storeID() + " not found.");
+         Rows.Warehouse w = nearest(store.latitude, store.longitude);
+         if (w == null)
+            throw new IllegalStateException("There are no warehouses.");
+         routed.add(new Routed(line.storeID(), line.productName(), line.units(), w.warehouseID(),
+                               esql.calculateDistance(store.latitude, store.longitude, w.latitude(), w.longitude())));
+      }
+      if (routed.isEmpty())
+         return routed;
+
+      // a fixed row order keeps concurrent batches from deadlocking on Product
+      List<Routed> ordered = new ArrayList<Routed>(routed);
+      ordered.sort(Comparator.comparingInt(Routed::storeID).thenComparing(Routed::productName));
+
+      long start = System.nanoTime();
+      boolean failed = true;
+      try (ConnectionPool.PooledConnection conn = esql.pool().acquire()) {
+         Connection c = conn.connection();
+         c.setAutoCommit(false);
+         try {
+            PreparedStatement insert = conn.statements().prepare(INSERT_REQUEST);
+            PreparedStatement stock = conn.statements().prepare(ADD_STOCK);
+            for (Routed r : ordered) {
+               insert.setInt(1, managerID);
+               insert.setInt(2, r.warehouseID());
+               insert.setInt(3, r.storeID());
+               insert.setString(4, r.productName());
+               insert.setInt(5, r.units());
+               insert.addBatch();
+               stock.setInt(1, r.units());
+               stock.setInt(2, r.storeID());
+               stock.setString(3, r.productName());
+               stock.addBatch();
+            }
+            insert.executeBatch();
+            int[] updated = stock.executeBatch();
+            for (int i = 0; i < updated.length; ++i) {
+               if (updated[i] == 0)
+                  throw new SQLException("Product " + ordered.get(i).productName() + " not found in store "
+                                         + ordered.get(i).storeID() + ".");
+            }
+            c.commit();
+            failed = false;
+         } catch (SQLException | RuntimeException e) {
+            c.rollback();
+            throw e;
+         } finally {
+            c.setAutoCommit(true);
+         }
+      } finally {
+         esql.router().wrote();
+         esql.metrics().record("supplyBatch", INSERT_REQUEST, start, routed.size(), failed);
+      }
+      for (Routed r : routed) {
+         esql.stockChanged(r.storeID(), r.productName());
+         esql.audit().record(managerID, r.storeID(), r.productName());
+      }
+      return routed;
+   }//end request
+
+   /**
+    * Plans the restocking of a manager's stores: every product below the
+    * threshold is brought up to the target
+    *
+    * @param managerID the manager whose stores are scanned
+    * @param threshold products with fewer units are reordered
+    * @param target the number of units to bring them to
+    * @return the lines to request, possibly empty
+    * @throws java.sql.SQLException when the query fails
+    */
+   public List<Line> plan(int managerID, int threshold, int target) throws SQLException {
+      if (target < threshold)
+         throw new IllegalArgumentException("the target must be at least the threshold");
+      List<Line> lines = new ArrayList<Line>();
+      esql.stream(LOW_STOCK, Rows.Product.MAPPER,
+                  p -> lines.add(new Line(p.storeID(), p.productName(), target - p.numberOfUnits())),
+                  managerID, threshold);
+      return lines;
+   }//end plan
+
+}//end SupplyRouter
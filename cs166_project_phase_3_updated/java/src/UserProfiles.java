@@ -0,0 +1,107 @@
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the Users rows of logged in users.  LogIn loads the whole
+ * profile with one query and the menu operations read location and type
+ * from here instead of going back to the Users table.  Admin invalidates
+ * the entry of any user it modifies, and logging out drops it.
+ *
+ */
+public class UserProfiles {
+
+   static final String COLUMNS = "SELECT userID, name, latitude, longitude, type FROM Users ";
+
+   private final Amazon esql;
+   private final Map<Integer, Rows.User> profiles = new ConcurrentHashMap<Integer, Rows.User>();
+
+   // every hit is a Users round trip that did not happen
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong loads = new AtomicLong();
+   private final AtomicLong invalidations = new AtomicLong();
+
+   public UserProfiles(Amazon esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Checks the credentials and caches the profile of the user
+    *
+    * @param name the login name
+    * @param password the password
+    * @return the profile or null when the credentials do not match
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Rows.User login(String name, String password) throws SQLException {
+      // on the primary, so a user can log in right after signing up
+      Rows.User user = esql.router().onPrimary(() ->
+         esql.queryOne(COLUMNS + "WHERE name = ? AND password = ?", Rows.User.MAPPER, name, password));
+      loads.incrementAndGet();
+      if (user != null)
+         profiles.put(user.userID(), user);
+      return user;
+   }//end login
+
+   /**
+    * Returns the profile of a user, loading it only when it is not cached
+    *
+    * @param userID the user to look up
+    * @return the profile or null when the user does not exist
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Rows.User get(int userID) throws SQLException {
+      Rows.User user = profiles.get(userID);
+      if (user != null) {
+         hits.incrementAndGet();
+         return user;
+      }
+      user = esql.router().onPrimary(() -> esql.queryOne(COLUMNS + "WHERE userID = ?", Rows.User.MAPPER, userID));
+      loads.incrementAndGet();
+      if (user != null)
+         profiles.put(userID, user);
+      return user;
+   }//end get
+
+   /**
+    * Caches profiles read elsewhere, e.g. from the catalog snapshot at
+    * startup, without replacing the ones already cached
+    *
+    * @param users the profiles
+    */
+   public void preload(Collection<Rows.User> users) {
+      for (Rows.User user : users)
+         profiles.putIfAbsent(user.userID(), user);
+   }
+
+   /**
+    * Forgets the cached profile, e.g. after its Users row was modified
+    *
+    * @param userID the user whose profile changed
+    */
+   public void invalidate(int userID) {
+      if (profiles.remove(userID) != null)
+         invalidations.incrementAndGet();
+   }
+
+   public long hits() {
+      return hits.get();
+   }
+
+   public long loads() {
+      return loads.get();
+   }
+
+   public long invalidations() {
+      return invalidations.get();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("cached=%d hits=%d loads=%d invalidations=%d",
+                           profiles.size(), hits.get(), loads.get(), invalidations.get());
+   }
+
+}//end UserProfiles
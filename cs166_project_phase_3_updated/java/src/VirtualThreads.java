@@ -0,0 +1,51 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors that start one thread per task, on virtual threads when the
+ * JVM has them.  Virtual threads arrived in Java 21 and the project still
+ * builds on older JDKs, so they are looked up by reflection and the
+ * executors fall back to cached platform threads.
+ *
+ */
+public final class VirtualThreads {
+
+   private VirtualThreads() {
+   }
+
+   /**
+    * @return true when this JVM runs tasks on virtual threads
+    */
+   public static boolean available() {
+      try {
+         Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return true;
+      } catch (NoSuchMethodException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Creates an executor that runs every task on a new virtual thread, or
+    * on a cached platform thread when virtual threads are not available
+    *
+    * @param name the prefix of the platform thread names
+    * @return the executor, to be shut down by the caller
+    */
+   public static ExecutorService newPerTaskExecutor(String name) {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         AtomicInteger count = new AtomicInteger();
+         ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         };
+         return Executors.newCachedThreadPool(factory);
+      }
+   }//end newPerTaskExecutor
+
+}//end VirtualThreads
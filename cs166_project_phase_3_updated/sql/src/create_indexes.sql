@@ -4,6 +4,7 @@ DROP INDEX IF EXISTS indexUsers;
 DROP INDEX IF EXISTS indexStore;
 DROP INDEX IF EXISTS indexProduct;
 DROP INDEX IF EXISTS indexOrders;
+DROP INDEX IF EXISTS indexOrdersArchive;
 DROP INDEX IF EXISTS indexProductUpdates;
 
 -- Login
@@ -18,5 +19,8 @@ CREATE INDEX indexProduct ON Product (productName);
 -- Recent orders by user
 CREATE INDEX indexOrders ON Orders (customerID, orderTime);
 
+-- Order history past the archive cutoff, created on every monthly partition
+CREATE INDEX indexOrdersArchive ON OrdersArchive (customerID, orderTime);
+
 -- Recent product updates
 CREATE INDEX indexProductUpdates ON ProductUpdates (updatedOn);
@@ -5,6 +5,10 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS OrdersArchive CASCADE;
+DROP TABLE IF EXISTS ProductOrderRollups CASCADE;
+DROP TABLE IF EXISTS CustomerOrderRollups CASCADE;
+DROP TABLE IF EXISTS OrderArchiveRuns CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -76,3 +80,39 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
+
+-- Orders older than the archive cutoff, one partition per month of orderTime
+CREATE TABLE OrdersArchive (
+                     orderNumber integer NOT NULL,
+                     customerID integer NOT NULL,
+                     storeID integer NOT NULL,
+                     productName char(30) NOT NULL,
+                     unitsOrdered integer NOT NULL,
+                     orderTime timestamp NOT NULL
+) PARTITION BY RANGE (orderTime);
+
+-- Order counts of the archived orders, for the popularity reports
+CREATE TABLE ProductOrderRollups (
+                     storeID integer NOT NULL,
+                     productName char(30) NOT NULL,
+                     orders bigint NOT NULL,
+                     units bigint NOT NULL,
+                     PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE CustomerOrderRollups (
+                     storeID integer NOT NULL,
+                     customerID integer NOT NULL,
+                     orders bigint NOT NULL,
+                     units bigint NOT NULL,
+                     PRIMARY KEY(storeID, customerID)
+);
+
+-- Every archive run; all archived orders are older than the latest cutoff
+CREATE TABLE OrderArchiveRuns (
+                     runNumber serial,
+                     cutoff timestamp NOT NULL,
+                     startedOn timestamp NOT NULL,
+                     ordersMoved bigint,
+                     PRIMARY KEY(runNumber)
+);
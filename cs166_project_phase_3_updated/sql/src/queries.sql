@@ -1,18 +1,22 @@
-SELECT * FROM USERS WHERE name = 'maya' AND password = 'nanma'; --user login
-
-SELECT latitude, longitude FROM Users WHERE userID = 1; --fetch user location
+SELECT userID, name, latitude, longitude, type FROM Users WHERE name = 'maya' AND password = 'nanma'; --user login, cached for the session
 
 SELECT * FROM Store; --get all stores
 
 SELECT * FROM Product WHERE storeID = 1; --view products
 
-SELECT latitude, longitude FROM Store WHERE storeID = 1; --fetch store location
-
-SELECT MAX(orderNumber) FROM Orders; --max order number
+WITH store AS (SELECT storeID FROM Store WHERE storeID = 1
+                AND sqrt(power(latitude - 42.96338, 2) + power(longitude - 58.46449, 2)) <= 30),
+     stock AS (UPDATE Product p SET numberOfUnits = p.numberOfUnits - 2
+                WHERE p.storeID = (SELECT storeID FROM store) AND p.productName = 'Pepsi' AND p.numberOfUnits >= 2
+               RETURNING p.storeID, p.productName)
+INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)
+SELECT 1, storeID, productName, 2, now() FROM stock RETURNING orderNumber; --place order atomically
 
-SELECT * FROM Orders WHERE customerID = 1 ORDER BY orderTime DESC LIMIT 5; --get 5 most recent orders
+SELECT * FROM Orders WHERE customerID = 1 ORDER BY orderTime DESC, orderNumber DESC LIMIT 6; --get 5 most recent orders, the 6th tells if there is a next page
 
-SELECT name FROM Users WHERE userID = 1 AND type = 'manager'; --get name of manager
+SELECT * FROM Orders WHERE customerID = 1 AND orderTime <= '2016-09-10 13:01:00' AND (orderTime < '2016-09-10 13:01:00' OR orderNumber < 1)
+ AND storeID = 17 AND orderTime >= '2016-01-01' AND orderTime < '2017-01-01'
+ ORDER BY orderTime DESC, orderNumber DESC LIMIT 11; --next page of the order history after the last (orderTime, orderNumber) shown, with the optional filters
 
 SELECT managerID FROM Store WHERE storeID = 1; --get managerID from store
 
@@ -24,3 +28,10 @@ SELECT customerID, COUNT(*) as orders FROM Orders GROUP BY customerID ORDER BY o
 
 
 
+
+SELECT * FROM Warehouse; --warehouse locations, the nearest one to the store gets the supply request
+
+INSERT INTO ProductSupplyRequests(managerID, warehouseID, storeID, productName, unitsRequested) VALUES (2, 3, 1, 'Pepsi', 10); --supply request, batched per call
+UPDATE Product SET numberOfUnits = numberOfUnits + 10 WHERE storeID = 1 AND productName = 'Pepsi'; --restock, in the same transaction
+
+SELECT p.* FROM Product p JOIN Store s ON s.storeID = p.storeID WHERE s.managerID = 2 AND p.numberOfUnits < 10 ORDER BY p.storeID, p.productName; --low stock products of a manager's stores